@@ -20,6 +20,7 @@ import java.util.concurrent.TimeUnit;
 
 import com.google.api.client.util.Objects;
 import com.google.cloud.bigtable.grpc.BigtableClusterName;
+import com.google.cloud.bigtable.grpc.io.ChannelSelection;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
@@ -45,12 +46,49 @@ public class BigtableOptions implements Serializable {
       (int) TimeUnit.MILLISECONDS.convert(30, TimeUnit.MINUTES);
   public static final int BIGTABLE_ASYNC_MUTATOR_COUNT_DEFAULT = 2;
 
+  /**
+   * The number of outstanding calls per channel above which a resizable data channel pool adds
+   * channels. HTTP/2 connections usually allow around 100 concurrent streams, after which calls
+   * queue, so the pool grows well before that.
+   */
+  public static final int BIGTABLE_CHANNEL_TARGET_OUTSTANDING_CALLS_DEFAULT = 50;
+
+  /**
+   * By default, the number of retries in a session is not limited by a retry budget.
+   */
+  public static final int BIGTABLE_RETRY_BUDGET_PERCENT_DEFAULT = 0;
+
   /**
    * This describes the maximum size a bulk mutation RPC should be before sending it to the server
    * and starting the next bulk call. Defaults to 1 MB.
    */
   public static final long BIGTABLE_BULK_MAX_REQUEST_SIZE_BYTES_DEFAULT = 1 << 20;
 
+  /**
+   * By default, bulk mutation requests are not sized adaptively.
+   */
+  public static final long BIGTABLE_BULK_TARGET_LATENCY_MS_DEFAULT = 0;
+
+  /**
+   * By default, increments are not combined.
+   */
+  public static final long BIGTABLE_INCREMENT_AGGREGATION_WINDOW_MS_DEFAULT = 0;
+
+  /**
+   * The default number of pending increments at which they are sent.
+   */
+  public static final int BIGTABLE_INCREMENT_AGGREGATION_MAX_REQUESTS_DEFAULT = 1000;
+
+  /**
+   * By default, synchronous writes are not committed in groups.
+   */
+  public static final long BIGTABLE_GROUP_COMMIT_WINDOW_MICROS_DEFAULT = 0;
+
+  /**
+   * By default, single row reads are not coalesced.
+   */
+  public static final long BIGTABLE_READ_COALESCING_WINDOW_MICROS_DEFAULT = 0;
+
   /**
    * This describes the maximum number of individual mutation requests to bundle in a single bulk
    * mutation RPC before sending it to the server and starting the next bulk call.
@@ -59,6 +97,13 @@ public class BigtableOptions implements Serializable {
    */
   public static final int BIGTABLE_BULK_MAX_ROW_KEY_COUNT_DEFAULT = 100;
 
+  /**
+   * This describes the maximum number of milliseconds that a partially filled bulk mutation or bulk
+   * read may wait before it is sent to the server. 0 means that a partial batch is only sent on an
+   * explicit flush.
+   */
+  public static final long BIGTABLE_BULK_LINGER_MS_DEFAULT = 0;
+
   private static final Logger LOG = new Logger(BigtableOptions.class);
 
   private static int getDefaultDataChannelCount() {
@@ -100,6 +145,22 @@ public class BigtableOptions implements Serializable {
     private boolean useBulkApi = false;
     private int bulkMaxRowKeyCount = BIGTABLE_BULK_MAX_ROW_KEY_COUNT_DEFAULT;
     private long bulkMaxRequestSize = BIGTABLE_BULK_MAX_REQUEST_SIZE_BYTES_DEFAULT;
+    private long bulkLingerMs = BIGTABLE_BULK_LINGER_MS_DEFAULT;
+    private ChannelSelection channelSelection = ChannelSelection.ROUND_ROBIN;
+    private int channelEjectionFailureThreshold = 0;
+    private int maxDataChannelCount = 0;
+    private int channelTargetOutstandingCalls = BIGTABLE_CHANNEL_TARGET_OUTSTANDING_CALLS_DEFAULT;
+    private boolean eagerlyConnectChannels = false;
+    private CallOptionsConfig callOptionsConfig = new CallOptionsConfig.Builder().build();
+    private int retryBudgetPercent = BIGTABLE_RETRY_BUDGET_PERCENT_DEFAULT;
+    private long bulkTargetLatencyMs = BIGTABLE_BULK_TARGET_LATENCY_MS_DEFAULT;
+    private boolean coalesceBulkRows = false;
+    private long incrementAggregationWindowMs = BIGTABLE_INCREMENT_AGGREGATION_WINDOW_MS_DEFAULT;
+    private int incrementAggregationMaxRequests =
+        BIGTABLE_INCREMENT_AGGREGATION_MAX_REQUESTS_DEFAULT;
+    private boolean orderAsyncMutationsByRow = false;
+    private long groupCommitWindowMicros = BIGTABLE_GROUP_COMMIT_WINDOW_MICROS_DEFAULT;
+    private long readCoalescingWindowMicros = BIGTABLE_READ_COALESCING_WINDOW_MICROS_DEFAULT;
 
     public Builder() {
     }
@@ -123,6 +184,21 @@ public class BigtableOptions implements Serializable {
       this.useBulkApi = original.useBulkApi;
       this.bulkMaxRowKeyCount = original.bulkMaxRowKeyCount;
       this.bulkMaxRequestSize = original.bulkMaxRequestSize;
+      this.bulkLingerMs = original.bulkLingerMs;
+      this.channelSelection = original.channelSelection;
+      this.channelEjectionFailureThreshold = original.channelEjectionFailureThreshold;
+      this.maxDataChannelCount = original.maxDataChannelCount;
+      this.channelTargetOutstandingCalls = original.channelTargetOutstandingCalls;
+      this.eagerlyConnectChannels = original.eagerlyConnectChannels;
+      this.callOptionsConfig = original.callOptionsConfig;
+      this.retryBudgetPercent = original.retryBudgetPercent;
+      this.bulkTargetLatencyMs = original.bulkTargetLatencyMs;
+      this.coalesceBulkRows = original.coalesceBulkRows;
+      this.incrementAggregationWindowMs = original.incrementAggregationWindowMs;
+      this.incrementAggregationMaxRequests = original.incrementAggregationMaxRequests;
+      this.orderAsyncMutationsByRow = original.orderAsyncMutationsByRow;
+      this.groupCommitWindowMicros = original.groupCommitWindowMicros;
+      this.readCoalescingWindowMicros = original.readCoalescingWindowMicros;
     }
 
     public Builder setTableAdminHost(String tableAdminHost) {
@@ -221,7 +297,107 @@ public class BigtableOptions implements Serializable {
       return this;
     }
 
+    public Builder setBulkLingerMs(long bulkLingerMs) {
+      Preconditions.checkArgument(
+        bulkLingerMs >= 0, "bulkLingerMs must be greater or equal to 0.");
+      this.bulkLingerMs = bulkLingerMs;
+      return this;
+    }
+
+    public Builder setChannelSelection(ChannelSelection channelSelection) {
+      Preconditions.checkNotNull(channelSelection);
+      this.channelSelection = channelSelection;
+      return this;
+    }
+
+    public Builder setChannelEjectionFailureThreshold(int channelEjectionFailureThreshold) {
+      Preconditions.checkArgument(channelEjectionFailureThreshold >= 0,
+        "channelEjectionFailureThreshold must be greater or equal to 0.");
+      this.channelEjectionFailureThreshold = channelEjectionFailureThreshold;
+      return this;
+    }
+
+    public Builder setMaxDataChannelCount(int maxDataChannelCount) {
+      Preconditions.checkArgument(maxDataChannelCount >= 0,
+        "maxDataChannelCount must be greater or equal to 0.");
+      this.maxDataChannelCount = maxDataChannelCount;
+      return this;
+    }
+
+    public Builder setChannelTargetOutstandingCalls(int channelTargetOutstandingCalls) {
+      Preconditions.checkArgument(channelTargetOutstandingCalls > 0,
+        "channelTargetOutstandingCalls must be greater than 0.");
+      this.channelTargetOutstandingCalls = channelTargetOutstandingCalls;
+      return this;
+    }
+
+    public Builder setEagerlyConnectChannels(boolean eagerlyConnectChannels) {
+      this.eagerlyConnectChannels = eagerlyConnectChannels;
+      return this;
+    }
+
+    public Builder setCallOptionsConfig(CallOptionsConfig callOptionsConfig) {
+      Preconditions.checkNotNull(callOptionsConfig);
+      this.callOptionsConfig = callOptionsConfig;
+      return this;
+    }
+
+    public Builder setRetryBudgetPercent(int retryBudgetPercent) {
+      Preconditions.checkArgument(retryBudgetPercent >= 0,
+        "retryBudgetPercent can not be negative.");
+      this.retryBudgetPercent = retryBudgetPercent;
+      return this;
+    }
+
+    public Builder setBulkTargetLatencyMs(long bulkTargetLatencyMs) {
+      Preconditions.checkArgument(
+        bulkTargetLatencyMs >= 0, "bulkTargetLatencyMs must be greater or equal to 0.");
+      this.bulkTargetLatencyMs = bulkTargetLatencyMs;
+      return this;
+    }
+
+    public Builder setCoalesceBulkRows(boolean coalesceBulkRows) {
+      this.coalesceBulkRows = coalesceBulkRows;
+      return this;
+    }
+
+    public Builder setIncrementAggregationWindowMs(long incrementAggregationWindowMs) {
+      Preconditions.checkArgument(incrementAggregationWindowMs >= 0,
+        "incrementAggregationWindowMs must be greater or equal to 0.");
+      this.incrementAggregationWindowMs = incrementAggregationWindowMs;
+      return this;
+    }
+
+    public Builder setIncrementAggregationMaxRequests(int incrementAggregationMaxRequests) {
+      Preconditions.checkArgument(incrementAggregationMaxRequests > 0,
+        "incrementAggregationMaxRequests must be greater than 0.");
+      this.incrementAggregationMaxRequests = incrementAggregationMaxRequests;
+      return this;
+    }
+
+    public Builder setOrderAsyncMutationsByRow(boolean orderAsyncMutationsByRow) {
+      this.orderAsyncMutationsByRow = orderAsyncMutationsByRow;
+      return this;
+    }
+
+    public Builder setGroupCommitWindowMicros(long groupCommitWindowMicros) {
+      Preconditions.checkArgument(groupCommitWindowMicros >= 0,
+        "groupCommitWindowMicros must be greater or equal to 0.");
+      this.groupCommitWindowMicros = groupCommitWindowMicros;
+      return this;
+    }
+
+    public Builder setReadCoalescingWindowMicros(long readCoalescingWindowMicros) {
+      Preconditions.checkArgument(readCoalescingWindowMicros >= 0,
+        "readCoalescingWindowMicros must be greater or equal to 0.");
+      this.readCoalescingWindowMicros = readCoalescingWindowMicros;
+      return this;
+    }
+
     public BigtableOptions build() {
+      // A bulk request has no order among its entries, and retries only the failed ones.
+      Preconditions.checkArgument(!(orderAsyncMutationsByRow && useBulkApi),
+        "orderAsyncMutationsByRow can't be used with useBulkApi.");
       return new BigtableOptions(
           clusterAdminHost,
           tableAdminHost,
@@ -240,7 +416,22 @@ public class BigtableOptions implements Serializable {
           asyncMutatorCount,
           useBulkApi,
           bulkMaxRowKeyCount,
-          bulkMaxRequestSize);
+          bulkMaxRequestSize,
+          bulkLingerMs,
+          channelSelection,
+          channelEjectionFailureThreshold,
+          maxDataChannelCount,
+          channelTargetOutstandingCalls,
+          eagerlyConnectChannels,
+          callOptionsConfig,
+          retryBudgetPercent,
+          bulkTargetLatencyMs,
+          coalesceBulkRows,
+          incrementAggregationWindowMs,
+          incrementAggregationMaxRequests,
+          orderAsyncMutationsByRow,
+          groupCommitWindowMicros,
+          readCoalescingWindowMicros);
     }
   }
 
@@ -263,6 +454,21 @@ public class BigtableOptions implements Serializable {
   private final boolean useBulkApi;
   private final int bulkMaxRowKeyCount;
   private final long bulkMaxRequestSize;
+  private final long bulkLingerMs;
+  private final ChannelSelection channelSelection;
+  private final int channelEjectionFailureThreshold;
+  private final int maxDataChannelCount;
+  private final int channelTargetOutstandingCalls;
+  private final boolean eagerlyConnectChannels;
+  private final CallOptionsConfig callOptionsConfig;
+  private final int retryBudgetPercent;
+  private final long bulkTargetLatencyMs;
+  private final boolean coalesceBulkRows;
+  private final long incrementAggregationWindowMs;
+  private final int incrementAggregationMaxRequests;
+  private final boolean orderAsyncMutationsByRow;
+  private final long groupCommitWindowMicros;
+  private final long readCoalescingWindowMicros;
 
 
   @VisibleForTesting
@@ -286,6 +492,21 @@ public class BigtableOptions implements Serializable {
       useBulkApi = false;
       bulkMaxRowKeyCount = -1;
       bulkMaxRequestSize = -1;
+      bulkLingerMs = 0;
+      channelSelection = ChannelSelection.ROUND_ROBIN;
+      channelEjectionFailureThreshold = 0;
+      maxDataChannelCount = 0;
+      channelTargetOutstandingCalls = 0;
+      eagerlyConnectChannels = false;
+      callOptionsConfig = null;
+      retryBudgetPercent = 0;
+      bulkTargetLatencyMs = 0;
+      coalesceBulkRows = false;
+      incrementAggregationWindowMs = 0;
+      incrementAggregationMaxRequests = 0;
+      orderAsyncMutationsByRow = false;
+      groupCommitWindowMicros = 0;
+      readCoalescingWindowMicros = 0;
   }
 
   private BigtableOptions(
@@ -306,7 +527,22 @@ public class BigtableOptions implements Serializable {
       int asyncMutatorCount,
       boolean useBulkApi,
       int bulkMaxKeyCount,
-      long bulkMaxRequestSize) {
+      long bulkMaxRequestSize,
+      long bulkLingerMs,
+      ChannelSelection channelSelection,
+      int channelEjectionFailureThreshold,
+      int maxDataChannelCount,
+      int channelTargetOutstandingCalls,
+      boolean eagerlyConnectChannels,
+      CallOptionsConfig callOptionsConfig,
+      int retryBudgetPercent,
+      long bulkTargetLatencyMs,
+      boolean coalesceBulkRows,
+      long incrementAggregationWindowMs,
+      int incrementAggregationMaxRequests,
+      boolean orderAsyncMutationsByRow,
+      long groupCommitWindowMicros,
+      long readCoalescingWindowMicros) {
     Preconditions.checkArgument(channelCount > 0, "Channel count has to be at least 1.");
     Preconditions.checkArgument(timeoutMs >= -1,
       "ChannelTimeoutMs has to be positive, or -1 for none.");
@@ -329,6 +565,21 @@ public class BigtableOptions implements Serializable {
     this.useBulkApi = useBulkApi;
     this.bulkMaxRowKeyCount = bulkMaxKeyCount;
     this.bulkMaxRequestSize = bulkMaxRequestSize;
+    this.bulkLingerMs = bulkLingerMs;
+    this.channelSelection = channelSelection;
+    this.channelEjectionFailureThreshold = channelEjectionFailureThreshold;
+    this.maxDataChannelCount = maxDataChannelCount;
+    this.channelTargetOutstandingCalls = channelTargetOutstandingCalls;
+    this.eagerlyConnectChannels = eagerlyConnectChannels;
+    this.callOptionsConfig = callOptionsConfig;
+    this.retryBudgetPercent = retryBudgetPercent;
+    this.bulkTargetLatencyMs = bulkTargetLatencyMs;
+    this.coalesceBulkRows = coalesceBulkRows;
+    this.incrementAggregationWindowMs = incrementAggregationWindowMs;
+    this.incrementAggregationMaxRequests = incrementAggregationMaxRequests;
+    this.orderAsyncMutationsByRow = orderAsyncMutationsByRow;
+    this.groupCommitWindowMicros = groupCommitWindowMicros;
+    this.readCoalescingWindowMicros = readCoalescingWindowMicros;
 
     if (!Strings.isNullOrEmpty(projectId)
         && !Strings.isNullOrEmpty(zoneId)
@@ -410,7 +661,8 @@ public class BigtableOptions implements Serializable {
   }
 
   /**
-   * The timeout for a channel.
+   * The default deadline of data RPCs, for the methods that have no deadline in the
+   * {@link CallOptionsConfig}. 0 means no deadline.
    */
   public long getTimeoutMs() {
     return timeoutMs;
@@ -431,10 +683,27 @@ public class BigtableOptions implements Serializable {
     return asyncMutatorCount;
   }
 
+  /**
+   * Whether a buffered mutator sends the mutations of a row one at a time, in the order in which
+   * they were submitted: each one is sent once the previous one of the same row completed. This
+   * can't be combined with {@link #useBulkApi()}.
+   */
+  public boolean orderAsyncMutationsByRow() {
+    return orderAsyncMutationsByRow;
+  }
+
   public boolean useBulkApi() {
     return useBulkApi;
   }
 
+  /**
+   * Whether mutations for the same row key within a bulk mutation request are merged into a
+   * single entry.
+   */
+  public boolean coalesceBulkRows() {
+    return coalesceBulkRows;
+  }
+
   public int getBulkMaxRowKeyCount() {
     return bulkMaxRowKeyCount;
   }
@@ -443,6 +712,107 @@ public class BigtableOptions implements Serializable {
     return bulkMaxRequestSize;
   }
 
+  /**
+   * The maximum number of milliseconds a partially filled bulk request waits before it is sent.
+   * 0 disables time based flushing.
+   */
+  public long getBulkLingerMs() {
+    return bulkLingerMs;
+  }
+
+  /**
+   * The latency that adaptively sized bulk mutation requests aim for. 0 means that bulk requests
+   * are always sized by {@link #getBulkMaxRowKeyCount()} and {@link #getBulkMaxRequestSize()}.
+   */
+  public long getBulkTargetLatencyMs() {
+    return bulkTargetLatencyMs;
+  }
+
+  /**
+   * How a channel is chosen from the data {@link com.google.cloud.bigtable.grpc.io.ChannelPool}
+   * for each call.
+   */
+  public ChannelSelection getChannelSelection() {
+    return channelSelection;
+  }
+
+  /**
+   * The number of consecutive transport failures on a channel after which it is replaced with a
+   * new channel. 0 means that channels are never replaced.
+   */
+  public int getChannelEjectionFailureThreshold() {
+    return channelEjectionFailureThreshold;
+  }
+
+  /**
+   * The largest number of data channels that the pool may grow to under load. If this is not
+   * larger than {@link #getChannelCount()}, the pool has a fixed size.
+   */
+  public int getMaxDataChannelCount() {
+    return maxDataChannelCount;
+  }
+
+  /**
+   * The number of outstanding calls per data channel above which a resizable pool grows.
+   */
+  public int getChannelTargetOutstandingCalls() {
+    return channelTargetOutstandingCalls;
+  }
+
+  /**
+   * Whether {@link com.google.cloud.bigtable.grpc.BigtableSession} connects all of its data
+   * channels while it is constructed, rather than on the first call on each channel.
+   */
+  public boolean eagerlyConnectChannels() {
+    return eagerlyConnectChannels;
+  }
+
+  /**
+   * Per method deadlines for data RPCs.
+   */
+  public CallOptionsConfig getCallOptionsConfig() {
+    return callOptionsConfig;
+  }
+
+  /**
+   * The number of retries allowed per 100 successful calls across a session. 0 means that
+   * retries are only limited by the {@link RetryOptions} of each operation.
+   */
+  public int getRetryBudgetPercent() {
+    return retryBudgetPercent;
+  }
+
+  /**
+   * The number of milliseconds that an increment may wait to be combined with other increments
+   * of the same row. 0 means that increments are sent right away.
+   */
+  public long getIncrementAggregationWindowMs() {
+    return incrementAggregationWindowMs;
+  }
+
+  /**
+   * The number of pending increments at which they are sent, before their window passes.
+   */
+  public int getIncrementAggregationMaxRequests() {
+    return incrementAggregationMaxRequests;
+  }
+
+  /**
+   * The number of microseconds that a synchronous single row write may wait to be committed
+   * together with concurrent writes to the same table. 0 means that each write is sent on its own.
+   */
+  public long getGroupCommitWindowMicros() {
+    return groupCommitWindowMicros;
+  }
+
+  /**
+   * The number of microseconds that a single row read may wait to be sent together with
+   * concurrent reads of the same table and filter. 0 means that each read is sent on its own.
+   */
+  public long getReadCoalescingWindowMicros() {
+    return readCoalescingWindowMicros;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (obj == null || obj.getClass() != BigtableOptions.class) {
@@ -459,6 +829,19 @@ public class BigtableOptions implements Serializable {
         && (useBulkApi == other.useBulkApi)
         && (bulkMaxRowKeyCount == other.bulkMaxRowKeyCount)
         && (bulkMaxRequestSize == other.bulkMaxRequestSize)
+        && (bulkLingerMs == other.bulkLingerMs)
+        && (channelEjectionFailureThreshold == other.channelEjectionFailureThreshold)
+        && (maxDataChannelCount == other.maxDataChannelCount)
+        && (channelTargetOutstandingCalls == other.channelTargetOutstandingCalls)
+        && (eagerlyConnectChannels == other.eagerlyConnectChannels)
+        && (retryBudgetPercent == other.retryBudgetPercent)
+        && (bulkTargetLatencyMs == other.bulkTargetLatencyMs)
+        && (coalesceBulkRows == other.coalesceBulkRows)
+        && (incrementAggregationWindowMs == other.incrementAggregationWindowMs)
+        && (incrementAggregationMaxRequests == other.incrementAggregationMaxRequests)
+        && (orderAsyncMutationsByRow == other.orderAsyncMutationsByRow)
+        && (groupCommitWindowMicros == other.groupCommitWindowMicros)
+        && (readCoalescingWindowMicros == other.readCoalescingWindowMicros)
         && Objects.equal(clusterAdminHost, other.clusterAdminHost)
         && Objects.equal(tableAdminHost, other.tableAdminHost)
         && Objects.equal(dataIpOverride, other.dataIpOverride)
@@ -469,7 +852,9 @@ public class BigtableOptions implements Serializable {
         && Objects.equal(clusterId, other.clusterId)
         && Objects.equal(userAgent, other.userAgent)
         && Objects.equal(credentialOptions, other.credentialOptions)
-        && Objects.equal(retryOptions, other.retryOptions);
+        && Objects.equal(retryOptions, other.retryOptions)
+        && Objects.equal(channelSelection, other.channelSelection)
+        && Objects.equal(callOptionsConfig, other.callOptionsConfig);
   }
 
   @Override
@@ -493,6 +878,21 @@ public class BigtableOptions implements Serializable {
         .add("useBulkApi", useBulkApi)
         .add("bulkMaxKeyCount", bulkMaxRowKeyCount)
         .add("bulkMaxRequestSize", bulkMaxRequestSize)
+        .add("bulkLingerMs", bulkLingerMs)
+        .add("channelSelection", channelSelection)
+        .add("channelEjectionFailureThreshold", channelEjectionFailureThreshold)
+        .add("maxDataChannelCount", maxDataChannelCount)
+        .add("channelTargetOutstandingCalls", channelTargetOutstandingCalls)
+        .add("eagerlyConnectChannels", eagerlyConnectChannels)
+        .add("callOptionsConfig", callOptionsConfig)
+        .add("retryBudgetPercent", retryBudgetPercent)
+        .add("bulkTargetLatencyMs", bulkTargetLatencyMs)
+        .add("coalesceBulkRows", coalesceBulkRows)
+        .add("incrementAggregationWindowMs", incrementAggregationWindowMs)
+        .add("incrementAggregationMaxRequests", incrementAggregationMaxRequests)
+        .add("orderAsyncMutationsByRow", orderAsyncMutationsByRow)
+        .add("groupCommitWindowMicros", groupCommitWindowMicros)
+        .add("readCoalescingWindowMicros", readCoalescingWindowMicros)
         .toString();
   }
 
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.config;
+
+import io.grpc.CallOptions;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Per method deadlines for data RPCs. A deadline covers the whole operation, including retries: it
+ * is set once when the operation starts, and each retry is sent with the same deadline. A value of
+ * 0, the default, means that calls of that method use {@link BigtableOptions#getTimeoutMs()}, or
+ * have no deadline if that is 0 as well.
+ */
+public class CallOptionsConfig implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * A Builder for CallOptionsConfig objects.
+   */
+  public static class Builder {
+    private int mutateRowTimeoutMs = 0;
+    private int mutateRowsTimeoutMs = 0;
+    private int readRowsTimeoutMs = 0;
+    private int checkAndMutateRowTimeoutMs = 0;
+    private int readModifyWriteRowTimeoutMs = 0;
+    private int sampleRowKeysTimeoutMs = 0;
+
+    /**
+     * The deadline for MutateRow operations.
+     */
+    public Builder setMutateRowTimeoutMs(int mutateRowTimeoutMs) {
+      this.mutateRowTimeoutMs = checkTimeout(mutateRowTimeoutMs);
+      return this;
+    }
+
+    /**
+     * The deadline for MutateRows operations, including the retries of failed entries.
+     */
+    public Builder setMutateRowsTimeoutMs(int mutateRowsTimeoutMs) {
+      this.mutateRowsTimeoutMs = checkTimeout(mutateRowsTimeoutMs);
+      return this;
+    }
+
+    /**
+     * The deadline for ReadRows operations that collect all of the rows into a single future. A
+     * streaming scan has no overall deadline; instead, it fails if no response arrives within
+     * {@link RetryOptions#getReadPartialRowTimeoutMillis()}.
+     */
+    public Builder setReadRowsTimeoutMs(int readRowsTimeoutMs) {
+      this.readRowsTimeoutMs = checkTimeout(readRowsTimeoutMs);
+      return this;
+    }
+
+    /**
+     * The deadline for CheckAndMutateRow operations.
+     */
+    public Builder setCheckAndMutateRowTimeoutMs(int checkAndMutateRowTimeoutMs) {
+      this.checkAndMutateRowTimeoutMs = checkTimeout(checkAndMutateRowTimeoutMs);
+      return this;
+    }
+
+    /**
+     * The deadline for ReadModifyWriteRow operations.
+     */
+    public Builder setReadModifyWriteRowTimeoutMs(int readModifyWriteRowTimeoutMs) {
+      this.readModifyWriteRowTimeoutMs = checkTimeout(readModifyWriteRowTimeoutMs);
+      return this;
+    }
+
+    /**
+     * The deadline for SampleRowKeys operations.
+     */
+    public Builder setSampleRowKeysTimeoutMs(int sampleRowKeysTimeoutMs) {
+      this.sampleRowKeysTimeoutMs = checkTimeout(sampleRowKeysTimeoutMs);
+      return this;
+    }
+
+    private static int checkTimeout(int timeoutMs) {
+      Preconditions.checkArgument(timeoutMs >= 0, "Timeouts can not be negative.");
+      return timeoutMs;
+    }
+
+    /**
+     * Construct a new CallOptionsConfig object.
+     */
+    public CallOptionsConfig build() {
+      return new CallOptionsConfig(
+          mutateRowTimeoutMs,
+          mutateRowsTimeoutMs,
+          readRowsTimeoutMs,
+          checkAndMutateRowTimeoutMs,
+          readModifyWriteRowTimeoutMs,
+          sampleRowKeysTimeoutMs);
+    }
+  }
+
+  private final int mutateRowTimeoutMs;
+  private final int mutateRowsTimeoutMs;
+  private final int readRowsTimeoutMs;
+  private final int checkAndMutateRowTimeoutMs;
+  private final int readModifyWriteRowTimeoutMs;
+  private final int sampleRowKeysTimeoutMs;
+
+  public CallOptionsConfig(
+      int mutateRowTimeoutMs,
+      int mutateRowsTimeoutMs,
+      int readRowsTimeoutMs,
+      int checkAndMutateRowTimeoutMs,
+      int readModifyWriteRowTimeoutMs,
+      int sampleRowKeysTimeoutMs) {
+    this.mutateRowTimeoutMs = mutateRowTimeoutMs;
+    this.mutateRowsTimeoutMs = mutateRowsTimeoutMs;
+    this.readRowsTimeoutMs = readRowsTimeoutMs;
+    this.checkAndMutateRowTimeoutMs = checkAndMutateRowTimeoutMs;
+    this.readModifyWriteRowTimeoutMs = readModifyWriteRowTimeoutMs;
+    this.sampleRowKeysTimeoutMs = sampleRowKeysTimeoutMs;
+  }
+
+  public int getMutateRowTimeoutMs() {
+    return mutateRowTimeoutMs;
+  }
+
+  public int getMutateRowsTimeoutMs() {
+    return mutateRowsTimeoutMs;
+  }
+
+  public int getReadRowsTimeoutMs() {
+    return readRowsTimeoutMs;
+  }
+
+  public int getCheckAndMutateRowTimeoutMs() {
+    return checkAndMutateRowTimeoutMs;
+  }
+
+  public int getReadModifyWriteRowTimeoutMs() {
+    return readModifyWriteRowTimeoutMs;
+  }
+
+  public int getSampleRowKeysTimeoutMs() {
+    return sampleRowKeysTimeoutMs;
+  }
+
+  /**
+   * @return a copy of this config, where the methods that have no deadline of their own use
+   *         {@code defaultTimeoutMs}.
+   */
+  public CallOptionsConfig withDefaultTimeoutMs(int defaultTimeoutMs) {
+    return new CallOptionsConfig(
+        orDefault(mutateRowTimeoutMs, defaultTimeoutMs),
+        orDefault(mutateRowsTimeoutMs, defaultTimeoutMs),
+        orDefault(readRowsTimeoutMs, defaultTimeoutMs),
+        orDefault(checkAndMutateRowTimeoutMs, defaultTimeoutMs),
+        orDefault(readModifyWriteRowTimeoutMs, defaultTimeoutMs),
+        orDefault(sampleRowKeysTimeoutMs, defaultTimeoutMs));
+  }
+
+  private static int orDefault(int timeoutMs, int defaultTimeoutMs) {
+    return timeoutMs > 0 ? timeoutMs : defaultTimeoutMs;
+  }
+
+  /**
+   * Creates the {@link CallOptions} for an operation that starts now. The deadline, if any, is
+   * absolute, so the same {@link CallOptions} should be used for all retries of the operation.
+   */
+  public static CallOptions createCallOptions(int timeoutMs) {
+    return timeoutMs > 0
+        ? CallOptions.DEFAULT.withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)
+        : CallOptions.DEFAULT;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == null || obj.getClass() != CallOptionsConfig.class) {
+      return false;
+    }
+    if (this == obj) {
+      return true;
+    }
+    CallOptionsConfig other = (CallOptionsConfig) obj;
+
+    return mutateRowTimeoutMs == other.mutateRowTimeoutMs
+        && mutateRowsTimeoutMs == other.mutateRowsTimeoutMs
+        && readRowsTimeoutMs == other.readRowsTimeoutMs
+        && checkAndMutateRowTimeoutMs == other.checkAndMutateRowTimeoutMs
+        && readModifyWriteRowTimeoutMs == other.readModifyWriteRowTimeoutMs
+        && sampleRowKeysTimeoutMs == other.sampleRowKeysTimeoutMs;
+  }
+
+  @Override
+  public int hashCode() {
+    return mutateRowTimeoutMs ^ mutateRowsTimeoutMs ^ readRowsTimeoutMs
+        ^ checkAndMutateRowTimeoutMs ^ readModifyWriteRowTimeoutMs ^ sampleRowKeysTimeoutMs;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("mutateRowTimeoutMs", mutateRowTimeoutMs)
+        .add("mutateRowsTimeoutMs", mutateRowsTimeoutMs)
+        .add("readRowsTimeoutMs", readRowsTimeoutMs)
+        .add("checkAndMutateRowTimeoutMs", checkAndMutateRowTimeoutMs)
+        .add("readModifyWriteRowTimeoutMs", readModifyWriteRowTimeoutMs)
+        .add("sampleRowKeysTimeoutMs", sampleRowKeysTimeoutMs)
+        .toString();
+  }
+}
@@ -17,7 +17,9 @@ package com.google.cloud.bigtable.config;
 
 import io.grpc.Status;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import com.google.api.client.util.BackOff;
@@ -66,6 +68,11 @@ public class RetryOptions implements Serializable {
    */
   public static final int DEFAULT_MAX_ELAPSED_BACKOFF_MILLIS =
       (int) TimeUnit.MILLISECONDS.convert(60, TimeUnit.SECONDS);
+  /**
+   * Whether to use full jitter instead of the +/-50% randomization of {@link ExponentialBackOff}
+   * (default value: false).
+   */
+  public static final boolean DEFAULT_USE_FULL_JITTER = false;
 
   /**
    * A Builder for ChannelOptions objects.
@@ -79,6 +86,7 @@ public class RetryOptions implements Serializable {
     private int streamingBufferSize = DEFAULT_STREAMING_BUFFER_SIZE;
     private int streamingBatchSize = DEFAULT_STREAMING_BUFFER_SIZE;
     private int readPartialRowTimeoutMillis = DEFAULT_READ_PARTIAL_ROW_TIMEOUT_MS;
+    private boolean useFullJitter = DEFAULT_USE_FULL_JITTER;
 
     /**
      * Enable or disable retries.
@@ -141,6 +149,15 @@ public class RetryOptions implements Serializable {
       return this;
     }
 
+    /**
+     * Whether each backoff should be chosen uniformly between 0 and the exponential interval, rather
+     * than within 50% of it.
+     */
+    public Builder setUseFullJitter(boolean useFullJitter) {
+      this.useFullJitter = useFullJitter;
+      return this;
+    }
+
     /**
      * Construct a new RetryOptions object.
      */
@@ -153,7 +170,8 @@ public class RetryOptions implements Serializable {
           maxElaspedBackoffMillis,
           streamingBufferSize,
           streamingBatchSize,
-          readPartialRowTimeoutMillis);
+          readPartialRowTimeoutMillis,
+          useFullJitter);
     }
   }
 
@@ -167,7 +185,7 @@ public class RetryOptions implements Serializable {
   private final int streamingBufferSize;
   private final int streamingBatchSize;
   private final int readPartialRowTimeoutMillis;
-
+  private final boolean useFullJitter;
 
   public RetryOptions(
       boolean retriesEnabled,
@@ -178,6 +196,21 @@ public class RetryOptions implements Serializable {
       int streamingBufferSize,
       int streamingBatchSize,
       int readPartialRowTimeoutMillis) {
+    this(retriesEnabled, retryOnDeadlineExceeded, initialBackoffMillis, backoffMultiplier,
+        maxElaspedBackoffMillis, streamingBufferSize, streamingBatchSize,
+        readPartialRowTimeoutMillis, DEFAULT_USE_FULL_JITTER);
+  }
+
+  public RetryOptions(
+      boolean retriesEnabled,
+      boolean retryOnDeadlineExceeded,
+      int initialBackoffMillis,
+      double backoffMultiplier,
+      int maxElaspedBackoffMillis,
+      int streamingBufferSize,
+      int streamingBatchSize,
+      int readPartialRowTimeoutMillis,
+      boolean useFullJitter) {
     this.retriesEnabled = retriesEnabled;
     this.retryOnDeadlineExceeded = retryOnDeadlineExceeded;
     this.initialBackoffMillis = initialBackoffMillis;
@@ -186,6 +219,7 @@ public class RetryOptions implements Serializable {
     this.streamingBufferSize = streamingBufferSize;
     this.streamingBatchSize = streamingBatchSize;
     this.readPartialRowTimeoutMillis = readPartialRowTimeoutMillis;
+    this.useFullJitter = useFullJitter;
   }
 
   /**
@@ -244,6 +278,14 @@ public class RetryOptions implements Serializable {
     return readPartialRowTimeoutMillis;
   }
 
+  /**
+   * Whether each backoff is chosen uniformly between 0 and the exponential interval, rather than
+   * within 50% of it.
+   */
+  public boolean useFullJitter() {
+    return useFullJitter;
+  }
+
   /**
    * Determines if the RPC should be retried based on the input {@link Status.Code}.
    */
@@ -254,7 +296,19 @@ public class RetryOptions implements Serializable {
         || (retryOnDeadlineExceeded && code == Status.DEADLINE_EXCEEDED.getCode());
   }
 
+  /**
+   * Creates an exponential {@link BackOff}. By default, {@link ExponentialBackOff} randomizes each
+   * interval by +/-50%. If {@link #useFullJitter()} is set, each backoff is instead chosen uniformly
+   * between 0 and the current exponential interval, which spreads out the retries of operations
+   * that failed at the same time further.
+   */
   public BackOff createBackoff() {
+    if (useFullJitter) {
+      return new FullJitterBackOff(createBackoffBuilder()
+          // FullJitterBackOff randomizes the interval.
+          .setRandomizationFactor(0)
+          .build());
+    }
     return createBackoffBuilder().build();
   }
 
@@ -265,6 +319,31 @@ public class RetryOptions implements Serializable {
         .setMaxElapsedTimeMillis(getMaxElaspedBackoffMillis())
         .setMultiplier(getBackoffMultiplier());
   }
+
+  /**
+   * A {@link BackOff} that returns a random value between 0 and the delegate's backoff.
+   */
+  private static class FullJitterBackOff implements BackOff {
+    private final BackOff delegate;
+
+    FullJitterBackOff(BackOff delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void reset() throws IOException {
+      delegate.reset();
+    }
+
+    @Override
+    public long nextBackOffMillis() throws IOException {
+      long interval = delegate.nextBackOffMillis();
+      if (interval == STOP) {
+        return STOP;
+      }
+      return ThreadLocalRandom.current().nextLong(interval + 1);
+    }
+  }
   
   @Override
   public boolean equals(Object obj) {
@@ -283,6 +362,7 @@ public class RetryOptions implements Serializable {
         && backoffMultiplier == other.backoffMultiplier
         && streamingBufferSize == other.streamingBufferSize
         && streamingBatchSize == other.streamingBatchSize
-        && readPartialRowTimeoutMillis == other.readPartialRowTimeoutMillis;
+        && readPartialRowTimeoutMillis == other.readPartialRowTimeoutMillis
+        && useFullJitter == other.useFullJitter;
   }
 }
@@ -24,6 +24,7 @@ import io.grpc.Status;
 import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.bigtable.v1.BigtableServiceGrpc;
@@ -41,10 +42,13 @@ import com.google.bigtable.v1.Row;
 import com.google.bigtable.v1.SampleRowKeysRequest;
 import com.google.bigtable.v1.SampleRowKeysResponse;
 import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CallOptionsConfig;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
 import com.google.cloud.bigtable.grpc.async.BigtableAsyncUtilities;
 import com.google.cloud.bigtable.grpc.async.BigtableAsyncRpc;
+import com.google.cloud.bigtable.grpc.async.RetryBudget;
+import com.google.cloud.bigtable.grpc.async.RetryingMutateRowsOperation;
 import com.google.cloud.bigtable.grpc.io.CancellationToken;
 import com.google.cloud.bigtable.grpc.io.ChannelPool;
 import com.google.cloud.bigtable.grpc.io.ClientCallService;
@@ -88,7 +92,7 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
             return false;
           }
           for (Entry entry : mutateRowsRequest.getEntriesList()) {
-            if (!allCellsHaveTimestamps(entry.getMutationsList())) {
+            if (!IS_RETRYABLE_ENTRY.apply(entry)) {
               return false;
             }
           }
@@ -96,6 +100,19 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
         }
       };
 
+  /**
+   * An entry of a {@link MutateRowsRequest} can be retried on its own if all of its cells have
+   * explicit timestamps. See {@link RetryingMutateRowsOperation}.
+   */
+  @VisibleForTesting
+  public static final Predicate<Entry> IS_RETRYABLE_ENTRY =
+      new Predicate<Entry>() {
+        @Override
+        public boolean apply(Entry entry) {
+          return entry != null && allCellsHaveTimestamps(entry.getMutationsList());
+        }
+      };
+
   @VisibleForTesting
   public static final Predicate<CheckAndMutateRowRequest> IS_RETRYABLE_CHECK_AND_MUTATE =
       new Predicate<CheckAndMutateRowRequest>() {
@@ -119,8 +136,11 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
   private final ChannelPool channelPool;
 
   private final ExecutorService executorService;
+  private final ScheduledExecutorService retryExecutorService;
   private final RetryOptions retryOptions;
   private final BigtableOptions bigtableOptions;
+  private final CallOptionsConfig callOptionsConfig;
+  private final RetryBudget retryBudget;
   private final BigtableResultScannerFactory streamingScannerFactory =
       new BigtableResultScannerFactory() {
         @Override
@@ -128,8 +148,6 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
           return streamRows(request);
         }
       };
-  private BigtableAsyncRpc<SampleRowKeysRequest, List<SampleRowKeysResponse>> sampleRowKeysAsync;
-  private BigtableAsyncRpc<ReadRowsRequest, List<Row>> readRowsAsync;
 
   private ClientCallService clientCallService;
 
@@ -137,73 +155,143 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
       ChannelPool channelPool,
       ExecutorService executorService,
       BigtableOptions bigtableOptions) {
-    this(channelPool, executorService, bigtableOptions, ClientCallService.DEFAULT);
+    this(channelPool, executorService,
+        BigtableSessionSharedThreadPools.getInstance().getRetryExecutor(), bigtableOptions);
+  }
+
+  public BigtableDataGrpcClient(
+      ChannelPool channelPool,
+      ExecutorService executorService,
+      ScheduledExecutorService retryExecutorService,
+      BigtableOptions bigtableOptions) {
+    this(channelPool, executorService, retryExecutorService, bigtableOptions,
+        ClientCallService.DEFAULT);
+  }
+
+  @VisibleForTesting
+  BigtableDataGrpcClient(
+      ChannelPool channelPool,
+      ExecutorService executorService,
+      BigtableOptions bigtableOptions,
+      ClientCallService clientCallService) {
+    this(channelPool, executorService,
+        BigtableSessionSharedThreadPools.getInstance().getRetryExecutor(), bigtableOptions,
+        clientCallService);
   }
 
   @VisibleForTesting
   BigtableDataGrpcClient(
       ChannelPool channelPool,
       ExecutorService executorService,
+      ScheduledExecutorService retryExecutorService,
       BigtableOptions bigtableOptions,
       ClientCallService clientCallService) {
     this.channelPool = channelPool;
     this.executorService = executorService;
+    this.retryExecutorService = retryExecutorService;
     this.bigtableOptions = bigtableOptions;
     this.retryOptions = bigtableOptions.getRetryOptions();
     this.clientCallService = clientCallService;
+    CallOptionsConfig callOptionsConfig = bigtableOptions.getCallOptionsConfig() != null
+        ? bigtableOptions.getCallOptionsConfig()
+        : new CallOptionsConfig.Builder().build();
+    this.callOptionsConfig =
+        callOptionsConfig.withDefaultTimeoutMs((int) bigtableOptions.getTimeoutMs());
+    this.retryBudget = new RetryBudget(bigtableOptions.getRetryBudgetPercent());
+  }
 
-    this.sampleRowKeysAsync =
-        BigtableAsyncUtilities.createSampleRowKeyAsyncReader(this.channelPool, clientCallService);
-    this.readRowsAsync =
-        BigtableAsyncUtilities.createRowKeyAysncReader(this.channelPool, clientCallService);
+  /**
+   * The {@link RetryBudget} that is shared by all of the retrying operations of this client.
+   */
+  public RetryBudget getRetryBudget() {
+    return retryBudget;
   }
 
   @Override
   public Empty mutateRow(MutateRowRequest request) throws ServiceException {
-    return performBlockingRpc(
-        request, BigtableServiceGrpc.METHOD_MUTATE_ROW, IS_RETRYABLE_MUTATION);
+    return performBlockingRpc(request, BigtableServiceGrpc.METHOD_MUTATE_ROW,
+      IS_RETRYABLE_MUTATION, callOptionsConfig.getMutateRowTimeoutMs());
   }
 
   @Override
   public ListenableFuture<Empty> mutateRowAsync(MutateRowRequest request) {
-    return performAsyncRpc(request, BigtableServiceGrpc.METHOD_MUTATE_ROW, IS_RETRYABLE_MUTATION);
+    return performAsyncRpc(request, BigtableServiceGrpc.METHOD_MUTATE_ROW, IS_RETRYABLE_MUTATION,
+      callOptionsConfig.getMutateRowTimeoutMs());
   }
 
   @Override
   public MutateRowsResponse mutateRows(MutateRowsRequest request) throws ServiceException {
-    return performBlockingRpc(
-      request, BigtableServiceGrpc.METHOD_MUTATE_ROWS, ARE_RETRYABLE_MUTATIONS);
+    if (!retryOptions.enableRetries()) {
+      return performBlockingRpc(request, BigtableServiceGrpc.METHOD_MUTATE_ROWS,
+        ARE_RETRYABLE_MUTATIONS, callOptionsConfig.getMutateRowsTimeoutMs());
+    }
+    CancellationToken token = new CancellationToken();
+    CallOptions callOptions =
+        CallOptionsConfig.createCallOptions(callOptionsConfig.getMutateRowsTimeoutMs());
+    BigtableAsyncRpc<MutateRowsRequest, MutateRowsResponse> rpc = BigtableAsyncUtilities
+        .createAsyncUnaryRpc(channelPool, clientCallService, BigtableServiceGrpc.METHOD_MUTATE_ROWS,
+          callOptions, token);
+    try {
+      return BigtableAsyncUtilities.getUnchecked(
+        performRetryingMutateRows(request, rpc, callOptions));
+    } catch (Throwable t) {
+      token.cancel();
+      throw Throwables.propagate(t);
+    }
   }
 
   @Override
   public ListenableFuture<MutateRowsResponse> mutateRowsAsync(MutateRowsRequest request) {
-    return performAsyncRpc(request, BigtableServiceGrpc.METHOD_MUTATE_ROWS, ARE_RETRYABLE_MUTATIONS);
+    if (!retryOptions.enableRetries()) {
+      return performAsyncRpc(request, BigtableServiceGrpc.METHOD_MUTATE_ROWS,
+        ARE_RETRYABLE_MUTATIONS, callOptionsConfig.getMutateRowsTimeoutMs());
+    }
+    CallOptions callOptions =
+        CallOptionsConfig.createCallOptions(callOptionsConfig.getMutateRowsTimeoutMs());
+    BigtableAsyncRpc<MutateRowsRequest, MutateRowsResponse> rpc = BigtableAsyncUtilities
+        .createAsyncUnaryRpc(channelPool, clientCallService, BigtableServiceGrpc.METHOD_MUTATE_ROWS,
+          callOptions);
+    return performRetryingMutateRows(request, rpc, callOptions);
+  }
+
+  /**
+   * MutateRows reports a status per entry, so only the entries that failed with a retryable status
+   * are resent rather than the whole request.
+   */
+  private ListenableFuture<MutateRowsResponse> performRetryingMutateRows(
+      MutateRowsRequest request, BigtableAsyncRpc<MutateRowsRequest, MutateRowsResponse> rpc,
+      CallOptions callOptions) {
+    return new RetryingMutateRowsOperation(retryOptions, request, rpc, IS_RETRYABLE_ENTRY,
+        callOptions, retryBudget, retryExecutorService).getAsyncResult();
   }
 
   @Override
   public CheckAndMutateRowResponse checkAndMutateRow(CheckAndMutateRowRequest request)
       throws ServiceException {
-    return performBlockingRpc(
-        request, BigtableServiceGrpc.METHOD_CHECK_AND_MUTATE_ROW, IS_RETRYABLE_CHECK_AND_MUTATE);
+    return performBlockingRpc(request, BigtableServiceGrpc.METHOD_CHECK_AND_MUTATE_ROW,
+      IS_RETRYABLE_CHECK_AND_MUTATE, callOptionsConfig.getCheckAndMutateRowTimeoutMs());
   }
 
   @Override
   public ListenableFuture<CheckAndMutateRowResponse> checkAndMutateRowAsync(
       CheckAndMutateRowRequest request) {
-    return performAsyncRpc(
-        request, BigtableServiceGrpc.METHOD_CHECK_AND_MUTATE_ROW, IS_RETRYABLE_CHECK_AND_MUTATE);
+    return performAsyncRpc(request, BigtableServiceGrpc.METHOD_CHECK_AND_MUTATE_ROW,
+      IS_RETRYABLE_CHECK_AND_MUTATE, callOptionsConfig.getCheckAndMutateRowTimeoutMs());
   }
 
   private <ReqT, RespT> RespT performBlockingRpc(
       ReqT request,
       MethodDescriptor<ReqT, RespT> method,
-      Predicate<ReqT> retryablePredicate) {
+      Predicate<ReqT> retryablePredicate,
+      int timeoutMs) {
     CancellationToken token = new CancellationToken();
-    BigtableAsyncRpc<ReqT, RespT> rpc =
-        BigtableAsyncUtilities.createAsyncUnaryRpc(channelPool, clientCallService, method, token);
+    CallOptions callOptions = CallOptionsConfig.createCallOptions(timeoutMs);
+    BigtableAsyncRpc<ReqT, RespT> rpc = BigtableAsyncUtilities.createAsyncUnaryRpc(channelPool,
+      clientCallService, method, callOptions, token);
 
     try {
-      ListenableFuture<RespT> rpcFuture = performRetryingAsyncRpc(request, rpc, retryablePredicate);
+      ListenableFuture<RespT> rpcFuture =
+          performRetryingAsyncRpc(request, rpc, callOptions, retryablePredicate);
       return BigtableAsyncUtilities.getUnchecked(rpcFuture);
     } catch (Throwable t) {
       token.cancel();
@@ -214,18 +302,20 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
   private <ReqT, RespT> ListenableFuture<RespT> performAsyncRpc(
       ReqT request,
       MethodDescriptor<ReqT, RespT> method,
-      Predicate<ReqT> predicate) {
-    BigtableAsyncRpc<ReqT, RespT> asyncRpc =
-        BigtableAsyncUtilities.createAsyncUnaryRpc(channelPool, clientCallService, method);
+      Predicate<ReqT> predicate,
+      int timeoutMs) {
+    CallOptions callOptions = CallOptionsConfig.createCallOptions(timeoutMs);
+    BigtableAsyncRpc<ReqT, RespT> asyncRpc = BigtableAsyncUtilities
+        .createAsyncUnaryRpc(channelPool, clientCallService, method, callOptions);
 
-    return performRetryingAsyncRpc(request, asyncRpc, predicate);
+    return performRetryingAsyncRpc(request, asyncRpc, callOptions, predicate);
   }
   
   private <ReqT, RespT> ListenableFuture<RespT> performRetryingAsyncRpc(ReqT request,
-      BigtableAsyncRpc<ReqT, RespT> rpc, Predicate<ReqT> isRetryable) {
+      BigtableAsyncRpc<ReqT, RespT> rpc, CallOptions callOptions, Predicate<ReqT> isRetryable) {
     if (retryOptions.enableRetries() && isRetryable.apply(request)) {
       return BigtableAsyncUtilities.performRetryingAsyncRpc(retryOptions, request, rpc,
-        executorService);
+        callOptions, retryBudget, retryExecutorService);
     } else {
       if (retryOptions.enableRetries()) {
         // Do not retry the call despite retries being enabled. The call is not idempontent and
@@ -244,14 +334,16 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
   @Override
   public Row readModifyWriteRow(ReadModifyWriteRowRequest request) {
     return clientCallService.blockingUnaryCall(
-      channelPool.newCall(BigtableServiceGrpc.METHOD_READ_MODIFY_WRITE_ROW, CallOptions.DEFAULT),
+      channelPool.newCall(BigtableServiceGrpc.METHOD_READ_MODIFY_WRITE_ROW,
+        CallOptionsConfig.createCallOptions(callOptionsConfig.getReadModifyWriteRowTimeoutMs())),
       request);
   }
 
   @Override
   public ListenableFuture<Row> readModifyWriteRowAsync(ReadModifyWriteRowRequest request) {
     return clientCallService.listenableAsyncCall(
-      channelPool.newCall(BigtableServiceGrpc.METHOD_READ_MODIFY_WRITE_ROW, CallOptions.DEFAULT),
+      channelPool.newCall(BigtableServiceGrpc.METHOD_READ_MODIFY_WRITE_ROW,
+        CallOptionsConfig.createCallOptions(callOptionsConfig.getReadModifyWriteRowTimeoutMs())),
       request);
   }
 
@@ -259,21 +351,31 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
   public ImmutableList<SampleRowKeysResponse> sampleRowKeys(SampleRowKeysRequest request) {
     return ImmutableList
         .copyOf(clientCallService.blockingServerStreamingCall(
-          channelPool.newCall(BigtableServiceGrpc.METHOD_SAMPLE_ROW_KEYS, CallOptions.DEFAULT),
+          channelPool.newCall(BigtableServiceGrpc.METHOD_SAMPLE_ROW_KEYS,
+            CallOptionsConfig.createCallOptions(callOptionsConfig.getSampleRowKeysTimeoutMs())),
           request));
   }
 
   @Override
   public ListenableFuture<List<SampleRowKeysResponse>> sampleRowKeysAsync(
       SampleRowKeysRequest request) {
+    CallOptions callOptions =
+        CallOptionsConfig.createCallOptions(callOptionsConfig.getSampleRowKeysTimeoutMs());
+    BigtableAsyncRpc<SampleRowKeysRequest, List<SampleRowKeysResponse>> sampleRowKeysAsync =
+        BigtableAsyncUtilities.createSampleRowKeyAsyncReader(channelPool, clientCallService,
+          callOptions);
     return BigtableAsyncUtilities.performRetryingAsyncRpc(retryOptions, request, sampleRowKeysAsync,
-      executorService);
+      callOptions, retryBudget, retryExecutorService);
   }
 
   @Override
   public ListenableFuture<List<Row>> readRowsAsync(final ReadRowsRequest request) {
-    return BigtableAsyncUtilities
-        .performRetryingAsyncRpc(retryOptions, request, readRowsAsync, executorService);
+    CallOptions callOptions =
+        CallOptionsConfig.createCallOptions(callOptionsConfig.getReadRowsTimeoutMs());
+    BigtableAsyncRpc<ReadRowsRequest, List<Row>> readRowsAsync =
+        BigtableAsyncUtilities.createRowKeyAysncReader(channelPool, clientCallService, callOptions);
+    return BigtableAsyncUtilities.performRetryingAsyncRpc(retryOptions, request, readRowsAsync,
+      callOptions, retryBudget, retryExecutorService);
   }
 
   @Override
@@ -281,7 +383,8 @@ public class BigtableDataGrpcClient implements BigtableDataClient {
     // Delegate all resumable operations to the scanner. It will request a non-resumable
     // scanner during operation.
     if (retryOptions.enableRetries()) {
-      return new ResumingStreamingResultScanner(retryOptions, request, streamingScannerFactory);
+      return new ResumingStreamingResultScanner(retryOptions, request, streamingScannerFactory,
+          retryBudget);
     } else {
       return streamRows(request);
     }
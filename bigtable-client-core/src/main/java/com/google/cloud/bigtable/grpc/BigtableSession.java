@@ -16,10 +16,15 @@
 
 package com.google.cloud.bigtable.grpc;
 
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NegotiationType;
 import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.StreamObserver;
 import io.netty.channel.EventLoopGroup;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
@@ -42,6 +47,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nullable;
 import javax.net.ssl.SSLException;
@@ -49,11 +55,20 @@ import javax.net.ssl.SSLException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.api.client.util.Strings;
+import com.google.bigtable.v1.BigtableServiceGrpc;
+import com.google.bigtable.v1.SampleRowKeysRequest;
+import com.google.bigtable.v1.SampleRowKeysResponse;
 import com.google.cloud.bigtable.config.BigtableOptions;
 import com.google.cloud.bigtable.config.CredentialFactory;
 import com.google.cloud.bigtable.config.CredentialOptions;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
+import com.google.cloud.bigtable.grpc.async.ConcurrentHeapSizeManager;
+import com.google.cloud.bigtable.grpc.async.IncrementAggregator;
+import com.google.cloud.bigtable.grpc.async.MutationGroupCommitter;
+import com.google.cloud.bigtable.grpc.async.ReadRowCoalescer;
+import com.google.cloud.bigtable.grpc.async.SharedWriteBudget;
 import com.google.cloud.bigtable.grpc.io.ChannelPool;
 import com.google.cloud.bigtable.grpc.io.CredentialInterceptorCache;
 import com.google.cloud.bigtable.grpc.io.HeaderInterceptor;
@@ -61,6 +76,10 @@ import com.google.cloud.bigtable.grpc.io.UserAgentInterceptor;
 import com.google.cloud.bigtable.util.ThreadPoolUtil;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * <p>Encapsulates the creation of Bigtable Grpc services.</p>
@@ -78,6 +97,12 @@ public class BigtableSession implements Closeable {
   private static final Logger LOG = new Logger(BigtableSession.class);
   private static SslContextBuilder sslBuilder;
 
+  /** How often a resizable data {@link ChannelPool} checks whether it should grow or shrink. */
+  private static final long CHANNEL_RESIZE_INTERVAL_MS = 1000;
+
+  /** How long to wait for all data channels to connect when eager connection is enabled. */
+  private static final long CHANNEL_CONNECT_TIMEOUT_MS = 10000;
+
   @VisibleForTesting
   static final String PROJECT_ID_EMPTY_OR_NULL = "ProjectId must not be empty or null.";
   @VisibleForTesting
@@ -191,11 +216,15 @@ public class BigtableSession implements Closeable {
   private BigtableDataClient dataClient;
   private BigtableTableAdminClient tableAdminClient;
   private BigtableClusterAdminClient clusterAdminClient;
+  private IncrementAggregator incrementAggregator;
+  private MutationGroupCommitter mutationGroupCommitter;
+  private ReadRowCoalescer readRowCoalescer;
 
   private final BigtableOptions options;
   private final List<ManagedChannel> managedChannels = Collections
       .synchronizedList(new ArrayList<ManagedChannel>());
   private final ImmutableList<HeaderInterceptor> headerInterceptors;
+  private long channelWarmupTimeMs = -1;
 
   public BigtableSession(BigtableOptions options) throws IOException {
     Preconditions.checkArgument(
@@ -245,9 +274,20 @@ public class BigtableSession implements Closeable {
 
       BigtableSessionSharedThreadPools sharedPools = BigtableSessionSharedThreadPools.getInstance();
 
+      if (options.eagerlyConnectChannels()) {
+        connectChannels(dataChannel);
+      }
+
+      if (options.getMaxDataChannelCount() > options.getChannelCount()) {
+        dataChannel.startResizing(options.getMaxDataChannelCount(),
+          options.getChannelTargetOutstandingCalls(), sharedPools.getRetryExecutor(),
+          CHANNEL_RESIZE_INTERVAL_MS);
+      }
+
       // More often than not, users want the dataClient. Create a new one in the constructor.
       this.dataClient =
-          new BigtableDataGrpcClient(dataChannel, sharedPools.getBatchThreadPool(), options);
+          new BigtableDataGrpcClient(dataChannel, sharedPools.getBatchThreadPool(),
+              sharedPools.getRetryExecutor(), options);
 
       // Defer the creation of both the tableAdminClient and clusterAdminClient until we need them.
     } finally {
@@ -326,6 +366,56 @@ public class BigtableSession implements Closeable {
     return dataClient;
   }
 
+  /**
+   * Returns the {@link IncrementAggregator} that combines the increments of this session, or null
+   * if {@link BigtableOptions#getIncrementAggregationWindowMs()} is 0.
+   */
+  public synchronized IncrementAggregator getIncrementAggregator() {
+    if (incrementAggregator == null && options.getIncrementAggregationWindowMs() > 0) {
+      incrementAggregator = new IncrementAggregator(dataClient,
+          BigtableSessionSharedThreadPools.getInstance().getBulkFlushExecutor(),
+          options.getIncrementAggregationWindowMs(),
+          options.getIncrementAggregationMaxRequests());
+    }
+    return incrementAggregator;
+  }
+
+  /**
+   * Returns the {@link MutationGroupCommitter} that groups the synchronous single row writes of
+   * this session, or null if {@link BigtableOptions#getGroupCommitWindowMicros()} is 0.
+   */
+  public synchronized MutationGroupCommitter getMutationGroupCommitter() {
+    if (mutationGroupCommitter == null && options.getGroupCommitWindowMicros() > 0) {
+      mutationGroupCommitter = new MutationGroupCommitter(dataClient,
+          BigtableSessionSharedThreadPools.getInstance().getBulkFlushExecutor(),
+          options.getGroupCommitWindowMicros(),
+          options.getBulkMaxRowKeyCount(),
+          options.getBulkMaxRequestSize());
+    }
+    return mutationGroupCommitter;
+  }
+
+  /**
+   * Returns the {@link ReadRowCoalescer} that batches the single row reads of this session, or
+   * null if {@link BigtableOptions#getReadCoalescingWindowMicros()} is 0.
+   *
+   * @param budget The connection wide budget that the coalesced reads borrow from, like the
+   *          connection's writes do. May be null. Only the budget of the call that creates the
+   *          {@link ReadRowCoalescer} is used.
+   */
+  public synchronized ReadRowCoalescer getReadRowCoalescer(SharedWriteBudget budget) {
+    if (readRowCoalescer == null && options.getReadCoalescingWindowMicros() > 0) {
+      AsyncExecutor asyncExecutor = new AsyncExecutor(dataClient,
+          new ConcurrentHeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT,
+              AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT * options.getChannelCount(), budget));
+      readRowCoalescer = new ReadRowCoalescer(asyncExecutor,
+          BigtableSessionSharedThreadPools.getInstance().getBulkFlushExecutor(),
+          options.getReadCoalescingWindowMicros(),
+          options.getBulkMaxRowKeyCount());
+    }
+    return readRowCoalescer;
+  }
+
   public synchronized BigtableTableAdminClient getTableAdminClient() throws IOException {
     if (tableAdminClient == null) {
       ManagedChannel channel =
@@ -358,11 +448,99 @@ public class BigtableSession implements Closeable {
         return createNettyChannel(hostString, ipOverride);
       }
     };
-    ChannelPool channelPool = new ChannelPool(headerInterceptors, channelFactory, channelCount);
+    ChannelPool channelPool = new ChannelPool(headerInterceptors, channelFactory, channelCount,
+        options.getChannelSelection().createStrategy(),
+        options.getChannelEjectionFailureThreshold(), ChannelPool.DEFAULT_MIN_EJECTION_INTERVAL_MS,
+        BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool());
     managedChannels.add(channelPool);
     return channelPool;
   }
 
+  /**
+   * Connects every channel in the pool in parallel, so that the first calls on the channels don't
+   * pay for the TCP, TLS and HTTP/2 setup. A cheap SampleRowKeys request without a table name is
+   * sent on each channel. The server rejects it, but only after the connection is established and
+   * the credentials are applied. Failures are logged, and do not fail the session.
+   */
+  private void connectChannels(ChannelPool channelPool) {
+    long start = System.nanoTime();
+    List<ChannelPool.PooledChannel> pooledChannels = channelPool.getPooledChannels();
+    List<ListenableFuture<Status>> connections = new ArrayList<>();
+    for (ChannelPool.PooledChannel pooledChannel : pooledChannels) {
+      connections.add(connectChannel(channelPool, pooledChannel));
+    }
+    List<Status> statuses = null;
+    try {
+      statuses = Futures.successfulAsList(connections)
+          .get(CHANNEL_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted while connecting channels.");
+    } catch (ExecutionException | TimeoutException e) {
+      LOG.warn("Could not connect %d channels within %d ms.", e, pooledChannels.size(),
+        CHANNEL_CONNECT_TIMEOUT_MS);
+    }
+    channelWarmupTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    if (statuses == null) {
+      // Cancel the probes that are still running, so that they no longer count as outstanding
+      // calls on their channels.
+      for (ListenableFuture<Status> connection : connections) {
+        connection.cancel(true);
+      }
+      return;
+    }
+    int connectedCount = 0;
+    for (Status status : statuses) {
+      if (status != null && status.getCode() != Status.Code.UNAVAILABLE) {
+        connectedCount++;
+      }
+    }
+    LOG.info("Connected %d of %d channels in %d ms.", connectedCount, pooledChannels.size(),
+      channelWarmupTimeMs);
+  }
+
+  private static ListenableFuture<Status> connectChannel(ChannelPool channelPool,
+      ChannelPool.PooledChannel pooledChannel) {
+    final SettableFuture<Status> future = SettableFuture.create();
+    final ClientCall<SampleRowKeysRequest, SampleRowKeysResponse> call = channelPool.newCall(
+      pooledChannel, BigtableServiceGrpc.METHOD_SAMPLE_ROW_KEYS, CallOptions.DEFAULT);
+    // Cancelling the future cancels the call.
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (future.isCancelled()) {
+          call.cancel();
+        }
+      }
+    }, MoreExecutors.directExecutor());
+    ClientCalls.asyncServerStreamingCall(call, SampleRowKeysRequest.getDefaultInstance(),
+      new StreamObserver<SampleRowKeysResponse>() {
+        @Override
+        public void onNext(SampleRowKeysResponse value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          future.set(Status.fromThrowable(t));
+        }
+
+        @Override
+        public void onCompleted() {
+          future.set(Status.OK);
+        }
+      });
+    return future;
+  }
+
+  /**
+   * @return The number of milliseconds it took to connect the data channels, or to give up on
+   *         connecting them, if {@link BigtableOptions#eagerlyConnectChannels()} is set, or -1
+   *         otherwise.
+   */
+  public long getChannelWarmupTimeMs() {
+    return channelWarmupTimeMs;
+  }
+
   private InetAddress getAddressFromIp(String hostString, String ipOverride) throws IOException {
     InetAddress override = InetAddress.getByName(ipOverride);
     return InetAddress.getByAddress(hostString, override.getAddress());
@@ -396,6 +574,21 @@ public class BigtableSession implements Closeable {
     if (managedChannels.isEmpty()) {
       return;
     }
+    // Send the batched requests while the channels can still carry them.
+    if (incrementAggregator != null) {
+      incrementAggregator.flush();
+    }
+    if (mutationGroupCommitter != null) {
+      mutationGroupCommitter.flush();
+    }
+    if (readRowCoalescer != null) {
+      try {
+        readRowCoalescer.flush();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while flushing the read row coalescer", e);
+      }
+    }
     long timeoutNanos = TimeUnit.SECONDS.toNanos(10);
     long endTimeNanos = System.nanoTime() + timeoutNanos;
     for (ManagedChannel channel : managedChannels) {
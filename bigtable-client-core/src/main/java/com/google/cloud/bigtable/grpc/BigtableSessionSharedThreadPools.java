@@ -32,10 +32,17 @@ public class BigtableSessionSharedThreadPools {
   public static final String BATCH_POOL_THREAD_NAME = "bigtable-batch-pool";
   public static final String RETRY_THREADPOOL_NAME = "bigtable-rpc-retry";
   public static final String GRPC_EVENTLOOP_GROUP_NAME = "bigtable-grpc-elg";
+  public static final String BULK_FLUSH_THREADPOOL_NAME = "bigtable-bulk-flush";
 
   /** Number of threads to use to initiate retry calls */
   public static final int RETRY_THREAD_COUNT = 4;
 
+  /**
+   * Number of threads to use to send bulk requests that have waited longer than their linger. The
+   * tasks never block, so a few threads are enough.
+   */
+  public static final int BULK_FLUSH_THREAD_COUNT = 2;
+
   private static BigtableSessionSharedThreadPools INSTANCE = new BigtableSessionSharedThreadPools();
 
   /**
@@ -62,6 +69,15 @@ public class BigtableSessionSharedThreadPools {
    */
   protected ScheduledExecutorService retryExecutor;
 
+  /**
+   * Used to send partially filled bulk mutations and bulk reads after
+   * {@link com.google.cloud.bigtable.config.BigtableOptions#getBulkLingerMs()}, and for the
+   * windows of the other batching classes. It has few threads and is shared by every session, so
+   * tasks must never block on flow control or on a lock held by a blocked thread; they try again
+   * later instead.
+   */
+  protected ScheduledExecutorService bulkFlushExecutor;
+
   protected BigtableSessionSharedThreadPools() {
     init();
   }
@@ -71,6 +87,8 @@ public class BigtableSessionSharedThreadPools {
     elg = new NioEventLoopGroup(0, createThreadFactory(GRPC_EVENTLOOP_GROUP_NAME));
     retryExecutor = Executors.newScheduledThreadPool(RETRY_THREAD_COUNT,
       createThreadFactory(RETRY_THREADPOOL_NAME));
+    bulkFlushExecutor = Executors.newScheduledThreadPool(BULK_FLUSH_THREAD_COUNT,
+      createThreadFactory(BULK_FLUSH_THREADPOOL_NAME));
   }
 
   protected ThreadFactory createThreadFactory(String name) {
@@ -88,4 +106,8 @@ public class BigtableSessionSharedThreadPools {
   public ScheduledExecutorService getRetryExecutor() {
     return retryExecutor;
   }
+
+  public ScheduledExecutorService getBulkFlushExecutor() {
+    return bulkFlushExecutor;
+  }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.rpc.Status;
+
+/**
+ * Decides when a {@link BulkMutation} is full. By default, a batch is full once it reaches
+ * {@link BigtableOptions#getBulkMaxRowKeyCount()} or {@link BigtableOptions#getBulkMaxRequestSize()}.
+ *
+ * <p>If {@link BigtableOptions#getBulkTargetLatencyMs()} is positive, both limits adapt to the
+ * observed responses. The latency per entry and per byte of each {@link MutateRowsResponse} gives
+ * the number of entries and bytes that should take the target latency, and the limits move
+ * towards them. Small rows, whose latency is dominated by the fixed cost of an RPC, get larger
+ * batches, and large rows get smaller batches that don't time out. Failed entries shrink the
+ * limits in proportion to the failure rate. The limits move by at most a factor of 2 per response,
+ * and stay between a small minimum and {@link #GROWTH_LIMIT} times the configured values. This
+ * class is thread safe.
+ */
+public class AdaptiveBatchSizer {
+
+  /** The server accepts at most this many entries in a {@link MutateRowsRequest}. */
+  public static final int MAX_ROW_KEY_COUNT = 100000;
+
+  /** The adaptive limits can grow up to this many times the configured values. */
+  public static final int GROWTH_LIMIT = 10;
+
+  /** The adaptive byte limit doesn't go below this, unless it's configured lower. */
+  public static final long MIN_REQUEST_SIZE = 16 * 1024;
+
+  private final long targetLatencyNanos;
+  private final int maxRowKeyCountLimit;
+  private final long minRequestSize;
+  private final long maxRequestSizeLimit;
+
+  private volatile int maxRowKeyCount;
+  private volatile long maxRequestSize;
+
+  public AdaptiveBatchSizer(BigtableOptions options) {
+    this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(options.getBulkTargetLatencyMs());
+    this.maxRowKeyCount = options.getBulkMaxRowKeyCount();
+    this.maxRequestSize = options.getBulkMaxRequestSize();
+    this.maxRowKeyCountLimit =
+        (int) Math.min(MAX_ROW_KEY_COUNT, (long) maxRowKeyCount * GROWTH_LIMIT);
+    this.minRequestSize = Math.min(MIN_REQUEST_SIZE, maxRequestSize);
+    this.maxRequestSizeLimit = maxRequestSize * GROWTH_LIMIT;
+  }
+
+  public boolean isAdaptive() {
+    return targetLatencyNanos > 0;
+  }
+
+  /**
+   * @return true if the {@link BulkMutation} should be sent.
+   */
+  public boolean isFull(BulkMutation bulkMutation) {
+    return bulkMutation.getRowKeyCount() >= maxRowKeyCount
+        || bulkMutation.getApproximateByteSize() >= maxRequestSize;
+  }
+
+  public int getMaxRowKeyCount() {
+    return maxRowKeyCount;
+  }
+
+  public long getMaxRequestSize() {
+    return maxRequestSize;
+  }
+
+  /**
+   * Records the outcome of a sent {@link BulkMutation} once the response arrives. This should be
+   * called right after the RPC is sent.
+   */
+  public void addCallback(BulkMutation bulkMutation,
+      ListenableFuture<MutateRowsResponse> responseFuture) {
+    if (!isAdaptive()) {
+      return;
+    }
+    final int entryCount = bulkMutation.getRowKeyCount();
+    final long byteSize = bulkMutation.getApproximateByteSize();
+    final long startNanos = System.nanoTime();
+    FutureCallback<MutateRowsResponse> callback = new FutureCallback<MutateRowsResponse>() {
+      @Override
+      public void onSuccess(MutateRowsResponse response) {
+        int failedCount = 0;
+        for (Status status : response.getStatusesList()) {
+          if (status.getCode() != io.grpc.Status.Code.OK.value()) {
+            failedCount++;
+          }
+        }
+        onResponse(entryCount, byteSize, System.nanoTime() - startNanos, failedCount);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        onResponse(entryCount, byteSize, System.nanoTime() - startNanos, entryCount);
+      }
+    };
+    Futures.addCallback(responseFuture, callback, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Updates the limits with the outcome of a {@link MutateRowsRequest}.
+   *
+   * @param entryCount The number of entries in the request.
+   * @param byteSize The approximate size of the request.
+   * @param latencyNanos The time it took to get the response.
+   * @param failedCount The number of entries that failed.
+   */
+  public synchronized void onResponse(int entryCount, long byteSize, long latencyNanos,
+      int failedCount) {
+    if (!isAdaptive() || entryCount == 0) {
+      return;
+    }
+    if (failedCount > 0) {
+      double factor = 1 - 0.5 * Math.min(1.0, (double) failedCount / entryCount);
+      update(maxRowKeyCount * factor, maxRequestSize * factor);
+      return;
+    }
+    // The number of entries or bytes that would have taken the target latency, given the
+    // latency per entry and per byte of this request.
+    double scale = (double) targetLatencyNanos / Math.max(1, latencyNanos);
+    update(
+      adjust(maxRowKeyCount, entryCount, scale),
+      adjust(maxRequestSize, byteSize, scale));
+  }
+
+  /**
+   * A request that was too slow shrinks the limit towards what would have met the target. A fast
+   * request only grows the limit if it was at least half full, since a batch that was sent early,
+   * on flush or on linger, says little about how a full batch performs.
+   */
+  private static double adjust(long limit, long sent, double scale) {
+    double desired = sent * scale;
+    if (scale < 1) {
+      return Math.max(limit / 2.0, Math.min(limit, desired));
+    } else if (sent >= limit / 2) {
+      return Math.max(limit, Math.min(limit * 2.0, desired));
+    } else {
+      return limit;
+    }
+  }
+
+  private void update(double rowKeyCount, double requestSize) {
+    maxRowKeyCount = (int) Math.max(1, Math.min(maxRowKeyCountLimit, rowKeyCount));
+    maxRequestSize = (long) Math.max(minRequestSize, Math.min(maxRequestSizeLimit, requestSize));
+  }
+}
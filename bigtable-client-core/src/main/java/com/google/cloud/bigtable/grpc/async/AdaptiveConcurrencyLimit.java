@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AtomicDouble;
+
+/**
+ * A limit on the number of in flight RPCs that adapts to the observed round trip time and error
+ * rate, within configured bounds. It follows a gradient approach: the ratio of the smallest
+ * observed round trip time to the latest one estimates how much of the latency is spent queueing.
+ * While latency stays close to the minimum, the limit grows by roughly its square root per
+ * completed RPC; once RPCs start queueing, the limit shrinks in proportion. Each failed RPC
+ * shrinks the limit multiplicatively. This class is thread safe, and does not lock: it is updated
+ * on every RPC completion, so the state is kept in atomics that are updated with compare and set.
+ */
+public class AdaptiveConcurrencyLimit {
+
+  /** The round trip time may grow by this factor before the limit starts to shrink. */
+  @VisibleForTesting
+  static final double RTT_TOLERANCE = 1.5;
+
+  /** The limit shrinks by this factor for each failed RPC. */
+  @VisibleForTesting
+  static final double FAILURE_BACKOFF_RATIO = 0.9;
+
+  /** The weight of each new estimate in the smoothed limit. */
+  private static final double SMOOTHING = 0.2;
+
+  /**
+   * The minimum round trip time is forgotten after this many samples, so that the limit can adapt
+   * when the cluster's baseline latency changes.
+   */
+  @VisibleForTesting
+  static final int MIN_RTT_RESET_SAMPLES = 1000;
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  private final AtomicDouble estimatedLimit;
+  private final AtomicLong minRttNanos = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicInteger sampleCount = new AtomicInteger();
+
+  /**
+   * @param minLimit The lowest the limit can go. The limit starts here.
+   * @param maxLimit The highest the limit can go.
+   */
+  public AdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+    Preconditions.checkArgument(minLimit > 0, "minLimit must be greater than 0.");
+    Preconditions.checkArgument(maxLimit >= minLimit, "maxLimit must be at least minLimit.");
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.estimatedLimit = new AtomicDouble(minLimit);
+  }
+
+  /**
+   * @return The current number of RPCs that may be in flight.
+   */
+  public int getLimit() {
+    return (int) estimatedLimit.get();
+  }
+
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  /**
+   * Updates the limit with a completed RPC.
+   *
+   * @param rttNanos The time from sending the RPC until it completed.
+   * @param inFlight The number of RPCs that were in flight when this one completed.
+   * @param failed Whether the RPC failed.
+   */
+  public void onSample(long rttNanos, int inFlight, boolean failed) {
+    if (failed) {
+      double current;
+      do {
+        current = estimatedLimit.get();
+      } while (!estimatedLimit.compareAndSet(current, clamp(current * FAILURE_BACKOFF_RATIO)));
+      return;
+    }
+    long minRtt = updateMinRtt(rttNanos);
+    double gradient =
+        Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * minRtt / Math.max(1, rttNanos)));
+    while (true) {
+      double current = estimatedLimit.get();
+      // If less than half of the limit is used, the latency says nothing about whether the limit
+      // is too low, so don't grow it.
+      if (inFlight < current / 2) {
+        return;
+      }
+      double newLimit = current * gradient + Math.sqrt(current);
+      if (estimatedLimit.compareAndSet(current,
+        clamp(current * (1 - SMOOTHING) + newLimit * SMOOTHING))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Records a round trip time, and forgets the minimum every {@link #MIN_RTT_RESET_SAMPLES}
+   * samples.
+   *
+   * @return The minimum round trip time, including this sample.
+   */
+  private long updateMinRtt(long rttNanos) {
+    long rtt = Math.max(1, rttNanos);
+    if (sampleCount.incrementAndGet() % MIN_RTT_RESET_SAMPLES == 0) {
+      minRttNanos.set(rtt);
+      return rtt;
+    }
+    while (true) {
+      long current = minRttNanos.get();
+      if (current <= rtt) {
+        return current;
+      }
+      if (minRttNanos.compareAndSet(current, rtt)) {
+        return rtt;
+      }
+    }
+  }
+
+  private double clamp(double newLimit) {
+    return Math.max(minLimit, Math.min(maxLimit, newLimit));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A {@link ConcurrentHeapSizeManager} whose maximum number of in flight RPCs is set by an
+ * {@link AdaptiveConcurrencyLimit}, rather than being fixed. Every operation that is tracked via
+ * {@link #addCallback(ListenableFuture, Long)} reports its round trip time and outcome to the
+ * limit.
+ */
+public class AdaptiveHeapSizeManager extends ConcurrentHeapSizeManager {
+
+  private final AdaptiveConcurrencyLimit concurrencyLimit;
+
+  public AdaptiveHeapSizeManager(long maxHeapSize, int minInflightRpcs, int maxInflightRpcs) {
+    this(maxHeapSize, new AdaptiveConcurrencyLimit(minInflightRpcs, maxInflightRpcs));
+  }
+
+  public AdaptiveHeapSizeManager(long maxHeapSize, AdaptiveConcurrencyLimit concurrencyLimit) {
+    this(maxHeapSize, concurrencyLimit, null);
+  }
+
+  /**
+   * @param budget A budget that is shared with other managers. May be null.
+   */
+  public AdaptiveHeapSizeManager(long maxHeapSize, AdaptiveConcurrencyLimit concurrencyLimit,
+      SharedWriteBudget budget) {
+    super(maxHeapSize, concurrencyLimit.getMaxLimit(), budget);
+    this.concurrencyLimit = concurrencyLimit;
+  }
+
+  /**
+   * @return The current limit, which is between the configured minimum and maximum.
+   */
+  @Override
+  public int getMaxInFlightRpcs() {
+    return concurrencyLimit.getLimit();
+  }
+
+  @Override
+  public <T> FutureCallback<T> addCallback(ListenableFuture<T> future, final Long id) {
+    final long startNanos = System.nanoTime();
+    FutureCallback<T> callback = new FutureCallback<T>() {
+      @Override
+      public void onSuccess(T result) {
+        complete(false);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        complete(true);
+      }
+
+      private void complete(boolean failed) {
+        concurrencyLimit.onSample(System.nanoTime() - startNanos, getInFlightRpcCount(), failed);
+        markCanBeCompleted(id);
+      }
+    };
+    Futures.addCallback(future, callback);
+    return callback;
+  }
+
+  public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+    return concurrencyLimit;
+  }
+}
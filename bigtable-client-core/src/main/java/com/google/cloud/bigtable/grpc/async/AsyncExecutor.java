@@ -225,6 +225,19 @@ public class AsyncExecutor {
     return call(MUTATE_ROWS_ASYNC, request);
   }
 
+  /**
+   * Performs a {@link BigtableDataClient#mutateRowsAsync(MutateRowsRequest)} on the
+   * {@link MutateRowsRequest} if the {@link HeapSizeManager} has room for it. This method never
+   * blocks.
+   * @param request The {@link MutateRowRequest} to send.
+   * @return a {@link ListenableFuture} which can be listened to for completion events, or null if
+   *         the {@link HeapSizeManager} is full.
+   */
+  public ListenableFuture<MutateRowsResponse> tryMutateRowsAsync(MutateRowsRequest request) {
+    long id = sizeManager.tryRegisterOperationWithHeapSize(request.getSerializedSize());
+    return id == -1 ? null : call(MUTATE_ROWS_ASYNC, request, id);
+  }
+
   /**
    * Performs a {@link BigtableDataClient#checkAndMutateRowAsync(CheckAndMutateRowRequest)} on the
    * {@link CheckAndMutateRowRequest}. This method may block if
@@ -267,6 +280,19 @@ public class AsyncExecutor {
     return call(READ_ROWS_ASYNC, request);
   }
 
+  /**
+   * Performs a {@link BigtableDataClient#readRowsAsync(ReadRowsRequest)} on the
+   * {@link ReadRowsRequest} if the {@link HeapSizeManager} has room for it. This method never
+   * blocks.
+   * @param request The {@link ReadRowsRequest} to send.
+   * @return a {@link ListenableFuture} which can be listened to for completion events, or null if
+   *         the {@link HeapSizeManager} is full.
+   */
+  public ListenableFuture<List<Row>> tryReadRowsAsync(ReadRowsRequest request) {
+    long id = sizeManager.tryRegisterOperationWithHeapSize(request.getSerializedSize());
+    return id == -1 ? null : call(READ_ROWS_ASYNC, request, id);
+  }
+
   private <RequestT extends GeneratedMessage, ResponseT> ListenableFuture<ResponseT> call(
       AsyncCall<RequestT, ResponseT> rpc, RequestT request) throws InterruptedException {
     // Wait until both the memory and rpc count maximum requirements are achieved before getting a
@@ -19,8 +19,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.bigtable.v1.BigtableServiceGrpc;
 import com.google.bigtable.v1.ReadRowsRequest;
@@ -43,7 +43,6 @@ import io.grpc.Channel;
 import io.grpc.ClientCall;
 import io.grpc.MethodDescriptor;
 import io.grpc.Status;
-import io.grpc.StatusRuntimeException;
 import io.grpc.stub.ClientCalls;
 
 /**
@@ -74,24 +73,55 @@ public final class BigtableAsyncUtilities {
 
   public static BigtableAsyncRpc<SampleRowKeysRequest, List<SampleRowKeysResponse>>
       createSampleRowKeyAsyncReader(Channel channel, ClientCallService clientCallService) {
+    return createSampleRowKeyAsyncReader(channel, clientCallService, CallOptions.DEFAULT);
+  }
+
+  /**
+   * @param callOptions The {@link CallOptions} of every call; see
+   *          {@link #createAsyncUnaryRpc(Channel, ClientCallService, MethodDescriptor, CallOptions)}.
+   */
+  public static BigtableAsyncRpc<SampleRowKeysRequest, List<SampleRowKeysResponse>>
+      createSampleRowKeyAsyncReader(Channel channel, ClientCallService clientCallService,
+          CallOptions callOptions) {
     return createStreamingAsyncRpc(channel, BigtableServiceGrpc.METHOD_SAMPLE_ROW_KEYS,
-      IMMUTABLE_LIST_TRANSFORMER, clientCallService);
+      IMMUTABLE_LIST_TRANSFORMER, clientCallService, callOptions);
   }
 
   public static BigtableAsyncRpc<ReadRowsRequest, List<Row>> createRowKeyAysncReader(Channel channel,
       ClientCallService clientCallService) {
+    return createRowKeyAysncReader(channel, clientCallService, CallOptions.DEFAULT);
+  }
+
+  /**
+   * @param callOptions The {@link CallOptions} of every call; see
+   *          {@link #createAsyncUnaryRpc(Channel, ClientCallService, MethodDescriptor, CallOptions)}.
+   */
+  public static BigtableAsyncRpc<ReadRowsRequest, List<Row>> createRowKeyAysncReader(Channel channel,
+      ClientCallService clientCallService, CallOptions callOptions) {
     return createStreamingAsyncRpc(channel, BigtableServiceGrpc.METHOD_READ_ROWS, ROW_TRANSFORMER,
-      clientCallService);
+      clientCallService, callOptions);
   }
 
   public static <RequestT, ResponseT> BigtableAsyncRpc<RequestT, ResponseT> createAsyncUnaryRpc(
       final Channel channel,
       final ClientCallService clientCallService,
       final MethodDescriptor<RequestT, ResponseT> method) {
+    return createAsyncUnaryRpc(channel, clientCallService, method, CallOptions.DEFAULT);
+  }
+
+  /**
+   * @param callOptions The {@link CallOptions} of every call, including retries. A deadline in the
+   *          {@link CallOptions} therefore applies to the operation as a whole.
+   */
+  public static <RequestT, ResponseT> BigtableAsyncRpc<RequestT, ResponseT> createAsyncUnaryRpc(
+      final Channel channel,
+      final ClientCallService clientCallService,
+      final MethodDescriptor<RequestT, ResponseT> method,
+      final CallOptions callOptions) {
     return new BigtableAsyncRpc<RequestT, ResponseT>() {
       @Override
       public ListenableFuture<ResponseT> call(RequestT request) {
-        final ClientCall<RequestT, ResponseT> call = channel.newCall(method, CallOptions.DEFAULT);
+        final ClientCall<RequestT, ResponseT> call = channel.newCall(method, callOptions);
         return clientCallService.listenableAsyncCall(call, request);
       }
     };
@@ -102,10 +132,19 @@ public final class BigtableAsyncUtilities {
       final ClientCallService clientCallService,
       final MethodDescriptor<RequestT, ResponseT> method,
       final CancellationToken token) {
+    return createAsyncUnaryRpc(channel, clientCallService, method, CallOptions.DEFAULT, token);
+  }
+
+  public static <RequestT, ResponseT> BigtableAsyncRpc<RequestT, ResponseT> createAsyncUnaryRpc(
+      final Channel channel,
+      final ClientCallService clientCallService,
+      final MethodDescriptor<RequestT, ResponseT> method,
+      final CallOptions callOptions,
+      final CancellationToken token) {
     return new BigtableAsyncRpc<RequestT, ResponseT>() {
       @Override
       public ListenableFuture<ResponseT> call(RequestT request) {
-        final ClientCall<RequestT, ResponseT> call = channel.newCall(method, CallOptions.DEFAULT);
+        final ClientCall<RequestT, ResponseT> call = channel.newCall(method, callOptions);
         token.addListener(new Runnable(){
           @Override
           public void run() {
@@ -122,11 +161,12 @@ public final class BigtableAsyncUtilities {
           final Channel channel,
           final MethodDescriptor<RequestT, ResponseT> method,
           final Function<List<ResponseT>, List<OutputT>> function,
-          final ClientCallService clientCallService) {
+          final ClientCallService clientCallService,
+          final CallOptions callOptions) {
     return new BigtableAsyncRpc<RequestT, List<OutputT>>() {
       @Override
       public ListenableFuture<List<OutputT>> call(RequestT request) {
-        ClientCall<RequestT, ResponseT> call = channel.newCall(method, CallOptions.DEFAULT);
+        ClientCall<RequestT, ResponseT> call = channel.newCall(method, callOptions);
         CollectingStreamObserver<ResponseT> responseCollector = new CollectingStreamObserver<>();
         clientCallService.asyncServerStreamingCall(call, request, responseCollector);
         return Futures.transform(responseCollector.getResponseCompleteFuture(), function);
@@ -140,23 +180,45 @@ public final class BigtableAsyncUtilities {
    * @param retryOptions Configures how to perform backoffs when failures occur.
    * @param request The request to send.
    * @param rpc The rpc to perform
-   * @param executorService The ExecutorService on which to run if there is a need for a retry.
+   * @param retryExecutorService The ScheduledExecutorService on which retries are scheduled after
+   *          a backoff.
+   * @return the ListenableFuture that can be used to track the RPC.
+   */
+  public static <RequestT, ResponseT> ListenableFuture<ResponseT> performRetryingAsyncRpc(
+      RetryOptions retryOptions,
+      final RequestT request,
+      BigtableAsyncRpc<RequestT, ResponseT> rpc,
+      ScheduledExecutorService retryExecutorService) {
+    return performRetryingAsyncRpc(retryOptions, request, rpc, CallOptions.DEFAULT,
+      RetryBudget.unlimited(), retryExecutorService);
+  }
+
+  /**
+   * Performs the rpc with retries. No retry is attempted if it would start after the deadline of
+   * the {@link CallOptions}.
+   *
+   * @param retryOptions Configures how to perform backoffs when failures occur.
+   * @param request The request to send.
+   * @param rpc The rpc to perform
+   * @param callOptions The {@link CallOptions} that rpc uses for its calls.
+   * @param retryBudget The {@link RetryBudget} that grants retries.
+   * @param retryExecutorService The ScheduledExecutorService on which retries are scheduled after
+   *          a backoff.
    * @return the ListenableFuture that can be used to track the RPC.
    */
   public static <RequestT, ResponseT> ListenableFuture<ResponseT> performRetryingAsyncRpc(
       RetryOptions retryOptions,
       final RequestT request,
       BigtableAsyncRpc<RequestT, ResponseT> rpc,
-      ExecutorService executorService) {
-    ListenableFuture<ResponseT> listenableFuture = rpc.call(request);
+      CallOptions callOptions,
+      RetryBudget retryBudget,
+      ScheduledExecutorService retryExecutorService) {
     if (retryOptions.enableRetries()) {
-      return Futures.catchingAsync(
-          listenableFuture,
-          StatusRuntimeException.class,
-          RetryingRpcFunction.create(retryOptions, request, rpc),
-          executorService);
+      return RetryingRpcFunction
+          .create(retryOptions, request, rpc, callOptions, retryBudget, retryExecutorService)
+          .callWithRetries();
     } else {
-      return listenableFuture;
+      return rpc.call(request);
     }
   }
 
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The outcome of a mutation that was offered to a buffer without blocking. It has two separate
+ * futures: one for whether the buffer took the mutation, and one for the server's response.
+ *
+ * @param <T> The type of the response.
+ */
+public class BufferedMutationResult<T> {
+
+  /**
+   * @return a result for a mutation that was not taken, because the buffer was full.
+   */
+  public static <T> BufferedMutationResult<T> rejected() {
+    return new BufferedMutationResult<T>(Futures.immediateFuture(false),
+        Futures.<T> immediateCancelledFuture());
+  }
+
+  private final ListenableFuture<Boolean> accepted;
+  private final ListenableFuture<T> applied;
+
+  /**
+   * @param accepted See {@link #getAccepted()}.
+   * @param applied See {@link #getApplied()}.
+   */
+  public BufferedMutationResult(ListenableFuture<Boolean> accepted, ListenableFuture<T> applied) {
+    this.accepted = Preconditions.checkNotNull(accepted);
+    this.applied = Preconditions.checkNotNull(applied);
+  }
+
+  /**
+   * @return a {@link ListenableFuture} that is set to true once the mutation holds room in the
+   *         buffer's {@link HeapSizeManager} and is being sent, or to false right away if the
+   *         buffer did not take the mutation. A mutation that waits in a batch is accepted when the
+   *         batch is sent.
+   */
+  public ListenableFuture<Boolean> getAccepted() {
+    return accepted;
+  }
+
+  /**
+   * @return a {@link ListenableFuture} that is set once the server applied the mutation. It is
+   *         cancelled if the mutation was rejected.
+   */
+  public ListenableFuture<T> getApplied() {
+    return applied;
+  }
+
+  /**
+   * @return true if the buffer did not take the mutation, in which case nothing was done and the
+   *         caller may try again later.
+   */
+  public boolean isRejected() {
+    return accepted.isDone() && !Futures.getUnchecked(accepted);
+  }
+}
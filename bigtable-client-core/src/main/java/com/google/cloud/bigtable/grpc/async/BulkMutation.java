@@ -16,16 +16,19 @@
 package com.google.cloud.bigtable.grpc.async;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.bigtable.v1.MutateRowRequest;
 import com.google.bigtable.v1.MutateRowsRequest;
 import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.Mutation;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
 import com.google.rpc.Status;
 
@@ -35,17 +38,34 @@ import io.grpc.StatusException;
  * This class combines a collection of {@link MutateRowRequest}s into a single
  * {@link MutateRowsRequest}. This class is not thread safe, and requires calling classes to make it
  * thread safe.
+ *
+ * <p>If rows are coalesced, a {@link MutateRowRequest} for a row key that already has an entry
+ * appends its mutations to that entry, after the mutations that were added before it, instead of
+ * adding an entry of its own. The server then applies all of the row's mutations at once, and the
+ * future of each of the requests is set from the status of the shared entry.
  */
 public class BulkMutation {
 
   private final List<SettableFuture<Empty>> futures = new ArrayList<>();
+  /** The index of the entry in {@link #builder} of each of the {@link #futures}. */
+  private final List<Integer> entryIndexes = new ArrayList<>();
+  /** The index of the entry for each row key, if rows are coalesced. Otherwise null. */
+  private final Map<ByteString, Integer> rowKeyIndexes;
   private final MutateRowsRequest.Builder builder;
   
   private long approximateByteSize = 0l;
 
   public BulkMutation(String tableName) {
+    this(tableName, false);
+  }
+
+  /**
+   * @param coalesceRows Whether requests for the same row key share a single entry.
+   */
+  public BulkMutation(String tableName, boolean coalesceRows) {
     this.builder = MutateRowsRequest.newBuilder().setTableName(tableName);
     this.approximateByteSize = tableName.length() + 2;
+    this.rowKeyIndexes = coalesceRows ? new HashMap<ByteString, Integer>() : null;
   }
 
   /**
@@ -60,6 +80,20 @@ public class BulkMutation {
   public SettableFuture<Empty> add(MutateRowRequest request) {
     SettableFuture<Empty> future = SettableFuture.create();
     futures.add(future);
+    Integer index = rowKeyIndexes == null ? null : rowKeyIndexes.get(request.getRowKey());
+    if (index != null) {
+      entryIndexes.add(index);
+      builder.getEntriesBuilder(index).addAllMutations(request.getMutationsList());
+      for (Mutation mutation : request.getMutationsList()) {
+        // Each mutation is a length delimited field of the entry.
+        approximateByteSize += mutation.getSerializedSize() + 2;
+      }
+      return future;
+    }
+    entryIndexes.add(builder.getEntriesCount());
+    if (rowKeyIndexes != null) {
+      rowKeyIndexes.put(request.getRowKey(), builder.getEntriesCount());
+    }
     MutateRowsRequest.Entry entry = MutateRowsRequest.Entry.newBuilder()
       .setRowKey(request.getRowKey())
       .addAllMutations(request.getMutationsList())
@@ -73,7 +107,18 @@ public class BulkMutation {
     return approximateByteSize;
   }
 
+  /**
+   * @return The number of entries in the {@link MutateRowsRequest}. This is less than the number
+   *         of added requests if rows are coalesced.
+   */
   public int getRowKeyCount() {
+    return builder.getEntriesCount();
+  }
+
+  /**
+   * @return The number of {@link MutateRowRequest}s that were added.
+   */
+  public int getRequestCount() {
     return futures.size();
   }
   /**
@@ -93,23 +138,20 @@ public class BulkMutation {
     FutureCallback<MutateRowsResponse> callback = new FutureCallback<MutateRowsResponse>() {
       @Override
       public void onSuccess(MutateRowsResponse result) {
-        Iterator<Status> statuses = result.getStatusesList().iterator();
-        Iterator<SettableFuture<Empty>> entries = futures.iterator();
-        while (entries.hasNext() && statuses.hasNext()) {
-          setStatus(entries.next(), statuses.next());
-        }
-        // TODO: better handling of these cases?
-        while (entries.hasNext()) {
-          entries.next().setException(io.grpc.Status.UNKNOWN
-              .withDescription("Mutation does not have a status").asException());
-        }
-        if (statuses.hasNext()) {
-          int count = 0;
-          while (statuses.hasNext()) {
-            count++;
-            statuses.next();
+        List<Status> statuses = result.getStatusesList();
+        for (int i = 0; i < futures.size(); i++) {
+          int index = entryIndexes.get(i);
+          if (index < statuses.size()) {
+            setStatus(futures.get(i), statuses.get(index));
+          } else {
+            // TODO: better handling of these cases?
+            futures.get(i).setException(io.grpc.Status.UNKNOWN
+                .withDescription("Mutation does not have a status").asException());
           }
-          throw new IllegalStateException(String.format("Got %d extra statusus", count));
+        }
+        int extraCount = statuses.size() - builder.getEntriesCount();
+        if (extraCount > 0) {
+          throw new IllegalStateException(String.format("Got %d extra statusus", extraCount));
         }
       }
 
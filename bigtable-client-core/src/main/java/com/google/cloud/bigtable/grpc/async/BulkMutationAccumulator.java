@@ -0,0 +1,293 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.Empty;
+
+/**
+ * This class accumulates {@link MutateRowRequest}s from many threads into {@link BulkMutation}s
+ * and sends them via {@link AsyncExecutor#mutateRowsAsync(MutateRowsRequest)}. Instead of a
+ * single batch guarded by a single lock, there is one batch per stripe, and threads are spread
+ * across stripes so that concurrent producers rarely contend with each other. This class is
+ * thread safe.
+ *
+ * <p>If {@link BigtableOptions#getBulkLingerMs()} is positive and a
+ * {@link ScheduledExecutorService} is supplied, a partially filled batch is sent once it is that
+ * many milliseconds old, which bounds the latency of writes at low traffic. The linger task never
+ * blocks the {@link ScheduledExecutorService}, which is shared by other batches: if the stripe is
+ * busy or the {@link HeapSizeManager} is full, it tries again after another linger interval.
+ *
+ * <p>{@link #tryAdd(MutateRowRequest)} never blocks either. A batch that it fills while the
+ * {@link HeapSizeManager} is full is handed to the {@link ScheduledExecutorService}, which sends
+ * it once there is room.
+ */
+public class BulkMutationAccumulator {
+
+  /**
+   * A {@link BulkMutation} in progress. All access to {@link #bulkMutation} must hold the Stripe's
+   * lock.
+   */
+  private static class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private BulkMutation bulkMutation;
+    /** Set to true once {@link #bulkMutation} is sent. */
+    private SettableFuture<Boolean> sentFuture;
+    private ScheduledFuture<?> lingerFuture;
+  }
+
+  /**
+   * How long a full batch from {@link #tryAdd(MutateRowRequest)} waits before trying again to get
+   * room in the {@link HeapSizeManager}.
+   */
+  private static final long FULL_BATCH_RETRY_MS = 10;
+
+  private final AsyncExecutor asyncExecutor;
+  private final String tableName;
+  private final BigtableOptions options;
+  private final ScheduledExecutorService flushExecutor;
+  private final AdaptiveBatchSizer batchSizer;
+  private final Stripe[] stripes;
+
+  public BulkMutationAccumulator(AsyncExecutor asyncExecutor, String tableName,
+      BigtableOptions options) {
+    this(asyncExecutor, tableName, options, null);
+  }
+
+  /**
+   * @param flushExecutor sends batches that are older than
+   *          {@link BigtableOptions#getBulkLingerMs()}, and full batches from
+   *          {@link #tryAdd(MutateRowRequest)} that could not be sent right away. May be null, in
+   *          which case those batches are only sent by {@link #flush()} or
+   *          {@link #add(MutateRowRequest)}.
+   */
+  public BulkMutationAccumulator(AsyncExecutor asyncExecutor, String tableName,
+      BigtableOptions options, ScheduledExecutorService flushExecutor) {
+    this(asyncExecutor, tableName, options, flushExecutor,
+      Runtime.getRuntime().availableProcessors());
+  }
+
+  public BulkMutationAccumulator(AsyncExecutor asyncExecutor, String tableName,
+      BigtableOptions options, ScheduledExecutorService flushExecutor, int stripeCount) {
+    Preconditions.checkArgument(stripeCount > 0, "stripeCount must be greater than 0.");
+    this.asyncExecutor = asyncExecutor;
+    this.tableName = Preconditions.checkNotNull(tableName);
+    this.options = options;
+    this.flushExecutor = flushExecutor;
+    this.batchSizer = new AdaptiveBatchSizer(options);
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Adds a {@link MutateRowRequest} to the current thread's batch. If the batch is full according
+   * to the {@link AdaptiveBatchSizer}, it is sent. Sending may block if
+   * {@link HeapSizeManager#registerOperationWithHeapSize(long)} blocks.
+   *
+   * @param request The {@link MutateRowRequest} to add. The request should be fully adapted before
+   *          calling this method, so that the adaptation does not happen while holding a lock.
+   * @return a {@link ListenableFuture} that will be populated when the {@link MutateRowsResponse}
+   *         returns from the server.
+   */
+  public ListenableFuture<Empty> add(MutateRowRequest request) {
+    Stripe stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+    stripe.lock.lock();
+    try {
+      ListenableFuture<Empty> future = addToBatch(stripe, request);
+      if (batchSizer.isFull(stripe.bulkMutation)) {
+        // Send while holding the stripe's lock so that a concurrent flush() can't return before
+        // this batch is registered with the AsyncExecutor.
+        send(stripe);
+      }
+      return future;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a {@link MutateRowRequest} to a batch without ever blocking. The current thread's batch is
+   * tried first, and then the other stripes' batches. If a batch fills up, it is sent if the
+   * {@link HeapSizeManager} has room for it, or handed to the flush executor otherwise.
+   *
+   * @param request The {@link MutateRowRequest} to add, which should be fully adapted.
+   * @return a {@link BufferedMutationResult} that is rejected if every batch was either busy or
+   *         full and waiting to be sent. Otherwise the request is accepted once its batch is sent.
+   */
+  public BufferedMutationResult<Empty> tryAdd(MutateRowRequest request) {
+    int first = (int) (Thread.currentThread().getId() % stripes.length);
+    for (int i = 0; i < stripes.length; i++) {
+      Stripe stripe = stripes[(first + i) % stripes.length];
+      if (!stripe.lock.tryLock()) {
+        continue;
+      }
+      try {
+        if (stripe.bulkMutation != null && batchSizer.isFull(stripe.bulkMutation)) {
+          continue;
+        }
+        ListenableFuture<Empty> future = addToBatch(stripe, request);
+        ListenableFuture<Boolean> sentFuture = stripe.sentFuture;
+        if (batchSizer.isFull(stripe.bulkMutation) && !trySend(stripe) && flushExecutor != null) {
+          if (stripe.lingerFuture != null) {
+            stripe.lingerFuture.cancel(false);
+          }
+          stripe.lingerFuture =
+              scheduleSend(stripe, stripe.bulkMutation, FULL_BATCH_RETRY_MS);
+        }
+        return new BufferedMutationResult<>(sentFuture, future);
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+    return BufferedMutationResult.rejected();
+  }
+
+  /**
+   * Adds the request to the stripe's batch, and starts a new batch if needed. The caller must hold
+   * the stripe's lock.
+   */
+  private ListenableFuture<Empty> addToBatch(Stripe stripe, MutateRowRequest request) {
+    if (stripe.bulkMutation == null) {
+      stripe.bulkMutation = new BulkMutation(tableName, options.coalesceBulkRows());
+      stripe.sentFuture = SettableFuture.create();
+      if (options.getBulkLingerMs() > 0) {
+        stripe.lingerFuture =
+            scheduleSend(stripe, stripe.bulkMutation, options.getBulkLingerMs());
+      }
+    }
+    return stripe.bulkMutation.add(request);
+  }
+
+  /**
+   * Schedules a send of the stripe's current batch after the delay, and again after each delay
+   * until the {@link HeapSizeManager} has room for it. The task does nothing if the batch was
+   * already sent because it filled up or was flushed.
+   */
+  private ScheduledFuture<?> scheduleSend(final Stripe stripe, final BulkMutation scheduled,
+      final long delayMs) {
+    if (flushExecutor == null) {
+      return null;
+    }
+    return flushExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (!stripe.lock.tryLock()) {
+          // Another thread is adding to or sending the batch. Check again later rather than
+          // blocking the shared flush executor. The batch's identity is checked on each run, so
+          // a task for a batch that has since been sent does nothing.
+          scheduleSend(stripe, scheduled, delayMs);
+          return;
+        }
+        try {
+          if (stripe.bulkMutation == scheduled && !trySend(stripe)) {
+            stripe.lingerFuture = scheduleSend(stripe, scheduled, delayMs);
+          }
+        } finally {
+          stripe.lock.unlock();
+        }
+      }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends all partially filled batches. This method does not wait for the RPCs to complete; use
+   * {@link AsyncExecutor#flush()} for that.
+   */
+  public void flush() {
+    for (Stripe stripe : stripes) {
+      stripe.lock.lock();
+      try {
+        if (stripe.bulkMutation != null) {
+          send(stripe);
+        }
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Sends the stripe's batch if the {@link HeapSizeManager} has room for it, without blocking. The
+   * caller must hold the stripe's lock.
+   *
+   * @return true if the batch was sent.
+   */
+  private boolean trySend(Stripe stripe) {
+    BulkMutation bulkMutation = stripe.bulkMutation;
+    ListenableFuture<MutateRowsResponse> future;
+    try {
+      future = asyncExecutor.tryMutateRowsAsync(bulkMutation.toRequest());
+    } catch (RuntimeException e) {
+      future = Futures.immediateFailedFuture(e);
+    }
+    if (future == null) {
+      return false;
+    }
+    stripe.sentFuture.set(true);
+    reset(stripe);
+    bulkMutation.addCallback(future);
+    batchSizer.addCallback(bulkMutation, future);
+    return true;
+  }
+
+  /**
+   * Removes the stripe's batch and cancels its linger task. The caller must hold the stripe's
+   * lock.
+   */
+  private void reset(Stripe stripe) {
+    stripe.bulkMutation = null;
+    stripe.sentFuture = null;
+    if (stripe.lingerFuture != null) {
+      stripe.lingerFuture.cancel(false);
+      stripe.lingerFuture = null;
+    }
+  }
+
+  /**
+   * Sends the stripe's batch and resets the stripe. The caller must hold the stripe's lock.
+   */
+  private void send(Stripe stripe) {
+    BulkMutation bulkMutation = stripe.bulkMutation;
+    SettableFuture<Boolean> sentFuture = stripe.sentFuture;
+    reset(stripe);
+    ListenableFuture<MutateRowsResponse> future = null;
+    try {
+      future = asyncExecutor.mutateRowsAsync(bulkMutation.toRequest());
+    } catch (InterruptedException e) {
+      future = Futures.<MutateRowsResponse> immediateFailedFuture(e);
+    } finally {
+      if (future != null) {
+        bulkMutation.addCallback(future);
+        batchSizer.addCallback(bulkMutation, future);
+      }
+      sentFuture.set(true);
+    }
+  }
+}
@@ -15,9 +15,13 @@
  */
 package com.google.cloud.bigtable.grpc.async;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.google.api.client.repackaged.com.google.common.base.Preconditions;
 import com.google.bigtable.v1.ReadRowsRequest;
@@ -37,13 +41,37 @@ import com.google.protobuf.ByteString;
 
 /**
  * This class combines a collection of {@link ReadRowsRequest}s with a single row key into a single
- * {@link ReadRowsRequest} with a {@link RowSet} which will result in fewer round trips. This class
- * is not thread safe, and requires calling classes to make it thread safe.
+ * {@link ReadRowsRequest} with a {@link RowSet} which will result in fewer round trips.
+ *
+ * <p>If a linger interval is supplied, a batch is sent automatically once it is that old. If a
+ * maximum row key count is supplied, a batch is sent as soon as it has that many row keys.
+ * A batch is shared by concurrent callers. It is taken while holding this object's monitor, and
+ * sent after releasing it, so a caller that waits for the {@link AsyncExecutor}'s flow control
+ * does not block the other callers. The linger task never waits for the flow control, since the
+ * linger executor is shared. If there is no room, it tries again after
+ * {@link #FLOW_CONTROL_RETRY_MS}, and {@link #flush()} sends the batch if it comes first.
  */
 public class BulkRead {
 
   protected static final Logger LOG = new Logger(BulkRead.class);
 
+  /**
+   * How long a batch from the linger task waits before trying again to get room in the
+   * {@link HeapSizeManager}.
+   */
+  private static final long FLOW_CONTROL_RETRY_MS = 10;
+
+  /** A batch that was taken from this {@link BulkRead}, and is ready to be sent. */
+  private static final class Batch {
+    private final ReadRowsRequest request;
+    private final Multimap<ByteString, SettableFuture<List<Row>>> futures;
+
+    Batch(ReadRowsRequest request, Multimap<ByteString, SettableFuture<List<Row>>> futures) {
+      this.request = request;
+      this.futures = futures;
+    }
+  }
+
   private final AsyncExecutor asyncExecutor;
   private final String tableName;
 
@@ -62,9 +90,45 @@ public class BulkRead {
    */
   private Multimap<ByteString, SettableFuture<List<Row>>> futures;
 
+  private final ScheduledExecutorService lingerExecutor;
+  private final long linger;
+  private final TimeUnit lingerUnit;
+  private final int maxRowKeyCount;
+  private ScheduledFuture<?> lingerFuture;
+  /** Batches that the linger task could not send because the flow control was full. */
+  private final List<Batch> retryBatches = new ArrayList<>();
+
   public BulkRead(AsyncExecutor asyncExecutor, String tableName) {
+    this(asyncExecutor, tableName, null, 0);
+  }
+
+  /**
+   * @param lingerExecutor sends a batch once it is {@code lingerMs} old. May be null.
+   * @param lingerMs the maximum age of a batch. 0 means that batches are only sent by
+   *          {@link #flush()}.
+   */
+  public BulkRead(AsyncExecutor asyncExecutor, String tableName,
+      ScheduledExecutorService lingerExecutor, long lingerMs) {
+    this(asyncExecutor, tableName, lingerExecutor, lingerMs, TimeUnit.MILLISECONDS,
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param lingerExecutor sends a batch once it is {@code linger} old. May be null.
+   * @param linger the maximum age of a batch, in {@code lingerUnit}. 0 means that batches are only
+   *          sent by {@link #flush()} or because they are full.
+   * @param maxRowKeyCount the number of distinct row keys at which a batch is sent.
+   */
+  public BulkRead(AsyncExecutor asyncExecutor, String tableName,
+      ScheduledExecutorService lingerExecutor, long linger, TimeUnit lingerUnit,
+      int maxRowKeyCount) {
+    Preconditions.checkArgument(maxRowKeyCount > 0, "maxRowKeyCount must be greater than 0.");
     this.asyncExecutor = asyncExecutor;
     this.tableName = tableName;
+    this.lingerExecutor = linger > 0 ? lingerExecutor : null;
+    this.linger = linger;
+    this.lingerUnit = lingerUnit;
+    this.maxRowKeyCount = maxRowKeyCount;
   }
 
   /**
@@ -81,19 +145,28 @@ public class BulkRead {
     ByteString rowKey = request.getRowKey();
     Preconditions.checkArgument(!rowKey.equals(ByteString.EMPTY));
 
-    RowFilter filter = request.getFilter();
-    if (currentFilter == null) {
-      currentFilter = filter;
-    } else if (!filter.equals(currentFilter)) {
-      // TODO: this should probably also happen if there is some maximum number of 
-      flush();
-      currentFilter = filter;
-    }
-    if (futures == null) {
-      futures = HashMultimap.create();
-    }
     SettableFuture<List<Row>> future = SettableFuture.create();
-    futures.put(rowKey, future);
+    Batch otherFilterBatch = null;
+    Batch fullBatch = null;
+    synchronized (this) {
+      RowFilter filter = request.getFilter();
+      if (currentFilter == null) {
+        currentFilter = filter;
+      } else if (!filter.equals(currentFilter)) {
+        otherFilterBatch = takeBatch();
+        currentFilter = filter;
+      }
+      if (futures == null) {
+        futures = HashMultimap.create();
+        scheduleLinger();
+      }
+      futures.put(rowKey, future);
+      if (futures.keySet().size() >= maxRowKeyCount) {
+        fullBatch = takeBatch();
+      }
+    }
+    send(otherFilterBatch);
+    send(fullBatch);
     return future;
   }
 
@@ -103,6 +176,39 @@ public class BulkRead {
    * @throws InterruptedException
    */
   public void flush() throws InterruptedException {
+    List<Batch> toSend;
+    synchronized (this) {
+      toSend = new ArrayList<>(retryBatches);
+      retryBatches.clear();
+      Batch batch = takeBatch();
+      if (batch != null) {
+        toSend.add(batch);
+      }
+    }
+    for (int i = 0; i < toSend.size(); i++) {
+      try {
+        send(toSend.get(i));
+      } catch (InterruptedException e) {
+        for (Batch unsent : toSend.subList(i + 1, toSend.size())) {
+          createFuture(unsent.futures).onFailure(e);
+        }
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Removes the current batch, and cancels its linger task. The caller has to hold this object's
+   * monitor.
+   *
+   * @return the batch, or null if there are no pending requests.
+   */
+  private Batch takeBatch() {
+    if (lingerFuture != null) {
+      lingerFuture.cancel(false);
+      lingerFuture = null;
+    }
+    Batch batch = null;
     if (futures != null && !futures.isEmpty()) {
       // TODO(sduskis): remove this once bulk read testing is complete.
 //      LOG.info("BulkRead reading %d rows.", futures.keys().size());
@@ -115,10 +221,83 @@ public class BulkRead {
               .setAllowRowInterleaving(true)
               .setRowSet(RowSet.newBuilder().addAllRowKeys(futures.keys()).build())
               .build();
-      Futures.addCallback(asyncExecutor.readRowsAsync(request), createFuture(futures));
+      batch = new Batch(request, futures);
     }
     futures = null;
     currentFilter = null;
+    return batch;
+  }
+
+  /**
+   * Sends a batch that was taken by {@link #takeBatch()}. This may block on the
+   * {@link AsyncExecutor}'s flow control, so it must not be called while holding this object's
+   * monitor. If the wait is interrupted, the batch's futures fail.
+   */
+  private void send(Batch batch) throws InterruptedException {
+    if (batch == null) {
+      return;
+    }
+    FutureCallback<List<Row>> callback = createFuture(batch.futures);
+    ListenableFuture<List<Row>> response;
+    try {
+      response = asyncExecutor.readRowsAsync(batch.request);
+    } catch (InterruptedException e) {
+      callback.onFailure(e);
+      throw e;
+    }
+    Futures.addCallback(response, callback);
+  }
+
+  /**
+   * Schedules a send of the current batch after {@link #linger}. The task does
+   * nothing if that batch was already sent.
+   */
+  private void scheduleLinger() {
+    if (lingerExecutor == null) {
+      return;
+    }
+    final Multimap<ByteString, SettableFuture<List<Row>>> scheduled = futures;
+    lingerFuture = lingerExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        Batch batch = null;
+        synchronized (BulkRead.this) {
+          if (futures == scheduled) {
+            batch = takeBatch();
+          }
+        }
+        if (batch != null) {
+          trySend(batch);
+        }
+      }
+    }, linger, lingerUnit);
+  }
+
+  /**
+   * Sends a batch on the {@link #lingerExecutor} if the {@link HeapSizeManager} has room for it.
+   * Otherwise, keeps the batch for {@link #flush()} and tries again later.
+   */
+  private void trySend(final Batch batch) {
+    ListenableFuture<List<Row>> response = asyncExecutor.tryReadRowsAsync(batch.request);
+    if (response != null) {
+      Futures.addCallback(response, createFuture(batch.futures));
+      return;
+    }
+    synchronized (this) {
+      retryBatches.add(batch);
+    }
+    lingerExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (BulkRead.this) {
+          if (!retryBatches.remove(batch)) {
+            // flush() already sent it.
+            return;
+          }
+        }
+        trySend(batch);
+      }
+    }, FLOW_CONTROL_RETRY_MS, TimeUnit.MILLISECONDS);
   }
 
   /**
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link HeapSizeManager} that tracks heap size and in flight RPC counts with atomic counters
+ * rather than a single monitor. Registration and completion never take a lock unless a thread is
+ * actually waiting for capacity, and waiting threads are woken by completions rather than by
+ * polling.
+ *
+ * <p>If a {@link SharedWriteBudget} is supplied, every operation also borrows its heap size and an
+ * RPC slot from the budget, which bounds the total across all of the managers that share it. An
+ * operation reserves this manager's capacity first and borrows from the budget second, so that a
+ * thread waiting for this manager's own limit does not hold budget that other managers could use.
+ */
+public class ConcurrentHeapSizeManager extends HeapSizeManager {
+
+  // In flush, wait up to this number of milliseconds without any operations completing.  If
+  // this amount of time goes by without any updates, flush will log a warning.  Flush()
+  // will still wait to complete.
+  private static final long INTERVAL_NO_SUCCESS_WARNING = 300000;
+
+  private final ConcurrentMap<Long, Long> pendingOperationsWithSize = new ConcurrentHashMap<>();
+  private final AtomicLong operationSequenceGenerator = new AtomicLong();
+  private final AtomicLong currentWriteBufferSize = new AtomicLong();
+  private final AtomicInteger inFlightRpcCount = new AtomicInteger();
+
+  /**
+   * The number of threads that are blocked in {@link #registerOperationWithHeapSize(long)} or
+   * {@link #flush()}. Completions only acquire {@link #lock} if this is non-zero.
+   */
+  private final AtomicInteger waiterCount = new AtomicInteger();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition operationCompleted = lock.newCondition();
+
+  private volatile long lastOperationChange = System.currentTimeMillis();
+
+  /** This manager's part of a {@link SharedWriteBudget}. May be null. */
+  private final SharedWriteBudget.Share budgetShare;
+
+  public ConcurrentHeapSizeManager(long maxHeapSize, int maxInflightRpcs) {
+    this(maxHeapSize, maxInflightRpcs, null);
+  }
+
+  /**
+   * @param budget A budget that is shared with other managers. May be null.
+   */
+  public ConcurrentHeapSizeManager(long maxHeapSize, int maxInflightRpcs,
+      SharedWriteBudget budget) {
+    super(maxHeapSize, maxInflightRpcs);
+    this.budgetShare = budget == null ? null : budget.newShare();
+  }
+
+  @Override
+  public long registerOperationWithHeapSize(long heapSize) throws InterruptedException {
+    while (!tryReserve(heapSize)) {
+      awaitCompletion();
+    }
+    if (budgetShare != null) {
+      try {
+        budgetShare.acquire(heapSize);
+      } catch (InterruptedException e) {
+        unreserve(heapSize);
+        throw e;
+      }
+    }
+    long operationId = operationSequenceGenerator.incrementAndGet();
+    pendingOperationsWithSize.put(operationId, heapSize);
+    return operationId;
+  }
+
+  @Override
+  public long tryRegisterOperationWithHeapSize(long heapSize) {
+    if (!tryReserve(heapSize)) {
+      return -1;
+    }
+    if (budgetShare != null && !budgetShare.tryAcquire(heapSize)) {
+      unreserve(heapSize);
+      return -1;
+    }
+    long operationId = operationSequenceGenerator.incrementAndGet();
+    pendingOperationsWithSize.put(operationId, heapSize);
+    return operationId;
+  }
+
+  /**
+   * Reserves an RPC slot and heap space if neither limit is reached. Like
+   * {@link HeapSizeManager}, a single operation may push the heap size above the maximum.
+   */
+  private boolean tryReserve(long heapSize) {
+    while (true) {
+      int rpcCount = inFlightRpcCount.get();
+      if (rpcCount >= getMaxInFlightRpcs() || currentWriteBufferSize.get() >= getMaxHeapSize()) {
+        return false;
+      }
+      if (inFlightRpcCount.compareAndSet(rpcCount, rpcCount + 1)) {
+        currentWriteBufferSize.addAndGet(heapSize);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Returns what {@link #tryReserve(long)} reserved, and wakes up waiting threads.
+   */
+  private void unreserve(long heapSize) {
+    currentWriteBufferSize.addAndGet(-heapSize);
+    inFlightRpcCount.decrementAndGet();
+    signalWaiters();
+  }
+
+  private void awaitCompletion() throws InterruptedException {
+    waiterCount.incrementAndGet();
+    lock.lock();
+    try {
+      // Check again while holding the lock so that a completion between tryReserve() and
+      // lock() is not missed.
+      if (isLocallyFull()) {
+        operationCompleted.await();
+      }
+    } finally {
+      lock.unlock();
+      waiterCount.decrementAndGet();
+    }
+  }
+
+  @Override
+  public void flush() throws InterruptedException {
+    boolean performedWarning = false;
+    waiterCount.incrementAndGet();
+    lock.lock();
+    try {
+      while (inFlightRpcCount.get() > 0) {
+        if (!performedWarning
+            && lastOperationChange + INTERVAL_NO_SUCCESS_WARNING < System.currentTimeMillis()) {
+          long lastUpdated = (System.currentTimeMillis() - lastOperationChange) / 1000;
+          LOG.warn("No operations completed within the last %d seconds. "
+              + "There are still %d operations in progress.", lastUpdated,
+            inFlightRpcCount.get());
+          performedWarning = true;
+        }
+        operationCompleted.await(INTERVAL_NO_SUCCESS_WARNING, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      lock.unlock();
+      waiterCount.decrementAndGet();
+    }
+    if (performedWarning) {
+      LOG.info("flush() completed");
+    }
+  }
+
+  @Override
+  public void markCanBeCompleted(Long id) {
+    Long heapSize = pendingOperationsWithSize.remove(id);
+    if (heapSize == null) {
+      LOG.warn("An operation completion was recieved multiple times. Your operations completed."
+          + " Please notify Google that this occurred.");
+      return;
+    }
+    if (budgetShare != null) {
+      budgetShare.release(heapSize);
+    }
+    lastOperationChange = System.currentTimeMillis();
+    unreserve(heapSize);
+  }
+
+  private void signalWaiters() {
+    if (waiterCount.get() > 0) {
+      lock.lock();
+      try {
+        operationCompleted.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public boolean isFull() {
+    return isLocallyFull() || (budgetShare != null && budgetShare.isFull());
+  }
+
+  /**
+   * @return true if this manager's own limits are reached, regardless of the shared budget.
+   */
+  private boolean isLocallyFull() {
+    return currentWriteBufferSize.get() >= getMaxHeapSize()
+        || inFlightRpcCount.get() >= getMaxInFlightRpcs();
+  }
+
+  @Override
+  public boolean hasInflightRequests() {
+    return inFlightRpcCount.get() > 0;
+  }
+
+  int getInFlightRpcCount() {
+    return inFlightRpcCount.get();
+  }
+
+  @Override
+  long getHeapSize() {
+    return currentWriteBufferSize.get();
+  }
+}
@@ -108,6 +108,23 @@ public class HeapSizeManager {
     return operationId;
   }
 
+  /**
+   * Registers an operation like {@link #registerOperationWithHeapSize(long)}, but does not wait if
+   * the heap size or the number of in flight RPCs is at its limit.
+   *
+   * @return the operation id, or -1 if the operation was not registered.
+   */
+  public synchronized long tryRegisterOperationWithHeapSize(long heapSize) {
+    if (unsynchronizedIsFull()) {
+      return -1;
+    }
+    long operationId = operationSequenceGenerator.incrementAndGet();
+    lastOperationChange = System.currentTimeMillis();
+    pendingOperationsWithSize.put(operationId, heapSize);
+    currentWriteBufferSize += heapSize;
+    return operationId;
+  }
+
   /**
    * Waits for a completion and then marks it as complete.
    * @throws InterruptedException
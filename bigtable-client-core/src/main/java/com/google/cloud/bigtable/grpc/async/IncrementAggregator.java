@@ -0,0 +1,310 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.bigtable.v1.Cell;
+import com.google.bigtable.v1.Column;
+import com.google.bigtable.v1.Family;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.bigtable.v1.ReadModifyWriteRule;
+import com.google.bigtable.v1.Row;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+
+/**
+ * Combines {@link ReadModifyWriteRowRequest}s that only increment cells into a single request per
+ * row. The increments for each column of a row are summed, and the combined request is sent once
+ * the oldest pending request is {@code windowMs} old, or once {@code maxPendingRequests} requests
+ * are pending, whichever comes first.
+ *
+ * <p>Each caller gets a {@link Row} with the cells that its own request incremented. The values
+ * are what the cells would have been if the pending requests for the row had been applied one at
+ * a time, in the order in which they were added. A request that appends to a cell is not combined
+ * and is sent right away. This class is thread safe.
+ */
+public class IncrementAggregator {
+
+  /** A cell that is the target of increments. */
+  private static final class ColumnKey {
+    private final String familyName;
+    private final ByteString qualifier;
+
+    ColumnKey(String familyName, ByteString qualifier) {
+      this.familyName = familyName;
+      this.qualifier = qualifier;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ColumnKey)) {
+        return false;
+      }
+      ColumnKey other = (ColumnKey) obj;
+      return familyName.equals(other.familyName) && qualifier.equals(other.qualifier);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(familyName, qualifier);
+    }
+  }
+
+  /** The requests for one row of one table that wait to be sent. */
+  private static final class PendingRow {
+    private final String tableName;
+    private final ByteString rowKey;
+    private final Map<ColumnKey, Long> totals = new LinkedHashMap<>();
+    private final List<ReadModifyWriteRowRequest> requests = new ArrayList<>();
+    private final List<SettableFuture<Row>> futures = new ArrayList<>();
+
+    PendingRow(String tableName, ByteString rowKey) {
+      this.tableName = tableName;
+      this.rowKey = rowKey;
+    }
+
+    void add(ReadModifyWriteRowRequest request, SettableFuture<Row> future) {
+      for (ReadModifyWriteRule rule : request.getRulesList()) {
+        ColumnKey key = new ColumnKey(rule.getFamilyName(), rule.getColumnQualifier());
+        Long total = totals.get(key);
+        totals.put(key, (total == null ? 0 : total) + rule.getIncrementAmount());
+      }
+      requests.add(request);
+      futures.add(future);
+    }
+
+    ReadModifyWriteRowRequest toRequest() {
+      ReadModifyWriteRowRequest.Builder builder =
+          ReadModifyWriteRowRequest.newBuilder().setTableName(tableName).setRowKey(rowKey);
+      for (Map.Entry<ColumnKey, Long> entry : totals.entrySet()) {
+        builder.addRulesBuilder()
+            .setFamilyName(entry.getKey().familyName)
+            .setColumnQualifier(entry.getKey().qualifier)
+            .setIncrementAmount(entry.getValue());
+      }
+      return builder.build();
+    }
+
+    /**
+     * Sets each future with the values that its request would have seen, given the combined
+     * response.
+     */
+    void setResults(Row response) {
+      Map<ColumnKey, Cell> cells = new HashMap<>();
+      for (Family family : response.getFamiliesList()) {
+        for (Column column : family.getColumnsList()) {
+          if (column.getCellsCount() > 0) {
+            cells.put(new ColumnKey(family.getName(), column.getQualifier()), column.getCells(0));
+          }
+        }
+      }
+      // The value of each column before any of the pending increments.
+      Map<ColumnKey, Long> values = new HashMap<>();
+      for (Map.Entry<ColumnKey, Long> entry : totals.entrySet()) {
+        Cell cell = cells.get(entry.getKey());
+        if (cell != null) {
+          values.put(entry.getKey(),
+            Longs.fromByteArray(cell.getValue().toByteArray()) - entry.getValue());
+        }
+      }
+      for (int i = 0; i < requests.size(); i++) {
+        Row.Builder row = Row.newBuilder().setKey(rowKey);
+        Map<String, Family.Builder> families = new LinkedHashMap<>();
+        boolean missingValue = false;
+        for (ReadModifyWriteRule rule : requests.get(i).getRulesList()) {
+          ColumnKey key = new ColumnKey(rule.getFamilyName(), rule.getColumnQualifier());
+          Long value = values.get(key);
+          if (value == null) {
+            missingValue = true;
+            break;
+          }
+          value += rule.getIncrementAmount();
+          values.put(key, value);
+          Family.Builder family = families.get(key.familyName);
+          if (family == null) {
+            family = Family.newBuilder().setName(key.familyName);
+            families.put(key.familyName, family);
+          }
+          family.addColumnsBuilder()
+              .setQualifier(key.qualifier)
+              .addCells(Cell.newBuilder()
+                  .setTimestampMicros(cells.get(key).getTimestampMicros())
+                  .setValue(ByteString.copyFrom(Longs.toByteArray(value))));
+        }
+        if (missingValue) {
+          futures.get(i).setException(new IllegalStateException(
+              "The response did not contain a value for every incremented column."));
+          continue;
+        }
+        for (Family.Builder family : families.values()) {
+          row.addFamilies(family);
+        }
+        futures.get(i).set(row.build());
+      }
+    }
+
+    void setException(Throwable t) {
+      for (SettableFuture<Row> future : futures) {
+        future.setException(t);
+      }
+    }
+  }
+
+  private final BigtableDataClient client;
+  private final ScheduledExecutorService flushExecutor;
+  private final long windowMs;
+  private final int maxPendingRequests;
+
+  private Map<String, Map<ByteString, PendingRow>> pendingRows = new HashMap<>();
+  private int pendingRequestCount;
+  private ScheduledFuture<?> flushFuture;
+
+  /**
+   * @param client Sends the combined requests.
+   * @param flushExecutor Sends pending requests once the window passes.
+   * @param windowMs The longest time a request waits to be combined with others.
+   * @param maxPendingRequests The number of pending requests at which they are all sent.
+   */
+  public IncrementAggregator(BigtableDataClient client, ScheduledExecutorService flushExecutor,
+      long windowMs, int maxPendingRequests) {
+    Preconditions.checkArgument(windowMs > 0, "windowMs must be greater than 0.");
+    Preconditions.checkArgument(maxPendingRequests > 0,
+      "maxPendingRequests must be greater than 0.");
+    this.client = client;
+    this.flushExecutor = flushExecutor;
+    this.windowMs = windowMs;
+    this.maxPendingRequests = maxPendingRequests;
+  }
+
+  /**
+   * Adds a request to be combined with other requests for the same row.
+   *
+   * @return a {@link ListenableFuture} of a {@link Row} that has the incremented cells of this
+   *         request, which is set once the combined request completes.
+   */
+  public ListenableFuture<Row> add(ReadModifyWriteRowRequest request) {
+    if (!isIncrementOnly(request)) {
+      return client.readModifyWriteRowAsync(request);
+    }
+    SettableFuture<Row> future = SettableFuture.create();
+    Map<String, Map<ByteString, PendingRow>> toSend = null;
+    synchronized (this) {
+      Map<ByteString, PendingRow> tableRows = pendingRows.get(request.getTableName());
+      if (tableRows == null) {
+        tableRows = new LinkedHashMap<>();
+        pendingRows.put(request.getTableName(), tableRows);
+      }
+      PendingRow row = tableRows.get(request.getRowKey());
+      if (row == null) {
+        row = new PendingRow(request.getTableName(), request.getRowKey());
+        tableRows.put(request.getRowKey(), row);
+      }
+      row.add(request, future);
+      if (++pendingRequestCount >= maxPendingRequests) {
+        toSend = drain();
+      } else if (flushFuture == null) {
+        flushFuture = flushExecutor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        }, windowMs, TimeUnit.MILLISECONDS);
+      }
+    }
+    send(toSend);
+    return future;
+  }
+
+  /**
+   * Sends all pending requests. This does not wait for the requests to complete.
+   */
+  public void flush() {
+    Map<String, Map<ByteString, PendingRow>> toSend;
+    synchronized (this) {
+      toSend = drain();
+    }
+    send(toSend);
+  }
+
+  /**
+   * Removes all of the pending rows. The caller must hold this object's lock.
+   */
+  private Map<String, Map<ByteString, PendingRow>> drain() {
+    if (flushFuture != null) {
+      flushFuture.cancel(false);
+      flushFuture = null;
+    }
+    Map<String, Map<ByteString, PendingRow>> drained = pendingRows;
+    pendingRows = new HashMap<>();
+    pendingRequestCount = 0;
+    return drained;
+  }
+
+  private void send(Map<String, Map<ByteString, PendingRow>> rowsByTable) {
+    if (rowsByTable == null) {
+      return;
+    }
+    for (Map<ByteString, PendingRow> rows : rowsByTable.values()) {
+      for (final PendingRow row : rows.values()) {
+        ListenableFuture<Row> future;
+        try {
+          future = client.readModifyWriteRowAsync(row.toRequest());
+        } catch (Exception e) {
+          future = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(future, new FutureCallback<Row>() {
+          @Override
+          public void onSuccess(Row result) {
+            row.setResults(result);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            row.setException(t);
+          }
+        }, MoreExecutors.directExecutor());
+      }
+    }
+  }
+
+  private static boolean isIncrementOnly(ReadModifyWriteRowRequest request) {
+    if (request.getRulesCount() == 0) {
+      return false;
+    }
+    for (ReadModifyWriteRule rule : request.getRulesList()) {
+      if (rule.getRuleCase() != ReadModifyWriteRule.RuleCase.INCREMENT_AMOUNT) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.Empty;
+
+/**
+ * Commits concurrent {@link MutateRowRequest}s to the same table as a group, in a single
+ * {@link MutateRowsRequest}. A group is sent once its oldest request is {@code windowMicros} old,
+ * or once it has {@code maxRowKeyCount} entries or {@code maxRequestSize} bytes, whichever comes
+ * first.
+ *
+ * <p>This is meant for synchronous callers, each of which waits for the future of its own request.
+ * The future is set with the status of the request's entry in the {@link MutateRowsResponse}, so a
+ * failure of one entry does not fail the other requests of the group. This class is thread safe.
+ */
+public class MutationGroupCommitter {
+
+  /** The requests for one table that wait to be sent. */
+  private static final class Group {
+    private final BulkMutation bulkMutation;
+    private ScheduledFuture<?> windowFuture;
+
+    Group(String tableName) {
+      this.bulkMutation = new BulkMutation(tableName);
+    }
+  }
+
+  private final BigtableDataClient client;
+  private final ScheduledExecutorService flushExecutor;
+  private final long windowMicros;
+  private final int maxRowKeyCount;
+  private final long maxRequestSize;
+
+  private final Map<String, Group> groups = new HashMap<>();
+
+  /**
+   * @param client Sends the groups.
+   * @param flushExecutor Sends a group once its window passes.
+   * @param windowMicros The longest time a request waits for other requests.
+   * @param maxRowKeyCount The number of entries at which a group is sent.
+   * @param maxRequestSize The approximate size in bytes at which a group is sent.
+   */
+  public MutationGroupCommitter(BigtableDataClient client, ScheduledExecutorService flushExecutor,
+      long windowMicros, int maxRowKeyCount, long maxRequestSize) {
+    Preconditions.checkArgument(windowMicros > 0, "windowMicros must be greater than 0.");
+    Preconditions.checkArgument(maxRowKeyCount > 0, "maxRowKeyCount must be greater than 0.");
+    Preconditions.checkArgument(maxRequestSize > 0, "maxRequestSize must be greater than 0.");
+    this.client = client;
+    this.flushExecutor = flushExecutor;
+    this.windowMicros = windowMicros;
+    this.maxRowKeyCount = maxRowKeyCount;
+    this.maxRequestSize = maxRequestSize;
+  }
+
+  /**
+   * Adds a request to its table's group.
+   *
+   * @return a {@link ListenableFuture} that is set once the group's {@link MutateRowsResponse}
+   *         returns, with the outcome of this request's entry.
+   */
+  public ListenableFuture<Empty> add(MutateRowRequest request) {
+    ListenableFuture<Empty> future;
+    Group toSend = null;
+    synchronized (this) {
+      final String tableName = request.getTableName();
+      Group group = groups.get(tableName);
+      if (group == null) {
+        group = new Group(tableName);
+        groups.put(tableName, group);
+        final Group scheduled = group;
+        group.windowFuture = flushExecutor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            sendIfCurrent(tableName, scheduled);
+          }
+        }, windowMicros, TimeUnit.MICROSECONDS);
+      }
+      future = group.bulkMutation.add(request);
+      if (group.bulkMutation.getRowKeyCount() >= maxRowKeyCount
+          || group.bulkMutation.getApproximateByteSize() >= maxRequestSize) {
+        toSend = remove(tableName);
+      }
+    }
+    send(toSend);
+    return future;
+  }
+
+  /**
+   * Sends all of the groups. This does not wait for the requests to complete.
+   */
+  public void flush() {
+    List<Group> toSend;
+    synchronized (this) {
+      toSend = new ArrayList<>(groups.size());
+      for (String tableName : new ArrayList<>(groups.keySet())) {
+        toSend.add(remove(tableName));
+      }
+    }
+    for (Group group : toSend) {
+      send(group);
+    }
+  }
+
+  private void sendIfCurrent(String tableName, Group scheduled) {
+    Group toSend = null;
+    synchronized (this) {
+      if (groups.get(tableName) == scheduled) {
+        toSend = remove(tableName);
+      }
+    }
+    send(toSend);
+  }
+
+  /**
+   * Removes a table's group and cancels its window. The caller must hold this object's lock.
+   */
+  private Group remove(String tableName) {
+    Group group = groups.remove(tableName);
+    if (group.windowFuture != null) {
+      group.windowFuture.cancel(false);
+      group.windowFuture = null;
+    }
+    return group;
+  }
+
+  private void send(Group group) {
+    if (group == null) {
+      return;
+    }
+    ListenableFuture<MutateRowsResponse> future;
+    try {
+      future = client.mutateRowsAsync(group.bulkMutation.toRequest());
+    } catch (Exception e) {
+      future = Futures.immediateFailedFuture(e);
+    }
+    group.bulkMutation.addCallback(future);
+  }
+}
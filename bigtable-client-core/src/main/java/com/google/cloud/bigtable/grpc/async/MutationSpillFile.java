@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.cloud.bigtable.config.Logger;
+import com.google.common.base.Preconditions;
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * A bounded, first in first out queue of {@link MutateRowRequest}s and
+ * {@link ReadModifyWriteRowRequest}s that is backed by a memory mapped file rather than the heap.
+ * A buffered mutator uses it to hold mutations that arrive while its {@link HeapSizeManager} is
+ * full, so that the callers do not have to wait for RPCs to complete during short slowdowns.
+ *
+ * <p>The file is used as a ring of records, each one a 4 byte length and a 1 byte request type
+ * followed by the serialized request. A length of -1, or fewer than 4 bytes before the end of the
+ * file, means that the next record is at the start of the file. The file never grows beyond the
+ * capacity given to the constructor, and it is deleted by {@link #close()}. This class is thread
+ * safe.
+ */
+public class MutationSpillFile implements Closeable {
+
+  protected static final Logger LOG = new Logger(MutationSpillFile.class);
+
+  private static final int LENGTH_SIZE = 4;
+  private static final int HEADER_SIZE = LENGTH_SIZE + 1;
+  private static final int WRAP_MARKER = -1;
+
+  private static final byte MUTATE_ROW = 0;
+  private static final byte READ_MODIFY_WRITE_ROW = 1;
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+
+  /** The position of the oldest record. */
+  private int readPosition;
+  /** The position at which the next record is written. */
+  private int writePosition;
+  private int count;
+  private long sizeInBytes;
+  /** The number of threads in {@link #put(GeneratedMessage)} that wait for free space. */
+  private int spaceWaiterCount;
+  private boolean closed;
+
+  /**
+   * @param file The file to map. It is created if needed, and deleted by {@link #close()}.
+   * @param capacity The size of the file, in bytes.
+   */
+  public MutationSpillFile(File file, int capacity) throws IOException {
+    Preconditions.checkArgument(capacity > HEADER_SIZE, "capacity must be greater than 5.");
+    this.file = file;
+    this.capacity = capacity;
+    this.randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(capacity);
+      this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Appends the request, unless there is not enough free space in the file.
+   *
+   * @param request A {@link MutateRowRequest} or a {@link ReadModifyWriteRowRequest}.
+   * @return true if the request was added.
+   */
+  public synchronized boolean offer(GeneratedMessage request) {
+    return offer(getType(request), request.toByteArray());
+  }
+
+  /**
+   * Appends the request, waiting until there is enough free space in the file for it.
+   *
+   * @param request A {@link MutateRowRequest} or a {@link ReadModifyWriteRowRequest}.
+   * @return true if the request was added, or false if the request is larger than the file.
+   */
+  public synchronized boolean put(GeneratedMessage request) throws InterruptedException {
+    byte type = getType(request);
+    byte[] bytes = request.toByteArray();
+    if (HEADER_SIZE + bytes.length > capacity) {
+      return false;
+    }
+    spaceWaiterCount++;
+    try {
+      while (!offer(type, bytes)) {
+        wait();
+      }
+    } finally {
+      spaceWaiterCount--;
+    }
+    return true;
+  }
+
+  private static byte getType(GeneratedMessage request) {
+    if (request instanceof MutateRowRequest) {
+      return MUTATE_ROW;
+    } else if (request instanceof ReadModifyWriteRowRequest) {
+      return READ_MODIFY_WRITE_ROW;
+    }
+    throw new IllegalArgumentException("Cannot spill a " + request.getClass());
+  }
+
+  private boolean offer(byte type, byte[] bytes) {
+    Preconditions.checkState(!closed, "The spill file is closed.");
+    int recordSize = HEADER_SIZE + bytes.length;
+    if (count == 0) {
+      readPosition = 0;
+      writePosition = 0;
+    }
+    int position;
+    if (count == 0 || writePosition > readPosition) {
+      if (capacity - writePosition >= recordSize) {
+        position = writePosition;
+      } else if (recordSize <= readPosition) {
+        // Not enough room before the end of the file, but there is room at the start.
+        if (capacity - writePosition >= LENGTH_SIZE) {
+          buffer.putInt(writePosition, WRAP_MARKER);
+        }
+        position = 0;
+      } else {
+        return false;
+      }
+    } else if (readPosition - writePosition >= recordSize) {
+      position = writePosition;
+    } else {
+      return false;
+    }
+    buffer.putInt(position, bytes.length);
+    buffer.put(position + LENGTH_SIZE, type);
+    buffer.position(position + HEADER_SIZE);
+    buffer.put(bytes);
+    writePosition = position + recordSize;
+    count++;
+    sizeInBytes += recordSize;
+    return true;
+  }
+
+  /**
+   * @return the oldest request, or null if there is none. The request stays in the file until
+   *         {@link #remove()} is called.
+   * @throws InvalidProtocolBufferException if the record could not be parsed. The record must
+   *           still be removed with {@link #remove()}.
+   */
+  public synchronized GeneratedMessage peek() throws InvalidProtocolBufferException {
+    if (count == 0) {
+      return null;
+    }
+    int position = getRecordPosition();
+    byte[] bytes = new byte[buffer.getInt(position)];
+    byte type = buffer.get(position + LENGTH_SIZE);
+    buffer.position(position + HEADER_SIZE);
+    buffer.get(bytes);
+    if (type == READ_MODIFY_WRITE_ROW) {
+      return ReadModifyWriteRowRequest.parseFrom(bytes);
+    }
+    return MutateRowRequest.parseFrom(bytes);
+  }
+
+  /**
+   * Removes the oldest request, and wakes up threads in {@link #put(GeneratedMessage)}, or in
+   * {@link #awaitEmpty()} if there are no more requests.
+   */
+  public synchronized void remove() {
+    Preconditions.checkState(count > 0, "The spill file is empty.");
+    int position = getRecordPosition();
+    int recordSize = HEADER_SIZE + buffer.getInt(position);
+    readPosition = position + recordSize;
+    count--;
+    sizeInBytes -= recordSize;
+    if (count == 0 || spaceWaiterCount > 0) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return the position of the oldest record, skipping over the end of the file if needed.
+   */
+  private int getRecordPosition() {
+    if (capacity - readPosition < LENGTH_SIZE || buffer.getInt(readPosition) == WRAP_MARKER) {
+      return 0;
+    }
+    return readPosition;
+  }
+
+  /**
+   * Waits until every request was removed.
+   */
+  public synchronized void awaitEmpty() throws InterruptedException {
+    while (count > 0) {
+      wait();
+    }
+  }
+
+  /**
+   * Waits until every request was removed, or until the timeout elapses.
+   *
+   * @return true if the file is empty.
+   */
+  public synchronized boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    while (count > 0) {
+      long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+      if (remainingMs <= 0) {
+        return false;
+      }
+      wait(remainingMs);
+    }
+    return true;
+  }
+
+  public synchronized boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * @return the number of requests in the file.
+   */
+  public synchronized int size() {
+    return count;
+  }
+
+  /**
+   * @return the number of bytes used by the requests in the file.
+   */
+  public synchronized long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Closes and deletes the file. Requests that were not removed are lost.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // Threads in put() fail instead of waiting for space that never comes.
+    notifyAll();
+    if (count > 0) {
+      LOG.warn("Closing a spill file with %d unsent mutations.", count);
+    }
+    try {
+      randomAccessFile.close();
+    } finally {
+      if (!file.delete()) {
+        LOG.warn("Could not delete spill file %s.", file);
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.bigtable.v1.Row;
+import com.google.bigtable.v1.RowFilter;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Coalesces concurrent single row {@link ReadRowsRequest}s into {@link BulkRead}s. Requests for
+ * the same table with the same {@link RowFilter} share a batch, which is sent once it is
+ * {@code windowMicros} old, or as soon as it has {@code maxRowKeyCount} row keys. This class is
+ * thread safe.
+ */
+public class ReadRowCoalescer {
+
+  /**
+   * The number of table and filter combinations that keep a {@link BulkRead}. A batch that is
+   * evicted is still sent when its window passes.
+   */
+  private static final int MAX_CACHED_BATCHES = 1000;
+
+  /** The requests that can share a {@link BulkRead}. */
+  private static final class BatchKey {
+    private final String tableName;
+    private final RowFilter filter;
+
+    BatchKey(String tableName, RowFilter filter) {
+      this.tableName = tableName;
+      this.filter = filter;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BatchKey)) {
+        return false;
+      }
+      BatchKey other = (BatchKey) obj;
+      return tableName.equals(other.tableName) && filter.equals(other.filter);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(tableName, filter);
+    }
+  }
+
+  private final LoadingCache<BatchKey, BulkRead> bulkReads;
+
+  /**
+   * @param asyncExecutor Sends the batches.
+   * @param flushExecutor Sends a batch once its window passes.
+   * @param windowMicros The longest time a request waits for other requests.
+   * @param maxRowKeyCount The number of row keys at which a batch is sent.
+   */
+  public ReadRowCoalescer(final AsyncExecutor asyncExecutor,
+      final ScheduledExecutorService flushExecutor, final long windowMicros,
+      final int maxRowKeyCount) {
+    Preconditions.checkArgument(windowMicros > 0, "windowMicros must be greater than 0.");
+    Preconditions.checkArgument(maxRowKeyCount > 0, "maxRowKeyCount must be greater than 0.");
+    this.bulkReads = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED_BATCHES)
+        .build(new CacheLoader<BatchKey, BulkRead>() {
+          @Override
+          public BulkRead load(BatchKey key) {
+            return new BulkRead(asyncExecutor, key.tableName, flushExecutor, windowMicros,
+                TimeUnit.MICROSECONDS, maxRowKeyCount);
+          }
+        });
+  }
+
+  /**
+   * Adds a request to the batch of its table and filter.
+   *
+   * @param request a {@link ReadRowsRequest} with a single row key.
+   * @return a {@link ListenableFuture} of the row, which is an empty list if the row does not exist.
+   */
+  public ListenableFuture<List<Row>> add(ReadRowsRequest request) throws InterruptedException {
+    Preconditions.checkArgument(request.getTargetCase() == ReadRowsRequest.TargetCase.ROW_KEY,
+      "Only single row requests can be coalesced.");
+    return bulkReads.getUnchecked(new BatchKey(request.getTableName(), request.getFilter()))
+        .add(request);
+  }
+
+  /**
+   * Sends all of the batches. This does not wait for the requests to complete.
+   */
+  public void flush() throws InterruptedException {
+    for (BulkRead bulkRead : bulkReads.asMap().values()) {
+      bulkRead.flush();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A token bucket that limits retries to a percentage of recent successful calls, so that a
+ * degraded service is not overwhelmed by retries from every outstanding operation at once. Each
+ * successful call adds a fraction of a token, up to {@link #MAX_TOKENS}, and each retry takes a
+ * whole token. A retry is denied when there is less than one token left. The bucket starts full,
+ * so that short bursts of failures can always be retried. This class is thread safe.
+ */
+public class RetryBudget {
+
+  /** The maximum number of retries that can be granted in a burst. */
+  public static final int MAX_TOKENS = 100;
+
+  /** Tokens are tracked in thousandths so that they can be updated atomically. */
+  private static final long TOKEN = 1000;
+
+  /**
+   * Creates a {@link RetryBudget} that grants every retry, while still counting them.
+   */
+  public static RetryBudget unlimited() {
+    return new RetryBudget(0);
+  }
+
+  private final long tokensPerSuccess;
+  private final AtomicLong tokens = new AtomicLong(MAX_TOKENS * TOKEN);
+  private final AtomicLong retriesGranted = new AtomicLong();
+  private final AtomicLong retriesDenied = new AtomicLong();
+
+  /**
+   * @param retryPercent The number of retries allowed per 100 successful calls. 0 means that
+   *          retries are not limited.
+   */
+  public RetryBudget(int retryPercent) {
+    Preconditions.checkArgument(retryPercent >= 0, "retryPercent can not be negative.");
+    this.tokensPerSuccess = retryPercent * TOKEN / 100;
+  }
+
+  /**
+   * Records a successful call, which adds to the budget.
+   */
+  public void recordSuccess() {
+    if (tokensPerSuccess == 0) {
+      return;
+    }
+    while (true) {
+      long current = tokens.get();
+      if (current >= MAX_TOKENS * TOKEN) {
+        return;
+      }
+      long updated = Math.min(MAX_TOKENS * TOKEN, current + tokensPerSuccess);
+      if (tokens.compareAndSet(current, updated)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Takes a token for a retry.
+   *
+   * @return true if the retry may be performed.
+   */
+  public boolean tryAcquireRetry() {
+    if (tokensPerSuccess == 0) {
+      retriesGranted.incrementAndGet();
+      return true;
+    }
+    while (true) {
+      long current = tokens.get();
+      if (current < TOKEN) {
+        retriesDenied.incrementAndGet();
+        return false;
+      }
+      if (tokens.compareAndSet(current, current - TOKEN)) {
+        retriesGranted.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * The number of retries that were allowed.
+   */
+  public long getRetriesGranted() {
+    return retriesGranted.get();
+  }
+
+  /**
+   * The number of retries that were denied because the budget was exhausted.
+   */
+  public long getRetriesDenied() {
+    return retriesDenied.get();
+  }
+}
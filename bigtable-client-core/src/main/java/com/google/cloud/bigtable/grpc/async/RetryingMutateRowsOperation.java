@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.util.BackOff;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.cloud.bigtable.config.Logger;
+import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.rpc.Status;
+
+import io.grpc.CallOptions;
+
+/**
+ * Performs a {@link MutateRowsRequest} and retries only the entries that fail with a retryable
+ * status, rather than resending the entire request. Each retry sends a new
+ * {@link MutateRowsRequest} containing the failed entries after a backoff. The resulting
+ * {@link MutateRowsResponse} has one status per entry of the original request, in the original
+ * order, so it can be consumed by {@link BulkMutation#addCallback(ListenableFuture)}.
+ *
+ * <p>Entries that are not idempotent, according to the supplied {@link Predicate}, are never
+ * retried. Once the backoff is exhausted, the last status for each entry is reported.
+ */
+public class RetryingMutateRowsOperation {
+
+  protected static final Logger LOG = new Logger(RetryingMutateRowsOperation.class);
+
+  private final RetryOptions retryOptions;
+  private final MutateRowsRequest originalRequest;
+  private final BigtableAsyncRpc<MutateRowsRequest, MutateRowsResponse> rpc;
+  private final Predicate<MutateRowsRequest.Entry> isRetryableEntry;
+  private final CallOptions callOptions;
+  private final RetryBudget retryBudget;
+  private final ScheduledExecutorService retryExecutor;
+  private final SettableFuture<MutateRowsResponse> resultFuture = SettableFuture.create();
+
+  /** The latest status for each entry of {@link #originalRequest}. */
+  private final Status[] statuses;
+
+  /** The indexes into {@link #originalRequest} of the entries in the current attempt. */
+  private List<Integer> currentIndexes;
+
+  @VisibleForTesting
+  BackOff currentBackoff;
+  private int failedCount;
+
+  public RetryingMutateRowsOperation(RetryOptions retryOptions, MutateRowsRequest request,
+      BigtableAsyncRpc<MutateRowsRequest, MutateRowsResponse> rpc,
+      Predicate<MutateRowsRequest.Entry> isRetryableEntry,
+      ScheduledExecutorService retryExecutor) {
+    this(retryOptions, request, rpc, isRetryableEntry, CallOptions.DEFAULT, RetryBudget.unlimited(),
+        retryExecutor);
+  }
+
+  /**
+   * @param callOptions The {@link CallOptions} that rpc uses. If it has a deadline, no retry is
+   *          scheduled that would start after the deadline.
+   * @param retryBudget Each response is recorded as a success in the {@link RetryBudget}, and each
+   *          retry must be granted by it. If a retry is denied, the latest statuses are reported.
+   */
+  public RetryingMutateRowsOperation(RetryOptions retryOptions, MutateRowsRequest request,
+      BigtableAsyncRpc<MutateRowsRequest, MutateRowsResponse> rpc,
+      Predicate<MutateRowsRequest.Entry> isRetryableEntry,
+      CallOptions callOptions,
+      RetryBudget retryBudget,
+      ScheduledExecutorService retryExecutor) {
+    this.retryOptions = retryOptions;
+    this.callOptions = callOptions;
+    this.retryBudget = retryBudget;
+    this.originalRequest = request;
+    this.rpc = rpc;
+    this.isRetryableEntry = isRetryableEntry;
+    this.retryExecutor = retryExecutor;
+    this.statuses = new Status[request.getEntriesCount()];
+    this.currentIndexes = new ArrayList<>(request.getEntriesCount());
+    for (int i = 0; i < request.getEntriesCount(); i++) {
+      currentIndexes.add(i);
+    }
+  }
+
+  /**
+   * Sends the request. The returned future completes once every entry either succeeded, failed
+   * with a non retryable status, or ran out of retries.
+   */
+  public ListenableFuture<MutateRowsResponse> getAsyncResult() {
+    call(originalRequest);
+    return resultFuture;
+  }
+
+  private void call(MutateRowsRequest request) {
+    FutureCallback<MutateRowsResponse> callback = new FutureCallback<MutateRowsResponse>() {
+      @Override
+      public void onSuccess(MutateRowsResponse response) {
+        handleResponse(response);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        handleFailure(t);
+      }
+    };
+    Futures.addCallback(rpc.call(request), callback, MoreExecutors.directExecutor());
+  }
+
+  private void handleResponse(MutateRowsResponse response) {
+    retryBudget.recordSuccess();
+    List<Status> responseStatuses = response.getStatusesList();
+    for (int i = 0; i < currentIndexes.size(); i++) {
+      Status status = i < responseStatuses.size()
+          ? responseStatuses.get(i)
+          : toStatus(io.grpc.Status.UNKNOWN.withDescription("Mutation does not have a status"));
+      statuses[currentIndexes.get(i)] = status;
+    }
+    retryFailedEntries(null);
+  }
+
+  private void handleFailure(Throwable t) {
+    io.grpc.Status grpcStatus = io.grpc.Status.fromThrowable(t);
+    if (failedCount == 0 && !retryOptions.isRetryable(grpcStatus.getCode())) {
+      // Nothing was applied and nothing can be retried; report the failure as is.
+      resultFuture.setException(t);
+      return;
+    }
+    Status status = toStatus(grpcStatus);
+    for (Integer index : currentIndexes) {
+      statuses[index] = status;
+    }
+    retryFailedEntries(t);
+  }
+
+  /**
+   * Collects the entries whose latest status is retryable, and either schedules a retry of those
+   * entries after a backoff or completes the {@link #resultFuture}.
+   */
+  private void retryFailedEntries(Throwable cause) {
+    List<Integer> retryIndexes = new ArrayList<>();
+    for (Integer index : currentIndexes) {
+      io.grpc.Status.Code code = io.grpc.Status.fromCodeValue(statuses[index].getCode()).getCode();
+      if (code != io.grpc.Status.Code.OK && retryOptions.isRetryable(code)
+          && isRetryableEntry.apply(originalRequest.getEntries(index))) {
+        retryIndexes.add(index);
+      }
+    }
+    if (retryIndexes.isEmpty()) {
+      complete();
+      return;
+    }
+
+    if (currentBackoff == null) {
+      currentBackoff = retryOptions.createBackoff();
+    }
+    long nextBackOff;
+    try {
+      nextBackOff = currentBackoff.nextBackOffMillis();
+    } catch (Exception e) {
+      nextBackOff = BackOff.STOP;
+    }
+    if (nextBackOff == BackOff.STOP) {
+      LOG.info("Exhausted retries for %d of %d mutations.", retryIndexes.size(),
+        statuses.length);
+      complete();
+      return;
+    }
+    Long deadlineNanoTime = callOptions.getDeadlineNanoTime();
+    if (deadlineNanoTime != null
+        && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(nextBackOff) >= deadlineNanoTime) {
+      LOG.info("The deadline would pass before retrying %d of %d mutations.",
+        retryIndexes.size(), statuses.length);
+      complete();
+      return;
+    }
+    if (!retryBudget.tryAcquireRetry()) {
+      LOG.info("The retry budget is exhausted. Not retrying %d of %d mutations.",
+        retryIndexes.size(), statuses.length);
+      complete();
+      return;
+    }
+
+    failedCount += 1;
+    LOG.info("Retrying %d of %d failed mutations. Failure #%d", cause, retryIndexes.size(),
+      statuses.length, failedCount);
+    currentIndexes = retryIndexes;
+    final MutateRowsRequest retryRequest = createRetryRequest(retryIndexes);
+    try {
+      retryExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          call(retryRequest);
+        }
+      }, nextBackOff, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The executor is shutting down; the retry would never run, so don't leave the caller
+      // waiting forever.
+      LOG.warn("Could not schedule a retry of %d of %d mutations.", e, retryIndexes.size(),
+        statuses.length);
+      resultFuture.setException(e);
+    }
+  }
+
+  private MutateRowsRequest createRetryRequest(List<Integer> indexes) {
+    MutateRowsRequest.Builder builder =
+        MutateRowsRequest.newBuilder().setTableName(originalRequest.getTableName());
+    for (Integer index : indexes) {
+      builder.addEntries(originalRequest.getEntries(index));
+    }
+    return builder.build();
+  }
+
+  private void complete() {
+    MutateRowsResponse.Builder builder = MutateRowsResponse.newBuilder();
+    for (Status status : statuses) {
+      builder.addStatuses(status);
+    }
+    resultFuture.set(builder.build());
+  }
+
+  private static Status toStatus(io.grpc.Status status) {
+    Status.Builder builder = Status.newBuilder().setCode(status.getCode().value());
+    if (status.getDescription() != null) {
+      builder.setMessage(status.getDescription());
+    }
+    return builder.build();
+  }
+}
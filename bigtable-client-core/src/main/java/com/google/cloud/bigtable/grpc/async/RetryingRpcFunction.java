@@ -15,31 +15,53 @@
  */
 package com.google.cloud.bigtable.grpc.async;
 
-import java.io.IOException;
-
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.google.api.client.util.BackOff;
-import com.google.api.client.util.Sleeper;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
 import com.google.cloud.bigtable.grpc.scanner.ScanRetriesExhaustedException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
+import io.grpc.CallOptions;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 
 /**
- * A {@link AsyncFunction} that retries a {@link BigtableAsyncRpc} request.
+ * A {@link AsyncFunction} that retries a {@link BigtableAsyncRpc} request. Retries are scheduled
+ * on a {@link ScheduledExecutorService} after the backoff, so no thread is blocked while waiting
+ * to retry. Failures of the retried call are handled by this function again, until the call
+ * succeeds, fails with a non retryable status, or the backoff is exhausted.
  */
 public class RetryingRpcFunction<RequestT, ResponseT>
     implements AsyncFunction<StatusRuntimeException, ResponseT> {
 
   public static <RequestT, ResponseT> RetryingRpcFunction<RequestT, ResponseT> create(
-      RetryOptions retryOptions, RequestT request, BigtableAsyncRpc<RequestT, ResponseT> retryableRpc) {
-    return new RetryingRpcFunction<RequestT, ResponseT>(retryOptions, request, retryableRpc);
+      RetryOptions retryOptions, RequestT request, BigtableAsyncRpc<RequestT, ResponseT> retryableRpc,
+      ScheduledExecutorService retryExecutorService) {
+    return create(retryOptions, request, retryableRpc, CallOptions.DEFAULT, RetryBudget.unlimited(),
+      retryExecutorService);
+  }
+
+  /**
+   * @param callOptions The {@link CallOptions} that retryableRpc uses. If it has a deadline, no
+   *          retry is scheduled that would start after the deadline.
+   * @param retryBudget Successful calls are recorded in the {@link RetryBudget}, and each retry
+   *          must be granted by it. The original failure is reported if a retry is denied.
+   */
+  public static <RequestT, ResponseT> RetryingRpcFunction<RequestT, ResponseT> create(
+      RetryOptions retryOptions, RequestT request, BigtableAsyncRpc<RequestT, ResponseT> retryableRpc,
+      CallOptions callOptions, RetryBudget retryBudget,
+      ScheduledExecutorService retryExecutorService) {
+    return new RetryingRpcFunction<RequestT, ResponseT>(retryOptions, request, retryableRpc,
+        callOptions, retryBudget, retryExecutorService);
   }
 
   protected final Logger LOG = new Logger(RetryingRpcFunction.class);
@@ -48,18 +70,42 @@ public class RetryingRpcFunction<RequestT, ResponseT>
 
   @VisibleForTesting
   BackOff currentBackoff;
-  @VisibleForTesting
-  Sleeper sleeper = Sleeper.DEFAULT;
 
   private final BigtableAsyncRpc<RequestT, ResponseT> rpc;
   private final RetryOptions retryOptions;
+  private final CallOptions callOptions;
+  private final RetryBudget retryBudget;
+  private final ScheduledExecutorService retryExecutorService;
   private int failedCount;
 
   private RetryingRpcFunction(RetryOptions retryOptions, RequestT request,
-      BigtableAsyncRpc<RequestT, ResponseT> retryableRpc) {
+      BigtableAsyncRpc<RequestT, ResponseT> retryableRpc, CallOptions callOptions,
+      RetryBudget retryBudget, ScheduledExecutorService retryExecutorService) {
     this.retryOptions = retryOptions;
     this.request = request;
     this.rpc = retryableRpc;
+    this.callOptions = callOptions;
+    this.retryBudget = retryBudget;
+    this.retryExecutorService = retryExecutorService;
+  }
+
+  /**
+   * Performs the rpc, and retries it with this function if it fails.
+   */
+  public ListenableFuture<ResponseT> callWithRetries() {
+    ListenableFuture<ResponseT> future = rpc.call(request);
+    Futures.addCallback(future, new FutureCallback<ResponseT>() {
+      @Override
+      public void onSuccess(ResponseT result) {
+        retryBudget.recordSuccess();
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+      }
+    }, MoreExecutors.directExecutor());
+    return Futures.catchingAsync(future, StatusRuntimeException.class, this,
+      MoreExecutors.directExecutor());
   }
 
   @Override
@@ -73,29 +119,47 @@ public class RetryingRpcFunction<RequestT, ResponseT>
     }
   }
 
-  private ListenableFuture<ResponseT> backOffAndRetry(StatusRuntimeException cause, Status status) throws IOException,
-      ScanRetriesExhaustedException {
+  private ListenableFuture<ResponseT> backOffAndRetry(StatusRuntimeException cause, Status status)
+      throws ScanRetriesExhaustedException {
     if (this.currentBackoff == null) {
       this.currentBackoff = retryOptions.createBackoff();
     }
-    long nextBackOff = currentBackoff.nextBackOffMillis();
+    long nextBackOff;
+    try {
+      nextBackOff = currentBackoff.nextBackOffMillis();
+    } catch (Exception e) {
+      nextBackOff = BackOff.STOP;
+    }
     if (nextBackOff == BackOff.STOP) {
       throw new ScanRetriesExhaustedException("Exhausted streaming retries.", cause);
     }
+    if (isPastDeadline(nextBackOff)) {
+      return Futures.immediateFailedCheckedFuture(Status.DEADLINE_EXCEEDED
+          .withDescription("The deadline would pass before the next retry.")
+          .withCause(cause)
+          .asRuntimeException());
+    }
+    if (!retryBudget.tryAcquireRetry()) {
+      LOG.info("The retry budget is exhausted. Not retrying: %s", status);
+      return Futures.immediateFailedCheckedFuture(cause);
+    }
 
-    sleep(nextBackOff);
     // A retryable error.
     failedCount += 1;
     LOG.info("Retrying failed call. Failure #%d, got: %s", status.getCause(), failedCount, status);
-    return rpc.call(request);
+    final SettableFuture<ResponseT> retryFuture = SettableFuture.create();
+    retryExecutorService.schedule(new Runnable() {
+      @Override
+      public void run() {
+        retryFuture.setFuture(callWithRetries());
+      }
+    }, nextBackOff, TimeUnit.MILLISECONDS);
+    return retryFuture;
   }
 
-  private void sleep(long millis) throws IOException {
-    try {
-      sleeper.sleep(millis);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      throw new IOException("Interrupted while sleeping for resume", e);
-    }
+  private boolean isPastDeadline(long backOffMillis) {
+    Long deadlineNanoTime = callOptions.getDeadlineNanoTime();
+    return deadlineNanoTime != null
+        && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backOffMillis) >= deadlineNanoTime;
   }
-}
\ No newline at end of file
+}
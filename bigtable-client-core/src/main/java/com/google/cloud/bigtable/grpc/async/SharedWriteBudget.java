@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * A limit on heap size and in flight RPCs that is shared by many {@link HeapSizeManager}s, for
+ * example by all of the tables and buffered mutators of a connection. Each manager borrows from
+ * the budget through its own {@link Share}, in addition to checking its own limits, so that the
+ * total stays bounded no matter how many managers there are.
+ *
+ * <p>While a share is waiting for capacity, the other shares may not use more than their fair
+ * part of the budget, which is the budget divided by the number of shares that have operations in
+ * flight or waiting. A share that is alone may use the whole budget. Like {@link HeapSizeManager},
+ * a single operation may push the heap size above the maximum.
+ *
+ * <p>This class is thread safe. Like {@link ConcurrentHeapSizeManager}, the counts are atomics, and
+ * acquiring or releasing only takes a lock when a thread is waiting for capacity.
+ */
+public class SharedWriteBudget {
+
+  /**
+   * One borrower of the {@link SharedWriteBudget}.
+   */
+  public class Share {
+    private final AtomicLong heapSize = new AtomicLong();
+    private final AtomicInteger rpcCount = new AtomicInteger();
+    private final AtomicInteger waiterCount = new AtomicInteger();
+    /** The number of RPCs in flight plus the number of waiting threads. */
+    private final AtomicInteger activity = new AtomicInteger();
+
+    /**
+     * Acquires heap space and an RPC slot from the budget, if they are available.
+     */
+    public boolean tryAcquire(long operationHeapSize) {
+      while (true) {
+        int rpcs = totalRpcCount.get();
+        if (!canAcquire(this, rpcs)) {
+          return false;
+        }
+        if (totalRpcCount.compareAndSet(rpcs, rpcs + 1)) {
+          totalHeapSize.addAndGet(operationHeapSize);
+          heapSize.addAndGet(operationHeapSize);
+          rpcCount.incrementAndGet();
+          addActivity(this, 1);
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Acquires heap space and an RPC slot from the budget, waiting until they are available.
+     */
+    public void acquire(long operationHeapSize) throws InterruptedException {
+      if (tryAcquire(operationHeapSize)) {
+        return;
+      }
+      totalWaiterCount.incrementAndGet();
+      if (waiterCount.incrementAndGet() == 1) {
+        waitingShareCount.incrementAndGet();
+      }
+      addActivity(this, 1);
+      lock.lock();
+      try {
+        // Try again while holding the lock so that a release between the first attempt and
+        // lock() is not missed.
+        while (!tryAcquire(operationHeapSize)) {
+          released.await();
+        }
+      } finally {
+        addActivity(this, -1);
+        if (waiterCount.decrementAndGet() == 0) {
+          waitingShareCount.decrementAndGet();
+          // Shares that were held to their fair part because of this one may be able to proceed.
+          released.signalAll();
+        }
+        lock.unlock();
+        totalWaiterCount.decrementAndGet();
+      }
+    }
+
+    /**
+     * Returns what {@link #acquire(long)} or {@link #tryAcquire(long)} acquired to the budget.
+     */
+    public void release(long operationHeapSize) {
+      heapSize.addAndGet(-operationHeapSize);
+      rpcCount.decrementAndGet();
+      totalHeapSize.addAndGet(-operationHeapSize);
+      totalRpcCount.decrementAndGet();
+      addActivity(this, -1);
+      if (totalWaiterCount.get() > 0) {
+        lock.lock();
+        try {
+          released.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    /**
+     * @return true if {@link #tryAcquire(long)} would currently fail.
+     */
+    public boolean isFull() {
+      return !canAcquire(this, totalRpcCount.get());
+    }
+
+    public long getHeapSize() {
+      return heapSize.get();
+    }
+
+    public int getInFlightRpcCount() {
+      return rpcCount.get();
+    }
+  }
+
+  private final long maxHeapSize;
+  private final int maxInFlightRpcs;
+
+  private final AtomicLong totalHeapSize = new AtomicLong();
+  private final AtomicInteger totalRpcCount = new AtomicInteger();
+  /** The number of shares that have operations in flight or threads waiting. */
+  private final AtomicInteger activeShareCount = new AtomicInteger();
+  /** The number of shares that have threads waiting in {@link Share#acquire(long)}. */
+  private final AtomicInteger waitingShareCount = new AtomicInteger();
+  /**
+   * The number of threads that are waiting in {@link Share#acquire(long)}. Releases only acquire
+   * {@link #lock} if this is non-zero.
+   */
+  private final AtomicInteger totalWaiterCount = new AtomicInteger();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+
+  public SharedWriteBudget(long maxHeapSize, int maxInFlightRpcs) {
+    Preconditions.checkArgument(maxHeapSize > 0, "maxHeapSize must be greater than 0.");
+    Preconditions.checkArgument(maxInFlightRpcs > 0, "maxInFlightRpcs must be greater than 0.");
+    this.maxHeapSize = maxHeapSize;
+    this.maxInFlightRpcs = maxInFlightRpcs;
+  }
+
+  /**
+   * @return a new {@link Share} of this budget. A share that has nothing in flight does not
+   *         affect the other shares, so it does not need to be released.
+   */
+  public Share newShare() {
+    return new Share();
+  }
+
+  /**
+   * @param totalRpcs The total RPC count that the caller will try to increment.
+   */
+  private boolean canAcquire(Share share, int totalRpcs) {
+    if (totalHeapSize.get() >= maxHeapSize || totalRpcs >= maxInFlightRpcs) {
+      return false;
+    }
+    int otherWaitingShareCount = waitingShareCount.get() - (share.waiterCount.get() > 0 ? 1 : 0);
+    if (otherWaitingShareCount <= 0) {
+      return true;
+    }
+    // Others are waiting, so only allow this share to grow up to its fair part of the budget.
+    int shareCount = Math.max(1, activeShareCount.get() + (share.activity.get() > 0 ? 0 : 1));
+    return share.heapSize.get() < maxHeapSize / shareCount
+        && share.rpcCount.get() < Math.max(1, maxInFlightRpcs / shareCount);
+  }
+
+  private void addActivity(Share share, int delta) {
+    int activity = share.activity.addAndGet(delta);
+    if (delta > 0 && activity == delta) {
+      activeShareCount.incrementAndGet();
+    } else if (delta < 0 && activity == 0) {
+      activeShareCount.decrementAndGet();
+    }
+  }
+
+  @VisibleForTesting
+  int getWaitingShareCount() {
+    return waitingShareCount.get();
+  }
+
+  public long getMaxHeapSize() {
+    return maxHeapSize;
+  }
+
+  public int getMaxInFlightRpcs() {
+    return maxInFlightRpcs;
+  }
+
+  public long getHeapSize() {
+    return totalHeapSize.get();
+  }
+
+  public int getInFlightRpcCount() {
+    return totalRpcCount.get();
+  }
+}
@@ -19,24 +19,48 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.cloud.bigtable.config.Logger;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import io.grpc.CallOptions;
-import io.grpc.Channel;
 import io.grpc.ClientCall;
 import io.grpc.ClientInterceptors.CheckedForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
 import io.grpc.ManagedChannel;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 
 /**
- * Manages a set of ClosableChannels and uses them in a round robin.
+ * Manages a set of ClosableChannels and picks one for each call with a
+ * {@link ChannelSelectionStrategy}, round robin by default.
+ *
+ * <p>The pool tracks the number of outstanding calls on each channel. It can optionally replace a
+ * channel whose calls keep failing in the transport with a new one from the {@link ChannelFactory}.
+ * Only calls that close with {@link Status.Code#UNAVAILABLE} before the server sent any headers or
+ * trailers count as failures; an UNAVAILABLE status that the server sent says nothing about the
+ * channel. The replacement is created on an executor rather than on the gRPC callback thread, and
+ * at most one channel is replaced per ejection interval so that a server side outage does not
+ * churn every channel. The replaced channel is shut down gracefully so that its in flight calls can
+ * complete.
+ *
+ * <p>After {@link #startResizing(int, int, ScheduledExecutorService, long)}, the pool periodically
+ * grows or shrinks between its initial size and a maximum size, based on the number of outstanding
+ * calls per channel. Channels that are removed are drained the same way as replaced channels.
  */
 public class ChannelPool extends ManagedChannel {
 
@@ -46,13 +70,66 @@ public class ChannelPool extends ManagedChannel {
     ManagedChannel create() throws IOException;
   }
 
-  private final ImmutableList<ManagedChannel> channels;
-  private final AtomicInteger requestCount = new AtomicInteger();
+  /**
+   * A {@link ManagedChannel} in the pool, along with its load and health.
+   */
+  public static class PooledChannel {
+    private final ManagedChannel channel;
+    private final AtomicInteger outstandingCalls = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    PooledChannel(ManagedChannel channel) {
+      this.channel = channel;
+    }
+
+    ManagedChannel getChannel() {
+      return channel;
+    }
+
+    /**
+     * @return the number of calls that were started on this channel and have not yet closed.
+     */
+    public int getOutstandingCallCount() {
+      return outstandingCalls.get();
+    }
+  }
+
+  private final AtomicReference<ImmutableList<PooledChannel>> channels = new AtomicReference<>();
   private final ImmutableList<HeaderInterceptor> headerInterceptors;
   private final ChannelFactory factory;
   private final String authority;
+  private final ChannelSelectionStrategy selectionStrategy;
+
+  /** The default smallest interval between two channel replacements. */
+  public static final long DEFAULT_MIN_EJECTION_INTERVAL_MS = 10000;
+
+  /**
+   * The number of consecutive transport failures after which a channel is replaced. 0 disables
+   * replacement.
+   */
+  private final int ejectionFailureThreshold;
 
-  private boolean shutdown = false;
+  /** The smallest interval between two channel replacements. */
+  private final long minEjectionIntervalNanos;
+
+  /** Creates replacement and added channels, since {@link ChannelFactory#create()} may block. */
+  private final Executor ejectionExecutor;
+
+  /** The {@link System#nanoTime()} of the last replacement. */
+  private final AtomicLong lastEjectionNanos;
+
+  /** Channels that were removed from the pool, and are shutting down. */
+  private final List<ManagedChannel> retiredChannels = new CopyOnWriteArrayList<>();
+
+  private volatile boolean shutdown = false;
+
+  /** The initial number of channels, which is also the smallest size the pool shrinks to. */
+  private final int minChannelCount;
+  private int maxChannelCount;
+  private int targetOutstandingCallsPerChannel;
+  private ScheduledFuture<?> resizeFuture;
+  /** Set while {@link #grow(int, int)} creates channels, so that only one growth runs at a time. */
+  private final AtomicBoolean growing = new AtomicBoolean();
 
   public ChannelPool(ChannelFactory factory, int channelCount)
       throws IOException {
@@ -61,29 +138,53 @@ public class ChannelPool extends ManagedChannel {
 
   public ChannelPool(List<HeaderInterceptor> headerInterceptors, ChannelFactory factory, int channelCount)
       throws IOException {
+    this(headerInterceptors, factory, channelCount, ChannelSelection.ROUND_ROBIN.createStrategy(), 0,
+        DEFAULT_MIN_EJECTION_INTERVAL_MS, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * @param selectionStrategy chooses a channel for each new call.
+   * @param ejectionFailureThreshold the number of consecutive calls on a channel that have to fail
+   *          in the transport before that channel is replaced. 0 means that channels are never
+   *          replaced.
+   * @param minEjectionIntervalMs the smallest interval between two channel replacements.
+   * @param ejectionExecutor the executor on which replacement channels, and the channels that grow
+   *          the pool, are created.
+   */
+  public ChannelPool(List<HeaderInterceptor> headerInterceptors, ChannelFactory factory,
+      int channelCount, ChannelSelectionStrategy selectionStrategy, int ejectionFailureThreshold,
+      long minEjectionIntervalMs, Executor ejectionExecutor) throws IOException {
     Preconditions.checkArgument(channelCount > 0, "Channel count has to be at least 1.");
     Preconditions.checkNotNull(headerInterceptors, "Must pass non null headerInterceptors");
+    Preconditions.checkArgument(ejectionFailureThreshold >= 0,
+      "ejectionFailureThreshold must be greater or equal to 0.");
+    Preconditions.checkArgument(minEjectionIntervalMs >= 0,
+      "minEjectionIntervalMs must be greater or equal to 0.");
     this.factory = factory;
     this.headerInterceptors = ImmutableList.copyOf(headerInterceptors);
+    this.selectionStrategy = Preconditions.checkNotNull(selectionStrategy);
+    this.ejectionFailureThreshold = ejectionFailureThreshold;
+    this.minEjectionIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minEjectionIntervalMs);
+    this.ejectionExecutor = Preconditions.checkNotNull(ejectionExecutor);
+    this.lastEjectionNanos = new AtomicLong(System.nanoTime() - minEjectionIntervalNanos);
+    this.minChannelCount = channelCount;
+    this.maxChannelCount = channelCount;
 
-    ManagedChannel[] channelArray = new ManagedChannel[channelCount];
+    PooledChannel[] channelArray = new PooledChannel[channelCount];
     for (int i = 0; i < channelCount; i++) {
-      channelArray[i] = factory.create();
+      channelArray[i] = new PooledChannel(factory.create());
     }
-    authority = channelArray[0].authority();
-    channels = ImmutableList.copyOf(channelArray);
+    authority = channelArray[0].getChannel().authority();
+    channels.set(ImmutableList.copyOf(channelArray));
   }
 
   /**
-   * Performs a simple round robin on the list of {@link ManagedChannel}s.
-   * This method is thread safe.
+   * Picks a channel with the {@link ChannelSelectionStrategy}. This method is thread safe.
    *
    * @return A channel.
    */
-  private ManagedChannel getNextChannel() {
-    int currentRequestNum = requestCount.getAndIncrement();
-    int index = Math.abs(currentRequestNum % channels.size());
-    return channels.get(index);
+  private PooledChannel getNextChannel() {
+    return selectionStrategy.select(channels.get());
   }
 
   /**
@@ -95,11 +196,10 @@ public class ChannelPool extends ManagedChannel {
   }
 
   /**
-   * Create a {@link ClientCall} on a Channel from the pool chosen in a round-robin fashion to the
-   * remote operation specified by the given {@link MethodDescriptor}. The returned {@link
-   * ClientCall} does not trigger any remote behavior until {@link
-   * ClientCall#start(ClientCall.Listener, Metadata)} is
-   * invoked.
+   * Create a {@link ClientCall} on a Channel from the pool chosen by the
+   * {@link ChannelSelectionStrategy} to the remote operation specified by the given
+   * {@link MethodDescriptor}. The returned {@link ClientCall} does not trigger any remote behavior
+   * until {@link ClientCall#start(ClientCall.Listener, Metadata)} is invoked.
    *
    * @param methodDescriptor describes the name and parameter types of the operation to call.
    * @param callOptions runtime options to be applied to this call.
@@ -112,9 +212,27 @@ public class ChannelPool extends ManagedChannel {
     return createWrappedCall(methodDescriptor, callOptions, getNextChannel());
   }
 
+  /**
+   * Create a {@link ClientCall} on a specific channel of the pool, rather than one chosen by the
+   * {@link ChannelSelectionStrategy}. This can be used to make sure that every channel in the pool
+   * is connected.
+   *
+   * @param pooledChannel one of the channels from {@link #getPooledChannels()}.
+   * @param methodDescriptor describes the name and parameter types of the operation to call.
+   * @param callOptions runtime options to be applied to this call.
+   * @return a {@link ClientCall} bound to the specified method.
+   */
+  public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(PooledChannel pooledChannel,
+      MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions) {
+    Preconditions.checkState(!shutdown, "Cannot perform operations on a closed connection");
+    return createWrappedCall(methodDescriptor, callOptions, pooledChannel);
+  }
+
   private <ReqT, RespT> ClientCall<ReqT, RespT> createWrappedCall(
-      MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions, ManagedChannel channel) {
-    ClientCall<ReqT, RespT> delegate = channel.newCall(methodDescriptor, callOptions);
+      MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions,
+      final PooledChannel pooledChannel) {
+    ClientCall<ReqT, RespT> delegate =
+        pooledChannel.getChannel().newCall(methodDescriptor, callOptions);
 
     return new CheckedForwardingClientCall<ReqT, RespT>(delegate) {
       @Override
@@ -123,21 +241,319 @@ public class ChannelPool extends ManagedChannel {
         for (HeaderInterceptor interceptor : headerInterceptors) {
           interceptor.updateHeaders(headers);
         }
-        delegate().start(responseListener, headers);
+        pooledChannel.outstandingCalls.incrementAndGet();
+        try {
+          delegate().start(createTrackingListener(responseListener, pooledChannel), headers);
+        } catch (Exception e) {
+          pooledChannel.outstandingCalls.decrementAndGet();
+          throw e;
+        }
+      }
+    };
+  }
+
+  private <RespT> ClientCall.Listener<RespT> createTrackingListener(
+      ClientCall.Listener<RespT> responseListener, final PooledChannel pooledChannel) {
+    return new SimpleForwardingClientCallListener<RespT>(responseListener) {
+      private volatile boolean headersReceived = false;
+
+      @Override
+      public void onHeaders(Metadata headers) {
+        headersReceived = true;
+        super.onHeaders(headers);
+      }
+
+      @Override
+      public void onClose(Status status, Metadata trailers) {
+        pooledChannel.outstandingCalls.decrementAndGet();
+        // The transport strips the status from the trailers, so trailers from the server still
+        // have other keys, such as the content type. Failures in the transport have no trailers.
+        boolean serverResponded = headersReceived || !trailers.keys().isEmpty();
+        updateHealth(pooledChannel, status, serverResponded);
+        super.onClose(status, trailers);
       }
     };
   }
 
+  private void updateHealth(PooledChannel pooledChannel, Status status, boolean serverResponded) {
+    if (ejectionFailureThreshold == 0) {
+      return;
+    }
+    if (serverResponded) {
+      pooledChannel.consecutiveFailures.set(0);
+    } else if (status.getCode() == Status.Code.UNAVAILABLE
+        && pooledChannel.consecutiveFailures.incrementAndGet() == ejectionFailureThreshold) {
+      scheduleReplacement(pooledChannel);
+    }
+  }
+
+  /**
+   * Replaces a channel that keeps failing with a new channel from the {@link ChannelFactory}, on
+   * the {@link #ejectionExecutor}, unless another channel was replaced within the ejection
+   * interval.
+   */
+  private void scheduleReplacement(final PooledChannel failed) {
+    long last = lastEjectionNanos.get();
+    long now = System.nanoTime();
+    if (now - last < minEjectionIntervalNanos || !lastEjectionNanos.compareAndSet(last, now)) {
+      LOG.debug("Not replacing a failing channel, since another channel was replaced recently.");
+      failed.consecutiveFailures.set(0);
+      return;
+    }
+    try {
+      ejectionExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          replaceChannel(failed);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Could not schedule the replacement of a failing channel.", e);
+      failed.consecutiveFailures.set(0);
+    }
+  }
+
+  private void replaceChannel(PooledChannel failed) {
+    if (shutdown || !channels.get().contains(failed)) {
+      return;
+    }
+    ManagedChannel replacement;
+    try {
+      replacement = factory.create();
+    } catch (IOException e) {
+      LOG.warn("Could not replace a failing channel. Will try again after %d more failures.", e,
+        ejectionFailureThreshold);
+      failed.consecutiveFailures.set(0);
+      return;
+    }
+    synchronized (this) {
+      // The pool may grow concurrently, outside of this monitor.
+      while (true) {
+        ImmutableList<PooledChannel> current = channels.get();
+        int index = current.indexOf(failed);
+        if (shutdown || index < 0) {
+          // The pool was shut down or resized while the replacement was created.
+          replacement.shutdown();
+          return;
+        }
+        List<PooledChannel> updated = new ArrayList<>(current);
+        updated.set(index, new PooledChannel(replacement));
+        if (channels.compareAndSet(current, ImmutableList.copyOf(updated))) {
+          break;
+        }
+      }
+      LOG.info("Replacing a channel after %d consecutive transport failures.",
+        ejectionFailureThreshold);
+      retire(failed.getChannel());
+    }
+  }
+
+  /**
+   * Starts to periodically resize the pool between its initial size and {@code maxChannelCount},
+   * so that each channel has roughly {@code targetOutstandingCallsPerChannel} outstanding calls.
+   *
+   * @param maxChannelCount The largest number of channels the pool may grow to.
+   * @param targetOutstandingCallsPerChannel The number of outstanding calls per channel above
+   *          which the pool grows. HTTP/2 connections typically allow around 100 concurrent
+   *          streams, so this should be lower than that.
+   * @param executor The executor on which the size is checked.
+   * @param intervalMs How often to check the size.
+   */
+  public synchronized void startResizing(int maxChannelCount,
+      int targetOutstandingCallsPerChannel, ScheduledExecutorService executor, long intervalMs) {
+    Preconditions.checkArgument(maxChannelCount >= minChannelCount,
+      "maxChannelCount has to be at least the initial channel count.");
+    Preconditions.checkArgument(targetOutstandingCallsPerChannel > 0,
+      "targetOutstandingCallsPerChannel has to be at least 1.");
+    Preconditions.checkState(!shutdown, "Cannot resize a closed connection");
+    this.maxChannelCount = maxChannelCount;
+    this.targetOutstandingCallsPerChannel = targetOutstandingCallsPerChannel;
+    if (resizeFuture != null) {
+      resizeFuture.cancel(false);
+    }
+    resizeFuture = executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          resize();
+        } catch (RuntimeException e) {
+          LOG.warn("Could not resize the channel pool.", e);
+        }
+      }
+    }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Grows the pool when channels are above their target number of outstanding calls. The new
+   * channels are created on the {@link #ejectionExecutor}, since {@link ChannelFactory#create()}
+   * may block. Shrinks the pool by one channel at a time, and only when the remaining channels
+   * would be at most half loaded, so that a fluctuating load does not cause channels to churn.
+   */
+  @VisibleForTesting
+  void resize() {
+    final int desiredSize;
+    final int outstandingCalls;
+    synchronized (this) {
+      ImmutableList<PooledChannel> current = channels.get();
+      if (shutdown || targetOutstandingCallsPerChannel == 0) {
+        return;
+      }
+      int size = current.size();
+      int callCount = 0;
+      for (PooledChannel pooledChannel : current) {
+        callCount += pooledChannel.getOutstandingCallCount();
+      }
+      int desired = (callCount + targetOutstandingCallsPerChannel - 1)
+          / targetOutstandingCallsPerChannel;
+      desiredSize = Math.max(minChannelCount, Math.min(maxChannelCount, desired));
+      outstandingCalls = callCount;
+
+      if (desiredSize <= size) {
+        if (size > minChannelCount
+            && outstandingCalls * 2 <= (size - 1) * targetOutstandingCallsPerChannel) {
+          shrink(current, outstandingCalls);
+        }
+        return;
+      }
+    }
+    if (!growing.compareAndSet(false, true)) {
+      // The channels of an earlier check are still being created.
+      return;
+    }
+    try {
+      ejectionExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            grow(desiredSize, outstandingCalls);
+          } finally {
+            growing.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      growing.set(false);
+      LOG.warn("Could not schedule the growth of the channel pool.", e);
+    }
+  }
+
+  /**
+   * Creates channels until the pool has {@code desiredSize} channels, without holding this
+   * object's monitor, and then adds them to the pool.
+   */
+  private void grow(int desiredSize, int outstandingCalls) {
+    List<PooledChannel> created = new ArrayList<>();
+    try {
+      while (!shutdown && channels.get().size() + created.size() < desiredSize) {
+        created.add(new PooledChannel(factory.create()));
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not create a new channel.", e);
+    }
+    if (created.isEmpty()) {
+      return;
+    }
+    ImmutableList<PooledChannel> current;
+    List<PooledChannel> updated;
+    List<PooledChannel> unused;
+    do {
+      current = channels.get();
+      updated = new ArrayList<>(current);
+      unused = new ArrayList<>();
+      for (PooledChannel pooledChannel : created) {
+        if (updated.size() < desiredSize) {
+          updated.add(pooledChannel);
+        } else {
+          unused.add(pooledChannel);
+        }
+      }
+    } while (!channels.compareAndSet(current, ImmutableList.copyOf(updated)));
+    for (PooledChannel pooledChannel : unused) {
+      pooledChannel.getChannel().shutdown();
+    }
+    if (shutdown) {
+      // shutdown() may have missed the new channels.
+      for (PooledChannel pooledChannel : created) {
+        pooledChannel.getChannel().shutdown();
+      }
+      return;
+    }
+    if (updated.size() > current.size()) {
+      LOG.info("Grew the channel pool from %d to %d channels with %d outstanding calls.",
+        current.size(), updated.size(), outstandingCalls);
+    }
+  }
+
+  /**
+   * Removes the least loaded channel, since it has the fewest calls to drain. The caller has to
+   * hold this object's monitor. Nothing is removed if the pool grew in the meantime.
+   */
+  private void shrink(ImmutableList<PooledChannel> current, int outstandingCalls) {
+    PooledChannel leastLoaded = current.get(0);
+    for (PooledChannel pooledChannel : current) {
+      if (pooledChannel.getOutstandingCallCount() < leastLoaded.getOutstandingCallCount()) {
+        leastLoaded = pooledChannel;
+      }
+    }
+    List<PooledChannel> updated = new ArrayList<>(current);
+    updated.remove(leastLoaded);
+    if (channels.compareAndSet(current, ImmutableList.copyOf(updated))) {
+      retire(leastLoaded.getChannel());
+      LOG.debug("Shrank the channel pool from %d to %d channels with %d outstanding calls.",
+        current.size(), updated.size(), outstandingCalls);
+    }
+  }
+
+  /**
+   * Gracefully shuts down a channel that is no longer in the pool. Calls that are already in
+   * progress on the channel are allowed to complete.
+   */
+  private void retire(ManagedChannel channel) {
+    channel.shutdown();
+    retiredChannels.add(channel);
+    Iterator<ManagedChannel> iterator = retiredChannels.iterator();
+    while (iterator.hasNext()) {
+      ManagedChannel retired = iterator.next();
+      if (retired.isTerminated()) {
+        retiredChannels.remove(retired);
+      }
+    }
+  }
+
   public int size() {
-    return channels.size();
+    return channels.get().size();
+  }
+
+  /**
+   * @return the channels that are currently in the pool, and their outstanding call counts.
+   */
+  public List<PooledChannel> getPooledChannels() {
+    return channels.get();
+  }
+
+  /**
+   * @return All of the channels that are open or shutting down, including the ones that were
+   *         removed from the pool.
+   */
+  private List<ManagedChannel> getAllChannels() {
+    List<ManagedChannel> allChannels = new ArrayList<>();
+    for (PooledChannel pooledChannel : channels.get()) {
+      allChannels.add(pooledChannel.getChannel());
+    }
+    allChannels.addAll(retiredChannels);
+    return allChannels;
   }
 
   @Override
   public synchronized ManagedChannel shutdown() {
-    for (ManagedChannel channel : channels) {
-      channel.shutdown();
-    }
+    // This is set first, so that a concurrent grow() shuts down the channels it adds.
     this.shutdown = true;
+    if (resizeFuture != null) {
+      resizeFuture.cancel(false);
+    }
+    for (PooledChannel pooledChannel : channels.get()) {
+      pooledChannel.getChannel().shutdown();
+    }
     return this;
   }
 
@@ -148,8 +564,7 @@ public class ChannelPool extends ManagedChannel {
 
   @Override
   public boolean isTerminated() {
-    boolean allTerminated = true;
-    for (ManagedChannel managedChannel : channels) {
+    for (ManagedChannel managedChannel : getAllChannels()) {
       if (!managedChannel.isTerminated()) {
         return false;
       }
@@ -159,7 +574,7 @@ public class ChannelPool extends ManagedChannel {
 
   @Override
   public ManagedChannel shutdownNow() {
-    for (ManagedChannel channel : channels) {
+    for (ManagedChannel channel : getAllChannels()) {
       channel.shutdownNow();
     }
     return this;
@@ -168,7 +583,7 @@ public class ChannelPool extends ManagedChannel {
   @Override
   public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
     long endTimeNanos = System.nanoTime() + unit.toNanos(timeout);
-    for (ManagedChannel channel : channels) {
+    for (ManagedChannel channel : getAllChannels()) {
       long awaitTimeNanos = endTimeNanos - System.nanoTime();
       if (awaitTimeNanos <= 0) {
         break;
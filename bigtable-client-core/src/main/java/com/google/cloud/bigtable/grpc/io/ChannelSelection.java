@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.io;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link ChannelSelectionStrategy}s that a {@link ChannelPool} can be configured with.
+ */
+public enum ChannelSelection {
+  /**
+   * Cycles through the channels regardless of their load.
+   */
+  ROUND_ROBIN {
+    @Override
+    public ChannelSelectionStrategy createStrategy() {
+      return new RoundRobin();
+    }
+  },
+
+  /**
+   * Picks the channel with the fewest outstanding calls. This keeps a slow connection from getting
+   * more than its share of calls, at the cost of a scan of the pool on every call.
+   */
+  LEAST_OUTSTANDING_CALLS {
+    @Override
+    public ChannelSelectionStrategy createStrategy() {
+      return new LeastOutstandingCalls();
+    }
+  },
+
+  /**
+   * Picks two channels at random, and uses the one with fewer outstanding calls. This gets most of
+   * the benefit of {@link #LEAST_OUTSTANDING_CALLS} in constant time.
+   */
+  POWER_OF_TWO_CHOICES {
+    @Override
+    public ChannelSelectionStrategy createStrategy() {
+      return new PowerOfTwoChoices();
+    }
+  };
+
+  /**
+   * Creates a new instance of the strategy. Each {@link ChannelPool} should have its own instance.
+   */
+  public abstract ChannelSelectionStrategy createStrategy();
+
+  private static class RoundRobin implements ChannelSelectionStrategy {
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    @Override
+    public ChannelPool.PooledChannel select(List<ChannelPool.PooledChannel> channels) {
+      int index = Math.abs(requestCount.getAndIncrement() % channels.size());
+      return channels.get(index);
+    }
+  }
+
+  private static class LeastOutstandingCalls implements ChannelSelectionStrategy {
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    @Override
+    public ChannelPool.PooledChannel select(List<ChannelPool.PooledChannel> channels) {
+      int size = channels.size();
+      // Start the scan at a different channel each time so that ties, such as an idle pool, are
+      // spread across the channels.
+      int start = Math.abs(requestCount.getAndIncrement() % size);
+      ChannelPool.PooledChannel best = channels.get(start);
+      int bestCount = best.getOutstandingCallCount();
+      for (int i = 1; i < size && bestCount > 0; i++) {
+        ChannelPool.PooledChannel candidate = channels.get((start + i) % size);
+        int count = candidate.getOutstandingCallCount();
+        if (count < bestCount) {
+          best = candidate;
+          bestCount = count;
+        }
+      }
+      return best;
+    }
+  }
+
+  private static class PowerOfTwoChoices implements ChannelSelectionStrategy {
+    @Override
+    public ChannelPool.PooledChannel select(List<ChannelPool.PooledChannel> channels) {
+      int size = channels.size();
+      if (size == 1) {
+        return channels.get(0);
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int first = random.nextInt(size);
+      // Pick a different second channel by offsetting from the first.
+      int second = (first + 1 + random.nextInt(size - 1)) % size;
+      ChannelPool.PooledChannel a = channels.get(first);
+      ChannelPool.PooledChannel b = channels.get(second);
+      return a.getOutstandingCallCount() <= b.getOutstandingCallCount() ? a : b;
+    }
+  }
+}
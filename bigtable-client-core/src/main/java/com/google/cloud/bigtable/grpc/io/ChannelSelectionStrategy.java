@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.io;
+
+import java.util.List;
+
+/**
+ * Chooses which channel in a {@link ChannelPool} a new call should be sent on. Implementations
+ * must be thread safe. See {@link ChannelSelection} for the built in strategies.
+ */
+public interface ChannelSelectionStrategy {
+
+  /**
+   * @param channels The channels that are currently in the pool. The list is never empty.
+   * @return one of the channels in {@code channels}.
+   */
+  ChannelPool.PooledChannel select(List<ChannelPool.PooledChannel> channels);
+}
@@ -24,6 +24,7 @@ import com.google.bigtable.v1.ReadRowsRequest;
 import com.google.bigtable.v1.Row;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.async.RetryBudget;
 import com.google.cloud.bigtable.grpc.io.IOExceptionWithStatus;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
@@ -53,6 +54,7 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
 
   private final ReadRowsRequest originalRequest;
   private final RetryOptions retryOptions;
+  private final RetryBudget retryBudget;
 
   private BackOff currentBackoff;
   private ResultScanner<Row> currentDelegate;
@@ -60,6 +62,8 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
   private Sleeper sleeper = Sleeper.DEFAULT;
   // The number of rows read so far.
   private long rowCount = 0;
+  // Whether the scan reached the end of its rows.
+  private boolean exhausted = false;
 
   private final Logger logger;
 
@@ -67,7 +71,28 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
     RetryOptions retryOptions,
     ReadRowsRequest originalRequest,
     BigtableResultScannerFactory scannerFactory) {
-    this(retryOptions, originalRequest, scannerFactory, LOG);
+    this(retryOptions, originalRequest, scannerFactory, RetryBudget.unlimited(), LOG);
+  }
+
+  /**
+   * @param retryBudget A completed scan is recorded as a success in the {@link RetryBudget}, and
+   *          each reissued request must be granted by it.
+   */
+  public ResumingStreamingResultScanner(
+    RetryOptions retryOptions,
+    ReadRowsRequest originalRequest,
+    BigtableResultScannerFactory scannerFactory,
+    RetryBudget retryBudget) {
+    this(retryOptions, originalRequest, scannerFactory, retryBudget, LOG);
+  }
+
+  @VisibleForTesting
+  ResumingStreamingResultScanner(
+      RetryOptions retryOptions,
+      ReadRowsRequest originalRequest,
+      BigtableResultScannerFactory scannerFactory,
+      Logger logger) {
+    this(retryOptions, originalRequest, scannerFactory, RetryBudget.unlimited(), logger);
   }
 
   @VisibleForTesting
@@ -75,6 +100,7 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
       RetryOptions retryOptions,
       ReadRowsRequest originalRequest,
       BigtableResultScannerFactory scannerFactory,
+      RetryBudget retryBudget,
       Logger logger) {
     Preconditions.checkArgument(
         !originalRequest.getAllowRowInterleaving(),
@@ -83,6 +109,7 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
     this.scannerFactory = scannerFactory;
     this.currentDelegate = scannerFactory.createScanner(originalRequest);
     this.retryOptions = retryOptions;
+    this.retryBudget = retryBudget;
     this.logger = logger;
   }
 
@@ -96,6 +123,9 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
           rowCount++;
           // We've had at least one successful RPC, reset the backoff
           currentBackoff = null;
+        } else if (!exhausted) {
+          exhausted = true;
+          retryBudget.recordSuccess();
         }
 
         return result;
@@ -136,6 +166,10 @@ public class ResumingStreamingResultScanner extends AbstractBigtableResultScanne
     if (nextBackOff == BackOff.STOP) {
       throw new ScanRetriesExhaustedException("Exhausted streaming retries.", cause);
     }
+    if (!retryBudget.tryAcquireRetry()) {
+      logger.info("The retry budget is exhausted. Not reissuing the scan.");
+      throw cause;
+    }
 
     sleep(nextBackOff);
     reissueRequest();
@@ -15,8 +15,10 @@
  */
 package com.google.cloud.bigtable.grpc.scanner;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -45,6 +47,11 @@ import com.google.protobuf.ByteString;
  * </pre>
  *
  * <p> {@link RowMerger#readNextRow(Iterator)} will essentially perform the code above.</p>
+ *
+ * <p>The merger keeps references to the {@link Family} messages of the chunks rather than copying
+ * their columns. A family that arrives in a single chunk, which is always the case when a row fits
+ * in a single {@link ReadRowsResponse}, is added to the built {@link Row} as is. Only families
+ * that are split across chunks are rebuilt.</p>
  */
 public class RowMerger {
 
@@ -74,7 +81,8 @@ public class RowMerger {
     }
   }
 
-  private final Map<String, Family.Builder> familyMap = new HashMap<>();
+  /** The {@link Family} messages of the current row, by family name, in arrival order. */
+  private final Map<String, List<Family>> familyMap = new LinkedHashMap<>();
   private boolean committed = false;
   private ByteString currentRowKey;
 
@@ -135,20 +143,32 @@ public class RowMerger {
     }
     Row.Builder currentRowBuilder = Row.newBuilder();
     currentRowBuilder.setKey(currentRowKey);
-    for (Family.Builder builder : familyMap.values()) {
-      currentRowBuilder.addFamilies(builder.build());
+    for (List<Family> families : familyMap.values()) {
+      currentRowBuilder.addFamilies(mergeFamilies(families));
     }
     return currentRowBuilder.build();
   }
 
-  // Merge newRowContents into the map of family builders, creating one if necessary.
-  private void merge(Map<String, Family.Builder> familyBuilderMap, Family newRowContents) {
+  // Add newRowContents to the list of chunks for its family, creating the list if necessary.
+  private static void merge(Map<String, List<Family>> familyMap, Family newRowContents) {
     String familyName = newRowContents.getName();
-    Family.Builder familyBuilder = familyBuilderMap.get(familyName);
-    if (familyBuilder == null) {
-      familyBuilder = Family.newBuilder().setName(familyName);
-      familyBuilderMap.put(familyName, familyBuilder);
+    List<Family> families = familyMap.get(familyName);
+    if (families == null) {
+      families = new ArrayList<>(1);
+      familyMap.put(familyName, families);
+    }
+    families.add(newRowContents);
+  }
+
+  // Combine the chunks of a single family. The columns are only copied if there is more than one.
+  private static Family mergeFamilies(List<Family> families) {
+    if (families.size() == 1) {
+      return families.get(0);
+    }
+    Family.Builder familyBuilder = Family.newBuilder().setName(families.get(0).getName());
+    for (Family family : families) {
+      familyBuilder.addAllColumns(family.getColumnsList());
     }
-    familyBuilder.addAllColumns(newRowContents.getColumnsList());
+    return familyBuilder.build();
   }
 }
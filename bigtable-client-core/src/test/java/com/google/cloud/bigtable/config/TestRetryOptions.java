@@ -39,6 +39,29 @@ public class TestRetryOptions {
     assertIsRetryableRead(true);
   }
 
+  @Test
+  public void testBackoffIsWithinHalfOfIntervalByDefault() throws Exception {
+    RetryOptions options = new RetryOptions.Builder().setInitialBackoffMillis(1000).build();
+    assertFalse(options.useFullJitter());
+    for (int i = 0; i < 100; i++) {
+      long backoff = options.createBackoff().nextBackOffMillis();
+      assertTrue("Unexpected backoff " + backoff, backoff >= 500 && backoff <= 1500);
+    }
+  }
+
+  @Test
+  public void testFullJitter() throws Exception {
+    RetryOptions options =
+        new RetryOptions.Builder().setInitialBackoffMillis(1000).setUseFullJitter(true).build();
+    long minBackoff = Long.MAX_VALUE;
+    for (int i = 0; i < 100; i++) {
+      long backoff = options.createBackoff().nextBackOffMillis();
+      assertTrue("Unexpected backoff " + backoff, backoff >= 0 && backoff <= 1000);
+      minBackoff = Math.min(minBackoff, backoff);
+    }
+    assertTrue("Unexpected minimum backoff " + minBackoff, minBackoff < 500);
+  }
+
   private void assertIsRetryableRead(boolean retryOnDeadlineExceeded) {
     RetryOptions options =
         new RetryOptions.Builder().setRetryOnDeadlineExceeded(retryOnDeadlineExceeded).build();
@@ -16,6 +16,8 @@
 package com.google.cloud.bigtable.grpc;
 
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
@@ -27,6 +29,7 @@ import static org.mockito.Mockito.when;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.After;
@@ -34,6 +37,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -50,6 +54,7 @@ import com.google.bigtable.v1.Mutation.SetCell;
 import com.google.bigtable.v1.ReadRowsRequest;
 import com.google.bigtable.v1.RowRange;
 import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CallOptionsConfig;
 import com.google.cloud.bigtable.config.RetryOptions;
 import com.google.cloud.bigtable.config.RetryOptionsUtil;
 import com.google.cloud.bigtable.grpc.io.ChannelPool;
@@ -178,6 +183,56 @@ public class BigtableDataGrpcClientTests {
     verify(clientCallService).listenableAsyncCall(any(ClientCall.class), same(request));
   }
 
+  @Test
+  public void testDeadlineIsSet() {
+    BigtableOptions options = new BigtableOptions.Builder()
+        .setCallOptionsConfig(new CallOptionsConfig.Builder().setMutateRowTimeoutMs(1000).build())
+        .setTimeoutMs(0)
+        .build();
+    underTest = new BigtableDataGrpcClient(channelPool,
+        BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool(), options,
+        clientCallService);
+    long start = System.nanoTime();
+    underTest.mutateRowAsync(MutateRowRequest.getDefaultInstance());
+    long end = System.nanoTime();
+
+    ArgumentCaptor<CallOptions> callOptions = ArgumentCaptor.forClass(CallOptions.class);
+    verify(channelPool).newCall(same(BigtableServiceGrpc.METHOD_MUTATE_ROW), callOptions.capture());
+    Long deadline = callOptions.getValue().getDeadlineNanoTime();
+    assertNotNull(deadline);
+    assertTrue(deadline - start >= TimeUnit.MILLISECONDS.toNanos(1000));
+    assertTrue(deadline - end <= TimeUnit.MILLISECONDS.toNanos(1000));
+
+    // Methods without a configured timeout have no deadline.
+    underTest.checkAndMutateRowAsync(CheckAndMutateRowRequest.getDefaultInstance());
+    verify(channelPool).newCall(same(BigtableServiceGrpc.METHOD_CHECK_AND_MUTATE_ROW),
+      callOptions.capture());
+    assertNull(callOptions.getValue().getDeadlineNanoTime());
+  }
+
+  @Test
+  public void testDefaultDeadline() {
+    BigtableOptions options = new BigtableOptions.Builder()
+        .setCallOptionsConfig(new CallOptionsConfig.Builder().setMutateRowTimeoutMs(1000).build())
+        .setTimeoutMs(60000)
+        .build();
+    underTest = new BigtableDataGrpcClient(channelPool,
+        BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool(), options,
+        clientCallService);
+    long start = System.nanoTime();
+    underTest.checkAndMutateRowAsync(CheckAndMutateRowRequest.getDefaultInstance());
+    long end = System.nanoTime();
+
+    // Methods without a configured timeout use BigtableOptions.getTimeoutMs().
+    ArgumentCaptor<CallOptions> callOptions = ArgumentCaptor.forClass(CallOptions.class);
+    verify(channelPool).newCall(same(BigtableServiceGrpc.METHOD_CHECK_AND_MUTATE_ROW),
+      callOptions.capture());
+    Long deadline = callOptions.getValue().getDeadlineNanoTime();
+    assertNotNull(deadline);
+    assertTrue(deadline - start >= TimeUnit.MILLISECONDS.toNanos(60000));
+    assertTrue(deadline - end <= TimeUnit.MILLISECONDS.toNanos(60000));
+  }
+
   @Test
   public void testMutateRowPredicate() {
     Predicate<MutateRowRequest> predicate = BigtableDataGrpcClient.IS_RETRYABLE_MUTATION;
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the throughput of {@link HeapSizeManager} and {@link ConcurrentHeapSizeManager} as the
+ * number of writer threads grows. Each thread keeps a small window of operations in flight, which
+ * mimics a {@code BigtableBufferedMutator} with many concurrent writers.
+ *
+ * <p>Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.google.cloud.bigtable.grpc.async.HeapSizeManagerBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeapSizeManagerBenchmark {
+
+  private static final int OPERATIONS_PER_THREAD = 4;
+
+  @State(Scope.Benchmark)
+  public static class Manager {
+    @Param({ "synchronized", "concurrent" })
+    public String implementation;
+
+    HeapSizeManager heapSizeManager;
+
+    @Setup
+    public void setup() {
+      long maxHeapSize = AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT;
+      int maxInFlightRpcs = AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT * 10;
+      if ("synchronized".equals(implementation)) {
+        heapSizeManager = new HeapSizeManager(maxHeapSize, maxInFlightRpcs);
+      } else {
+        heapSizeManager = new ConcurrentHeapSizeManager(maxHeapSize, maxInFlightRpcs);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Writer {
+    final ArrayDeque<Long> inFlight = new ArrayDeque<>();
+    HeapSizeManager heapSizeManager;
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+      while (!inFlight.isEmpty()) {
+        heapSizeManager.markCanBeCompleted(inFlight.poll());
+      }
+    }
+  }
+
+  @Benchmark
+  public long registerAndComplete(Manager manager, Writer writer) throws InterruptedException {
+    HeapSizeManager heapSizeManager = manager.heapSizeManager;
+    writer.heapSizeManager = heapSizeManager;
+    long id = heapSizeManager.registerOperationWithHeapSize(1024);
+    writer.inFlight.add(id);
+    if (writer.inFlight.size() > OPERATIONS_PER_THREAD) {
+      heapSizeManager.markCanBeCompleted(writer.inFlight.poll());
+    }
+    return id;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : new int[] { 1, 4, 16, 32, 64 }) {
+      Options options = new OptionsBuilder()
+          .include(HeapSizeManagerBenchmark.class.getSimpleName())
+          .threads(threads)
+          .build();
+      new Runner(options).run();
+    }
+  }
+}
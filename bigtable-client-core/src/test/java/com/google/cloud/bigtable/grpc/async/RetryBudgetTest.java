@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link RetryBudget}
+ */
+@RunWith(JUnit4.class)
+public class RetryBudgetTest {
+
+  @Test
+  public void testUnlimitedAlwaysGrants() {
+    RetryBudget underTest = RetryBudget.unlimited();
+    for (int i = 0; i < RetryBudget.MAX_TOKENS * 10; i++) {
+      Assert.assertTrue(underTest.tryAcquireRetry());
+    }
+    Assert.assertEquals(RetryBudget.MAX_TOKENS * 10, underTest.getRetriesGranted());
+    Assert.assertEquals(0, underTest.getRetriesDenied());
+  }
+
+  @Test
+  public void testBurstIsLimited() {
+    RetryBudget underTest = new RetryBudget(10);
+    for (int i = 0; i < RetryBudget.MAX_TOKENS; i++) {
+      Assert.assertTrue(underTest.tryAcquireRetry());
+    }
+    Assert.assertFalse(underTest.tryAcquireRetry());
+    Assert.assertEquals(RetryBudget.MAX_TOKENS, underTest.getRetriesGranted());
+    Assert.assertEquals(1, underTest.getRetriesDenied());
+  }
+
+  @Test
+  public void testSuccessesRefillTheBudget() {
+    RetryBudget underTest = new RetryBudget(10);
+    while (underTest.tryAcquireRetry()) {
+    }
+    for (int i = 0; i < 9; i++) {
+      underTest.recordSuccess();
+    }
+    Assert.assertFalse(underTest.tryAcquireRetry());
+    underTest.recordSuccess();
+    Assert.assertTrue(underTest.tryAcquireRetry());
+    Assert.assertFalse(underTest.tryAcquireRetry());
+  }
+
+  @Test
+  public void testBudgetIsCapped() {
+    RetryBudget underTest = new RetryBudget(100);
+    for (int i = 0; i < RetryBudget.MAX_TOKENS * 2; i++) {
+      underTest.recordSuccess();
+    }
+    int granted = 0;
+    while (underTest.tryAcquireRetry()) {
+      granted++;
+    }
+    Assert.assertEquals(RetryBudget.MAX_TOKENS, granted);
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.api.client.util.NanoClock;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsRequest.Entry;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.config.RetryOptionsUtil;
+import com.google.cloud.bigtable.grpc.BigtableDataGrpcClient;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.rpc.Status;
+
+/**
+ * Test for {@link RetryingMutateRowsOperation}
+ */
+@RunWith(JUnit4.class)
+public class RetryingMutateRowsOperationTest {
+
+  private static final Status OK = toStatus(io.grpc.Status.Code.OK);
+  private static final Status UNAVAILABLE = toStatus(io.grpc.Status.Code.UNAVAILABLE);
+  private static final Status INVALID_ARGUMENT = toStatus(io.grpc.Status.Code.INVALID_ARGUMENT);
+
+  @Mock
+  private BigtableAsyncRpc<MutateRowsRequest, MutateRowsResponse> mutateRows;
+
+  @Mock
+  private ScheduledExecutorService retryExecutor;
+
+  @Mock
+  private NanoClock nanoClock;
+
+  private RetryOptions retryOptions;
+  private final List<MutateRowsRequest> sentRequests = new ArrayList<>();
+  private final AtomicLong totalBackoffNanos = new AtomicLong();
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    retryOptions = RetryOptionsUtil.createTestRetryOptions(nanoClock);
+    final long start = System.nanoTime();
+    // Mimic the passage of time for the ExponentialBackOff without actually waiting.
+    when(nanoClock.nanoTime()).then(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        return start + totalBackoffNanos.get();
+      }
+    });
+    // Run scheduled retries immediately on the calling thread.
+    when(retryExecutor.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS)))
+        .then(new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            totalBackoffNanos.addAndGet(
+              TimeUnit.MILLISECONDS.toNanos((Long) invocation.getArguments()[1]));
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+          }
+        });
+  }
+
+  @Test
+  public void testRetriesOnlyFailedEntries() throws Exception {
+    MutateRowsRequest request = createRequest(true, true, true);
+    respondWith(
+      createResponse(OK, UNAVAILABLE, OK),
+      createResponse(OK));
+
+    MutateRowsResponse response = createOperation(request).getAsyncResult().get();
+
+    Assert.assertEquals(createResponse(OK, OK, OK), response);
+    Assert.assertEquals(2, sentRequests.size());
+    Assert.assertEquals(request, sentRequests.get(0));
+    Assert.assertEquals(1, sentRequests.get(1).getEntriesCount());
+    Assert.assertEquals(request.getEntries(1), sentRequests.get(1).getEntries(0));
+  }
+
+  @Test
+  public void testNonRetryableStatusIsNotRetried() throws Exception {
+    MutateRowsRequest request = createRequest(true, true);
+    respondWith(
+      createResponse(INVALID_ARGUMENT, UNAVAILABLE),
+      createResponse(OK));
+
+    MutateRowsResponse response = createOperation(request).getAsyncResult().get();
+
+    Assert.assertEquals(createResponse(INVALID_ARGUMENT, OK), response);
+    Assert.assertEquals(2, sentRequests.size());
+    Assert.assertEquals(request.getEntries(1), sentRequests.get(1).getEntries(0));
+  }
+
+  @Test
+  public void testEntryWithoutTimestampIsNotRetried() throws Exception {
+    MutateRowsRequest request = createRequest(true, false);
+    respondWith(
+      createResponse(UNAVAILABLE, UNAVAILABLE),
+      createResponse(OK));
+
+    MutateRowsResponse response = createOperation(request).getAsyncResult().get();
+
+    Assert.assertEquals(createResponse(OK, UNAVAILABLE), response);
+    Assert.assertEquals(request.getEntries(0), sentRequests.get(1).getEntries(0));
+  }
+
+  @Test
+  public void testRpcFailureIsRetried() throws Exception {
+    MutateRowsRequest request = createRequest(true, true);
+    when(mutateRows.call(any(MutateRowsRequest.class)))
+        .thenReturn(Futures.<MutateRowsResponse> immediateFailedFuture(
+          io.grpc.Status.UNAVAILABLE.asRuntimeException()))
+        .thenReturn(Futures.immediateFuture(createResponse(OK, OK)));
+
+    MutateRowsResponse response = createOperation(request).getAsyncResult().get();
+
+    Assert.assertEquals(createResponse(OK, OK), response);
+    verify(mutateRows, times(2)).call(request);
+  }
+
+  @Test
+  public void testNonRetryableRpcFailure() throws Exception {
+    MutateRowsRequest request = createRequest(true);
+    when(mutateRows.call(any(MutateRowsRequest.class)))
+        .thenReturn(Futures.<MutateRowsResponse> immediateFailedFuture(
+          io.grpc.Status.INVALID_ARGUMENT.asRuntimeException()));
+
+    try {
+      createOperation(request).getAsyncResult().get();
+      Assert.fail("Expected an ExecutionException");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(io.grpc.Status.Code.INVALID_ARGUMENT,
+        io.grpc.Status.fromThrowable(e.getCause()).getCode());
+    }
+  }
+
+  @Test
+  public void testRetriesExhausted() throws Exception {
+    MutateRowsRequest request = createRequest(true, true);
+    when(mutateRows.call(any(MutateRowsRequest.class))).then(
+      new Answer<ListenableFuture<MutateRowsResponse>>() {
+        @Override
+        public ListenableFuture<MutateRowsResponse> answer(InvocationOnMock invocation) {
+          MutateRowsRequest sent = (MutateRowsRequest) invocation.getArguments()[0];
+          return Futures.immediateFuture(sent.getEntriesCount() == 2
+              ? createResponse(OK, UNAVAILABLE)
+              : createResponse(UNAVAILABLE));
+        }
+      });
+
+    MutateRowsResponse response = createOperation(request).getAsyncResult().get();
+
+    Assert.assertEquals(createResponse(OK, UNAVAILABLE), response);
+    Assert.assertTrue(totalBackoffNanos.get() >= TimeUnit.MILLISECONDS
+        .toNanos(RetryOptions.DEFAULT_MAX_ELAPSED_BACKOFF_MILLIS));
+  }
+
+  @Test
+  public void testRejectedRetryFailsResult() throws Exception {
+    MutateRowsRequest request = createRequest(true, true);
+    respondWith(createResponse(OK, UNAVAILABLE));
+    RejectedExecutionException rejected = new RejectedExecutionException("shut down");
+    when(retryExecutor.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS)))
+        .thenThrow(rejected);
+
+    try {
+      createOperation(request).getAsyncResult().get(1, TimeUnit.SECONDS);
+      Assert.fail("Expected an ExecutionException");
+    } catch (ExecutionException e) {
+      Assert.assertSame(rejected, e.getCause());
+    }
+    Assert.assertEquals(1, sentRequests.size());
+  }
+
+  private RetryingMutateRowsOperation createOperation(MutateRowsRequest request) {
+    return new RetryingMutateRowsOperation(retryOptions, request, mutateRows,
+        BigtableDataGrpcClient.IS_RETRYABLE_ENTRY, retryExecutor);
+  }
+
+  private void respondWith(final MutateRowsResponse... responses) {
+    when(mutateRows.call(any(MutateRowsRequest.class))).then(
+      new Answer<ListenableFuture<MutateRowsResponse>>() {
+        @Override
+        public ListenableFuture<MutateRowsResponse> answer(InvocationOnMock invocation) {
+          sentRequests.add((MutateRowsRequest) invocation.getArguments()[0]);
+          return Futures.immediateFuture(responses[sentRequests.size() - 1]);
+        }
+      });
+  }
+
+  private static MutateRowsRequest createRequest(boolean... hasTimestamps) {
+    MutateRowsRequest.Builder builder = MutateRowsRequest.newBuilder().setTableName("table");
+    for (int i = 0; i < hasTimestamps.length; i++) {
+      builder.addEntries(Entry.newBuilder()
+          .setRowKey(ByteString.copyFromUtf8("row" + i))
+          .addMutations(Mutation.newBuilder()
+              .setSetCell(SetCell.newBuilder()
+                  .setFamilyName("cf")
+                  .setColumnQualifier(ByteString.copyFromUtf8("qual"))
+                  .setTimestampMicros(hasTimestamps[i] ? 1000 : -1))));
+    }
+    return builder.build();
+  }
+
+  private static MutateRowsResponse createResponse(Status... statuses) {
+    MutateRowsResponse.Builder builder = MutateRowsResponse.newBuilder();
+    for (Status status : statuses) {
+      builder.addStatuses(status);
+    }
+    return builder.build();
+  }
+
+  private static Status toStatus(io.grpc.Status.Code code) {
+    return Status.newBuilder().setCode(code.value()).build();
+  }
+}
@@ -15,10 +15,22 @@
  */
 package com.google.cloud.bigtable.grpc.async;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -31,12 +43,15 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import com.google.api.client.util.NanoClock;
-import com.google.api.client.util.Sleeper;
 import com.google.bigtable.v1.ReadRowsRequest;
 import com.google.cloud.bigtable.config.RetryOptions;
 import com.google.cloud.bigtable.config.RetryOptionsUtil;
 import com.google.cloud.bigtable.grpc.scanner.ScanRetriesExhaustedException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
+import io.grpc.CallOptions;
 import io.grpc.Status;
 
 /**
@@ -51,6 +66,9 @@ public class RetryingRpcFunctionTest {
   @Mock
   private BigtableAsyncRpc readAsync;
 
+  @Mock
+  private ScheduledExecutorService retryExecutorService;
+
   @Rule
   public ExpectedException expectedException = ExpectedException.none();
 
@@ -63,7 +81,7 @@ public class RetryingRpcFunctionTest {
     RetryOptions retryOptions = RetryOptionsUtil.createTestRetryOptions(nanoClock);
     underTest =
         RetryingRpcFunction.create(retryOptions, ReadRowsRequest.getDefaultInstance(),
-          readAsync);
+          readAsync, retryExecutorService);
   }
 
   @Test
@@ -83,12 +101,16 @@ public class RetryingRpcFunctionTest {
         return start + totalSleep.get();
       }
     });
-    underTest.sleeper = new Sleeper() {
-      @Override
-      public void sleep(long ms) throws InterruptedException {
-        totalSleep.addAndGet(ms * 1000000);
-      }
-    };
+    // Record the backoff of each scheduled retry, but don't run it.
+    when(retryExecutorService.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS)))
+        .then(new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            totalSleep.addAndGet(
+              TimeUnit.MILLISECONDS.toNanos((Long) invocation.getArguments()[1]));
+            return null;
+          }
+        });
     // This should throw a ScanRetriesExhaustedException after a short while.  The max of 50
     // is a safe number of attempts before assuming that a ScanRetriesExhaustedException will
     // not be thrown.
@@ -96,4 +118,134 @@ public class RetryingRpcFunctionTest {
       underTest.apply(Status.INTERNAL.asRuntimeException());
     }
   }
+
+  @Test
+  public void testRetryIsScheduled() throws Exception {
+    when(nanoClock.nanoTime()).thenReturn(System.nanoTime());
+    when(retryExecutorService.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS)))
+        .then(new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+          }
+        });
+    when(readAsync.call(any()))
+        .thenReturn(Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException()))
+        .thenReturn(Futures.immediateFailedFuture(Status.INTERNAL.asRuntimeException()))
+        .thenReturn(Futures.immediateFuture("result"));
+
+    Assert.assertEquals("result", underTest.callWithRetries().get());
+    verify(readAsync, times(3)).call(any());
+    verify(retryExecutorService, times(2))
+        .schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testNonRetryableStatusIsNotRetried() throws Exception {
+    when(readAsync.call(any()))
+        .thenReturn(Futures.immediateFailedFuture(Status.INVALID_ARGUMENT.asRuntimeException()));
+    try {
+      underTest.callWithRetries().get();
+      Assert.fail("Expected an ExecutionException");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(Status.Code.INVALID_ARGUMENT, Status.fromThrowable(e).getCode());
+    }
+    verify(retryExecutorService, times(0))
+        .schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  @Test
+  public void testNoRetryAfterDeadline() throws Exception {
+    when(nanoClock.nanoTime()).thenReturn(System.nanoTime());
+    when(readAsync.call(any()))
+        .thenReturn(Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException()));
+    CallOptions callOptions = CallOptions.DEFAULT.withDeadlineAfter(1, TimeUnit.MILLISECONDS);
+    underTest = RetryingRpcFunction.create(RetryOptionsUtil.createTestRetryOptions(nanoClock),
+      ReadRowsRequest.getDefaultInstance(), readAsync, callOptions, RetryBudget.unlimited(),
+      retryExecutorService);
+    Thread.sleep(2);
+    try {
+      underTest.callWithRetries().get();
+      Assert.fail("Expected an ExecutionException");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(Status.Code.DEADLINE_EXCEEDED, Status.fromThrowable(e).getCode());
+    }
+    verify(retryExecutorService, times(0))
+        .schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  @Test
+  public void testRetryBudgetExhausted() throws Exception {
+    when(nanoClock.nanoTime()).thenReturn(System.nanoTime());
+    when(readAsync.call(any()))
+        .thenReturn(Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException()));
+    RetryBudget retryBudget = new RetryBudget(10);
+    while (retryBudget.tryAcquireRetry()) {
+    }
+    underTest = RetryingRpcFunction.create(RetryOptionsUtil.createTestRetryOptions(nanoClock),
+      ReadRowsRequest.getDefaultInstance(), readAsync, CallOptions.DEFAULT, retryBudget,
+      retryExecutorService);
+    try {
+      underTest.callWithRetries().get();
+      Assert.fail("Expected an ExecutionException");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(e).getCode());
+    }
+    // One denial ended the loop that drained the budget, the other denied the retry.
+    Assert.assertEquals(2, retryBudget.getRetriesDenied());
+    verify(retryExecutorService, times(0))
+        .schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  /**
+   * Fails many RPCs at once, asynchronously from a "transport" thread, with a long backoff. No
+   * thread should wait out the backoff: the failures are all delivered right away, and the retries
+   * wait as scheduled tasks on the single retry thread.
+   */
+  @Test
+  public void testErrorStormDoesNotBlockThreads() throws Exception {
+    final int rpcCount = 100;
+    RetryOptions retryOptions = new RetryOptions.Builder()
+        .setInitialBackoffMillis(10000)
+        .setMaxElapsedBackoffMillis(60000)
+        .build();
+    final Thread testThread = Thread.currentThread();
+    final ExecutorService transportExecutor = Executors.newSingleThreadExecutor();
+    when(readAsync.call(any())).then(new Answer<ListenableFuture>() {
+      @Override
+      public ListenableFuture answer(InvocationOnMock invocation) {
+        final SettableFuture future = SettableFuture.create();
+        if (Thread.currentThread() == testThread) {
+          // Fail the first attempt of each RPC from another thread. Retries never complete.
+          transportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              future.setException(Status.UNAVAILABLE.asRuntimeException());
+            }
+          });
+        }
+        return future;
+      }
+    });
+    ScheduledThreadPoolExecutor retryExecutor = new ScheduledThreadPoolExecutor(1);
+    try {
+      for (int i = 0; i < rpcCount; i++) {
+        BigtableAsyncUtilities.performRetryingAsyncRpc(retryOptions,
+          ReadRowsRequest.getDefaultInstance(), readAsync, retryExecutor);
+      }
+      // If a callback waited out its backoff, the transport thread would take minutes to deliver
+      // all of the failures.
+      transportExecutor.shutdown();
+      Assert.assertTrue(transportExecutor.awaitTermination(5, TimeUnit.SECONDS));
+
+      // Every RPC has exactly one retry scheduled, and they all share the retry executor's thread.
+      Assert.assertEquals(rpcCount, retryExecutor.getTaskCount());
+      Assert.assertEquals(1, retryExecutor.getPoolSize());
+      Assert.assertEquals(1, retryExecutor.getLargestPoolSize());
+    } finally {
+      transportExecutor.shutdownNow();
+      retryExecutor.shutdownNow();
+    }
+  }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests for {@link AdaptiveBatchSizer}
+ */
+@RunWith(JUnit4.class)
+public class TestAdaptiveBatchSizer {
+
+  private static final int ROW_KEY_COUNT = 100;
+  private static final long REQUEST_SIZE = 1 << 20;
+  private static final long TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final BigtableOptions staticOptions = new BigtableOptions.Builder()
+      .setBulkMaxRowKeyCount(ROW_KEY_COUNT)
+      .setBulkMaxRequestSize(REQUEST_SIZE)
+      .build();
+
+  private final BigtableOptions adaptiveOptions = staticOptions.toBuilder()
+      .setBulkTargetLatencyMs(100)
+      .build();
+
+  @Test
+  public void testStaticSizing() {
+    AdaptiveBatchSizer underTest = new AdaptiveBatchSizer(staticOptions);
+    assertFalse(underTest.isAdaptive());
+    underTest.onResponse(ROW_KEY_COUNT, 1000, 1, 0);
+    assertEquals(ROW_KEY_COUNT, underTest.getMaxRowKeyCount());
+    assertEquals(REQUEST_SIZE, underTest.getMaxRequestSize());
+
+    BulkMutation bulkMutation = new BulkMutation("table");
+    for (int i = 0; i < ROW_KEY_COUNT - 1; i++) {
+      bulkMutation.add(createRequest(i));
+    }
+    assertFalse(underTest.isFull(bulkMutation));
+    bulkMutation.add(createRequest(ROW_KEY_COUNT));
+    assertTrue(underTest.isFull(bulkMutation));
+  }
+
+  @Test
+  public void testFastFullBatchesGrow() {
+    AdaptiveBatchSizer underTest = new AdaptiveBatchSizer(adaptiveOptions);
+    // Small rows that finish well within the target latency.
+    underTest.onResponse(ROW_KEY_COUNT, 10000, TARGET_NANOS / 10, 0);
+    assertEquals(ROW_KEY_COUNT * 2, underTest.getMaxRowKeyCount());
+    // The batch was far from the byte limit, so that limit doesn't change.
+    assertEquals(REQUEST_SIZE, underTest.getMaxRequestSize());
+
+    for (int i = 0; i < 20; i++) {
+      underTest.onResponse(underTest.getMaxRowKeyCount(), 10000, TARGET_NANOS / 10, 0);
+    }
+    assertEquals(ROW_KEY_COUNT * AdaptiveBatchSizer.GROWTH_LIMIT, underTest.getMaxRowKeyCount());
+  }
+
+  @Test
+  public void testPartialBatchesDoNotChangeLimits() {
+    AdaptiveBatchSizer underTest = new AdaptiveBatchSizer(adaptiveOptions);
+    underTest.onResponse(1, 100, TARGET_NANOS / 10, 0);
+    assertEquals(ROW_KEY_COUNT, underTest.getMaxRowKeyCount());
+    assertEquals(REQUEST_SIZE, underTest.getMaxRequestSize());
+  }
+
+  @Test
+  public void testSlowBatchesShrink() {
+    AdaptiveBatchSizer underTest = new AdaptiveBatchSizer(adaptiveOptions);
+    // Large rows that take longer than the target.
+    underTest.onResponse(10, REQUEST_SIZE, TARGET_NANOS * 4 / 3, 0);
+    // A limit at most halves per response.
+    assertEquals(ROW_KEY_COUNT / 2, underTest.getMaxRowKeyCount());
+    assertEquals(REQUEST_SIZE * 3 / 4, underTest.getMaxRequestSize());
+
+    for (int i = 0; i < 100; i++) {
+      underTest.onResponse(1, underTest.getMaxRequestSize(), TARGET_NANOS * 10, 0);
+    }
+    assertEquals(1, underTest.getMaxRowKeyCount());
+    assertEquals(AdaptiveBatchSizer.MIN_REQUEST_SIZE, underTest.getMaxRequestSize());
+  }
+
+  @Test
+  public void testFailuresShrink() {
+    AdaptiveBatchSizer underTest = new AdaptiveBatchSizer(adaptiveOptions);
+    underTest.onResponse(ROW_KEY_COUNT, 10000, TARGET_NANOS / 10, ROW_KEY_COUNT / 2);
+    assertEquals(ROW_KEY_COUNT * 3 / 4, underTest.getMaxRowKeyCount());
+    assertEquals(REQUEST_SIZE * 3 / 4, underTest.getMaxRequestSize());
+    underTest.onResponse(10, 10000, TARGET_NANOS / 10, 10);
+    assertEquals(ROW_KEY_COUNT * 3 / 8, underTest.getMaxRowKeyCount());
+  }
+
+  private static MutateRowRequest createRequest(int i) {
+    return MutateRowRequest.newBuilder()
+        .setRowKey(ByteString.copyFromUtf8("row" + i))
+        .addMutations(Mutation.newBuilder()
+            .setSetCell(SetCell.newBuilder()
+                .setFamilyName("cf1")
+                .setColumnQualifier(ByteString.copyFromUtf8("qual"))))
+        .build();
+  }
+}
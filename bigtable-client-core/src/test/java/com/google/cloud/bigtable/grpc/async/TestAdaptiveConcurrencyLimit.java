@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Tests for {@link AdaptiveConcurrencyLimit} and {@link AdaptiveHeapSizeManager}.
+ */
+@RunWith(JUnit4.class)
+public class TestAdaptiveConcurrencyLimit {
+
+  private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+  @Test
+  public void testGrowsToMaxWhileLatencyIsStable() {
+    AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(1, 100);
+    assertEquals(1, underTest.getLimit());
+    for (int i = 0; i < 200; i++) {
+      underTest.onSample(RTT, underTest.getLimit(), false);
+    }
+    assertEquals(100, underTest.getLimit());
+  }
+
+  @Test
+  public void testDoesNotGrowWhenUnderused() {
+    AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(10, 100);
+    for (int i = 0; i < 200; i++) {
+      underTest.onSample(RTT, 1, false);
+    }
+    assertEquals(10, underTest.getLimit());
+  }
+
+  @Test
+  public void testShrinksWhenLatencyGrows() {
+    AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(1, 100);
+    for (int i = 0; i < 200; i++) {
+      underTest.onSample(RTT, underTest.getLimit(), false);
+    }
+    for (int i = 0; i < 20; i++) {
+      underTest.onSample(RTT * 10, underTest.getLimit(), false);
+    }
+    int limit = underTest.getLimit();
+    assertTrue("limit was " + limit, limit < 50);
+    assertTrue("limit was " + limit, limit >= 1);
+  }
+
+  @Test
+  public void testShrinksOnFailures() {
+    AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(5, 100);
+    for (int i = 0; i < 200; i++) {
+      underTest.onSample(RTT, underTest.getLimit(), false);
+    }
+    underTest.onSample(RTT, underTest.getLimit(), true);
+    assertEquals((int) (100 * AdaptiveConcurrencyLimit.FAILURE_BACKOFF_RATIO),
+      underTest.getLimit());
+    for (int i = 0; i < 100; i++) {
+      underTest.onSample(RTT, underTest.getLimit(), true);
+    }
+    assertEquals(5, underTest.getLimit());
+  }
+
+  @Test
+  public void testConcurrentSamples() throws Exception {
+    final AdaptiveConcurrencyLimit underTest = new AdaptiveConcurrencyLimit(1, 100);
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(pool.submit(new Runnable() {
+          @Override
+          public void run() {
+            for (int j = 0; j < 1000; j++) {
+              underTest.onSample(RTT, underTest.getLimit(), false);
+              int limit = underTest.getLimit();
+              assertTrue("limit was " + limit, limit >= 1 && limit <= 100);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    assertEquals(100, underTest.getLimit());
+  }
+
+  @Test
+  public void testHeapSizeManagerUsesLimit() throws Exception {
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 10);
+    AdaptiveHeapSizeManager underTest = new AdaptiveHeapSizeManager(1000l, limit);
+    assertEquals(1, underTest.getMaxInFlightRpcs());
+    long id = underTest.registerOperationWithHeapSize(1);
+    assertTrue(underTest.isFull());
+
+    for (int i = 0; i < 100; i++) {
+      limit.onSample(RTT, limit.getLimit(), false);
+    }
+    assertEquals(10, underTest.getMaxInFlightRpcs());
+    assertFalse(underTest.isFull());
+
+    // A failed operation is reported to the limit.
+    SettableFuture<String> future = SettableFuture.create();
+    underTest.addCallback(future, id);
+    future.setException(new RuntimeException());
+    assertFalse(underTest.hasInflightRequests());
+    assertEquals(9, underTest.getMaxInFlightRpcs());
+  }
+}
@@ -8,6 +8,7 @@
  */
 package com.google.cloud.bigtable.grpc.async;
 
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 
 import org.junit.Assert;
@@ -140,4 +141,57 @@ public class TestBulkMutation {
       Assert.assertEquals(throwable, e.getCause());
     }
   }
+
+  @Test
+  public void testCoalesceRows() throws Exception {
+    BulkMutation underTest = new BulkMutation(tableName, true);
+    MutateRowRequest request1 = createRequest("row1", "value1");
+    MutateRowRequest request2 = createRequest("row2", "value2");
+    MutateRowRequest request3 = createRequest("row1", "value3");
+    SettableFuture<Empty> rowFuture1 = underTest.add(request1);
+    SettableFuture<Empty> rowFuture2 = underTest.add(request2);
+    SettableFuture<Empty> rowFuture3 = underTest.add(request3);
+    Assert.assertEquals(2, underTest.getRowKeyCount());
+    Assert.assertEquals(3, underTest.getRequestCount());
+
+    MutateRowsRequest expected = MutateRowsRequest.newBuilder()
+        .setTableName(tableName)
+        .addEntries(Entry.newBuilder()
+            .setRowKey(request1.getRowKey())
+            .addMutations(request1.getMutations(0))
+            .addMutations(request3.getMutations(0)))
+        .addEntries(Entry.newBuilder()
+            .setRowKey(request2.getRowKey())
+            .addMutations(request2.getMutations(0)))
+        .build();
+    Assert.assertEquals(expected, underTest.toRequest());
+
+    SettableFuture<MutateRowsResponse> rowsFuture = SettableFuture.<MutateRowsResponse> create();
+    underTest.addCallback(rowsFuture);
+    rowsFuture.set(MutateRowsResponse.newBuilder()
+        .addStatuses(Status.newBuilder().setCode(io.grpc.Status.NOT_FOUND.getCode().value()))
+        .addStatuses(Status.newBuilder().setCode(io.grpc.Status.OK.getCode().value()))
+        .build());
+    Assert.assertEquals(Empty.getDefaultInstance(), rowFuture2.get());
+    for (SettableFuture<Empty> future : Arrays.asList(rowFuture1, rowFuture3)) {
+      try {
+        future.get();
+        Assert.fail("expected an exception");
+      } catch (ExecutionException e) {
+        Assert.assertEquals(io.grpc.Status.Code.NOT_FOUND,
+          ((StatusException) e.getCause()).getStatus().getCode());
+      }
+    }
+  }
+
+  private MutateRowRequest createRequest(String rowKey, String value) {
+    return MutateRowRequest.newBuilder()
+        .setRowKey(ByteString.copyFromUtf8(rowKey))
+        .addMutations(Mutation.newBuilder()
+            .setSetCell(SetCell.newBuilder()
+                .setFamilyName("cf1")
+                .setColumnQualifier(qualifier)
+                .setValue(ByteString.copyFromUtf8(value))))
+        .build();
+  }
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import com.google.rpc.Status;
+
+/**
+ * Tests for {@link BulkMutationAccumulator}
+ */
+@RunWith(JUnit4.class)
+public class TestBulkMutationAccumulator {
+  private final static String TABLE_NAME = "table";
+  private final static int MAX_ROW_KEY_COUNT = 10;
+
+  @Mock
+  private AsyncExecutor asyncExecutor;
+
+  private BigtableOptions options;
+  private AtomicInteger sentEntryCount;
+
+  @Before
+  public void setup() throws InterruptedException {
+    MockitoAnnotations.initMocks(this);
+    options = new BigtableOptions.Builder()
+        .setUseBulkApi(true)
+        .setBulkMaxRowKeyCount(MAX_ROW_KEY_COUNT)
+        .build();
+    sentEntryCount = new AtomicInteger();
+    Answer<ListenableFuture<MutateRowsResponse>> okAnswer =
+        new Answer<ListenableFuture<MutateRowsResponse>>() {
+          @Override
+          public ListenableFuture<MutateRowsResponse> answer(InvocationOnMock invocation) {
+            MutateRowsRequest request = (MutateRowsRequest) invocation.getArguments()[0];
+            Assert.assertEquals(TABLE_NAME, request.getTableName());
+            sentEntryCount.addAndGet(request.getEntriesCount());
+            MutateRowsResponse.Builder response = MutateRowsResponse.newBuilder();
+            for (int i = 0; i < request.getEntriesCount(); i++) {
+              response.addStatuses(Status.newBuilder().setCode(io.grpc.Status.OK.getCode().value()));
+            }
+            return Futures.immediateFuture(response.build());
+          }
+        };
+    when(asyncExecutor.mutateRowsAsync(any(MutateRowsRequest.class))).thenAnswer(okAnswer);
+    when(asyncExecutor.tryMutateRowsAsync(any(MutateRowsRequest.class))).thenAnswer(okAnswer);
+  }
+
+  @Test
+  public void testSendWhenFull() throws Exception {
+    BulkMutationAccumulator underTest =
+        new BulkMutationAccumulator(asyncExecutor, TABLE_NAME, options, null, 1);
+    List<ListenableFuture<Empty>> futures = new ArrayList<>();
+    for (int i = 0; i < MAX_ROW_KEY_COUNT - 1; i++) {
+      futures.add(underTest.add(createRequest(i)));
+    }
+    verify(asyncExecutor, never()).mutateRowsAsync(any(MutateRowsRequest.class));
+    Assert.assertFalse(futures.get(0).isDone());
+
+    futures.add(underTest.add(createRequest(MAX_ROW_KEY_COUNT)));
+    verify(asyncExecutor, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+    for (ListenableFuture<Empty> future : futures) {
+      Assert.assertEquals(Empty.getDefaultInstance(), future.get());
+    }
+
+    // Nothing is pending, so flush should not send anything.
+    underTest.flush();
+    verify(asyncExecutor, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+  }
+
+  @Test
+  public void testFlushSendsPartialBatch() throws Exception {
+    BulkMutationAccumulator underTest =
+        new BulkMutationAccumulator(asyncExecutor, TABLE_NAME, options, null, 4);
+    ListenableFuture<Empty> future = underTest.add(createRequest(0));
+    Assert.assertFalse(future.isDone());
+    underTest.flush();
+    verify(asyncExecutor, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+    Assert.assertEquals(Empty.getDefaultInstance(), future.get());
+  }
+
+  @Test
+  public void testLingerSendsPartialBatch() throws Exception {
+    ScheduledExecutorService lingerExecutor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      BigtableOptions lingerOptions = options.toBuilder().setBulkLingerMs(10).build();
+      BulkMutationAccumulator underTest =
+          new BulkMutationAccumulator(asyncExecutor, TABLE_NAME, lingerOptions, lingerExecutor, 1);
+      ListenableFuture<Empty> future = underTest.add(createRequest(0));
+      // No flush() is called; the linger interval should send the batch.
+      Assert.assertEquals(Empty.getDefaultInstance(), future.get(1, TimeUnit.SECONDS));
+      verify(asyncExecutor, times(1)).tryMutateRowsAsync(any(MutateRowsRequest.class));
+
+      // A batch that is sent because it is full should not be sent again by its linger task.
+      for (int i = 0; i < MAX_ROW_KEY_COUNT; i++) {
+        future = underTest.add(createRequest(i));
+      }
+      future.get(1, TimeUnit.SECONDS);
+      Thread.sleep(50);
+      verify(asyncExecutor, times(1)).tryMutateRowsAsync(any(MutateRowsRequest.class));
+      verify(asyncExecutor, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+    } finally {
+      lingerExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * The linger executor is shared, so a full {@link HeapSizeManager} must not block it. The batch
+   * should be retried once there is room, and other tasks should keep running in the meantime.
+   */
+  @Test
+  public void testLingerDoesNotBlockWhenFull() throws Exception {
+    final AtomicInteger fullCount = new AtomicInteger(3);
+    doAnswer(new Answer<ListenableFuture<MutateRowsResponse>>() {
+      @Override
+      public ListenableFuture<MutateRowsResponse> answer(InvocationOnMock invocation)
+          throws Throwable {
+        if (fullCount.getAndDecrement() > 0) {
+          return null;
+        }
+        return asyncExecutor.mutateRowsAsync((MutateRowsRequest) invocation.getArguments()[0]);
+      }
+    }).when(asyncExecutor).tryMutateRowsAsync(any(MutateRowsRequest.class));
+    ScheduledExecutorService lingerExecutor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      BigtableOptions lingerOptions = options.toBuilder().setBulkLingerMs(10).build();
+      BulkMutationAccumulator underTest =
+          new BulkMutationAccumulator(asyncExecutor, TABLE_NAME, lingerOptions, lingerExecutor, 1);
+      ListenableFuture<Empty> future = underTest.add(createRequest(0));
+
+      // While the batch waits for room, the single linger thread is still free for other work.
+      Future<Boolean> other = lingerExecutor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return true;
+        }
+      });
+      Assert.assertTrue(other.get(1, TimeUnit.SECONDS));
+
+      Assert.assertEquals(Empty.getDefaultInstance(), future.get(1, TimeUnit.SECONDS));
+      verify(asyncExecutor, times(4)).tryMutateRowsAsync(any(MutateRowsRequest.class));
+      Assert.assertEquals(1, sentEntryCount.get());
+    } finally {
+      lingerExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * tryAdd() never blocks. A batch that it fills while the {@link HeapSizeManager} is full goes to
+   * the flush executor, and the stripe takes no more requests until that batch is sent.
+   */
+  @Test
+  public void testTryAddHandsFullBatchToFlushExecutor() throws Exception {
+    final AtomicInteger fullCount = new AtomicInteger(3);
+    doAnswer(new Answer<ListenableFuture<MutateRowsResponse>>() {
+      @Override
+      public ListenableFuture<MutateRowsResponse> answer(InvocationOnMock invocation)
+          throws Throwable {
+        if (fullCount.getAndDecrement() > 0) {
+          return null;
+        }
+        return asyncExecutor.mutateRowsAsync((MutateRowsRequest) invocation.getArguments()[0]);
+      }
+    }).when(asyncExecutor).tryMutateRowsAsync(any(MutateRowsRequest.class));
+    ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      BulkMutationAccumulator underTest =
+          new BulkMutationAccumulator(asyncExecutor, TABLE_NAME, options, flushExecutor, 1);
+      List<BufferedMutationResult<Empty>> results = new ArrayList<>();
+      for (int i = 0; i < MAX_ROW_KEY_COUNT; i++) {
+        BufferedMutationResult<Empty> result = underTest.tryAdd(createRequest(i));
+        Assert.assertFalse(result.isRejected());
+        results.add(result);
+      }
+      // The only stripe holds a full batch, so it is rejected rather than blocking or growing.
+      if (fullCount.get() > 0) {
+        Assert.assertTrue(underTest.tryAdd(createRequest(MAX_ROW_KEY_COUNT)).isRejected());
+      }
+      for (BufferedMutationResult<Empty> result : results) {
+        Assert.assertTrue(result.getAccepted().get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Empty.getDefaultInstance(), result.getApplied().get());
+      }
+      verify(asyncExecutor, times(4)).tryMutateRowsAsync(any(MutateRowsRequest.class));
+      Assert.assertEquals(MAX_ROW_KEY_COUNT, sentEntryCount.get());
+    } finally {
+      flushExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testConcurrentAdds() throws Exception {
+    final int threadCount = 8;
+    final int requestsPerThread = 1000;
+    final BulkMutationAccumulator underTest =
+        new BulkMutationAccumulator(asyncExecutor, TABLE_NAME, options, null, 4);
+    ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<List<ListenableFuture<Empty>>>> results = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        results.add(pool.submit(new Callable<List<ListenableFuture<Empty>>>() {
+          @Override
+          public List<ListenableFuture<Empty>> call() {
+            List<ListenableFuture<Empty>> futures = new ArrayList<>();
+            for (int j = 0; j < requestsPerThread; j++) {
+              futures.add(underTest.add(createRequest(j)));
+            }
+            return futures;
+          }
+        }));
+      }
+      List<ListenableFuture<Empty>> futures = new ArrayList<>();
+      for (Future<List<ListenableFuture<Empty>>> result : results) {
+        futures.addAll(result.get(30, TimeUnit.SECONDS));
+      }
+      underTest.flush();
+      Assert.assertEquals(threadCount * requestsPerThread, sentEntryCount.get());
+      for (ListenableFuture<Empty> future : futures) {
+        Assert.assertTrue(future.isDone());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static MutateRowRequest createRequest(int i) {
+    return MutateRowRequest.newBuilder()
+        .setRowKey(ByteString.copyFromUtf8("row" + i))
+        .addMutations(Mutation.newBuilder()
+            .setSetCell(SetCell.newBuilder()
+                .setFamilyName("cf1")
+                .setColumnQualifier(ByteString.copyFromUtf8("qual"))))
+        .build();
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+@RunWith(JUnit4.class)
+public class TestConcurrentHeapSizeManager {
+
+  @Test
+  public void testRpcCount() throws InterruptedException {
+    HeapSizeManager underTest = new ConcurrentHeapSizeManager(100l, 2);
+
+    assertFalse(underTest.isFull());
+    assertFalse(underTest.hasInflightRequests());
+
+    long id = underTest.registerOperationWithHeapSize(1);
+    assertFalse(underTest.isFull());
+    assertTrue(underTest.hasInflightRequests());
+
+    long id2 = underTest.registerOperationWithHeapSize(1);
+    assertTrue(underTest.hasInflightRequests());
+    assertTrue(underTest.isFull());
+
+    underTest.markCanBeCompleted(id);
+    assertFalse(underTest.isFull());
+    assertTrue(underTest.hasInflightRequests());
+
+    underTest.markCanBeCompleted(id2);
+    assertFalse(underTest.isFull());
+    assertFalse(underTest.hasInflightRequests());
+  }
+
+  @Test
+  public void testSize() throws InterruptedException {
+    HeapSizeManager underTest = new ConcurrentHeapSizeManager(10l, 1000);
+    long id = underTest.registerOperationWithHeapSize(5l);
+    assertFalse(underTest.isFull());
+    assertEquals(5l, underTest.getHeapSize());
+
+    long id2 = underTest.registerOperationWithHeapSize(5l);
+    assertTrue(underTest.isFull());
+    assertEquals(10l, underTest.getHeapSize());
+
+    underTest.markCanBeCompleted(id);
+    assertFalse(underTest.isFull());
+    assertEquals(5l, underTest.getHeapSize());
+
+    // A duplicate completion should not change the accounting.
+    underTest.markCanBeCompleted(id);
+    assertEquals(5l, underTest.getHeapSize());
+
+    underTest.markCanBeCompleted(id2);
+    assertEquals(0l, underTest.getHeapSize());
+    assertFalse(underTest.hasInflightRequests());
+  }
+
+  @Test
+  public void testTryRegister() {
+    HeapSizeManager underTest = new ConcurrentHeapSizeManager(10l, 1);
+    long id = underTest.tryRegisterOperationWithHeapSize(5l);
+    assertTrue(id > 0);
+    assertEquals(-1, underTest.tryRegisterOperationWithHeapSize(5l));
+    assertEquals(5l, underTest.getHeapSize());
+
+    underTest.markCanBeCompleted(id);
+    assertTrue(underTest.tryRegisterOperationWithHeapSize(5l) > 0);
+  }
+
+  @Test
+  public void testCallbackCompletesImmediately() throws InterruptedException {
+    HeapSizeManager underTest = new ConcurrentHeapSizeManager(10l, 1000);
+    long id = underTest.registerOperationWithHeapSize(5l);
+    SettableFuture<Void> future = SettableFuture.create();
+    underTest.addCallback(future, id);
+    assertTrue(underTest.hasInflightRequests());
+    future.set(null);
+    assertFalse(underTest.hasInflightRequests());
+  }
+
+  /**
+   * Makes sure that a blocked registration is released by a completion.
+   */
+  @Test
+  public void testSizeLimitReachWaits() throws Exception {
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      final HeapSizeManager underTest = new ConcurrentHeapSizeManager(1l, 1);
+      long id = underTest.registerOperationWithHeapSize(5l);
+      assertTrue(underTest.isFull());
+      Future<Long> secondRegistration = pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return underTest.registerOperationWithHeapSize(5l);
+        }
+      });
+      try {
+        secondRegistration.get(50, TimeUnit.MILLISECONDS);
+        Assert.fail("The registration should have blocked.");
+      } catch (TimeoutException expected) {
+        // Expected Exception.
+      }
+      underTest.markCanBeCompleted(id);
+      secondRegistration.get(1, TimeUnit.SECONDS);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testConcurrentRegistrationsAndFlush() throws Exception {
+    final int threadCount = 16;
+    final int registrationsPerThread = 2000;
+    ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+    try {
+      final HeapSizeManager underTest = new ConcurrentHeapSizeManager(100l, 10);
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        futures.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int j = 0; j < registrationsPerThread; j++) {
+              underTest.markCanBeCompleted(underTest.registerOperationWithHeapSize(1));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+      underTest.flush();
+      assertFalse(underTest.hasInflightRequests());
+      assertEquals(0l, underTest.getHeapSize());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.bigtable.v1.Cell;
+import com.google.bigtable.v1.Column;
+import com.google.bigtable.v1.Family;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.bigtable.v1.ReadModifyWriteRule;
+import com.google.bigtable.v1.Row;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests for {@link IncrementAggregator}
+ */
+@RunWith(JUnit4.class)
+public class TestIncrementAggregator {
+  /** A window that never passes during a test, so that only flush() sends. */
+  private static final long LONG_WINDOW_MS = TimeUnit.HOURS.toMillis(1);
+  private static final String TABLE_NAME = "table";
+  private static final ByteString ROW_KEY = ByteString.copyFromUtf8("row");
+  private static final String FAMILY = "cf";
+  private static final ByteString QUALIFIER = ByteString.copyFromUtf8("qual");
+
+  @Mock
+  private BigtableDataClient client;
+
+  private ScheduledThreadPoolExecutor flushExecutor;
+  private SettableFuture<Row> response;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    flushExecutor = new ScheduledThreadPoolExecutor(1);
+    flushExecutor.setRemoveOnCancelPolicy(true);
+    response = SettableFuture.create();
+    when(client.readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class)))
+        .thenReturn(response);
+  }
+
+  @After
+  public void teardown() {
+    flushExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testIncrementsAreCombined() throws Exception {
+    IncrementAggregator underTest =
+        new IncrementAggregator(client, flushExecutor, LONG_WINDOW_MS, 100);
+    ListenableFuture<Row> first = underTest.add(createIncrement(1));
+    ListenableFuture<Row> second = underTest.add(createIncrement(5));
+    verify(client, never()).readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class));
+    Assert.assertEquals(1, flushExecutor.getQueue().size());
+
+    underTest.flush();
+    ArgumentCaptor<ReadModifyWriteRowRequest> sent =
+        ArgumentCaptor.forClass(ReadModifyWriteRowRequest.class);
+    verify(client, times(1)).readModifyWriteRowAsync(sent.capture());
+    // The window's task was cancelled.
+    Assert.assertEquals(0, flushExecutor.getQueue().size());
+    Assert.assertEquals(1, sent.getValue().getRulesCount());
+    Assert.assertEquals(6, sent.getValue().getRules(0).getIncrementAmount());
+
+    // The cell was 100 before both increments.
+    response.set(createRow(106));
+    Assert.assertEquals(101, getValue(first.get()));
+    Assert.assertEquals(106, getValue(second.get()));
+  }
+
+  @Test
+  public void testMaxPendingRequestsSends() throws Exception {
+    IncrementAggregator underTest =
+        new IncrementAggregator(client, flushExecutor, LONG_WINDOW_MS, 2);
+    underTest.add(createIncrement(1));
+    verify(client, never()).readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class));
+    underTest.add(createIncrement(1));
+    verify(client, times(1)).readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class));
+
+    // Nothing is pending, so flush should not send anything.
+    underTest.flush();
+    verify(client, times(1)).readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class));
+  }
+
+  @Test
+  public void testAppendIsSentDirectly() throws Exception {
+    IncrementAggregator underTest =
+        new IncrementAggregator(client, flushExecutor, LONG_WINDOW_MS, 100);
+    ReadModifyWriteRowRequest append = ReadModifyWriteRowRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setRowKey(ROW_KEY)
+        .addRules(ReadModifyWriteRule.newBuilder()
+            .setFamilyName(FAMILY)
+            .setColumnQualifier(QUALIFIER)
+            .setAppendValue(ByteString.copyFromUtf8("value")))
+        .build();
+    Assert.assertSame(response, underTest.add(append));
+    verify(client, times(1)).readModifyWriteRowAsync(append);
+    Assert.assertEquals(0, flushExecutor.getTaskCount());
+  }
+
+  @Test
+  public void testFailureIsPropagated() throws Exception {
+    IncrementAggregator underTest =
+        new IncrementAggregator(client, flushExecutor, LONG_WINDOW_MS, 100);
+    ListenableFuture<Row> first = underTest.add(createIncrement(1));
+    ListenableFuture<Row> second = underTest.add(createIncrement(2));
+    underTest.flush();
+    RuntimeException exception = io.grpc.Status.UNAVAILABLE.asRuntimeException();
+    response.setException(exception);
+    for (ListenableFuture<Row> future : new ListenableFuture[] { first, second }) {
+      try {
+        future.get();
+        Assert.fail("Expected an ExecutionException");
+      } catch (ExecutionException e) {
+        Assert.assertSame(exception, e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Many threads increment the same cell, and the window sends the combined requests. Each caller
+   * should see a distinct value, as if the increments had been applied one at a time.
+   */
+  @Test
+  public void testConcurrentIncrements() throws Exception {
+    final int threadCount = 8;
+    final int incrementsPerThread = 200;
+    final AtomicLong cell = new AtomicLong();
+    when(client.readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class)))
+        .then(new Answer<ListenableFuture<Row>>() {
+          @Override
+          public ListenableFuture<Row> answer(InvocationOnMock invocation) {
+            ReadModifyWriteRowRequest request =
+                (ReadModifyWriteRowRequest) invocation.getArguments()[0];
+            long value = cell.addAndGet(request.getRules(0).getIncrementAmount());
+            return Futures.immediateFuture(createRow(value));
+          }
+        });
+    final IncrementAggregator underTest = new IncrementAggregator(client, flushExecutor, 1, 50);
+    ExecutorService callers = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<List<ListenableFuture<Row>>>> results = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        results.add(callers.submit(new Callable<List<ListenableFuture<Row>>>() {
+          @Override
+          public List<ListenableFuture<Row>> call() {
+            List<ListenableFuture<Row>> futures = new ArrayList<>();
+            for (int j = 0; j < incrementsPerThread; j++) {
+              futures.add(underTest.add(createIncrement(1)));
+            }
+            return futures;
+          }
+        }));
+      }
+      Set<Long> values = new HashSet<>();
+      for (Future<List<ListenableFuture<Row>>> result : results) {
+        for (ListenableFuture<Row> future : result.get(10, TimeUnit.SECONDS)) {
+          Assert.assertTrue(values.add(getValue(future.get(10, TimeUnit.SECONDS))));
+        }
+      }
+      int total = threadCount * incrementsPerThread;
+      Assert.assertEquals(total, cell.get());
+      Assert.assertEquals(total, values.size());
+      Assert.assertEquals(1L, (long) Collections.min(values));
+      Assert.assertEquals(total, (long) Collections.max(values));
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  private static ReadModifyWriteRowRequest createIncrement(long amount) {
+    return ReadModifyWriteRowRequest.newBuilder()
+        .setTableName(TABLE_NAME)
+        .setRowKey(ROW_KEY)
+        .addRules(ReadModifyWriteRule.newBuilder()
+            .setFamilyName(FAMILY)
+            .setColumnQualifier(QUALIFIER)
+            .setIncrementAmount(amount))
+        .build();
+  }
+
+  private static Row createRow(long value) {
+    return Row.newBuilder()
+        .setKey(ROW_KEY)
+        .addFamilies(Family.newBuilder()
+            .setName(FAMILY)
+            .addColumns(Column.newBuilder()
+                .setQualifier(QUALIFIER)
+                .addCells(Cell.newBuilder()
+                    .setTimestampMicros(1000)
+                    .setValue(ByteString.copyFrom(Longs.toByteArray(value))))))
+        .build();
+  }
+
+  private static long getValue(Row row) {
+    return Longs.fromByteArray(
+      row.getFamilies(0).getColumns(0).getCells(0).getValue().toByteArray());
+  }
+}
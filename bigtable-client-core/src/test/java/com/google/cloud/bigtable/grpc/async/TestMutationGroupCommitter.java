@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import com.google.rpc.Status;
+
+/**
+ * Tests for {@link MutationGroupCommitter}
+ */
+@RunWith(JUnit4.class)
+public class TestMutationGroupCommitter {
+  /** A window that never passes during a test, so that only flush() or a full group sends. */
+  private static final long LONG_WINDOW_MICROS = TimeUnit.HOURS.toMicros(1);
+  private static final String TABLE_NAME = "table";
+  /** The server answers NOT_FOUND for this row, and OK for every other row. */
+  private static final String MISSING_ROW = "missing";
+
+  @Mock
+  private BigtableDataClient client;
+
+  private ScheduledThreadPoolExecutor flushExecutor;
+  private AtomicInteger sentEntryCount;
+  private AtomicInteger maxEntryCount;
+
+  @Before
+  public void setup() {
+    MockitoAnnotations.initMocks(this);
+    flushExecutor = new ScheduledThreadPoolExecutor(1);
+    flushExecutor.setRemoveOnCancelPolicy(true);
+    sentEntryCount = new AtomicInteger();
+    maxEntryCount = new AtomicInteger();
+    when(client.mutateRowsAsync(any(MutateRowsRequest.class))).then(
+      new Answer<ListenableFuture<MutateRowsResponse>>() {
+        @Override
+        public ListenableFuture<MutateRowsResponse> answer(InvocationOnMock invocation) {
+          MutateRowsRequest request = (MutateRowsRequest) invocation.getArguments()[0];
+          sentEntryCount.addAndGet(request.getEntriesCount());
+          synchronized (maxEntryCount) {
+            maxEntryCount.set(Math.max(maxEntryCount.get(), request.getEntriesCount()));
+          }
+          MutateRowsResponse.Builder response = MutateRowsResponse.newBuilder();
+          for (MutateRowsRequest.Entry entry : request.getEntriesList()) {
+            io.grpc.Status.Code code = entry.getRowKey().toStringUtf8().equals(MISSING_ROW)
+                ? io.grpc.Status.Code.NOT_FOUND : io.grpc.Status.Code.OK;
+            response.addStatuses(Status.newBuilder().setCode(code.value()));
+          }
+          return Futures.immediateFuture(response.build());
+        }
+      });
+  }
+
+  @After
+  public void teardown() {
+    flushExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testRequestsAreGrouped() throws Exception {
+    MutationGroupCommitter underTest =
+        new MutationGroupCommitter(client, flushExecutor, LONG_WINDOW_MICROS, 100, 1 << 20);
+    ListenableFuture<Empty> first = underTest.add(createRequest(TABLE_NAME, "row1"));
+    ListenableFuture<Empty> second = underTest.add(createRequest(TABLE_NAME, MISSING_ROW));
+    verify(client, never()).mutateRowsAsync(any(MutateRowsRequest.class));
+    Assert.assertEquals(1, flushExecutor.getQueue().size());
+
+    underTest.flush();
+    ArgumentCaptor<MutateRowsRequest> sent = ArgumentCaptor.forClass(MutateRowsRequest.class);
+    verify(client, times(1)).mutateRowsAsync(sent.capture());
+    // The window's task was cancelled.
+    Assert.assertEquals(0, flushExecutor.getQueue().size());
+    Assert.assertEquals(2, sent.getValue().getEntriesCount());
+
+    first.get();
+    try {
+      second.get();
+      Assert.fail("Expected an ExecutionException");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(io.grpc.Status.Code.NOT_FOUND,
+        io.grpc.Status.fromThrowable(e.getCause()).getCode());
+    }
+  }
+
+  @Test
+  public void testTablesAreGroupedSeparately() {
+    MutationGroupCommitter underTest =
+        new MutationGroupCommitter(client, flushExecutor, LONG_WINDOW_MICROS, 100, 1 << 20);
+    underTest.add(createRequest(TABLE_NAME, "row1"));
+    underTest.add(createRequest("other", "row1"));
+    Assert.assertEquals(2, flushExecutor.getQueue().size());
+    underTest.flush();
+    verify(client, times(2)).mutateRowsAsync(any(MutateRowsRequest.class));
+  }
+
+  @Test
+  public void testMaxRowKeyCountSends() {
+    MutationGroupCommitter underTest =
+        new MutationGroupCommitter(client, flushExecutor, LONG_WINDOW_MICROS, 2, 1 << 20);
+    underTest.add(createRequest(TABLE_NAME, "row1"));
+    verify(client, never()).mutateRowsAsync(any(MutateRowsRequest.class));
+    underTest.add(createRequest(TABLE_NAME, "row2"));
+    verify(client, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+    Assert.assertEquals(0, flushExecutor.getQueue().size());
+
+    // Nothing is pending, so flush should not send anything.
+    underTest.flush();
+    verify(client, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+  }
+
+  @Test
+  public void testWindowSends() throws Exception {
+    MutationGroupCommitter underTest =
+        new MutationGroupCommitter(client, flushExecutor, 1000, 100, 1 << 20);
+    underTest.add(createRequest(TABLE_NAME, "row1")).get(1, TimeUnit.SECONDS);
+    verify(client, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+
+    // A new group gets a new window.
+    underTest.add(createRequest(TABLE_NAME, "row2")).get(1, TimeUnit.SECONDS);
+    verify(client, times(2)).mutateRowsAsync(any(MutateRowsRequest.class));
+  }
+
+  @Test
+  public void testConcurrentCallers() throws Exception {
+    final int threadCount = 8;
+    final int requestsPerThread = 200;
+    final int maxRowKeyCount = 50;
+    final MutationGroupCommitter underTest =
+        new MutationGroupCommitter(client, flushExecutor, 100, maxRowKeyCount, 1 << 20);
+    ExecutorService callers = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        final String prefix = "thread" + i + "-";
+        results.add(callers.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            // Each caller waits for its write, like a synchronous Table.put().
+            for (int j = 0; j < requestsPerThread; j++) {
+              underTest.add(createRequest(TABLE_NAME, prefix + j)).get(10, TimeUnit.SECONDS);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get(30, TimeUnit.SECONDS);
+      }
+      Assert.assertEquals(threadCount * requestsPerThread, sentEntryCount.get());
+      Assert.assertTrue(maxEntryCount.get() <= maxRowKeyCount);
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  private static MutateRowRequest createRequest(String tableName, String rowKey) {
+    return MutateRowRequest.newBuilder()
+        .setTableName(tableName)
+        .setRowKey(ByteString.copyFromUtf8(rowKey))
+        .addMutations(Mutation.newBuilder()
+            .setSetCell(SetCell.newBuilder()
+                .setFamilyName("cf")
+                .setColumnQualifier(ByteString.copyFromUtf8("qual"))
+                .setValue(ByteString.copyFromUtf8("value"))))
+        .build();
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.Mutation;
+import com.google.bigtable.v1.Mutation.SetCell;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.bigtable.v1.ReadModifyWriteRule;
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests for {@link MutationSpillFile}
+ */
+@RunWith(JUnit4.class)
+public class TestMutationSpillFile {
+
+  private File file;
+  private MutationSpillFile underTest;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("spill", ".dat");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (underTest != null) {
+      underTest.close();
+    }
+    file.delete();
+  }
+
+  @Test
+  public void testFirstInFirstOut() throws Exception {
+    underTest = new MutationSpillFile(file, 4096);
+    Assert.assertTrue(underTest.isEmpty());
+    Assert.assertNull(underTest.peek());
+    for (int i = 0; i < 10; i++) {
+      Assert.assertTrue(underTest.offer(createRequest(i, 10)));
+    }
+    Assert.assertEquals(10, underTest.size());
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(createRequest(i, 10), underTest.peek());
+      underTest.remove();
+    }
+    Assert.assertTrue(underTest.isEmpty());
+    Assert.assertEquals(0, underTest.getSizeInBytes());
+  }
+
+  @Test
+  public void testFull() throws Exception {
+    MutateRowRequest request = createRequest(0, 100);
+    int recordSize = 5 + request.getSerializedSize();
+    underTest = new MutationSpillFile(file, recordSize * 3);
+    for (int i = 0; i < 3; i++) {
+      Assert.assertTrue(underTest.offer(createRequest(i, 100)));
+    }
+    Assert.assertFalse(underTest.offer(request));
+    Assert.assertEquals(recordSize * 3, underTest.getSizeInBytes());
+
+    // Removing a request makes room again.
+    underTest.remove();
+    Assert.assertTrue(underTest.offer(createRequest(3, 100)));
+  }
+
+  @Test
+  public void testWrapAround() throws Exception {
+    MutateRowRequest request = createRequest(0, 100);
+    int recordSize = 5 + request.getSerializedSize();
+    // Leave a few bytes at the end of the file that can't hold a record.
+    underTest = new MutationSpillFile(file, recordSize * 3 + 2);
+    int next = 0;
+    int expected = 0;
+    for (; next < 3; next++) {
+      Assert.assertTrue(underTest.offer(createRequest(next, 100)));
+    }
+    for (int round = 0; round < 10; round++) {
+      Assert.assertEquals(createRequest(expected++, 100), underTest.peek());
+      underTest.remove();
+      Assert.assertTrue(underTest.offer(createRequest(next++, 100)));
+      Assert.assertFalse(underTest.offer(createRequest(next, 100)));
+    }
+    while (!underTest.isEmpty()) {
+      Assert.assertEquals(createRequest(expected++, 100), underTest.peek());
+      underTest.remove();
+    }
+    Assert.assertEquals(next, expected);
+  }
+
+  @Test
+  public void testReadModifyWriteRequests() throws Exception {
+    underTest = new MutationSpillFile(file, 4096);
+    ReadModifyWriteRowRequest increment = ReadModifyWriteRowRequest.newBuilder()
+        .setTableName("table")
+        .setRowKey(ByteString.copyFromUtf8("row"))
+        .addRules(ReadModifyWriteRule.newBuilder()
+            .setFamilyName("cf")
+            .setColumnQualifier(ByteString.copyFromUtf8("qual"))
+            .setIncrementAmount(1))
+        .build();
+    Assert.assertTrue(underTest.offer(createRequest(0, 10)));
+    Assert.assertTrue(underTest.offer(increment));
+    Assert.assertEquals(createRequest(0, 10), underTest.peek());
+    underTest.remove();
+    Assert.assertEquals(increment, underTest.peek());
+    underTest.remove();
+    Assert.assertTrue(underTest.isEmpty());
+  }
+
+  @Test
+  public void testPutWaitsForSpace() throws Exception {
+    MutateRowRequest request = createRequest(0, 100);
+    int recordSize = 5 + request.getSerializedSize();
+    underTest = new MutationSpillFile(file, recordSize * 2);
+    Assert.assertTrue(underTest.put(createRequest(0, 100)));
+    Assert.assertTrue(underTest.put(createRequest(1, 100)));
+    // A request that can never fit is refused rather than waiting forever.
+    Assert.assertFalse(underTest.put(createRequest(2, recordSize * 2)));
+
+    Thread remover = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          return;
+        }
+        // Only one record is removed, so put() must not wait for the whole file to drain.
+        underTest.remove();
+      }
+    };
+    remover.start();
+    Assert.assertTrue(underTest.put(createRequest(2, 100)));
+    remover.join();
+    Assert.assertEquals(2, underTest.size());
+    Assert.assertEquals(createRequest(1, 100), underTest.peek());
+  }
+
+  @Test
+  public void testCloseDeletesFile() throws Exception {
+    underTest = new MutationSpillFile(file, 4096);
+    underTest.offer(createRequest(0, 10));
+    Assert.assertTrue(file.exists());
+    underTest.close();
+    Assert.assertFalse(file.exists());
+  }
+
+  @Test
+  public void testAwaitEmpty() throws Exception {
+    underTest = new MutationSpillFile(file, 4096);
+    underTest.offer(createRequest(0, 10));
+    Thread remover = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          return;
+        }
+        underTest.remove();
+      }
+    };
+    remover.start();
+    underTest.awaitEmpty();
+    Assert.assertTrue(underTest.isEmpty());
+    remover.join();
+
+    underTest.offer(createRequest(1, 10));
+    Assert.assertFalse(underTest.awaitEmpty(10, TimeUnit.MILLISECONDS));
+  }
+
+  private static MutateRowRequest createRequest(int i, int valueSize) {
+    return MutateRowRequest.newBuilder()
+        .setTableName("table")
+        .setRowKey(ByteString.copyFromUtf8(String.format("row%05d", i)))
+        .addMutations(Mutation.newBuilder()
+            .setSetCell(SetCell.newBuilder()
+                .setFamilyName("cf")
+                .setColumnQualifier(ByteString.copyFromUtf8("qual"))
+                .setValue(ByteString.copyFrom(new byte[valueSize]))))
+        .build();
+  }
+}
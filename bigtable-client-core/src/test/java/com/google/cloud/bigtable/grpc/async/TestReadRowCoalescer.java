@@ -0,0 +1,335 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.bigtable.v1.ReadRowsRequest;
+import com.google.bigtable.v1.Row;
+import com.google.bigtable.v1.RowFilter;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests for {@link ReadRowCoalescer}
+ */
+@RunWith(JUnit4.class)
+public class TestReadRowCoalescer {
+  /** A window that never passes during a test, so that only flush() or a full batch sends. */
+  private static final long LONG_WINDOW_MICROS = TimeUnit.HOURS.toMicros(1);
+  private static final String TABLE_NAME = "table";
+  private static final RowFilter FILTER = RowFilter.newBuilder().setCellsPerColumnLimitFilter(1)
+      .build();
+  /** The server does not have this row, and returns every other row. */
+  private static final String MISSING_ROW = "missing";
+
+  @Mock
+  private AsyncExecutor asyncExecutor;
+
+  private ScheduledThreadPoolExecutor flushExecutor;
+  private AtomicInteger sentRowKeyCount;
+  private AtomicInteger maxRowKeyCount;
+
+  @Before
+  public void setup() throws InterruptedException {
+    MockitoAnnotations.initMocks(this);
+    flushExecutor = new ScheduledThreadPoolExecutor(1);
+    flushExecutor.setRemoveOnCancelPolicy(true);
+    sentRowKeyCount = new AtomicInteger();
+    maxRowKeyCount = new AtomicInteger();
+    Answer<ListenableFuture<List<Row>>> response = new Answer<ListenableFuture<List<Row>>>() {
+      @Override
+      public ListenableFuture<List<Row>> answer(InvocationOnMock invocation) {
+        ReadRowsRequest request = (ReadRowsRequest) invocation.getArguments()[0];
+        return Futures.immediateFuture(respond(request));
+      }
+    };
+    when(asyncExecutor.readRowsAsync(any(ReadRowsRequest.class))).then(response);
+    when(asyncExecutor.tryReadRowsAsync(any(ReadRowsRequest.class))).then(response);
+  }
+
+  @After
+  public void teardown() {
+    flushExecutor.shutdownNow();
+  }
+
+  private List<Row> respond(ReadRowsRequest request) {
+    int rowKeyCount = request.getRowSet().getRowKeysCount();
+    sentRowKeyCount.addAndGet(rowKeyCount);
+    synchronized (maxRowKeyCount) {
+      maxRowKeyCount.set(Math.max(maxRowKeyCount.get(), rowKeyCount));
+    }
+    List<Row> rows = new ArrayList<>();
+    for (ByteString rowKey : request.getRowSet().getRowKeysList()) {
+      if (!rowKey.toStringUtf8().equals(MISSING_ROW)) {
+        rows.add(Row.newBuilder().setKey(rowKey).build());
+      }
+    }
+    return rows;
+  }
+
+  @Test
+  public void testReadsAreCoalesced() throws Exception {
+    ReadRowCoalescer underTest =
+        new ReadRowCoalescer(asyncExecutor, flushExecutor, LONG_WINDOW_MICROS, 100);
+    ListenableFuture<List<Row>> first = underTest.add(createRequest(TABLE_NAME, FILTER, "row1"));
+    ListenableFuture<List<Row>> second =
+        underTest.add(createRequest(TABLE_NAME, FILTER, MISSING_ROW));
+    verify(asyncExecutor, never()).readRowsAsync(any(ReadRowsRequest.class));
+    Assert.assertEquals(1, flushExecutor.getQueue().size());
+
+    underTest.flush();
+    ArgumentCaptor<ReadRowsRequest> sent = ArgumentCaptor.forClass(ReadRowsRequest.class);
+    verify(asyncExecutor, times(1)).readRowsAsync(sent.capture());
+    // The window's task was cancelled.
+    Assert.assertEquals(0, flushExecutor.getQueue().size());
+    Assert.assertEquals(2, sent.getValue().getRowSet().getRowKeysCount());
+    Assert.assertEquals(FILTER, sent.getValue().getFilter());
+
+    Row row1 = Row.newBuilder().setKey(ByteString.copyFromUtf8("row1")).build();
+    Assert.assertEquals(Arrays.asList(row1), first.get());
+    Assert.assertTrue(second.get().isEmpty());
+  }
+
+  @Test
+  public void testFiltersAreBatchedSeparately() throws Exception {
+    ReadRowCoalescer underTest =
+        new ReadRowCoalescer(asyncExecutor, flushExecutor, LONG_WINDOW_MICROS, 100);
+    underTest.add(createRequest(TABLE_NAME, FILTER, "row1"));
+    underTest.add(createRequest(TABLE_NAME, RowFilter.getDefaultInstance(), "row1"));
+    underTest.add(createRequest(TABLE_NAME, FILTER, "row2"));
+    underTest.add(createRequest("other", FILTER, "row1"));
+    verify(asyncExecutor, never()).readRowsAsync(any(ReadRowsRequest.class));
+    underTest.flush();
+    verify(asyncExecutor, times(3)).readRowsAsync(any(ReadRowsRequest.class));
+  }
+
+  @Test
+  public void testFullBatchIsSent() throws Exception {
+    ReadRowCoalescer underTest =
+        new ReadRowCoalescer(asyncExecutor, flushExecutor, LONG_WINDOW_MICROS, 2);
+    underTest.add(createRequest(TABLE_NAME, FILTER, "row1"));
+    // The same key does not add to the batch's size.
+    underTest.add(createRequest(TABLE_NAME, FILTER, "row1"));
+    verify(asyncExecutor, never()).readRowsAsync(any(ReadRowsRequest.class));
+    underTest.add(createRequest(TABLE_NAME, FILTER, "row2"));
+    verify(asyncExecutor, times(1)).readRowsAsync(any(ReadRowsRequest.class));
+    Assert.assertEquals(0, flushExecutor.getQueue().size());
+
+    // Nothing is pending, so flush should not send anything.
+    underTest.flush();
+    verify(asyncExecutor, times(1)).readRowsAsync(any(ReadRowsRequest.class));
+  }
+
+  @Test
+  public void testWindowSends() throws Exception {
+    ReadRowCoalescer underTest = new ReadRowCoalescer(asyncExecutor, flushExecutor, 1000, 100);
+    ListenableFuture<List<Row>> future = underTest.add(createRequest(TABLE_NAME, FILTER, "row1"));
+    Assert.assertEquals(1, future.get(1, TimeUnit.SECONDS).size());
+    // The window never waits for flow control.
+    verify(asyncExecutor, times(1)).tryReadRowsAsync(any(ReadRowsRequest.class));
+    verify(asyncExecutor, never()).readRowsAsync(any(ReadRowsRequest.class));
+  }
+
+  @Test
+  public void testBlockedSendDoesNotBlockOtherCallers() throws Exception {
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<ListenableFuture<List<Row>>>() {
+      @Override
+      public ListenableFuture<List<Row>> answer(InvocationOnMock invocation)
+          throws InterruptedException {
+        // Like an AsyncExecutor whose flow control is full.
+        sending.countDown();
+        release.await();
+        return Futures.immediateFuture(respond((ReadRowsRequest) invocation.getArguments()[0]));
+      }
+    }).when(asyncExecutor).readRowsAsync(any(ReadRowsRequest.class));
+    final ReadRowCoalescer underTest =
+        new ReadRowCoalescer(asyncExecutor, flushExecutor, LONG_WINDOW_MICROS, 2);
+    ExecutorService callers = Executors.newSingleThreadExecutor();
+    try {
+      underTest.add(createRequest(TABLE_NAME, FILTER, "row1"));
+      Future<List<Row>> blocked = callers.submit(new Callable<List<Row>>() {
+        @Override
+        public List<Row> call() throws Exception {
+          return underTest.add(createRequest(TABLE_NAME, FILTER, "row2")).get();
+        }
+      });
+      Assert.assertTrue(sending.await(1, TimeUnit.SECONDS));
+      // The full batch is being sent, but the next batch can still be added to.
+      ListenableFuture<List<Row>> next = underTest.add(createRequest(TABLE_NAME, FILTER, "row3"));
+      Assert.assertFalse(blocked.isDone());
+      release.countDown();
+      Assert.assertEquals(1, blocked.get(1, TimeUnit.SECONDS).size());
+      underTest.flush();
+      Assert.assertEquals(1, next.get(1, TimeUnit.SECONDS).size());
+    } finally {
+      release.countDown();
+      callers.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testWindowDoesNotBlockFlushExecutor() throws Exception {
+    BigtableDataClient client = mock(BigtableDataClient.class);
+    when(client.readRowsAsync(any(ReadRowsRequest.class))).then(
+      new Answer<ListenableFuture<List<Row>>>() {
+        @Override
+        public ListenableFuture<List<Row>> answer(InvocationOnMock invocation) {
+          return Futures.immediateFuture(respond((ReadRowsRequest) invocation.getArguments()[0]));
+        }
+      });
+    HeapSizeManager heapSizeManager =
+        new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, 1);
+    // Another operation takes the only RPC slot.
+    long operationId = heapSizeManager.registerOperationWithHeapSize(1);
+    ReadRowCoalescer underTest = new ReadRowCoalescer(new AsyncExecutor(client, heapSizeManager),
+        flushExecutor, 1000, 100);
+    ListenableFuture<List<Row>> future = underTest.add(createRequest(TABLE_NAME, FILTER, "row1"));
+
+    // The window passes while the flow control is full, but the flush executor stays free.
+    Thread.sleep(50);
+    Assert.assertFalse(future.isDone());
+    flushExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get(1, TimeUnit.SECONDS);
+    verify(client, never()).readRowsAsync(any(ReadRowsRequest.class));
+
+    // The batch is sent once there is room.
+    heapSizeManager.markCanBeCompleted(operationId);
+    Assert.assertEquals(1, future.get(1, TimeUnit.SECONDS).size());
+    verify(client, times(1)).readRowsAsync(any(ReadRowsRequest.class));
+  }
+
+  @Test
+  public void testFlushSendsBatchWaitingForFlowControl() throws Exception {
+    BigtableDataClient client = mock(BigtableDataClient.class);
+    when(client.readRowsAsync(any(ReadRowsRequest.class))).then(
+      new Answer<ListenableFuture<List<Row>>>() {
+        @Override
+        public ListenableFuture<List<Row>> answer(InvocationOnMock invocation) {
+          return Futures.immediateFuture(respond((ReadRowsRequest) invocation.getArguments()[0]));
+        }
+      });
+    final HeapSizeManager heapSizeManager =
+        new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, 1);
+    final long operationId = heapSizeManager.registerOperationWithHeapSize(1);
+    ReadRowCoalescer underTest = new ReadRowCoalescer(new AsyncExecutor(client, heapSizeManager),
+        flushExecutor, 1000, 100);
+    ListenableFuture<List<Row>> future = underTest.add(createRequest(TABLE_NAME, FILTER, "row1"));
+    Thread.sleep(50);
+    Assert.assertFalse(future.isDone());
+
+    // flush() waits on the caller's thread for the room that the linger task could not get.
+    flushExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        heapSizeManager.markCanBeCompleted(operationId);
+      }
+    }, 20, TimeUnit.MILLISECONDS);
+    underTest.flush();
+    Assert.assertEquals(1, future.get(1, TimeUnit.SECONDS).size());
+    verify(client, times(1)).readRowsAsync(any(ReadRowsRequest.class));
+  }
+
+  @Test
+  public void testConcurrentCallers() throws Exception {
+    final int threadCount = 8;
+    final int readsPerThread = 200;
+    final int batchSize = 50;
+    final ReadRowCoalescer underTest =
+        new ReadRowCoalescer(asyncExecutor, flushExecutor, 100, batchSize);
+    ExecutorService callers = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        final String prefix = "thread" + i + "-";
+        results.add(callers.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            // Each caller waits for its read, like a synchronous Table.get().
+            for (int j = 0; j < readsPerThread; j++) {
+              String rowKey = prefix + j;
+              List<Row> rows = underTest.add(createRequest(TABLE_NAME, FILTER, rowKey))
+                  .get(10, TimeUnit.SECONDS);
+              Assert.assertEquals(1, rows.size());
+              Assert.assertEquals(rowKey, rows.get(0).getKey().toStringUtf8());
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get(30, TimeUnit.SECONDS);
+      }
+      Assert.assertEquals(threadCount * readsPerThread, sentRowKeyCount.get());
+      Assert.assertTrue(maxRowKeyCount.get() <= batchSize);
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRangeIsRejected() throws Exception {
+    ReadRowCoalescer underTest =
+        new ReadRowCoalescer(asyncExecutor, flushExecutor, LONG_WINDOW_MICROS, 100);
+    underTest.add(ReadRowsRequest.newBuilder().setTableName(TABLE_NAME).build());
+  }
+
+  private static ReadRowsRequest createRequest(String tableName, RowFilter filter,
+      String rowKey) {
+    return ReadRowsRequest.newBuilder()
+        .setTableName(tableName)
+        .setFilter(filter)
+        .setRowKey(ByteString.copyFromUtf8(rowKey))
+        .build();
+  }
+}
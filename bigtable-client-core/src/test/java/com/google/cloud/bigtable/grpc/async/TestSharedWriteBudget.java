@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestSharedWriteBudget {
+
+  @Test
+  public void testLimitsAreShared() {
+    SharedWriteBudget budget = new SharedWriteBudget(100l, 3);
+    SharedWriteBudget.Share first = budget.newShare();
+    SharedWriteBudget.Share second = budget.newShare();
+
+    assertTrue(first.tryAcquire(10));
+    assertTrue(second.tryAcquire(10));
+    assertTrue(second.tryAcquire(10));
+    assertEquals(3, budget.getInFlightRpcCount());
+    assertEquals(30l, budget.getHeapSize());
+    assertTrue(first.isFull());
+    assertFalse(first.tryAcquire(10));
+
+    second.release(10);
+    assertFalse(first.isFull());
+    assertTrue(first.tryAcquire(90));
+    assertEquals(110l, budget.getHeapSize());
+    assertFalse(second.tryAcquire(1));
+  }
+
+  @Test
+  public void testFairShareWhileOthersWait() throws InterruptedException {
+    final SharedWriteBudget budget = new SharedWriteBudget(100l, 4);
+    SharedWriteBudget.Share greedy = budget.newShare();
+    SharedWriteBudget.Share other = budget.newShare();
+    assertTrue(greedy.tryAcquire(1));
+    assertTrue(greedy.tryAcquire(1));
+    assertTrue(greedy.tryAcquire(1));
+    assertTrue(other.tryAcquire(1));
+    assertTrue(greedy.isFull());
+
+    // Two shares are waiting, so with 4 active shares, the fair part is 1 RPC each.
+    Thread first = startWaiter(budget.newShare());
+    Thread second = startWaiter(budget.newShare());
+    try {
+      while (budget.getWaitingShareCount() < 2) {
+        Thread.sleep(1);
+      }
+      other.release(1);
+      // The greedy share is above its fair part and may not take the released RPC.
+      assertFalse(greedy.tryAcquire(1));
+    } finally {
+      first.interrupt();
+      second.interrupt();
+    }
+  }
+
+  private static Thread startWaiter(final SharedWriteBudget.Share share) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          share.acquire(1);
+        } catch (InterruptedException e) {
+          // Expected at the end of the test.
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testHeapSizeManagersShareBudget() throws Exception {
+    SharedWriteBudget budget = new SharedWriteBudget(100l, 2);
+    HeapSizeManager first = new ConcurrentHeapSizeManager(100l, 10, budget);
+    HeapSizeManager second = new ConcurrentHeapSizeManager(100l, 10, budget);
+
+    long id = first.registerOperationWithHeapSize(1);
+    first.registerOperationWithHeapSize(1);
+    assertTrue(second.isFull());
+    assertEquals(-1, second.tryRegisterOperationWithHeapSize(1));
+
+    first.markCanBeCompleted(id);
+    assertFalse(second.isFull());
+    assertTrue(second.tryRegisterOperationWithHeapSize(1) >= 0);
+    assertEquals(2, budget.getInFlightRpcCount());
+  }
+
+  @Test
+  public void testWaitingForLocalLimitDoesNotHoldBudget() throws Exception {
+    SharedWriteBudget budget = new SharedWriteBudget(100l, 2);
+    final ConcurrentHeapSizeManager limited = new ConcurrentHeapSizeManager(100l, 1, budget);
+    HeapSizeManager other = new ConcurrentHeapSizeManager(100l, 10, budget);
+
+    long id = limited.registerOperationWithHeapSize(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // This blocks on the limited manager's own RPC limit.
+      Future<Long> blocked = executor.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          return limited.registerOperationWithHeapSize(1);
+        }
+      });
+      Thread.sleep(100);
+      assertFalse(blocked.isDone());
+      assertEquals(1, budget.getInFlightRpcCount());
+
+      // The other manager can use the rest of the budget in the meantime.
+      long otherId = other.tryRegisterOperationWithHeapSize(1);
+      assertTrue(otherId >= 0);
+      assertEquals(2, budget.getInFlightRpcCount());
+
+      // Once both complete, the blocked operation gets both its local slot and the budget.
+      other.markCanBeCompleted(otherId);
+      limited.markCanBeCompleted(id);
+      assertTrue(blocked.get(1, TimeUnit.SECONDS) >= 0);
+      assertEquals(1, budget.getInFlightRpcCount());
+      assertEquals(1, limited.getInFlightRpcCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testConcurrentAcquireAndRelease() throws Exception {
+    final SharedWriteBudget budget = new SharedWriteBudget(1000l, 4);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        final SharedWriteBudget.Share share = budget.newShare();
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int j = 0; j < 1000; j++) {
+              share.acquire(10);
+              assertTrue(budget.getInFlightRpcCount() <= 4);
+              share.release(10);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(0, budget.getInFlightRpcCount());
+    assertEquals(0l, budget.getHeapSize());
+    assertEquals(0, budget.getWaitingShareCount());
+  }
+
+  @Test
+  public void testWaiterIsWokenByRelease() throws Exception {
+    SharedWriteBudget budget = new SharedWriteBudget(100l, 4);
+    SharedWriteBudget.Share greedy = budget.newShare();
+    final SharedWriteBudget.Share waiting = budget.newShare();
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(greedy.tryAcquire(1));
+    }
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> future = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          waiting.acquire(1);
+          return true;
+        }
+      });
+      Thread.sleep(100);
+      assertFalse(future.isDone());
+
+      greedy.release(1);
+      assertTrue(future.get(1, TimeUnit.SECONDS));
+      assertEquals(3, greedy.getInFlightRpcCount());
+      assertEquals(1, waiting.getInFlightRpcCount());
+      assertTrue(greedy.isFull());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -19,6 +19,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -28,6 +29,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -39,11 +42,14 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 import io.grpc.CallOptions;
 import io.grpc.ClientCall;
 import io.grpc.ManagedChannel;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 
 @RunWith(JUnit4.class)
 @SuppressWarnings({"rawtypes", "unchecked"})
@@ -51,12 +57,21 @@ public class ChannelPoolTest {
 
   private static class MockChannelFactory implements ChannelPool.ChannelFactory {
     List<ManagedChannel> channels = new ArrayList<>();
+    /** The listeners that the pool passed to the calls of the channels, in start order. */
+    List<ClientCall.Listener> startedListeners = new ArrayList<>();
 
     @Override
     public ManagedChannel create() throws IOException {
       final ManagedChannel channel = mock(ManagedChannel.class);
       final AtomicBoolean isShutdown = new AtomicBoolean();
       ClientCall callStub = mock(ClientCall.class);
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          startedListeners.add((ClientCall.Listener) invocation.getArguments()[0]);
+          return null;
+        }
+      }).when(callStub).start(any(ClientCall.Listener.class), any(Metadata.class));
       when(channel.newCall(any(MethodDescriptor.class), any(CallOptions.class)))
           .thenReturn(callStub);
       when(channel.authority()).thenReturn("");
@@ -147,4 +162,219 @@ public class ChannelPoolTest {
       verify(managedChannel, times(1)).awaitTermination(anyLong(), eq(TimeUnit.NANOSECONDS));
     }
   }
+
+  @Test
+  public void testOutstandingCallsAreTracked() throws IOException {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(factory, 1);
+    ClientCall.Listener listener = startCall(pool, factory);
+    Assert.assertEquals(1, pool.getPooledChannels().get(0).getOutstandingCallCount());
+    listener.onClose(Status.OK, new Metadata());
+    Assert.assertEquals(0, pool.getPooledChannels().get(0).getOutstandingCallCount());
+  }
+
+  @Test
+  public void testLeastOutstandingCalls() throws IOException {
+    assertBusyChannelIsAvoided(ChannelSelection.LEAST_OUTSTANDING_CALLS);
+  }
+
+  @Test
+  public void testPowerOfTwoChoices() throws IOException {
+    assertBusyChannelIsAvoided(ChannelSelection.POWER_OF_TWO_CHOICES);
+  }
+
+  private void assertBusyChannelIsAvoided(ChannelSelection selection) throws IOException {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(Collections.<HeaderInterceptor> emptyList(), factory, 2,
+        selection.createStrategy(), 0, 0, MoreExecutors.directExecutor());
+    MethodDescriptor descriptor = mock(MethodDescriptor.class);
+    // Keep a call open on the first channel that the pool picks.
+    pool.newCall(descriptor, CallOptions.DEFAULT).start(mock(ClientCall.Listener.class),
+      new Metadata());
+    ManagedChannel busy =
+        factory.channels.get(pool.getPooledChannels().get(0).getOutstandingCallCount() == 1 ? 0 : 1);
+    ManagedChannel idle = factory.channels.get(busy == factory.channels.get(0) ? 1 : 0);
+    for (int i = 0; i < 10; i++) {
+      pool.newCall(descriptor, CallOptions.DEFAULT);
+    }
+    verify(busy, times(1)).newCall(same(descriptor), same(CallOptions.DEFAULT));
+    verify(idle, times(10)).newCall(same(descriptor), same(CallOptions.DEFAULT));
+  }
+
+  @Test
+  public void testFailingChannelIsReplaced() throws IOException {
+    MockChannelFactory factory = new MockChannelFactory();
+    List<Runnable> ejections = new ArrayList<>();
+    ChannelPool pool = new ChannelPool(Collections.<HeaderInterceptor> emptyList(), factory, 1,
+        ChannelSelection.ROUND_ROBIN.createStrategy(), 2, 0, queueingExecutor(ejections));
+    ManagedChannel original = factory.channels.get(0);
+
+    startCall(pool, factory).onClose(Status.UNAVAILABLE, new Metadata());
+    ClientCall.Listener succeeded = startCall(pool, factory);
+    succeeded.onHeaders(new Metadata());
+    succeeded.onClose(Status.OK, new Metadata());
+    startCall(pool, factory).onClose(Status.UNAVAILABLE, new Metadata());
+    // The successful call reset the failure count, so the channel is still in use.
+    Assert.assertTrue(ejections.isEmpty());
+
+    startCall(pool, factory).onClose(Status.UNAVAILABLE, new Metadata());
+    // The replacement is created on the executor, not on the thread that closed the call.
+    Assert.assertEquals(1, ejections.size());
+    Assert.assertEquals(1, factory.channels.size());
+    ejections.remove(0).run();
+    Assert.assertEquals(2, factory.channels.size());
+    Assert.assertEquals(1, pool.size());
+    verify(original, times(1)).shutdown();
+
+    MethodDescriptor descriptor = mock(MethodDescriptor.class);
+    pool.newCall(descriptor, CallOptions.DEFAULT);
+    verify(factory.channels.get(1), times(1)).newCall(same(descriptor), same(CallOptions.DEFAULT));
+
+    pool.shutdownNow();
+    verify(factory.channels.get(1), times(1)).shutdownNow();
+  }
+
+  @Test
+  public void testServerUnavailableIsNotCounted() throws IOException {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(Collections.<HeaderInterceptor> emptyList(), factory, 1,
+        ChannelSelection.ROUND_ROBIN.createStrategy(), 2, 0, MoreExecutors.directExecutor());
+    // A full response from the server, and a trailers only response from the server.
+    ClientCall.Listener withHeaders = startCall(pool, factory);
+    withHeaders.onHeaders(new Metadata());
+    withHeaders.onClose(Status.UNAVAILABLE, new Metadata());
+    Metadata trailers = new Metadata();
+    trailers.put(Metadata.Key.of("content-type", Metadata.ASCII_STRING_MARSHALLER),
+      "application/grpc");
+    startCall(pool, factory).onClose(Status.UNAVAILABLE, trailers);
+    startCall(pool, factory).onClose(Status.UNAVAILABLE, trailers);
+
+    Assert.assertEquals(1, factory.channels.size());
+    verify(factory.channels.get(0), times(0)).shutdown();
+  }
+
+  @Test
+  public void testEjectionsAreRateLimited() throws IOException {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(Collections.<HeaderInterceptor> emptyList(), factory, 2,
+        ChannelSelection.ROUND_ROBIN.createStrategy(), 1, TimeUnit.HOURS.toMillis(1),
+        MoreExecutors.directExecutor());
+
+    // Both channels fail, but only one is replaced within the ejection interval.
+    for (int i = 0; i < 4; i++) {
+      startCall(pool, factory).onClose(Status.UNAVAILABLE, new Metadata());
+    }
+    Assert.assertEquals(3, factory.channels.size());
+    Assert.assertEquals(2, pool.size());
+  }
+
+  @Test
+  public void testResize() throws IOException {
+    MockChannelFactory factory = new MockChannelFactory();
+    ChannelPool pool = new ChannelPool(Collections.<HeaderInterceptor> emptyList(), factory, 1,
+        ChannelSelection.LEAST_OUTSTANDING_CALLS.createStrategy(), 0, 0,
+        MoreExecutors.directExecutor());
+    pool.startResizing(3, 2, mock(ScheduledExecutorService.class), 1000);
+
+    List<ClientCall.Listener> listeners = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      listeners.add(startCall(pool, factory));
+    }
+    pool.resize();
+    Assert.assertEquals(2, pool.size());
+    for (int i = 0; i < 10; i++) {
+      listeners.add(startCall(pool, factory));
+    }
+    // 13 outstanding calls would need 7 channels, but the maximum is 3.
+    pool.resize();
+    Assert.assertEquals(3, pool.size());
+    Assert.assertEquals(3, factory.channels.size());
+
+    for (ClientCall.Listener listener : listeners) {
+      listener.onClose(Status.OK, new Metadata());
+    }
+    // The pool shrinks one channel at a time, down to its initial size.
+    pool.resize();
+    Assert.assertEquals(2, pool.size());
+    pool.resize();
+    Assert.assertEquals(1, pool.size());
+    pool.resize();
+    Assert.assertEquals(1, pool.size());
+    int shutdownCount = 0;
+    for (ManagedChannel channel : factory.channels) {
+      if (channel.isShutdown()) {
+        shutdownCount++;
+      }
+    }
+    Assert.assertEquals(2, shutdownCount);
+  }
+
+  @Test
+  public void testResizeCreatesChannelsOnTheEjectionExecutor() throws IOException {
+    MockChannelFactory factory = new MockChannelFactory();
+    List<Runnable> tasks = new ArrayList<>();
+    ChannelPool pool = new ChannelPool(Collections.<HeaderInterceptor> emptyList(), factory, 1,
+        ChannelSelection.LEAST_OUTSTANDING_CALLS.createStrategy(), 0, 0, queueingExecutor(tasks));
+    pool.startResizing(3, 2, mock(ScheduledExecutorService.class), 1000);
+
+    for (int i = 0; i < 3; i++) {
+      startCall(pool, factory);
+    }
+    pool.resize();
+    // The resizing thread does not create the channel.
+    Assert.assertEquals(1, factory.channels.size());
+    Assert.assertEquals(1, tasks.size());
+    // Only one growth runs at a time.
+    pool.resize();
+    Assert.assertEquals(1, tasks.size());
+    tasks.get(0).run();
+    Assert.assertEquals(2, pool.size());
+
+    for (int i = 0; i < 10; i++) {
+      startCall(pool, factory);
+    }
+    pool.resize();
+    Assert.assertEquals(2, tasks.size());
+    // A growth that runs after shutdown() does not leave open channels behind.
+    pool.shutdown();
+    tasks.get(1).run();
+    for (ManagedChannel channel : factory.channels) {
+      Assert.assertTrue(channel.isShutdown());
+    }
+  }
+
+  @Test
+  public void testNewCallOnSpecificChannel() throws IOException {
+    MockChannelFactory factory = new MockChannelFactory();
+    MethodDescriptor descriptor = mock(MethodDescriptor.class);
+    ChannelPool pool = new ChannelPool(factory, 2);
+    ChannelPool.PooledChannel second = pool.getPooledChannels().get(1);
+    pool.newCall(second, descriptor, CallOptions.DEFAULT)
+        .start(mock(ClientCall.Listener.class), new Metadata());
+    verify(factory.channels.get(0), times(0)).newCall(same(descriptor), same(CallOptions.DEFAULT));
+    verify(factory.channels.get(1), times(1)).newCall(same(descriptor), same(CallOptions.DEFAULT));
+    Assert.assertEquals(1, second.getOutstandingCallCount());
+  }
+
+  /**
+   * @return an {@link Executor} that adds each task to {@code tasks} instead of running it.
+   */
+  private static Executor queueingExecutor(final List<Runnable> tasks) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    };
+  }
+
+  /**
+   * Starts a call on the pool, and returns the listener that the pool passed to the underlying
+   * channel's call.
+   */
+  private static ClientCall.Listener startCall(ChannelPool pool, MockChannelFactory factory) {
+    pool.newCall(mock(MethodDescriptor.class), CallOptions.DEFAULT)
+        .start(mock(ClientCall.Listener.class), new Metadata());
+    return factory.startedListeners.get(factory.startedListeners.size() - 1);
+  }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.grpc.scanner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.bigtable.v1.Cell;
+import com.google.bigtable.v1.Column;
+import com.google.bigtable.v1.Family;
+import com.google.bigtable.v1.ReadRowsResponse;
+import com.google.bigtable.v1.ReadRowsResponse.Chunk;
+import com.google.bigtable.v1.Row;
+import com.google.protobuf.ByteString;
+
+/**
+ * Measures the cost of merging a wide row with {@link RowMerger}, compared to merging it by copying
+ * every column into a {@link Family.Builder}, which is what {@link RowMerger} used to do. The row
+ * arrives either in a single {@link ReadRowsResponse}, or split into one response per column.
+ *
+ * <p>Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.google.cloud.bigtable.grpc.scanner.RowMergerBenchmark}. The gc profiler
+ * reports the bytes allocated per merged row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowMergerBenchmark {
+
+  @Param({ "10", "1000" })
+  public int columnCount;
+
+  @Param({ "1", "4" })
+  public int familyCount;
+
+  @Param({ "single", "split" })
+  public String responses;
+
+  private List<ReadRowsResponse> rowResponses;
+
+  @Setup
+  public void setup() {
+    ByteString rowKey = ByteString.copyFromUtf8("row");
+    List<Chunk> chunks = new ArrayList<>();
+    for (int f = 0; f < familyCount; f++) {
+      Family.Builder family = Family.newBuilder().setName("family" + f);
+      for (int c = 0; c < columnCount; c++) {
+        Column column = Column.newBuilder()
+            .setQualifier(ByteString.copyFromUtf8("qualifier" + c))
+            .addCells(Cell.newBuilder()
+                .setTimestampMicros(c)
+                .setValue(ByteString.copyFrom(new byte[100])))
+            .build();
+        if ("split".equals(responses)) {
+          chunks.add(Chunk.newBuilder()
+              .setRowContents(Family.newBuilder().setName(family.getName()).addColumns(column))
+              .build());
+        } else {
+          family.addColumns(column);
+        }
+      }
+      if (!"split".equals(responses)) {
+        chunks.add(Chunk.newBuilder().setRowContents(family).build());
+      }
+    }
+    chunks.add(Chunk.newBuilder().setCommitRow(true).build());
+
+    rowResponses = new ArrayList<>();
+    if ("split".equals(responses)) {
+      for (Chunk chunk : chunks) {
+        rowResponses.add(ReadRowsResponse.newBuilder().setRowKey(rowKey).addChunks(chunk).build());
+      }
+    } else {
+      rowResponses.add(ReadRowsResponse.newBuilder().setRowKey(rowKey).addAllChunks(chunks).build());
+    }
+  }
+
+  @Benchmark
+  public Row rowMerger() {
+    return RowMerger.readNextRow(rowResponses.iterator());
+  }
+
+  @Benchmark
+  public Row copyingMerge() {
+    Map<String, Family.Builder> familyMap = new HashMap<>();
+    ByteString rowKey = null;
+    for (ReadRowsResponse response : rowResponses) {
+      rowKey = response.getRowKey();
+      for (Chunk chunk : response.getChunksList()) {
+        if (chunk.getChunkCase() == Chunk.ChunkCase.ROW_CONTENTS) {
+          Family contents = chunk.getRowContents();
+          Family.Builder familyBuilder = familyMap.get(contents.getName());
+          if (familyBuilder == null) {
+            familyBuilder = Family.newBuilder().setName(contents.getName());
+            familyMap.put(contents.getName(), familyBuilder);
+          }
+          familyBuilder.addAllColumns(contents.getColumnsList());
+        }
+      }
+    }
+    Row.Builder rowBuilder = Row.newBuilder().setKey(rowKey);
+    for (Family.Builder familyBuilder : familyMap.values()) {
+      rowBuilder.addFamilies(familyBuilder.build());
+    }
+    return rowBuilder.build();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(RowMergerBenchmark.class.getSimpleName())
+        .addProfiler("gc")
+        .build();
+    new Runner(options).run();
+  }
+}
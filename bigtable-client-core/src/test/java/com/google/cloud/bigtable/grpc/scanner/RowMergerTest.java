@@ -222,4 +222,13 @@ public class RowMergerTest {
     Row resultRow = RowMerger.readNextRow(iterator);
     resultRow = RowMerger.readNextRow(iterator);
   }
+
+  @Test
+  public void singleChunkFamiliesAreNotCopied() {
+    Row row = RowMerger.readNextRow(getIterator(
+      createReadRowsResponse("row-1", Family1_c1_CHUNK, Family2_null_CHUNK, COMPLETE_CHUNK)));
+    Assert.assertEquals(2, row.getFamiliesCount());
+    Assert.assertSame(Family1_c1_CHUNK.getRowContents(), row.getFamilies(0));
+    Assert.assertSame(Family2_null_CHUNK.getRowContents(), row.getFamilies(1));
+  }
 }
@@ -39,6 +39,8 @@ import com.google.bigtable.v1.MutateRowsResponse;
 import com.google.bigtable.v1.ReadRowsRequest;
 import com.google.cloud.bigtable.config.BigtableOptions;
 import com.google.cloud.bigtable.config.Logger;
+import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
+import com.google.cloud.bigtable.grpc.async.AdaptiveBatchSizer;
 import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
 import com.google.cloud.bigtable.grpc.async.BulkMutation;
 import com.google.cloud.bigtable.grpc.async.BulkRead;
@@ -135,14 +137,27 @@ public class BatchExecutor {
     private final AsyncExecutor asyncExecutor;
     private final String tableName;
     private final BigtableOptions options;
+    private final AdaptiveBatchSizer batchSizer;
     private BulkMutation bulkMutation;
     private BulkRead bulkRead;
 
     public BulkOperation(AsyncExecutor asyncExecutor, String tableName, BigtableOptions options) {
+      this(asyncExecutor, tableName, options, new AdaptiveBatchSizer(options));
+    }
+
+    /**
+     * @param batchSizer Decides when a bulk mutation is sent. It can be shared by many
+     *          BulkOperations, so that it learns from all of their responses.
+     */
+    public BulkOperation(AsyncExecutor asyncExecutor, String tableName, BigtableOptions options,
+        AdaptiveBatchSizer batchSizer) {
       this.asyncExecutor = asyncExecutor;
       this.tableName = Preconditions.checkNotNull(tableName);
       this.options = options;
-      this.bulkRead = new BulkRead(asyncExecutor, tableName);
+      this.batchSizer = batchSizer;
+      this.bulkRead = new BulkRead(asyncExecutor, tableName,
+          BigtableSessionSharedThreadPools.getInstance().getBulkFlushExecutor(),
+          options.getBulkLingerMs());
     }
 
     public ListenableFuture<? extends GeneratedMessage> mutateRowAsync(MutateRowRequest request)
@@ -151,11 +166,10 @@ public class BatchExecutor {
         return asyncExecutor.mutateRowAsync(request);
       }
       if (bulkMutation == null) {
-        bulkMutation = new BulkMutation(tableName);
+        bulkMutation = new BulkMutation(tableName, options.coalesceBulkRows());
       }
       ListenableFuture<Empty> future = bulkMutation.add(request);
-      if (bulkMutation.getRowKeyCount() >= options.getBulkMaxRowKeyCount()
-          || bulkMutation.getApproximateByteSize() >= options.getBulkMaxRequestSize()) {
+      if (batchSizer.isFull(bulkMutation)) {
         mutateRowAsync();
         bulkMutation = null;
       }
@@ -171,6 +185,7 @@ public class BatchExecutor {
       } finally {
         if (future != null) {
           bulkMutation.addCallback(future);
+          batchSizer.addCallback(bulkMutation, future);
         }
         bulkMutation = null;
       }
@@ -198,6 +213,7 @@ public class BatchExecutor {
   protected final BigtableOptions options;
   protected final ListeningExecutorService service;
   protected final HBaseRequestAdapter requestAdapter;
+  protected final AdaptiveBatchSizer batchSizer;
 
   public BatchExecutor(
       AsyncExecutor asyncExecutor,
@@ -208,6 +224,7 @@ public class BatchExecutor {
     this.options = options;
     this.service = service;
     this.requestAdapter = requestAdapter;
+    this.batchSizer = new AdaptiveBatchSizer(options);
   }
 
   /**
@@ -308,7 +325,7 @@ public class BatchExecutor {
   private <R> List<ListenableFuture<?>> issueAsyncRowRequests(List<? extends Row> actions,
       Object[] results, Batch.Callback<R> callback) throws InterruptedException {
     BulkOperation bulkOperation = new BulkOperation(this.asyncExecutor,
-        this.requestAdapter.getBigtableTableName().toString(), options);
+        this.requestAdapter.getBigtableTableName().toString(), options, batchSizer);
     try {
       List<ListenableFuture<?>> resultFutures = new ArrayList<>(actions.size());
       for (int i = 0; i < actions.size(); i++) {
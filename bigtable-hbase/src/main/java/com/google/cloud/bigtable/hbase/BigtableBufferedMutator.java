@@ -18,8 +18,11 @@ package com.google.cloud.bigtable.hbase;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -40,22 +43,38 @@ import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.google.bigtable.v1.MutateRowRequest;
-import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
+import com.google.bigtable.v1.ReadModifyWriteRule;
 import com.google.cloud.bigtable.config.BigtableOptions;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
 import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
-import com.google.cloud.bigtable.grpc.async.BulkMutation;
+import com.google.cloud.bigtable.grpc.async.BufferedMutationResult;
+import com.google.cloud.bigtable.grpc.async.BulkMutationAccumulator;
 import com.google.cloud.bigtable.grpc.async.HeapSizeManager;
+import com.google.cloud.bigtable.grpc.async.IncrementAggregator;
+import com.google.cloud.bigtable.grpc.async.MutationSpillFile;
 import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
 import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
  * Bigtable's {@link BufferedMutator} implementation.
+ *
+ * <p>Failed mutations are reported to the {@link BufferedMutator.ExceptionListener} in a
+ * {@link RetriesExhaustedWithDetailsException}. A mutation that was held in the spill file is not
+ * kept on the heap, so its failure is reported with a new {@link Put}, {@link Delete},
+ * {@link Increment} or {@link Append} that only has the row key, instead of the original
+ * mutation.
  */
 public class BigtableBufferedMutator implements BufferedMutator {
 
@@ -81,16 +100,67 @@ public class BigtableBufferedMutator implements BufferedMutator {
 
   private class MutationOperation implements Runnable {
     final Mutation mutation;
+    /**
+     * A {@link MutateRowRequest} or a {@link ReadModifyWriteRowRequest} that was read back from the
+     * {@link #spillFile}, instead of a mutation.
+     */
+    final GeneratedMessage request;
     final long operationId;
+    /** Set with the outcome of the request, if a caller is interested in it. May be null. */
+    final SettableFuture<GeneratedMessage> result;
 
     public MutationOperation(Mutation mutation, long operationId) {
+      this(mutation, operationId, null);
+    }
+
+    public MutationOperation(Mutation mutation, long operationId,
+        SettableFuture<GeneratedMessage> result) {
       this.mutation = mutation;
+      this.request = null;
       this.operationId = operationId;
+      this.result = result;
+    }
+
+    public MutationOperation(GeneratedMessage request, long operationId) {
+      this.mutation = null;
+      this.request = request;
+      this.operationId = operationId;
+      this.result = null;
+    }
+
+    ByteString getRowKey() {
+      return request != null ? BigtableBufferedMutator.getRowKey(request)
+          : ByteString.copyFrom(mutation.getRow());
     }
 
     @Override
     public void run() {
-      issueRequest(mutation, operationId);
+      issue();
+    }
+
+    /**
+     * Starts the RPC.
+     *
+     * @return a {@link ListenableFuture} that is set once the RPC completes.
+     */
+    ListenableFuture<? extends GeneratedMessage> issue() {
+      ListenableFuture<? extends GeneratedMessage> future = request != null
+          ? issueRequest(request, operationId)
+          : issueRequest(mutation, operationId);
+      if (result != null) {
+        Futures.addCallback(future, new FutureCallback<GeneratedMessage>() {
+          @Override
+          public void onSuccess(GeneratedMessage response) {
+            result.set(response);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            result.setException(t);
+          }
+        });
+      }
+      return future;
     }
   }
 
@@ -127,8 +197,54 @@ public class BigtableBufferedMutator implements BufferedMutator {
    */
   private final AtomicInteger activeMutationWorkers = new AtomicInteger();
 
-  private Object bulkMutationLock = new String("");
-  private BulkMutation bulkMutation = null;
+  /**
+   * The completion of the last mutation of each row that was started or is waiting for an earlier
+   * one, when {@link BigtableOptions#orderAsyncMutationsByRow()} is set. A mutation starts once the
+   * previous mutation of its row completed, and {@link #asyncOperationsQueue} is not used. Null
+   * otherwise.
+   */
+  private final ConcurrentMap<ByteString, ListenableFuture<?>> lastMutationByRow;
+
+  /**
+   * Batches Puts and Deletes into bulk RPCs when {@link BigtableOptions#useBulkApi()} is set.
+   */
+  private final BulkMutationAccumulator bulkMutations;
+
+  /**
+   * Combines increments of the same row when
+   * {@link BigtableOptions#getIncrementAggregationWindowMs()} is set. May be null.
+   */
+  private final IncrementAggregator incrementAggregator;
+
+  /**
+   * Holds mutations while the {@link #heapSizeManager} is full. May be null.
+   */
+  private final MutationSpillFile spillFile;
+
+  /**
+   * Whether {@link #spillDrainer} is running.
+   */
+  private final AtomicBoolean spillDraining = new AtomicBoolean();
+
+  /**
+   * This {@link Runnable} sends the mutations in the {@link #spillFile} in order, waiting for the
+   * {@link #heapSizeManager} as needed.
+   */
+  private final Runnable spillDrainer = new Runnable() {
+    @Override
+    public void run() {
+      do {
+        try {
+          drainSpillFile();
+        } finally {
+          spillDraining.set(false);
+        }
+        // A mutation may have been spilled after the drain finished, but before it was marked as
+        // not running. An interrupted drain is left to the next flush().
+      } while (!spillFile.isEmpty() && !Thread.currentThread().isInterrupted()
+          && spillDraining.compareAndSet(false, true));
+    }
+  };
 
   /**
    * This {@link Runnable} pulls a mutation from {@link #asyncOperationsQueue}, and calls {{@link
@@ -180,6 +296,45 @@ public class BigtableBufferedMutator implements BufferedMutator {
       BufferedMutator.ExceptionListener listener,
       HeapSizeManager heapSizeManager,
       ExecutorService asyncRpcExecutorService) {
+    this(client, adapter, configuration, options, listener, heapSizeManager,
+        asyncRpcExecutorService, null);
+  }
+
+  /**
+   * @param incrementAggregator Combines increments of the same row. May be null, in which case
+   *          each increment is sent on its own.
+   */
+  public BigtableBufferedMutator(
+      BigtableDataClient client,
+      HBaseRequestAdapter adapter,
+      Configuration configuration,
+      BigtableOptions options,
+      BufferedMutator.ExceptionListener listener,
+      HeapSizeManager heapSizeManager,
+      ExecutorService asyncRpcExecutorService,
+      IncrementAggregator incrementAggregator) {
+    this(client, adapter, configuration, options, listener, heapSizeManager,
+        asyncRpcExecutorService, incrementAggregator, null);
+  }
+
+  /**
+   * @param spillFile Holds mutations while the heapSizeManager is full, so that
+   *          {@link #mutate(Mutation)} does not block until the spillFile is full as well. May be
+   *          null. It requires an asyncRpcExecutorService. {@link #close()} sends the spilled
+   *          mutations before it closes the spillFile, and keeps the spillFile if that fails.
+   */
+  public BigtableBufferedMutator(
+      BigtableDataClient client,
+      HBaseRequestAdapter adapter,
+      Configuration configuration,
+      BigtableOptions options,
+      BufferedMutator.ExceptionListener listener,
+      HeapSizeManager heapSizeManager,
+      ExecutorService asyncRpcExecutorService,
+      IncrementAggregator incrementAggregator,
+      MutationSpillFile spillFile) {
+    Preconditions.checkArgument(spillFile == null || asyncRpcExecutorService != null,
+      "A spill file requires an ExecutorService.");
     this.adapter = adapter;
     this.configuration = configuration;
     this.exceptionListener = listener;
@@ -188,6 +343,19 @@ public class BigtableBufferedMutator implements BufferedMutator {
     this.options = options;
     this.heapSizeManager = heapSizeManager;
     this.executorService = asyncRpcExecutorService;
+    this.bulkMutations = options.useBulkApi()
+        ? new BulkMutationAccumulator(asyncExecutor,
+            adapter.getBigtableTableName().toString(), options,
+            BigtableSessionSharedThreadPools.getInstance().getBulkFlushExecutor())
+        : null;
+    this.incrementAggregator = incrementAggregator;
+    this.spillFile = spillFile;
+    if (options.orderAsyncMutationsByRow() && asyncRpcExecutorService != null
+        && options.getAsyncMutatorCount() > 0) {
+      this.lastMutationByRow = new ConcurrentHashMap<>();
+    } else {
+      this.lastMutationByRow = null;
+    }
   }
 
   private void initializeAsyncMutators() {
@@ -204,6 +372,8 @@ public class BigtableBufferedMutator implements BufferedMutator {
   public void close() throws IOException {
     closedWriteLock.lock();
     try {
+      // This sends every spilled mutation, or throws. The spill file is only closed, and deleted,
+      // once it is empty, so a failed close() can be called again.
       flush();
       int activeWorkerCount = activeMutationWorkers.get();
       for (int i = 0; i < activeWorkerCount; i++) {
@@ -211,6 +381,9 @@ public class BigtableBufferedMutator implements BufferedMutator {
       }
       asyncExecutor.flush();
       closed = true;
+      if (spillFile != null) {
+        spillFile.close();
+      }
     } finally {
       closedWriteLock.unlock();
     }
@@ -218,31 +391,31 @@ public class BigtableBufferedMutator implements BufferedMutator {
 
   @Override
   public void flush() throws IOException {
+    send();
+    asyncExecutor.flush();
+    handleExceptions();
+  }
+
+  /**
+   * Hands off every buffered mutation without waiting for the RPCs to complete. This lets
+   * {@link BigtableMultiTableBufferedMutator} send the batches of all of its tables before it waits
+   * once for all of them.
+   */
+  void send() throws IOException {
     // Make sure that the async mutator workers are running.
     if (!asyncOperationsQueue.isEmpty()) {
       initializeAsyncMutators();
     }
-    // If there is a bulk mutation in progress, then send it.
-    synchronized (bulkMutationLock) {
-      if (bulkMutation != null) {
-        mutateRowsAsync(bulkMutation);
-        bulkMutation = null;
-      }
+    // Spilled mutations have to be handed off before the bulk mutations are sent.
+    if (spillFile != null) {
+      awaitSpillFileDrained();
     }
-    asyncExecutor.flush();
-    handleExceptions();
-  }
-
-  protected void mutateRowsAsync(BulkMutation bulkMutation) {
-    ListenableFuture<MutateRowsResponse> future = null;
-    try {
-      future = asyncExecutor.mutateRowsAsync(bulkMutation.toRequest());
-    } catch (InterruptedException e) {
-      future = Futures.<MutateRowsResponse> immediateFailedFuture(e);
-    } finally {
-      if (future != null) {
-        bulkMutation.addCallback(future);
-      }
+    // If there are bulk mutations in progress, then send them.
+    if (bulkMutations != null) {
+      bulkMutations.flush();
+    }
+    if (incrementAggregator != null) {
+      incrementAggregator.flush();
     }
   }
 
@@ -296,6 +469,50 @@ public class BigtableBufferedMutator implements BufferedMutator {
     }
   }
 
+  /**
+   * Starts a mutation without ever waiting for the write buffer, for callers that can't block and
+   * apply their own backpressure instead. If the buffer is full, or if spilled mutations are
+   * waiting to be sent, nothing is done and the result is rejected; the caller may try again later.
+   * Otherwise the mutation will be sent like one from {@link #mutate(Mutation)}.
+   *
+   * <p>With {@link BigtableOptions#useBulkApi()}, a Put or a Delete is added to a batch, and it is
+   * accepted once the batch is sent. A batch that fills up while the buffer is full is sent later
+   * by the bulk flush executor rather than by the calling thread.
+   *
+   * @return a {@link BufferedMutationResult} whose applied future is set once the server applied
+   *         the mutation. Failures are reported to the {@link BufferedMutator.ExceptionListener}
+   *         as well.
+   */
+  public BufferedMutationResult<? extends GeneratedMessage> tryMutate(Mutation mutation)
+      throws IOException {
+    closedReadLock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Cannot mutate when the BufferedMutator is closed.");
+      }
+      handleExceptions();
+      if (spillFile != null && !spillFile.isEmpty()) {
+        return BufferedMutationResult.rejected();
+      }
+      if (bulkMutations != null && (mutation instanceof Put || mutation instanceof Delete)) {
+        BufferedMutationResult<Empty> result = bulkMutations.tryAdd(adapt(mutation));
+        if (!result.isRejected()) {
+          addExceptionCallback(result.getApplied(), mutation);
+        }
+        return result;
+      }
+      long operationId = heapSizeManager.tryRegisterOperationWithHeapSize(mutation.heapSize());
+      if (operationId == -1) {
+        return BufferedMutationResult.rejected();
+      }
+      SettableFuture<GeneratedMessage> applied = SettableFuture.create();
+      dispatch(new MutationOperation(mutation, operationId, applied));
+      return new BufferedMutationResult<>(Futures.immediateFuture(true), applied);
+    } finally {
+      closedReadLock.unlock();
+    }
+  }
+
   /**
    * Send the operations to the async executor asynchronously.  The conversion from hbase
    * object to cloud bigtable proto and the async call both take time (microseconds worth) that
@@ -303,39 +520,250 @@ public class BigtableBufferedMutator implements BufferedMutator {
    */
   private void offer(Mutation mutation) throws IOException {
     try {
-      Runnable operation = null;
-      if (options.useBulkApi() && (mutation instanceof Put || mutation instanceof Delete)) {
-        // TODO: Do this logic asynchronously. 
-        synchronized (bulkMutationLock) {
-          if (bulkMutation == null) {
-            bulkMutation = new BulkMutation(this.adapter.getBigtableTableName().toString());
+      if (spillFile != null && spill(mutation)) {
+        return;
+      }
+      if (bulkMutations != null && (mutation instanceof Put || mutation instanceof Delete)) {
+        addBulk(mutation);
+      } else {
+        if (lastMutationByRow == null) {
+          initializeAsyncMutators();
+        }
+        long operationId = heapSizeManager.registerOperationWithHeapSize(mutation.heapSize());
+        dispatch(new MutationOperation(mutation, operationId));
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted in buffered mutator while mutating row : '"
+          + Bytes.toString(mutation.getRow()), e);
+    }
+  }
+
+  private void addBulk(Mutation mutation) {
+    // Adapt outside of any lock. The accumulator only locks the calling thread's batch.
+    addExceptionCallback(bulkMutations.add(adapt(mutation)), mutation);
+  }
+
+  /**
+   * Runs a registered operation after the previous mutation of its row, on an async worker, or on
+   * the calling thread if there are no async workers.
+   */
+  private void dispatch(MutationOperation operation) {
+    if (lastMutationByRow != null) {
+      chain(operation);
+    } else if (executorService != null && options.getAsyncMutatorCount() > 0) {
+      initializeAsyncMutators();
+      asyncOperationsQueue.add(operation);
+    } else {
+      operation.run();
+    }
+  }
+
+  /**
+   * Adds the mutation to the {@link #spillFile} if the {@link #heapSizeManager} is full, or if
+   * earlier mutations are still in the spill file, so that mutations are sent in order.
+   *
+   * @return true if the mutation was spilled, false if it should be sent as usual.
+   */
+  private boolean spill(Mutation mutation) throws InterruptedException {
+    if (spillFile.isEmpty() && !heapSizeManager.isFull()) {
+      return false;
+    }
+    GeneratedMessage request = adaptForSpill(mutation);
+    if (request == null) {
+      return false;
+    }
+    if (!spillFile.offer(request)) {
+      // The spill file is full. Wait until the oldest mutations were handed off and there is
+      // room for this one, which blocks the caller the same way that a full heapSizeManager does
+      // without a spill file.
+      startSpillDrainer();
+      if (!spillFile.put(request)) {
+        // The mutation is larger than the whole file. Send it once the earlier ones are handed
+        // off.
+        spillFile.awaitEmpty();
+        return false;
+      }
+    }
+    startSpillDrainer();
+    return true;
+  }
+
+  /**
+   * @return the request for a mutation that can be spilled, or null for other mutations. Every
+   *         kind of mutation is spilled, so that none of them can overtake earlier mutations of
+   *         the same row that are in the spill file.
+   */
+  private GeneratedMessage adaptForSpill(Mutation mutation) {
+    if (mutation instanceof Put || mutation instanceof Delete) {
+      return adapt(mutation);
+    } else if (mutation instanceof Increment) {
+      return adapter.adapt((Increment) mutation);
+    } else if (mutation instanceof Append) {
+      return adapter.adapt((Append) mutation);
+    }
+    return null;
+  }
+
+  /**
+   * Waits until the {@link #spillFile} is empty. If the {@link #spillDrainer} is not running, for
+   * instance because the {@link #executorService} was shut down, the spilled mutations are sent
+   * from the calling thread.
+   */
+  private void awaitSpillFileDrained() throws IOException {
+    try {
+      while (!spillFile.isEmpty()) {
+        if (spillDraining.compareAndSet(false, true)) {
+          try {
+            drainSpillFile();
+          } finally {
+            spillDraining.set(false);
           }
-          ListenableFuture<Empty> future = bulkMutation.add(adapt(mutation));
-          addExceptionCallback(future, mutation);
-          if (bulkMutation.getRowKeyCount() >= options.getBulkMaxRowKeyCount() ||
-              bulkMutation.getApproximateByteSize() >= options.getBulkMaxRequestSize()) {
-            mutateRowsAsync(bulkMutation);
-            bulkMutation = null;
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
           }
+        } else {
+          spillFile.awaitEmpty(MUTATION_TO_BE_SENT_WAIT_MS, TimeUnit.MILLISECONDS);
         }
-      } else {
-        initializeAsyncMutators();
-        long operationId = heapSizeManager.registerOperationWithHeapSize(mutation.heapSize());
-        operation = new MutationOperation(mutation, operationId);
-        if (executorService != null && options.getAsyncMutatorCount() > 0) {
-          asyncOperationsQueue.add(operation);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(String.format(
+        "Interrupted in buffered mutator while %d spilled mutations were waiting to be sent",
+        spillFile.size()), e);
+    }
+  }
+
+  private void startSpillDrainer() {
+    if (!spillFile.isEmpty() && spillDraining.compareAndSet(false, true)) {
+      try {
+        executorService.submit(spillDrainer);
+      } catch (RuntimeException e) {
+        spillDraining.set(false);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Sends the mutations in the {@link #spillFile} until it is empty. The original HBase mutations
+   * are not kept in the spill file, so a failure is reported with a mutation that only has the row
+   * key.
+   */
+  private void drainSpillFile() {
+    try {
+      while (!spillFile.isEmpty()) {
+        GeneratedMessage request;
+        try {
+          request = spillFile.peek();
+        } catch (InvalidProtocolBufferException e) {
+          LOG.error("Could not read a spilled mutation.", e);
+          spillFile.remove();
+          continue;
+        }
+        if (bulkMutations != null && request instanceof MutateRowRequest) {
+          ListenableFuture<Empty> future;
+          try {
+            future = bulkMutations.add((MutateRowRequest) request);
+          } catch (RuntimeException e) {
+            future = Futures.immediateFailedFuture(e);
+          }
+          addExceptionCallback(future, request);
         } else {
-          operation.run();
+          long operationId =
+              heapSizeManager.registerOperationWithHeapSize(request.getSerializedSize());
+          MutationOperation operation = new MutationOperation(request, operationId);
+          if (lastMutationByRow != null) {
+            // Keep the order of the row's mutations that arrive after the spill file is drained.
+            chain(operation);
+          } else {
+            operation.issue();
+          }
         }
+        spillFile.remove();
       }
     } catch (InterruptedException e) {
-      throw new IOException("Interrupted in buffered mutator while mutating row : '"
-          + Bytes.toString(mutation.getRow()), e);
+      // The remaining mutations are sent by the next flush().
+      LOG.info("Interrupted while sending spilled mutations.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Starts the operation on the {@link #executorService} once the previous mutation of the same
+   * row completed, so that a row never has more than one mutation in flight. Different rows are
+   * still sent in parallel.
+   */
+  private void chain(final MutationOperation operation) {
+    final ByteString rowKey = operation.getRowKey();
+    final SettableFuture<Void> completed = SettableFuture.create();
+    ListenableFuture<?> previous = lastMutationByRow.put(rowKey, completed);
+    final Runnable issue = new Runnable() {
+      @Override
+      public void run() {
+        ListenableFuture<?> future;
+        try {
+          future = operation.issue();
+        } catch (RuntimeException e) {
+          LOG.error("Exception in buffered mutator.", e);
+          future = Futures.immediateFailedFuture(e);
+        }
+        future.addListener(new Runnable() {
+          @Override
+          public void run() {
+            lastMutationByRow.remove(rowKey, completed);
+            completed.set(null);
+          }
+        }, MoreExecutors.directExecutor());
+      }
+    };
+    Runnable start = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          executorService.execute(issue);
+        } catch (RejectedExecutionException e) {
+          // The executor is shut down. Don't leave the row's later mutations waiting.
+          issue.run();
+        }
+      }
+    };
+    if (previous == null) {
+      start.run();
+    } else {
+      // The previous mutation may complete on an RPC thread, so only hand off from there.
+      previous.addListener(start, MoreExecutors.directExecutor());
     }
   }
 
-  private void issueRequest(Mutation mutation, long operationId) {
-    addExceptionCallback(issueRequestDetails(mutation, operationId), mutation);
+  private ListenableFuture<? extends GeneratedMessage> issueRequest(Mutation mutation,
+      long operationId) {
+    ListenableFuture<? extends GeneratedMessage> future =
+        issueRequestDetails(mutation, operationId);
+    addExceptionCallback(future, mutation);
+    return future;
+  }
+
+  /**
+   * Sends a {@link MutateRowRequest} or a {@link ReadModifyWriteRowRequest} that was read back
+   * from the {@link #spillFile}.
+   */
+  private ListenableFuture<? extends GeneratedMessage> issueRequest(GeneratedMessage request,
+      long operationId) {
+    ListenableFuture<? extends GeneratedMessage> future;
+    try {
+      if (request instanceof MutateRowRequest) {
+        future = asyncExecutor.mutateRowAsync((MutateRowRequest) request, operationId);
+      } else if (incrementAggregator != null) {
+        future = aggregateIncrement((ReadModifyWriteRowRequest) request, operationId);
+      } else {
+        future = asyncExecutor.readModifyWriteRowAsync((ReadModifyWriteRowRequest) request,
+          operationId);
+      }
+    } catch (RuntimeException e) {
+      future = Futures.immediateFailedFuture(e);
+    }
+    addExceptionCallback(future, request);
+    return future;
   }
 
   protected void addExceptionCallback(ListenableFuture<? extends GeneratedMessage> future,
@@ -343,6 +771,23 @@ public class BigtableBufferedMutator implements BufferedMutator {
     Futures.addCallback(future, new ExceptionCallback(mutation));
   }
 
+  /**
+   * Reports a failure of a {@link MutateRowRequest} or a {@link ReadModifyWriteRowRequest} that
+   * has no HBase mutation. Only the row key is kept until the request completes.
+   */
+  private void addExceptionCallback(ListenableFuture<? extends GeneratedMessage> future,
+      GeneratedMessage request) {
+    Futures.addCallback(future,
+      new StandInExceptionCallback(getRowKey(request), StandIn.of(request)));
+  }
+
+  private static ByteString getRowKey(GeneratedMessage request) {
+    if (request instanceof ReadModifyWriteRowRequest) {
+      return ((ReadModifyWriteRowRequest) request).getRowKey();
+    }
+    return ((MutateRowRequest) request).getRowKey();
+  }
+
   protected MutateRowRequest adapt(Mutation mutation) {
     if (mutation instanceof Put) {
       return adapter.adapt((Put) mutation);
@@ -365,6 +810,8 @@ public class BigtableBufferedMutator implements BufferedMutator {
         return asyncExecutor.mutateRowAsync(adapter.adapt((Put) mutation), operationId);
       } else if (mutation instanceof Delete) {
         return asyncExecutor.mutateRowAsync(adapter.adapt((Delete) mutation), operationId);
+      } else if (mutation instanceof Increment && incrementAggregator != null) {
+        return aggregateIncrement(adapter.adapt((Increment) mutation), operationId);
       } else if (mutation instanceof Increment) {
         return asyncExecutor.readModifyWriteRowAsync(adapter.adapt((Increment) mutation),
           operationId);
@@ -380,6 +827,28 @@ public class BigtableBufferedMutator implements BufferedMutator {
     }
   }
 
+  /**
+   * Adds the increment to the {@link IncrementAggregator}, and releases the operation once the
+   * combined request completes. The time spent waiting to be combined is not an RPC latency, so
+   * this does not use {@link HeapSizeManager#addCallback(ListenableFuture, Long)}.
+   */
+  private ListenableFuture<? extends GeneratedMessage> aggregateIncrement(
+      ReadModifyWriteRowRequest increment, final long operationId) {
+    ListenableFuture<com.google.bigtable.v1.Row> future = incrementAggregator.add(increment);
+    Futures.addCallback(future, new FutureCallback<com.google.bigtable.v1.Row>() {
+      @Override
+      public void onSuccess(com.google.bigtable.v1.Row result) {
+        heapSizeManager.markCanBeCompleted(operationId);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        heapSizeManager.markCanBeCompleted(operationId);
+      }
+    });
+    return future;
+  }
+
   private void addGlobalException(Row mutation, Throwable t) {
     synchronized (globalExceptions) {
       globalExceptions.add(new MutationException(mutation, t));
@@ -391,7 +860,7 @@ public class BigtableBufferedMutator implements BufferedMutator {
    * Create a {@link RetriesExhaustedWithDetailsException} if there were any async exceptions and
    * send it to the {@link org.apache.hadoop.hbase.client.BufferedMutator.ExceptionListener}.
    */
-  private void handleExceptions() throws RetriesExhaustedWithDetailsException {
+  void handleExceptions() throws RetriesExhaustedWithDetailsException {
     if (hasExceptions.get()) {
       ArrayList<MutationException> mutationExceptions = null;
       synchronized (globalExceptions) {
@@ -437,6 +906,71 @@ public class BigtableBufferedMutator implements BufferedMutator {
     }
   }
 
+  /**
+   * The kind of mutation that stands in for a request without an HBase mutation when its failure
+   * is reported to the {@link BufferedMutator.ExceptionListener}.
+   */
+  private enum StandIn {
+    PUT, DELETE, INCREMENT, APPEND;
+
+    static StandIn of(GeneratedMessage request) {
+      if (request instanceof ReadModifyWriteRowRequest) {
+        for (ReadModifyWriteRule rule : ((ReadModifyWriteRowRequest) request).getRulesList()) {
+          if (rule.getRuleCase() == ReadModifyWriteRule.RuleCase.APPEND_VALUE) {
+            return APPEND;
+          }
+        }
+        return INCREMENT;
+      }
+      for (com.google.bigtable.v1.Mutation mutation :
+          ((MutateRowRequest) request).getMutationsList()) {
+        if (mutation.getMutationCase() == com.google.bigtable.v1.Mutation.MutationCase.SET_CELL) {
+          return PUT;
+        }
+      }
+      return DELETE;
+    }
+
+    /**
+     * @return a mutation of this kind that only has the row key.
+     */
+    Mutation create(byte[] rowKey) {
+      switch (this) {
+        case PUT:
+          return new Put(rowKey);
+        case DELETE:
+          return new Delete(rowKey);
+        case INCREMENT:
+          return new Increment(rowKey);
+        default:
+          return new Append(rowKey);
+      }
+    }
+  }
+
+  /**
+   * Like {@link ExceptionCallback}, but the stand-in mutation is only created if the request
+   * fails.
+   */
+  private class StandInExceptionCallback implements FutureCallback<GeneratedMessage> {
+    private final ByteString rowKey;
+    private final StandIn standIn;
+
+    public StandInExceptionCallback(ByteString rowKey, StandIn standIn) {
+      this.rowKey = rowKey;
+      this.standIn = standIn;
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+      addGlobalException(standIn.create(rowKey.toByteArray()), t);
+    }
+
+    @Override
+    public void onSuccess(GeneratedMessage ignored) {
+    }
+  }
+
   public boolean hasInflightRequests() {
     return this.asyncExecutor.hasInflightRequests();
   }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.hbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.Logger;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
+import com.google.cloud.bigtable.grpc.async.BufferedMutationResult;
+import com.google.cloud.bigtable.grpc.async.HeapSizeManager;
+import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
+import com.google.protobuf.GeneratedMessage;
+
+/**
+ * A buffered mutator that writes to many tables. It accepts a {@link TableName} with each
+ * {@link Mutation}, and hands it to a {@link BigtableBufferedMutator} for that table. The
+ * per-table mutators are created on first use, and share one {@link HeapSizeManager}, and so one
+ * set of flow control limits, and one {@link ExecutorService} for their async workers.
+ * {@link #flush()} sends the buffered mutations of every table before it waits for any of them.
+ *
+ * <p>Failed mutations are collected, and reported as a {@link RetriesExhaustedWithDetailsException}
+ * by the next call to {@link #mutate(TableName, Mutation)}, {@link #flush()} or {@link #close()},
+ * whichever table they were written to. This class is thread safe.
+ */
+public class BigtableMultiTableBufferedMutator implements Closeable {
+
+  protected static final Logger LOG = new Logger(BigtableMultiTableBufferedMutator.class);
+
+  private final BigtableDataClient client;
+  private final Configuration configuration;
+  private final BigtableOptions options;
+  private final HeapSizeManager heapSizeManager;
+  private final AsyncExecutor asyncExecutor;
+  private final ExecutorService executorService;
+
+  private final ConcurrentMap<TableName, BigtableBufferedMutator> tableMutators =
+      new ConcurrentHashMap<>();
+
+  private final ReentrantReadWriteLock isClosedLock = new ReentrantReadWriteLock();
+  private final ReadLock closedReadLock = isClosedLock.readLock();
+  private final WriteLock closedWriteLock = isClosedLock.writeLock();
+  private boolean closed = false;
+
+  private final List<RetriesExhaustedWithDetailsException> globalExceptions = new ArrayList<>();
+
+  /**
+   * Collects the exceptions of every table, so that {@link #handleExceptions()} can report them
+   * together.
+   */
+  private final BufferedMutator.ExceptionListener exceptionCollector =
+      new BufferedMutator.ExceptionListener() {
+        @Override
+        public void onException(RetriesExhaustedWithDetailsException exception,
+            BufferedMutator mutator) {
+          synchronized (globalExceptions) {
+            globalExceptions.add(exception);
+          }
+        }
+      };
+
+  /**
+   * @param client Performs the async operations
+   * @param configuration Used to create the request adapter of each table
+   * @param options BigtableOptions
+   * @param heapSizeManager Tracks how much memory is used by the requests of all of the tables and
+   *          how many outstanding operations there are.
+   * @param asyncRpcExecutorService Runs the async workers of all of the tables, which adapt and
+   *          send the mutations. May be null, in which case that happens on the calling thread.
+   */
+  public BigtableMultiTableBufferedMutator(
+      BigtableDataClient client,
+      Configuration configuration,
+      BigtableOptions options,
+      HeapSizeManager heapSizeManager,
+      ExecutorService asyncRpcExecutorService) {
+    this.client = client;
+    this.configuration = configuration;
+    this.options = options;
+    this.heapSizeManager = heapSizeManager;
+    this.asyncExecutor = new AsyncExecutor(client, heapSizeManager);
+    this.executorService = asyncRpcExecutorService;
+  }
+
+  /**
+   * Creates the {@link BigtableBufferedMutator} of a table. Subclasses can override this to add
+   * an {@link IncrementAggregator} or a {@link MutationSpillFile}, but the returned mutator has to
+   * use the shared {@link HeapSizeManager}.
+   *
+   * @param tableName The table to write to
+   * @param listener Has to be passed to the mutator, so that its failures are reported by this
+   *          class.
+   */
+  protected BigtableBufferedMutator createTableMutator(TableName tableName,
+      BufferedMutator.ExceptionListener listener) throws IOException {
+    HBaseRequestAdapter adapter =
+        new HBaseRequestAdapter(options.getClusterName(), tableName, configuration);
+    return new BigtableBufferedMutator(client, adapter, configuration, options, listener,
+        heapSizeManager, executorService);
+  }
+
+  /**
+   * Sends a {@link Mutation} to a table. This method blocks while the shared
+   * {@link HeapSizeManager} is full.
+   */
+  public void mutate(TableName tableName, Mutation mutation) throws IOException {
+    closedReadLock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Cannot mutate when the BufferedMutator is closed.");
+      }
+      handleExceptions();
+      getTableMutator(tableName).mutate(mutation);
+    } finally {
+      closedReadLock.unlock();
+    }
+  }
+
+  /**
+   * Sends {@link Mutation}s to a table. This method blocks while the shared
+   * {@link HeapSizeManager} is full.
+   */
+  public void mutate(TableName tableName, List<? extends Mutation> mutations) throws IOException {
+    closedReadLock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Cannot mutate when the BufferedMutator is closed.");
+      }
+      handleExceptions();
+      getTableMutator(tableName).mutate(mutations);
+    } finally {
+      closedReadLock.unlock();
+    }
+  }
+
+  /**
+   * Sends a {@link Mutation} to a table without blocking. See
+   * {@link BigtableBufferedMutator#tryMutate(Mutation)}.
+   */
+  public BufferedMutationResult<? extends GeneratedMessage> tryMutate(TableName tableName,
+      Mutation mutation) throws IOException {
+    closedReadLock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Cannot mutate when the BufferedMutator is closed.");
+      }
+      handleExceptions();
+      return getTableMutator(tableName).tryMutate(mutation);
+    } finally {
+      closedReadLock.unlock();
+    }
+  }
+
+  private BigtableBufferedMutator getTableMutator(TableName tableName) throws IOException {
+    BigtableBufferedMutator tableMutator = tableMutators.get(tableName);
+    if (tableMutator == null) {
+      synchronized (tableMutators) {
+        tableMutator = tableMutators.get(tableName);
+        if (tableMutator == null) {
+          tableMutator = createTableMutator(tableName, exceptionCollector);
+          tableMutators.put(tableName, tableMutator);
+        }
+      }
+    }
+    return tableMutator;
+  }
+
+  /**
+   * Sends the buffered mutations of all of the tables, and waits until every outstanding mutation
+   * completes.
+   */
+  public void flush() throws IOException {
+    closedReadLock.lock();
+    try {
+      doFlush();
+    } finally {
+      closedReadLock.unlock();
+    }
+  }
+
+  private void doFlush() throws IOException {
+    for (BigtableBufferedMutator tableMutator : tableMutators.values()) {
+      tableMutator.send();
+    }
+    // All of the tables share the HeapSizeManager, so this waits for all of them.
+    asyncExecutor.flush();
+    handleExceptions();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closedWriteLock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      doFlush();
+      for (BigtableBufferedMutator tableMutator : tableMutators.values()) {
+        tableMutator.close();
+      }
+      closed = true;
+      handleExceptions();
+    } finally {
+      closedWriteLock.unlock();
+    }
+  }
+
+  /**
+   * Throws a {@link RetriesExhaustedWithDetailsException} if any of the tables had async
+   * exceptions.
+   */
+  private void handleExceptions() throws RetriesExhaustedWithDetailsException {
+    // The table mutators hand their exceptions to the exceptionCollector.
+    for (BigtableBufferedMutator tableMutator : tableMutators.values()) {
+      tableMutator.handleExceptions();
+    }
+    List<RetriesExhaustedWithDetailsException> exceptions;
+    synchronized (globalExceptions) {
+      if (globalExceptions.isEmpty()) {
+        return;
+      }
+      exceptions = new ArrayList<>(globalExceptions);
+      globalExceptions.clear();
+    }
+
+    List<Throwable> problems = new ArrayList<>();
+    List<String> hostnames = new ArrayList<>();
+    List<Row> failedMutations = new ArrayList<>();
+    for (RetriesExhaustedWithDetailsException exception : exceptions) {
+      for (int i = 0; i < exception.getNumExceptions(); i++) {
+        problems.add(exception.getCause(i));
+        failedMutations.add(exception.getRow(i));
+        hostnames.add(exception.getHostnamePort(i));
+      }
+    }
+    throw new RetriesExhaustedWithDetailsException(problems, failedMutations, hostnames);
+  }
+
+  public boolean hasInflightRequests() {
+    return asyncExecutor.hasInflightRequests();
+  }
+}
@@ -23,9 +23,11 @@ import static com.google.cloud.bigtable.config.BigtableOptions.BIGTABLE_PORT_DEF
 import static com.google.cloud.bigtable.config.BigtableOptions.BIGTABLE_ASYNC_MUTATOR_COUNT_DEFAULT;
 
 import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.config.CallOptionsConfig;
 import com.google.cloud.bigtable.config.CredentialOptions;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.config.RetryOptions;
+import com.google.cloud.bigtable.grpc.io.ChannelSelection;
 import com.google.common.base.Preconditions;
 
 import org.apache.hadoop.conf.Configuration;
@@ -109,6 +111,17 @@ public class BigtableOptionsFactory {
    */
   public static final String MAX_ELAPSED_BACKOFF_MILLIS_KEY =
       "google.bigtable.grpc.retry.max.elapsed.backoff.ms";
+  /**
+   * Key to set to a boolean flag indicating whether each backoff should be chosen uniformly between
+   * 0 and the exponential interval. By default, the interval is randomized by +/-50%.
+   */
+  public static final String USE_FULL_JITTER_KEY = "google.bigtable.grpc.retry.full.jitter.enable";
+
+  /**
+   * Key to set the number of retries allowed per 100 successful calls across a session. By
+   * default, retries are only limited by the backoff of each operation.
+   */
+  public static final String RETRY_BUDGET_PERCENT_KEY = "google.bigtable.grpc.retry.budget.percent";
 
   /**
    * Key to set the amount of time to wait when reading a partial row.
@@ -132,11 +145,64 @@ public class BigtableOptionsFactory {
   public static final String BIGTABLE_DATA_CHANNEL_COUNT_KEY = "google.bigtable.grpc.channel.count";
 
   /**
-   * The maximum length of time to keep a Bigtable grpc channel open.
+   * The largest number of grpc channels that the data channel pool may grow to when many calls
+   * are in flight. The pool starts with {@link #BIGTABLE_DATA_CHANNEL_COUNT_KEY} channels, and
+   * shrinks back to that size when the load drops. Resizing is disabled unless this is larger than
+   * the channel count.
+   */
+  public static final String BIGTABLE_MAX_DATA_CHANNEL_COUNT_KEY =
+      "google.bigtable.grpc.channel.count.max";
+
+  /**
+   * The number of in flight calls per grpc channel above which a resizable data channel pool grows.
+   */
+  public static final String BIGTABLE_CHANNEL_TARGET_OUTSTANDING_CALLS_KEY =
+      "google.bigtable.grpc.channel.target.outstanding.calls";
+
+  /**
+   * Deadlines, in milliseconds, for each type of data operation, including its retries. 0, the
+   * default, means that {@link #BIGTABLE_CHANNEL_TIMEOUT_MS_KEY} applies. See
+   * {@link CallOptionsConfig}.
+   */
+  public static final String MUTATE_ROW_TIMEOUT_MS_KEY = "google.bigtable.grpc.mutate.row.timeout.ms";
+  public static final String MUTATE_ROWS_TIMEOUT_MS_KEY =
+      "google.bigtable.grpc.mutate.rows.timeout.ms";
+  public static final String READ_ROWS_TIMEOUT_MS_KEY = "google.bigtable.grpc.read.rows.timeout.ms";
+  public static final String CHECK_AND_MUTATE_ROW_TIMEOUT_MS_KEY =
+      "google.bigtable.grpc.check.and.mutate.row.timeout.ms";
+  public static final String READ_MODIFY_WRITE_ROW_TIMEOUT_MS_KEY =
+      "google.bigtable.grpc.read.modify.write.row.timeout.ms";
+  public static final String SAMPLE_ROW_KEYS_TIMEOUT_MS_KEY =
+      "google.bigtable.grpc.sample.row.keys.timeout.ms";
+
+  /**
+   * The default deadline, in milliseconds, of data operations that have no deadline of their own.
+   * 0 means no deadline.
    */
   public static final String BIGTABLE_CHANNEL_TIMEOUT_MS_KEY =
       "google.bigtable.grpc.channel.timeout.ms";
 
+  /**
+   * How to choose a data channel for each call. One of the {@link ChannelSelection} names, such as
+   * round_robin, least_outstanding_calls or power_of_two_choices. Defaults to round_robin.
+   */
+  public static final String BIGTABLE_CHANNEL_SELECTION_KEY =
+      "google.bigtable.grpc.channel.selection";
+
+  /**
+   * If true, all data channels are connected in parallel when the connection is created, rather
+   * than on the first call on each channel. Defaults to false.
+   */
+  public static final String BIGTABLE_EAGERLY_CONNECT_CHANNELS_KEY =
+      "google.bigtable.grpc.channel.eager.connect";
+
+  /**
+   * The number of consecutive transport failures after which a data channel is replaced. 0, the
+   * default, means that channels are never replaced.
+   */
+  public static final String BIGTABLE_CHANNEL_EJECTION_FAILURE_THRESHOLD_KEY =
+      "google.bigtable.grpc.channel.ejection.failure.threshold";
+
   public static final String BIGTABLE_USE_BULK_API =
       "google.bigtable.use.bulk.api";
 
@@ -146,12 +212,73 @@ public class BigtableOptionsFactory {
   public static final String BIGTABLE_BULK_MAX_ROW_KEY_COUNT =
       "google.bigtable.bulk.max.row.key.count";
 
+  /**
+   * The maximum number of milliseconds that a partially filled bulk request may wait before it is
+   * sent. 0, the default, means that partial batches are only sent on flush.
+   */
+  public static final String BIGTABLE_BULK_LINGER_MS_KEY =
+      "google.bigtable.bulk.linger.ms";
+
+  /**
+   * The latency in milliseconds that bulk mutation requests aim for. If set, the number of row
+   * keys and bytes per request adapt to the observed latency and failures, starting from
+   * {@link #BIGTABLE_BULK_MAX_ROW_KEY_COUNT} and {@link #BIGTABLE_BULK_MAX_REQUEST_SIZE_BYTES}.
+   * 0, the default, disables adaptive sizing.
+   */
+  public static final String BIGTABLE_BULK_TARGET_LATENCY_MS_KEY =
+      "google.bigtable.bulk.target.latency.ms";
+
+  /**
+   * Whether mutations for the same row key within a bulk request are merged into a single entry.
+   * Defaults to false.
+   */
+  public static final String BIGTABLE_BULK_COALESCE_ROWS_KEY =
+      "google.bigtable.bulk.coalesce.rows";
+
+  /**
+   * The number of milliseconds that increments of the same row are held so that they can be
+   * combined into a single ReadModifyWriteRow request. Defaults to 0, which disables combining.
+   */
+  public static final String BIGTABLE_INCREMENT_AGGREGATION_WINDOW_MS_KEY =
+      "google.bigtable.increment.aggregation.window.ms";
+
+  /**
+   * The maximum number of increments that are held before they are sent, regardless of
+   * {@link #BIGTABLE_INCREMENT_AGGREGATION_WINDOW_MS_KEY}.
+   */
+  public static final String BIGTABLE_INCREMENT_AGGREGATION_MAX_REQUESTS_KEY =
+      "google.bigtable.increment.aggregation.max.requests";
+
+  /**
+   * The number of microseconds that a synchronous Table.put(Put) or Table.delete(Delete) may wait
+   * so that concurrent writes to the same table are sent as a single MutateRows request. A group is
+   * sent earlier once it reaches the bulk row count or request size limits. Defaults to 0, which
+   * sends each write on its own.
+   */
+  public static final String BIGTABLE_GROUP_COMMIT_WINDOW_MICROS_KEY =
+      "google.bigtable.group.commit.window.micros";
+
+  /**
+   * The number of microseconds that a Table.get(Get) may wait so that concurrent gets of the same
+   * table with the same filter are sent as a single ReadRows request. A batch is sent earlier once
+   * it reaches the bulk row count limit. Defaults to 0, which sends each get on its own.
+   */
+  public static final String BIGTABLE_READ_COALESCING_WINDOW_MICROS_KEY =
+      "google.bigtable.read.coalescing.window.micros";
+
   /**
    * The number of asynchronous workers to use for buffered mutator operations.
    */
   public static final String BIGTABLE_ASYNC_MUTATOR_COUNT_KEY =
       "google.bigtable.buffered.mutator.async.worker.count";
 
+  /**
+   * Whether a buffered mutator sends the mutations of a row one at a time, so that they are
+   * applied in order. It can't be combined with {@link #BIGTABLE_USE_BULK_API}. Defaults to false.
+   */
+  public static final String BIGTABLE_ASYNC_MUTATOR_ORDER_BY_ROW_KEY =
+      "google.bigtable.buffered.mutator.async.order.by.row";
+
   public static BigtableOptions fromConfiguration(final Configuration configuration)
       throws IOException {
 
@@ -181,6 +308,8 @@ public class BigtableOptionsFactory {
     int asyncMutatorCount = configuration.getInt(
         BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, BIGTABLE_ASYNC_MUTATOR_COUNT_DEFAULT);
     bigtableOptionsBuilder.setAsyncMutatorWorkerCount(asyncMutatorCount);
+    bigtableOptionsBuilder.setOrderAsyncMutationsByRow(
+        configuration.getBoolean(BIGTABLE_ASYNC_MUTATOR_ORDER_BY_ROW_KEY, false));
 
     bigtableOptionsBuilder.setUseBulkApi(configuration.getBoolean(BIGTABLE_USE_BULK_API, false));
     bigtableOptionsBuilder.setBulkMaxRowKeyCount(
@@ -191,6 +320,32 @@ public class BigtableOptionsFactory {
         configuration.getLong(
             BIGTABLE_BULK_MAX_REQUEST_SIZE_BYTES,
             BigtableOptions.BIGTABLE_BULK_MAX_REQUEST_SIZE_BYTES_DEFAULT));
+    bigtableOptionsBuilder.setBulkLingerMs(
+        configuration.getLong(
+            BIGTABLE_BULK_LINGER_MS_KEY,
+            BigtableOptions.BIGTABLE_BULK_LINGER_MS_DEFAULT));
+    bigtableOptionsBuilder.setBulkTargetLatencyMs(
+        configuration.getLong(
+            BIGTABLE_BULK_TARGET_LATENCY_MS_KEY,
+            BigtableOptions.BIGTABLE_BULK_TARGET_LATENCY_MS_DEFAULT));
+    bigtableOptionsBuilder.setCoalesceBulkRows(
+        configuration.getBoolean(BIGTABLE_BULK_COALESCE_ROWS_KEY, false));
+    bigtableOptionsBuilder.setIncrementAggregationWindowMs(
+        configuration.getLong(
+            BIGTABLE_INCREMENT_AGGREGATION_WINDOW_MS_KEY,
+            BigtableOptions.BIGTABLE_INCREMENT_AGGREGATION_WINDOW_MS_DEFAULT));
+    bigtableOptionsBuilder.setIncrementAggregationMaxRequests(
+        configuration.getInt(
+            BIGTABLE_INCREMENT_AGGREGATION_MAX_REQUESTS_KEY,
+            BigtableOptions.BIGTABLE_INCREMENT_AGGREGATION_MAX_REQUESTS_DEFAULT));
+    bigtableOptionsBuilder.setGroupCommitWindowMicros(
+        configuration.getLong(
+            BIGTABLE_GROUP_COMMIT_WINDOW_MICROS_KEY,
+            BigtableOptions.BIGTABLE_GROUP_COMMIT_WINDOW_MICROS_DEFAULT));
+    bigtableOptionsBuilder.setReadCoalescingWindowMicros(
+        configuration.getLong(
+            BIGTABLE_READ_COALESCING_WINDOW_MICROS_KEY,
+            BigtableOptions.BIGTABLE_READ_COALESCING_WINDOW_MICROS_DEFAULT));
 
     return bigtableOptionsBuilder.build();
   }
@@ -217,10 +372,15 @@ public class BigtableOptionsFactory {
     setCredentialOptions(builder, configuration);
 
     builder.setRetryOptions(createRetryOptions(configuration));
+    builder.setCallOptionsConfig(createCallOptionsConfig(configuration));
 
     int channelCount = configuration.getInt(
         BIGTABLE_DATA_CHANNEL_COUNT_KEY, BigtableOptions.BIGTABLE_DATA_CHANNEL_COUNT_DEFAULT);
     builder.setDataChannelCount(channelCount);
+    builder.setMaxDataChannelCount(configuration.getInt(BIGTABLE_MAX_DATA_CHANNEL_COUNT_KEY, 0));
+    builder.setChannelTargetOutstandingCalls(configuration.getInt(
+        BIGTABLE_CHANNEL_TARGET_OUTSTANDING_CALLS_KEY,
+        BigtableOptions.BIGTABLE_CHANNEL_TARGET_OUTSTANDING_CALLS_DEFAULT));
 
     int channelTimeout = configuration.getInt(
         BIGTABLE_CHANNEL_TIMEOUT_MS_KEY, BigtableOptions.BIGTABLE_CHANNEL_TIMEOUT_MS_DEFAULT);
@@ -231,6 +391,17 @@ public class BigtableOptionsFactory {
       BIGTABLE_CHANNEL_TIMEOUT_MS_KEY + " has to be 0 (no timeout) or 1 minute+ (60000)");
     builder.setTimeoutMs(channelTimeout);
 
+    String channelSelection = configuration.get(BIGTABLE_CHANNEL_SELECTION_KEY);
+    if (!isNullOrEmpty(channelSelection)) {
+      builder.setChannelSelection(ChannelSelection.valueOf(channelSelection.toUpperCase()));
+    }
+    builder.setEagerlyConnectChannels(
+        configuration.getBoolean(BIGTABLE_EAGERLY_CONNECT_CHANNELS_KEY, false));
+    builder.setChannelEjectionFailureThreshold(
+        configuration.getInt(BIGTABLE_CHANNEL_EJECTION_FAILURE_THRESHOLD_KEY, 0));
+    builder.setRetryBudgetPercent(configuration.getInt(RETRY_BUDGET_PERCENT_KEY,
+      BigtableOptions.BIGTABLE_RETRY_BUDGET_PERCENT_DEFAULT));
+
     builder.setUserAgent(BigtableConstants.USER_AGENT);
   }
 
@@ -270,6 +441,19 @@ public class BigtableOptionsFactory {
     }
   }
 
+  private static CallOptionsConfig createCallOptionsConfig(Configuration configuration) {
+    return new CallOptionsConfig.Builder()
+        .setMutateRowTimeoutMs(configuration.getInt(MUTATE_ROW_TIMEOUT_MS_KEY, 0))
+        .setMutateRowsTimeoutMs(configuration.getInt(MUTATE_ROWS_TIMEOUT_MS_KEY, 0))
+        .setReadRowsTimeoutMs(configuration.getInt(READ_ROWS_TIMEOUT_MS_KEY, 0))
+        .setCheckAndMutateRowTimeoutMs(
+          configuration.getInt(CHECK_AND_MUTATE_ROW_TIMEOUT_MS_KEY, 0))
+        .setReadModifyWriteRowTimeoutMs(
+          configuration.getInt(READ_MODIFY_WRITE_ROW_TIMEOUT_MS_KEY, 0))
+        .setSampleRowKeysTimeoutMs(configuration.getInt(SAMPLE_ROW_KEYS_TIMEOUT_MS_KEY, 0))
+        .build();
+  }
+
   private static RetryOptions createRetryOptions(Configuration configuration) {
     RetryOptions.Builder retryOptionsBuilder = new RetryOptions.Builder();
     boolean enableRetries = configuration.getBoolean(
@@ -289,6 +473,11 @@ public class BigtableOptionsFactory {
     LOG.debug("gRPC retry maxElapsedBackoffMillis: %d", maxElapsedBackoffMillis);
     retryOptionsBuilder.setMaxElapsedBackoffMillis(maxElapsedBackoffMillis);
 
+    boolean useFullJitter =
+        configuration.getBoolean(USE_FULL_JITTER_KEY, RetryOptions.DEFAULT_USE_FULL_JITTER);
+    LOG.debug("gRPC retry full jitter enabled: %s", useFullJitter);
+    retryOptionsBuilder.setUseFullJitter(useFullJitter);
+
     int readPartialRowTimeoutMillis = configuration.getInt(
         READ_PARTIAL_ROW_TIMEOUT_MS, RetryOptions.DEFAULT_READ_PARTIAL_ROW_TIMEOUT_MS);
     LOG.debug("gRPC read partial row timeout (millis): %d", readPartialRowTimeoutMillis);
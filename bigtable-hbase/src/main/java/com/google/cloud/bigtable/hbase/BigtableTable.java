@@ -20,6 +20,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Cell;
@@ -61,6 +63,9 @@ import com.google.bigtable.v1.ReadRowsRequest;
 import com.google.cloud.bigtable.config.BigtableOptions;
 import com.google.cloud.bigtable.config.Logger;
 import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.async.IncrementAggregator;
+import com.google.cloud.bigtable.grpc.async.MutationGroupCommitter;
+import com.google.cloud.bigtable.grpc.async.ReadRowCoalescer;
 import com.google.cloud.bigtable.hbase.adapters.Adapters;
 import com.google.cloud.bigtable.hbase.adapters.ReadHooks;
 import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
@@ -200,6 +205,17 @@ public class BigtableTable implements Table {
   @Override
   public Result get(Get get) throws IOException {
     LOG.trace("get(Get)");
+    ReadRowCoalescer readRowCoalescer = getReadRowCoalescer();
+    if (readRowCoalescer != null) {
+      Future<List<com.google.bigtable.v1.Row>> future;
+      try {
+        future = readRowCoalescer.add(hbaseAdapter.adapt(get));
+      } catch (Throwable t) {
+        throw logAndCreateIOException("get", get.getRow(), t);
+      }
+      List<com.google.bigtable.v1.Row> rows = getUnchecked("get", get.getRow(), future);
+      return Adapters.ROW_ADAPTER.adaptResponse(rows.isEmpty() ? null : rows.get(0));
+    }
     try (com.google.cloud.bigtable.grpc.scanner.ResultScanner<com.google.bigtable.v1.Row> scanner =
         client.readRows(hbaseAdapter.adapt(get))) {
       return Adapters.ROW_ADAPTER.adaptResponse(scanner.next());
@@ -262,12 +278,7 @@ public class BigtableTable implements Table {
   @Override
   public void put(Put put) throws IOException {
     LOG.trace("put(Put)");
-    MutateRowRequest request = hbaseAdapter.adapt(put);
-    try {
-      client.mutateRow(request);
-    } catch (Throwable t) {
-      throw logAndCreateIOException("put", put.getRow(), t);
-    }
+    mutateRow("put", hbaseAdapter.adapt(put), put.getRow());
   }
 
   @Override
@@ -308,12 +319,7 @@ public class BigtableTable implements Table {
   @Override
   public void delete(Delete delete) throws IOException {
     LOG.trace("delete(Delete)");
-    MutateRowRequest request = hbaseAdapter.adapt(delete);
-    try {
-      client.mutateRow(request);
-    } catch (Throwable t) {
-      throw logAndCreateIOException("delete", delete.getRow(), t);
-    }
+    mutateRow("delete", hbaseAdapter.adapt(delete), delete.getRow());
   }
 
   @Override
@@ -415,6 +421,11 @@ public class BigtableTable implements Table {
     LOG.trace("increment(Increment)");
 
     ReadModifyWriteRowRequest request = hbaseAdapter.adapt(increment);
+    IncrementAggregator incrementAggregator = getIncrementAggregator();
+    if (incrementAggregator != null) {
+      return Adapters.ROW_ADAPTER.adaptResponse(
+        getUnchecked("increment", increment.getRow(), incrementAggregator.add(request)));
+    }
     try {
       return Adapters.ROW_ADAPTER.adaptResponse(client.readModifyWriteRow(request));
     } catch (Throwable t) {
@@ -422,7 +433,70 @@ public class BigtableTable implements Table {
     }
   }
 
+  /**
+   * Sends a single row mutation and waits for it, as part of a group if group commits are enabled.
+   */
+  private void mutateRow(String type, MutateRowRequest request, byte[] row) throws IOException {
+    MutationGroupCommitter groupCommitter = getMutationGroupCommitter();
+    if (groupCommitter != null) {
+      getUnchecked(type, row, groupCommitter.add(request));
+      return;
+    }
+    try {
+      client.mutateRow(request);
+    } catch (Throwable t) {
+      throw logAndCreateIOException(type, row, t);
+    }
+  }
+
+  /**
+   * Waits for a request that was handed to a batching helper, and reports its failure the same way
+   * as that of a synchronous call.
+   */
+  private <T> T getUnchecked(String type, byte[] row, Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw logAndCreateIOException(type, row, e.getCause());
+    } catch (InterruptedException e) {
+      throw logAndCreateIOException(type, row, e);
+    }
+  }
+
+  /**
+   * @return the connection's {@link ReadRowCoalescer}, or null if gets are not coalesced.
+   */
+  private ReadRowCoalescer getReadRowCoalescer() {
+    if (options.getReadCoalescingWindowMicros() == 0 || bigtableConnection == null) {
+      return null;
+    }
+    return bigtableConnection.getReadRowCoalescer();
+  }
+
+  /**
+   * @return the connection's {@link MutationGroupCommitter}, or null if writes are not grouped.
+   */
+  private MutationGroupCommitter getMutationGroupCommitter() {
+    if (options.getGroupCommitWindowMicros() == 0 || bigtableConnection == null) {
+      return null;
+    }
+    return bigtableConnection.getSession().getMutationGroupCommitter();
+  }
+
+  /**
+   * @return the connection's {@link IncrementAggregator}, or null if increments are not combined.
+   */
+  private IncrementAggregator getIncrementAggregator() {
+    if (options.getIncrementAggregationWindowMs() == 0 || bigtableConnection == null) {
+      return null;
+    }
+    return bigtableConnection.getSession().getIncrementAggregator();
+  }
+
   private IOException logAndCreateIOException(String type, byte[] row, Throwable t) {
+    if (t instanceof InterruptedException) {
+      Thread.currentThread().interrupt();
+    }
     LOG.error("Encountered exception when executing " + type + ".", t);
     return new IOException(
         makeGenericExceptionMessage(
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.hbase.adapters;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue.Type;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A {@link Cell} whose row key, qualifier and value are stored in a buffer that is shared by all of
+ * the cells of a row. The row key is at the start of the buffer, followed by the qualifier of each
+ * column and the values of its cells. The family name is a separate array, which is shared across
+ * rows. Compared to {@link RowCell}, this saves an array per value and per qualifier, which makes a
+ * large difference in memory for wide rows with small values.
+ */
+public class PackedRowCell implements Cell {
+
+  private final byte[] buffer;
+  private final short rowLength;
+  private final byte[] familyArray;
+  private final int qualifierOffset;
+  private final int qualifierLength;
+  private final long timestamp;
+  private final int valueOffset;
+  private final int valueLength;
+
+  public PackedRowCell(byte[] buffer, short rowLength, byte[] familyArray, int qualifierOffset,
+      int qualifierLength, long timestamp, int valueOffset, int valueLength) {
+    this.buffer = buffer;
+    this.rowLength = rowLength;
+    this.familyArray = familyArray;
+    this.qualifierOffset = qualifierOffset;
+    this.qualifierLength = qualifierLength;
+    this.timestamp = timestamp;
+    this.valueOffset = valueOffset;
+    this.valueLength = valueLength;
+  }
+
+  @Override
+  public byte[] getRowArray() {
+    return this.buffer;
+  }
+
+  @Override
+  public int getRowOffset() {
+    return 0;
+  }
+
+  @Override
+  public short getRowLength() {
+    return this.rowLength;
+  }
+
+  @Override
+  public byte[] getFamilyArray() {
+    return this.familyArray;
+  }
+
+  @Override
+  public int getFamilyOffset() {
+    return 0;
+  }
+
+  @Override
+  public byte getFamilyLength() {
+    return (byte) this.familyArray.length;
+  }
+
+  @Override
+  public byte[] getQualifierArray() {
+    return this.buffer;
+  }
+
+  @Override
+  public int getQualifierOffset() {
+    return this.qualifierOffset;
+  }
+
+  @Override
+  public int getQualifierLength() {
+    return this.qualifierLength;
+  }
+
+  @Override
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public byte getTypeByte() {
+    return Type.Put.getCode();
+  }
+
+  @Deprecated
+  @Override
+  public long getMvccVersion() {
+    return 0;
+  }
+
+  @Override
+  public long getSequenceId() {
+    return 0;
+  }
+
+  @Override
+  public byte[] getValueArray() {
+    return this.buffer;
+  }
+
+  @Override
+  public int getValueOffset() {
+    return this.valueOffset;
+  }
+
+  @Override
+  public int getValueLength() {
+    return this.valueLength;
+  }
+
+  @Override
+  public byte[] getTagsArray() {
+    return HConstants.EMPTY_BYTE_ARRAY;
+  }
+
+  @Override
+  public int getTagsOffset() {
+    return 0;
+  }
+
+  @Override
+  public int getTagsLength() {
+    return 0;
+  }
+
+  @Deprecated
+  @Override
+  public byte[] getValue() {
+    return Bytes.copy(this.buffer, this.valueOffset, this.valueLength);
+  }
+
+  @Deprecated
+  @Override
+  public byte[] getFamily() {
+    return Bytes.copy(this.familyArray);
+  }
+
+  @Deprecated
+  @Override
+  public byte[] getQualifier() {
+    return Bytes.copy(this.buffer, this.qualifierOffset, this.qualifierLength);
+  }
+
+  @Deprecated
+  @Override
+  public byte[] getRow() {
+    return Bytes.copy(this.buffer, 0, this.rowLength);
+  }
+}
@@ -20,17 +20,29 @@ import com.google.bigtable.v1.Column;
 import com.google.bigtable.v1.Family;
 import com.google.bigtable.v1.Row;
 import com.google.cloud.bigtable.hbase.BigtableConstants;
-import com.google.cloud.bigtable.util.ByteStringer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.ByteString;
 
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 
+import java.util.Arrays;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Adapt a bigtable.v1.Row to an hbase client Result.
+ *
+ * <p>Bigtable returns the columns of a family in qualifier order and the cells of a column in
+ * descending timestamp order, which is the order that HBase expects. Cells are therefore written
+ * straight into the {@link Result}'s array, and are only sorted if a cell turns out to be out of
+ * order, for example when the families of the row are not sorted by name.
+ *
+ * <p>The cells are {@link PackedRowCell}s that share one buffer per row, and family name bytes
+ * are shared across rows.
  */
 public class RowAdapter implements ResponseAdapter<Row, Result> {
   // This only works because BIGTABLE_TIMEUNIT is smaller than HBASE_TIMEUNIT, otherwise we will get
@@ -38,20 +50,53 @@ public class RowAdapter implements ResponseAdapter<Row, Result> {
   static final long TIME_CONVERSION_UNIT = BigtableConstants.BIGTABLE_TIMEUNIT.convert(1,
     BigtableConstants.HBASE_TIMEUNIT);
 
+  /**
+   * Family names are interned up to this many distinct names, which is more than any reasonable
+   * set of tables has. Past that, family name bytes are no longer shared across rows.
+   */
+  private static final int MAX_INTERNED_FAMILY_NAMES = 1000;
+
+  private static final ConcurrentMap<String, byte[]> FAMILY_NAME_BYTES =
+      new ConcurrentHashMap<>();
+
   @Override
   public Result adaptResponse(Row response) {
     if (response == null) {
       return new Result();
     }
 
-    SortedSet<org.apache.hadoop.hbase.Cell> hbaseCells = new TreeSet<>(KeyValue.COMPARATOR);
-    byte[] rowKey = ByteStringer.extract(response.getKey());
+    // All of the row's bytes, other than the family names, are copied into a single buffer that
+    // is shared by the row's cells. See PackedRowCell.
+    ByteString rowKey = response.getKey();
+    int bufferSize = rowKey.size();
+    int totalCellCount = 0;
+    for (Family family : response.getFamiliesList()) {
+      for (Column column : family.getColumnsList()) {
+        bufferSize += column.getQualifier().size();
+        for (Cell cell : column.getCellsList()) {
+          if (cell.getLabelsCount() == 0) {
+            bufferSize += cell.getValue().size();
+            totalCellCount++;
+          }
+        }
+      }
+    }
+    byte[] buffer = new byte[bufferSize];
+    rowKey.copyTo(buffer, 0);
+    int position = rowKey.size();
+
+    org.apache.hadoop.hbase.Cell[] hbaseCells = new org.apache.hadoop.hbase.Cell[totalCellCount];
+    int cellCount = 0;
+    boolean sorted = true;
 
     for (Family family : response.getFamiliesList()) {
-      byte[] familyNameBytes = Bytes.toBytes(family.getName());
+      byte[] familyNameBytes = internFamilyName(family.getName());
 
       for (Column column : family.getColumnsList()) {
-        byte[] columnQualifier = ByteStringer.extract(column.getQualifier());
+        ByteString qualifier = column.getQualifier();
+        int qualifierOffset = position;
+        qualifier.copyTo(buffer, position);
+        position += qualifier.size();
 
         for (Cell cell : column.getCellsList()) {
           // Cells with labels are for internal use, do not return them.
@@ -60,22 +105,75 @@ public class RowAdapter implements ResponseAdapter<Row, Result> {
             continue;
           }
 
+          ByteString value = cell.getValue();
+          int valueOffset = position;
+          value.copyTo(buffer, position);
+          position += value.size();
+
           // Bigtable timestamp has more granularity than HBase one. It is possible that Bigtable
           // cells are deduped unintentionally here. On the other hand, if we don't dedup them,
           // HBase will treat them as duplicates.
           long hbaseTimestamp = cell.getTimestampMicros() / TIME_CONVERSION_UNIT;
-          RowCell keyValue = new RowCell(
-              rowKey,
+          PackedRowCell keyValue = new PackedRowCell(
+              buffer,
+              (short) rowKey.size(),
               familyNameBytes,
-              columnQualifier,
+              qualifierOffset,
+              qualifier.size(),
               hbaseTimestamp,
-              ByteStringer.extract(cell.getValue()));
+              valueOffset,
+              value.size());
 
-          hbaseCells.add(keyValue);
+          if (sorted && cellCount > 0) {
+            int comparison = KeyValue.COMPARATOR.compare(hbaseCells[cellCount - 1], keyValue);
+            if (comparison == 0) {
+              // While the cells are in order, a duplicate can only follow the cell it duplicates.
+              continue;
+            }
+            sorted = comparison < 0;
+          }
+          hbaseCells[cellCount++] = keyValue;
         }
       }
     }
 
-    return Result.create(hbaseCells.toArray(new org.apache.hadoop.hbase.Cell[hbaseCells.size()]));
+    if (!sorted) {
+      return Result.create(sort(hbaseCells, cellCount));
+    }
+    if (cellCount < hbaseCells.length) {
+      hbaseCells = Arrays.copyOf(hbaseCells, cellCount);
+    }
+    return Result.create(hbaseCells);
+  }
+
+  /**
+   * Returns the UTF-8 bytes of a family name. The same array is returned for every row, so the
+   * arrays must not be modified.
+   */
+  @VisibleForTesting
+  static byte[] internFamilyName(String familyName) {
+    byte[] familyNameBytes = FAMILY_NAME_BYTES.get(familyName);
+    if (familyNameBytes == null) {
+      familyNameBytes = Bytes.toBytes(familyName);
+      if (FAMILY_NAME_BYTES.size() < MAX_INTERNED_FAMILY_NAMES) {
+        byte[] existing = FAMILY_NAME_BYTES.putIfAbsent(familyName, familyNameBytes);
+        if (existing != null) {
+          familyNameBytes = existing;
+        }
+      }
+    }
+    return familyNameBytes;
+  }
+
+  /**
+   * Sorts the first cellCount cells and removes duplicates, keeping the first occurrence of each.
+   */
+  private static org.apache.hadoop.hbase.Cell[] sort(org.apache.hadoop.hbase.Cell[] cells,
+      int cellCount) {
+    SortedSet<org.apache.hadoop.hbase.Cell> hbaseCells = new TreeSet<>(KeyValue.COMPARATOR);
+    for (int i = 0; i < cellCount; i++) {
+      hbaseCells.add(cells[i]);
+    }
+    return hbaseCells.toArray(new org.apache.hadoop.hbase.Cell[hbaseCells.size()]);
   }
 }
@@ -22,10 +22,17 @@ import com.google.cloud.bigtable.grpc.BigtableDataClient;
 import com.google.cloud.bigtable.grpc.BigtableSession;
 import com.google.cloud.bigtable.grpc.BigtableSessionSharedThreadPools;
 import com.google.cloud.bigtable.grpc.BigtableTableAdminClient;
+import com.google.cloud.bigtable.grpc.async.AdaptiveConcurrencyLimit;
+import com.google.cloud.bigtable.grpc.async.AdaptiveHeapSizeManager;
 import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
+import com.google.cloud.bigtable.grpc.async.ConcurrentHeapSizeManager;
 import com.google.cloud.bigtable.grpc.async.HeapSizeManager;
+import com.google.cloud.bigtable.grpc.async.MutationSpillFile;
+import com.google.cloud.bigtable.grpc.async.ReadRowCoalescer;
+import com.google.cloud.bigtable.grpc.async.SharedWriteBudget;
 import com.google.cloud.bigtable.hbase.BatchExecutor;
 import com.google.cloud.bigtable.hbase.BigtableBufferedMutator;
+import com.google.cloud.bigtable.hbase.BigtableMultiTableBufferedMutator;
 import com.google.cloud.bigtable.hbase.BigtableOptionsFactory;
 import com.google.cloud.bigtable.hbase.BigtableRegionLocator;
 import com.google.cloud.bigtable.hbase.BigtableTable;
@@ -38,6 +45,7 @@ import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.security.User;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
@@ -53,12 +61,61 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
   public static final String MAX_INFLIGHT_RPCS_KEY =
       "google.bigtable.buffered.mutator.max.inflight.rpcs";
 
+  /**
+   * Whether a buffered mutator adapts its number of in flight RPCs to the observed latency and
+   * error rate. If so, the limit moves between {@link #MIN_INFLIGHT_RPCS_KEY} and
+   * {@link #MAX_INFLIGHT_RPCS_KEY}.
+   */
+  public static final String ADAPTIVE_INFLIGHT_RPCS_KEY =
+      "google.bigtable.buffered.mutator.adaptive.inflight.rpcs.enable";
+
+  /**
+   * The lowest number of in flight RPCs when {@link #ADAPTIVE_INFLIGHT_RPCS_KEY} is set. Defaults
+   * to the number of channels.
+   */
+  public static final String MIN_INFLIGHT_RPCS_KEY =
+      "google.bigtable.buffered.mutator.min.inflight.rpcs";
+
   /**
    * The maximum amount of memory to be used for asynchronous buffered mutator RPCs.
    */
   public static final String BIGTABLE_BUFFERED_MUTATOR_MAX_MEMORY_KEY =
       "google.bigtable.buffered.mutator.max.memory";
 
+  /**
+   * A directory in which a buffered mutator creates a memory mapped spill file. While the
+   * buffered mutator's memory is full, Puts and Deletes are written to the spill file instead of
+   * blocking the caller. Not set by default, which disables spilling.
+   */
+  public static final String BIGTABLE_BUFFERED_MUTATOR_SPILL_DIR_KEY =
+      "google.bigtable.buffered.mutator.spill.dir";
+
+  /**
+   * The size of a buffered mutator's spill file, in bytes.
+   */
+  public static final String BIGTABLE_BUFFERED_MUTATOR_SPILL_MAX_BYTES_KEY =
+      "google.bigtable.buffered.mutator.spill.max.bytes";
+
+  /**
+   * The default size of a buffered mutator's spill file.
+   */
+  public static final int BIGTABLE_BUFFERED_MUTATOR_SPILL_MAX_BYTES_DEFAULT = 64 * 1024 * 1024;
+
+  /**
+   * The maximum amount of memory used by the asynchronous RPCs of all of a connection's tables and
+   * buffered mutators together. Each of them also has its own limit.
+   */
+  public static final String BIGTABLE_CONNECTION_MAX_MEMORY_KEY =
+      "google.bigtable.connection.max.memory";
+
+  /**
+   * The maximum number of asynchronous RPCs that all of a connection's tables and buffered
+   * mutators may have in flight together. Defaults to {@link AsyncExecutor#MAX_INFLIGHT_RPCS_DEFAULT}
+   * per channel.
+   */
+  public static final String BIGTABLE_CONNECTION_MAX_INFLIGHT_RPCS_KEY =
+      "google.bigtable.connection.max.inflight.rpcs";
+
   private static final AtomicLong SEQUENCE_GENERATOR = new AtomicLong();
   private static final Map<Long, BigtableBufferedMutator> ACTIVE_BUFFERED_MUTATORS =
       Collections.synchronizedMap(new HashMap<Long, BigtableBufferedMutator>());
@@ -96,6 +153,7 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
   private volatile boolean cleanupPool = false;
   private final BigtableOptions options;
   private final TableConfiguration tableConfig;
+  private final SharedWriteBudget writeBudget;
 
   // A set of tables that have been disabled via BigtableAdmin.
   private Set<TableName> disabledTables = new HashSet<>();
@@ -136,6 +194,11 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
 
     this.session = new BigtableSession(options);
     this.tableConfig = new TableConfiguration(conf);
+    this.writeBudget = new SharedWriteBudget(
+        conf.getLong(BIGTABLE_CONNECTION_MAX_MEMORY_KEY,
+          AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT),
+        conf.getInt(BIGTABLE_CONNECTION_MAX_INFLIGHT_RPCS_KEY,
+          AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT * options.getChannelCount()));
   }
 
   @Override
@@ -152,8 +215,8 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
   public Table getTable(TableName tableName, ExecutorService pool) throws IOException {
     BigtableDataClient client = session.getDataClient();
     HeapSizeManager heapSizeManager =
-        new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT,
-            AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT);
+        new ConcurrentHeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT,
+            AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT, writeBudget);
     if (pool == null) {
       pool = BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool();
     }
@@ -177,8 +240,7 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
       maxHeapSize = params.getWriteBufferSize();
     }
 
-    int defaultRpcCount = AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT * options.getChannelCount();
-    int maxInflightRpcs = conf.getInt(MAX_INFLIGHT_RPCS_KEY, defaultRpcCount);
+    HeapSizeManager heapSizeManager = createBufferedMutatorHeapSizeManager(maxHeapSize);
 
     final long id = SEQUENCE_GENERATOR.incrementAndGet();
 
@@ -190,8 +252,10 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
         conf,
         options,
         params.getListener(),
-        new HeapSizeManager(maxHeapSize, maxInflightRpcs),
-        pool) {
+        heapSizeManager,
+        pool,
+        session.getIncrementAggregator(),
+        createSpillFile(tableName)) {
       @Override
       public void close() throws IOException {
         try {
@@ -205,6 +269,70 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
     return bigtableBufferedMutator;
   }
 
+  /**
+   * @return a {@link BigtableMultiTableBufferedMutator} that writes to any of this connection's
+   *         tables. All of the tables share one write buffer of
+   *         {@link #BIGTABLE_BUFFERED_MUTATOR_MAX_MEMORY_KEY} bytes and the same worker pool.
+   */
+  public BigtableMultiTableBufferedMutator getMultiTableBufferedMutator() throws IOException {
+    long maxMemory = conf.getLong(
+        BIGTABLE_BUFFERED_MUTATOR_MAX_MEMORY_KEY,
+        AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT);
+    final ExecutorService pool = batchPool != null ? batchPool
+        : BigtableSessionSharedThreadPools.getInstance().getBatchThreadPool();
+    final HeapSizeManager heapSizeManager = createBufferedMutatorHeapSizeManager(maxMemory);
+    return new BigtableMultiTableBufferedMutator(
+        session.getDataClient(),
+        conf,
+        options,
+        heapSizeManager,
+        pool) {
+      @Override
+      protected BigtableBufferedMutator createTableMutator(TableName tableName,
+          BufferedMutator.ExceptionListener listener) throws IOException {
+        return new BigtableBufferedMutator(
+            session.getDataClient(),
+            createAdapter(tableName),
+            conf,
+            options,
+            listener,
+            heapSizeManager,
+            pool,
+            session.getIncrementAggregator(),
+            createSpillFile(tableName));
+      }
+    };
+  }
+
+  private HeapSizeManager createBufferedMutatorHeapSizeManager(long maxHeapSize) {
+    int defaultRpcCount = AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT * options.getChannelCount();
+    int maxInflightRpcs = conf.getInt(MAX_INFLIGHT_RPCS_KEY, defaultRpcCount);
+    if (conf.getBoolean(ADAPTIVE_INFLIGHT_RPCS_KEY, false)) {
+      int minInflightRpcs = conf.getInt(MIN_INFLIGHT_RPCS_KEY,
+        Math.min(options.getChannelCount(), maxInflightRpcs));
+      return new AdaptiveHeapSizeManager(maxHeapSize,
+          new AdaptiveConcurrencyLimit(minInflightRpcs, maxInflightRpcs), writeBudget);
+    } else {
+      return new ConcurrentHeapSizeManager(maxHeapSize, maxInflightRpcs, writeBudget);
+    }
+  }
+
+  /**
+   * @return a {@link MutationSpillFile} in the {@link #BIGTABLE_BUFFERED_MUTATOR_SPILL_DIR_KEY}
+   *         directory, or null if spilling is not enabled.
+   */
+  private MutationSpillFile createSpillFile(TableName tableName) throws IOException {
+    String spillDir = conf.get(BIGTABLE_BUFFERED_MUTATOR_SPILL_DIR_KEY);
+    if (spillDir == null) {
+      return null;
+    }
+    File file = File.createTempFile("bigtable-" + tableName.getNameAsString() + "-", ".spill",
+      new File(spillDir));
+    file.deleteOnExit();
+    return new MutationSpillFile(file, conf.getInt(BIGTABLE_BUFFERED_MUTATOR_SPILL_MAX_BYTES_KEY,
+      BIGTABLE_BUFFERED_MUTATOR_SPILL_MAX_BYTES_DEFAULT));
+  }
+
   private HBaseRequestAdapter createAdapter(TableName tableName) {
     return new HBaseRequestAdapter(options.getClusterName(), tableName, conf);
   }
@@ -338,4 +466,12 @@ public abstract class AbstractBigtableConnection implements Connection, Closeabl
   public BigtableSession getSession() {
     return session;
   }
+
+  /**
+   * @return the session's {@link ReadRowCoalescer}, whose reads borrow from this connection's
+   *         {@link SharedWriteBudget}, or null if gets are not coalesced.
+   */
+  public ReadRowCoalescer getReadRowCoalescer() {
+    return session.getReadRowCoalescer(writeBudget);
+  }
 }
@@ -21,9 +21,13 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
@@ -34,14 +38,17 @@ import java.util.concurrent.TimeUnit;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -52,13 +59,19 @@ import com.google.bigtable.v1.MutateRowRequest;
 import com.google.bigtable.v1.MutateRowsRequest;
 import com.google.bigtable.v1.MutateRowsResponse;
 import com.google.bigtable.v1.MutateRowsResponse.Builder;
+import com.google.bigtable.v1.ReadModifyWriteRowRequest;
 import com.google.cloud.bigtable.config.BigtableOptions;
 import com.google.cloud.bigtable.grpc.BigtableDataClient;
 import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
+import com.google.cloud.bigtable.grpc.async.BufferedMutationResult;
 import com.google.cloud.bigtable.grpc.async.HeapSizeManager;
+import com.google.cloud.bigtable.grpc.async.MutationSpillFile;
 import com.google.cloud.bigtable.hbase.adapters.HBaseRequestAdapter;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
 import com.google.rpc.Status;
 
 /**
@@ -84,7 +97,7 @@ public class TestBigtableBufferedMutator {
 
   private ExecutorService executorService;
 
-  private List<Runnable> callbacks = new ArrayList<>();
+  private List<Runnable> callbacks = Collections.synchronizedList(new ArrayList<Runnable>());
 
   @Before
   public void setUp() {
@@ -107,9 +120,18 @@ public class TestBigtableBufferedMutator {
   }
 
   private BigtableBufferedMutator createMutator(Configuration configuration) throws IOException {
-    HeapSizeManager heapSizeManager =
-        new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT,
-            AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT);
+    return createMutator(configuration,
+      new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT,
+          AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT));
+  }
+
+  private BigtableBufferedMutator createMutator(Configuration configuration,
+      HeapSizeManager heapSizeManager) throws IOException {
+    return createMutator(configuration, heapSizeManager, null);
+  }
+
+  private BigtableBufferedMutator createMutator(Configuration configuration,
+      HeapSizeManager heapSizeManager, MutationSpillFile spillFile) throws IOException {
 
     configuration.set(BigtableOptionsFactory.PROJECT_ID_KEY, "project");
     configuration.set(BigtableOptionsFactory.ZONE_KEY, "zone");
@@ -127,7 +149,9 @@ public class TestBigtableBufferedMutator {
       options,
       listener,
       heapSizeManager,
-      executorService);
+      executorService,
+      null,
+      spillFile);
   }
 
   @Test
@@ -256,10 +280,224 @@ public class TestBigtableBufferedMutator {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testOrderByRow() throws Exception {
+    final List<MutateRowRequest> sent =
+        Collections.synchronizedList(new ArrayList<MutateRowRequest>());
+    when(mockClient.mutateRowAsync(any(MutateRowRequest.class)))
+        .then(new Answer<ListenableFuture>() {
+          @Override
+          public ListenableFuture answer(InvocationOnMock invocation) throws Throwable {
+            sent.add(invocation.getArgumentAt(0, MutateRowRequest.class));
+            return mockFuture;
+          }
+        });
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, "4");
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_ORDER_BY_ROW_KEY, "true");
+    // Stay below AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT, since no RPC completes until the end.
+    int rowCount = 4;
+    int mutationsPerRow = 10;
+    try (BigtableBufferedMutator underTest = createMutator(config)) {
+      for (int i = 0; i < mutationsPerRow; i++) {
+        for (int j = 0; j < rowCount; j++) {
+          underTest.mutate(new Put(Bytes.toBytes("row" + j))
+              .addColumn(EMPTY_BYTES, EMPTY_BYTES, Bytes.toBytes(i)));
+        }
+      }
+      // Complete the calls as the workers issue them, so that close() does not wait forever.
+      for (int i = 0; i < 100 && (sent.size() < rowCount * mutationsPerRow
+          || underTest.hasInflightRequests()); i++) {
+        Thread.sleep(10);
+        completeCall();
+      }
+    }
+    Assert.assertEquals(rowCount * mutationsPerRow, sent.size());
+    Map<ByteString, Integer> lastValues = new HashMap<>();
+    for (MutateRowRequest request : sent) {
+      int value = Bytes.toInt(request.getMutations(0).getSetCell().getValue().toByteArray());
+      Integer last = lastValues.put(request.getRowKey(), value);
+      Assert.assertEquals(last == null ? 0 : last + 1, value);
+    }
+  }
+
+  @Test
+  public void testOrderByRowWaitsForCompletion() throws Exception {
+    final List<MutateRowRequest> sent =
+        Collections.synchronizedList(new ArrayList<MutateRowRequest>());
+    final List<SettableFuture<Empty>> futures =
+        Collections.synchronizedList(new ArrayList<SettableFuture<Empty>>());
+    when(mockClient.mutateRowAsync(any(MutateRowRequest.class)))
+        .then(new Answer<ListenableFuture<Empty>>() {
+          @Override
+          public ListenableFuture<Empty> answer(InvocationOnMock invocation) throws Throwable {
+            sent.add(invocation.getArgumentAt(0, MutateRowRequest.class));
+            SettableFuture<Empty> future = SettableFuture.create();
+            futures.add(future);
+            return future;
+          }
+        });
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, "4");
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_ORDER_BY_ROW_KEY, "true");
+    try (BigtableBufferedMutator underTest = createMutator(config)) {
+      byte[] row = Bytes.toBytes("row");
+      underTest.mutate(new Put(row).addColumn(EMPTY_BYTES, EMPTY_BYTES, Bytes.toBytes(0)));
+      underTest.mutate(new Put(row).addColumn(EMPTY_BYTES, EMPTY_BYTES, Bytes.toBytes(1)));
+      // The second mutation was submitted while the first RPC is in flight, so it has to wait.
+      Thread.sleep(100);
+      Assert.assertEquals(1, sent.size());
+
+      futures.get(0).set(Empty.getDefaultInstance());
+      for (int i = 0; i < 100 && sent.size() < 2; i++) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(2, sent.size());
+      Assert.assertEquals(1,
+        Bytes.toInt(sent.get(1).getMutations(0).getSetCell().getValue().toByteArray()));
+      futures.get(1).set(Empty.getDefaultInstance());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testTryMutate() throws Exception {
+    when(mockClient.mutateRowAsync(any(MutateRowRequest.class))).thenReturn(mockFuture);
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, "0");
+    HeapSizeManager heapSizeManager =
+        new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, 1);
+    try (BigtableBufferedMutator underTest = createMutator(config, heapSizeManager)) {
+      BufferedMutationResult<?> first = underTest.tryMutate(SIMPLE_PUT);
+      Assert.assertFalse(first.isRejected());
+      Assert.assertTrue(first.getAccepted().get());
+      Assert.assertFalse(first.getApplied().isDone());
+      verify(mockClient, times(1)).mutateRowAsync(any(MutateRowRequest.class));
+
+      // The single RPC slot is taken, so the mutation is not accepted.
+      BufferedMutationResult<?> rejected = underTest.tryMutate(SIMPLE_PUT);
+      Assert.assertTrue(rejected.isRejected());
+      Assert.assertFalse(rejected.getAccepted().get());
+      Assert.assertTrue(rejected.getApplied().isCancelled());
+      verify(mockClient, times(1)).mutateRowAsync(any(MutateRowRequest.class));
+
+      completeCall();
+      Assert.assertTrue(first.getApplied().isDone());
+      Assert.assertFalse(underTest.tryMutate(SIMPLE_PUT).isRejected());
+      verify(mockClient, times(2)).mutateRowAsync(any(MutateRowRequest.class));
+      completeCall();
+    }
+  }
+
+  /**
+   * A batch that fills up while the buffer is full is sent by the bulk flush executor, rather than
+   * blocking the caller of tryMutate().
+   */
+  @Test
+  public void testTryMutateBulkDoesNotBlock() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    config.set(BigtableOptionsFactory.BIGTABLE_BULK_MAX_ROW_KEY_COUNT, "2");
+    SettableFuture<MutateRowsResponse> response = SettableFuture.create();
+    when(mockClient.mutateRowsAsync(any(MutateRowsRequest.class))).thenReturn(response);
+    HeapSizeManager heapSizeManager =
+        new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, 1);
+    try (BigtableBufferedMutator underTest = createMutator(config, heapSizeManager)) {
+      // Take the single RPC slot.
+      long operationId = heapSizeManager.registerOperationWithHeapSize(1);
+      BufferedMutationResult<?> first = underTest.tryMutate(SIMPLE_PUT);
+      BufferedMutationResult<?> second = underTest.tryMutate(SIMPLE_PUT);
+      Assert.assertFalse(first.isRejected());
+      Assert.assertFalse(second.isRejected());
+      Assert.assertFalse(second.getAccepted().isDone());
+      verify(mockClient, times(0)).mutateRowsAsync(any(MutateRowsRequest.class));
+
+      heapSizeManager.markCanBeCompleted(operationId);
+      Assert.assertTrue(first.getAccepted().get(1, TimeUnit.SECONDS));
+      Assert.assertTrue(second.getAccepted().get(1, TimeUnit.SECONDS));
+      verify(mockClient, times(1)).mutateRowsAsync(any(MutateRowsRequest.class));
+
+      response.set(MutateRowsResponse.newBuilder()
+          .addStatuses(OK_STATUS)
+          .addStatuses(OK_STATUS)
+          .build());
+      second.getApplied().get(1, TimeUnit.SECONDS);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testSpilledMutationsKeepOrder() throws Exception {
+    when(mockClient.mutateRowAsync(any(MutateRowRequest.class))).thenReturn(mockFuture);
+    when(mockClient.readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class)))
+        .thenReturn(mockFuture);
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, "0");
+    HeapSizeManager heapSizeManager =
+        new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, 1);
+    File file = File.createTempFile("spill", ".dat");
+    MutationSpillFile spillFile = new MutationSpillFile(file, 4096);
+    try (BigtableBufferedMutator underTest = createMutator(config, heapSizeManager, spillFile)) {
+      underTest.mutate(SIMPLE_PUT);
+      verify(mockClient, times(1)).mutateRowAsync(any(MutateRowRequest.class));
+
+      // The single RPC slot is taken, so the increment is spilled rather than sent before the put.
+      underTest.mutate(new Increment(EMPTY_BYTES).addColumn(EMPTY_BYTES, EMPTY_BYTES, 1));
+      Thread.sleep(100);
+      verify(mockClient, times(0)).readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class));
+
+      completeCall();
+      for (int i = 0; i < 100 && !spillFile.isEmpty(); i++) {
+        Thread.sleep(10);
+      }
+      verify(mockClient, times(1)).readModifyWriteRowAsync(any(ReadModifyWriteRowRequest.class));
+      completeCall();
+    } finally {
+      file.delete();
+    }
+    Assert.assertTrue(spillFile.isEmpty());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testSpilledFailureReportsRowKey() throws Exception {
+    when(mockClient.mutateRowAsync(any(MutateRowRequest.class))).thenReturn(mockFuture,
+      Futures.<Empty> immediateFailedFuture(new IOException()));
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, "0");
+    HeapSizeManager heapSizeManager =
+        new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, 1);
+    File file = File.createTempFile("spill", ".dat");
+    MutationSpillFile spillFile = new MutationSpillFile(file, 4096);
+    try (BigtableBufferedMutator underTest = createMutator(config, heapSizeManager, spillFile)) {
+      underTest.mutate(SIMPLE_PUT);
+      // The single RPC slot is taken, so this put is spilled.
+      Put spilled = new Put(Bytes.toBytes("spilled")).addColumn(EMPTY_BYTES, EMPTY_BYTES,
+        EMPTY_BYTES);
+      underTest.mutate(spilled);
+      completeCall();
+      underTest.flush();
+      ArgumentCaptor<RetriesExhaustedWithDetailsException> exception =
+          ArgumentCaptor.forClass(RetriesExhaustedWithDetailsException.class);
+      verify(listener, times(1)).onException(exception.capture(), same(underTest));
+      // The stand-in has the row key of the original put, but not its cells.
+      Put failed = (Put) exception.getValue().getRow(0);
+      Assert.assertArrayEquals(spilled.getRow(), failed.getRow());
+      Assert.assertTrue(failed.isEmpty());
+    } finally {
+      file.delete();
+    }
+  }
+
   private void completeCall() {
-    for (Runnable callback : callbacks) {
+    List<Runnable> toRun;
+    synchronized (callbacks) {
+      toRun = new ArrayList<>(callbacks);
+      callbacks.clear();
+    }
+    for (Runnable callback : toRun) {
       callback.run();
     }
-    callbacks.clear();
   }
 }
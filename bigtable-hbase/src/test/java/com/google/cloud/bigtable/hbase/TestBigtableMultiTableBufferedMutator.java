@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.bigtable.hbase;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.bigtable.v1.MutateRowRequest;
+import com.google.bigtable.v1.MutateRowsRequest;
+import com.google.bigtable.v1.MutateRowsResponse;
+import com.google.cloud.bigtable.config.BigtableOptions;
+import com.google.cloud.bigtable.grpc.BigtableDataClient;
+import com.google.cloud.bigtable.grpc.async.AsyncExecutor;
+import com.google.cloud.bigtable.grpc.async.HeapSizeManager;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.rpc.Status;
+
+/**
+ * Tests for {@link BigtableMultiTableBufferedMutator}
+ */
+@RunWith(JUnit4.class)
+public class TestBigtableMultiTableBufferedMutator {
+
+  private static final byte[] EMPTY_BYTES = new byte[1];
+  private static final Put SIMPLE_PUT =
+      new Put(EMPTY_BYTES).addColumn(EMPTY_BYTES, EMPTY_BYTES, EMPTY_BYTES);
+  private static final Status OK_STATUS =
+      Status.newBuilder().setCode(io.grpc.Status.OK.getCode().value()).build();
+  private static final TableName TABLE1 = TableName.valueOf("TABLE1");
+  private static final TableName TABLE2 = TableName.valueOf("TABLE2");
+
+  @Mock
+  private BigtableDataClient mockClient;
+
+  private ExecutorService executorService;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    executorService = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  private BigtableMultiTableBufferedMutator createMutator(Configuration configuration)
+      throws IOException {
+    return createMutator(configuration, new HeapSizeManager(
+        AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, AsyncExecutor.MAX_INFLIGHT_RPCS_DEFAULT));
+  }
+
+  private BigtableMultiTableBufferedMutator createMutator(Configuration configuration,
+      HeapSizeManager heapSizeManager) throws IOException {
+    configuration.set(BigtableOptionsFactory.PROJECT_ID_KEY, "project");
+    configuration.set(BigtableOptionsFactory.ZONE_KEY, "zone");
+    configuration.set(BigtableOptionsFactory.CLUSTER_KEY, "cluster");
+    BigtableOptions options = BigtableOptionsFactory.fromConfiguration(configuration);
+    return new BigtableMultiTableBufferedMutator(
+      mockClient,
+      configuration,
+      options,
+      heapSizeManager,
+      executorService);
+  }
+
+  @Test
+  public void testBulkBatchPerTable() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, "true");
+    final List<MutateRowsRequest> requests =
+        Collections.synchronizedList(new ArrayList<MutateRowsRequest>());
+    final List<SettableFuture<MutateRowsResponse>> futures =
+        Collections.synchronizedList(new ArrayList<SettableFuture<MutateRowsResponse>>());
+    when(mockClient.mutateRowsAsync(any(MutateRowsRequest.class))).thenAnswer(
+      new Answer<ListenableFuture<MutateRowsResponse>>() {
+        @Override
+        public ListenableFuture<MutateRowsResponse> answer(InvocationOnMock invocation) {
+          SettableFuture<MutateRowsResponse> future = SettableFuture.create();
+          requests.add(invocation.getArgumentAt(0, MutateRowsRequest.class));
+          futures.add(future);
+          return future;
+        }
+      });
+
+    final BigtableMultiTableBufferedMutator underTest = createMutator(config);
+    underTest.mutate(TABLE1, SIMPLE_PUT);
+    underTest.mutate(TABLE2, SIMPLE_PUT);
+    underTest.mutate(TABLE1, new Put(Bytes.toBytes("row")).addColumn(EMPTY_BYTES, EMPTY_BYTES,
+      EMPTY_BYTES));
+    Future<Void> flush = executorService.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        underTest.flush();
+        return null;
+      }
+    });
+    long deadline = System.currentTimeMillis() + 1000;
+    while (futures.size() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    Assert.assertEquals(2, requests.size());
+    Assert.assertFalse(flush.isDone());
+    int entryCount = 0;
+    for (int i = 0; i < requests.size(); i++) {
+      MutateRowsRequest request = requests.get(i);
+      // TABLE1 has two mutations and TABLE2 has one.
+      String expectedTable = request.getEntriesCount() == 2 ? "TABLE1" : "TABLE2";
+      Assert.assertTrue(request.getTableName().endsWith(expectedTable));
+      MutateRowsResponse.Builder response = MutateRowsResponse.newBuilder();
+      for (int j = 0; j < request.getEntriesCount(); j++) {
+        response.addStatuses(OK_STATUS);
+      }
+      entryCount += request.getEntriesCount();
+      futures.get(i).set(response.build());
+    }
+    Assert.assertEquals(3, entryCount);
+    flush.get(1, TimeUnit.SECONDS);
+    Assert.assertFalse(underTest.hasInflightRequests());
+    underTest.close();
+  }
+
+  @Test
+  public void testFailureIsReported() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, "0");
+    when(mockClient.mutateRowAsync(any(MutateRowRequest.class))).thenReturn(
+      Futures.<com.google.protobuf.Empty> immediateFailedFuture(new RuntimeException()));
+    BigtableMultiTableBufferedMutator underTest = createMutator(config);
+    underTest.mutate(TABLE1, SIMPLE_PUT);
+    try {
+      underTest.mutate(TABLE2, SIMPLE_PUT);
+      Assert.fail("Expected a RetriesExhaustedWithDetailsException");
+    } catch (RetriesExhaustedWithDetailsException e) {
+      Assert.assertEquals(1, e.getNumExceptions());
+    }
+    underTest.close();
+  }
+
+  @Test
+  public void testTablesShareHeapSizeManager() throws Exception {
+    Configuration config = new Configuration(false);
+    config.set(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_COUNT_KEY, "0");
+    SettableFuture<com.google.protobuf.Empty> future = SettableFuture.create();
+    when(mockClient.mutateRowAsync(any(MutateRowRequest.class))).thenReturn(future);
+    BigtableMultiTableBufferedMutator underTest = createMutator(config,
+      new HeapSizeManager(AsyncExecutor.ASYNC_MUTATOR_MAX_MEMORY_DEFAULT, 1));
+    underTest.mutate(TABLE1, SIMPLE_PUT);
+    Assert.assertTrue(underTest.hasInflightRequests());
+    // TABLE1's mutation uses the only RPC slot, so TABLE2 cannot send.
+    Assert.assertTrue(underTest.tryMutate(TABLE2, SIMPLE_PUT).isRejected());
+    future.set(com.google.protobuf.Empty.getDefaultInstance());
+    Assert.assertFalse(underTest.tryMutate(TABLE2, SIMPLE_PUT).isRejected());
+    underTest.close();
+    Assert.assertFalse(underTest.hasInflightRequests());
+  }
+}
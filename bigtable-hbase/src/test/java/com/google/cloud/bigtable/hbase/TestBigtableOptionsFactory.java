@@ -131,6 +131,16 @@ public class TestBigtableOptionsFactory {
     BigtableOptionsFactory.fromConfiguration(configuration);
   }
 
+  @Test
+  public void testOrderByRowRejectsBulkApi() throws IOException {
+    configuration.setBoolean(BigtableOptionsFactory.BIGTABE_USE_SERVICE_ACCOUNTS_KEY, false);
+    configuration.setBoolean(BigtableOptionsFactory.BIGTABLE_NULL_CREDENTIAL_ENABLE_KEY, true);
+    configuration.setBoolean(BigtableOptionsFactory.BIGTABLE_ASYNC_MUTATOR_ORDER_BY_ROW_KEY, true);
+    configuration.setBoolean(BigtableOptionsFactory.BIGTABLE_USE_BULK_API, true);
+    expectedException.expect(IllegalArgumentException.class);
+    BigtableOptionsFactory.fromConfiguration(configuration);
+  }
+
   @Test
   public void testZeroRefreshTime() throws IOException{
     configuration.set(BigtableOptionsFactory.BIGTABLE_DATA_HOST_KEY, TEST_HOST);
@@ -156,6 +166,7 @@ public class TestBigtableOptionsFactory {
     assertEquals(
         RetryOptions.DEFAULT_READ_PARTIAL_ROW_TIMEOUT_MS,
         retryOptions.getReadPartialRowTimeoutMillis());
+    assertEquals(RetryOptions.DEFAULT_USE_FULL_JITTER, retryOptions.useFullJitter());
   }
 
   @Test
@@ -164,11 +175,13 @@ public class TestBigtableOptionsFactory {
     configuration.set(BigtableOptionsFactory.ENABLE_GRPC_RETRY_DEADLINEEXCEEDED_KEY, "false");
     configuration.set(BigtableOptionsFactory.MAX_ELAPSED_BACKOFF_MILLIS_KEY, "111");
     configuration.set(BigtableOptionsFactory.READ_PARTIAL_ROW_TIMEOUT_MS, "123");
+    configuration.set(BigtableOptionsFactory.USE_FULL_JITTER_KEY, "true");
     RetryOptions retryOptions =
         BigtableOptionsFactory.fromConfiguration(configuration).getRetryOptions();
     assertEquals(false, retryOptions.enableRetries());
     assertEquals(false, retryOptions.retryOnDeadlineExceeded());
     assertEquals(111, retryOptions.getMaxElaspedBackoffMillis());
     assertEquals(123, retryOptions.getReadPartialRowTimeoutMillis());
+    assertEquals(true, retryOptions.useFullJitter());
   }
 }
@@ -126,5 +126,57 @@ public class TestRowAdapter {
     assertEquals(1, cells4.size());
     assertEquals(Bytes.toString(value5), Bytes.toString(CellUtil.cloneValue(cells4.get(0))));
   }
-}
 
+  @Test
+  public void adaptResponse_unsortedFamilies() {
+    byte[] qualifier = "qualifier".getBytes();
+    Column column = Column.newBuilder()
+        .setQualifier(ByteString.copyFrom(qualifier))
+        .addCells(Cell.newBuilder()
+            .setTimestampMicros(54321L)
+            .setValue(ByteString.copyFromUtf8("value")))
+        .build();
+    Row row = Row.newBuilder()
+        .setKey(ByteString.copyFromUtf8("key"))
+        .addFamilies(Family.newBuilder().setName("family2").addColumns(column))
+        .addFamilies(Family.newBuilder().setName("family1").addColumns(column))
+        // A duplicate that does not directly follow the cell it duplicates.
+        .addFamilies(Family.newBuilder().setName("family2").addColumns(column))
+        .build();
+
+    org.apache.hadoop.hbase.Cell[] cells = instance.adaptResponse(row).rawCells();
+    assertEquals(2, cells.length);
+    assertEquals("family1", Bytes.toString(CellUtil.cloneFamily(cells[0])));
+    assertEquals("family2", Bytes.toString(CellUtil.cloneFamily(cells[1])));
+  }
+
+  @Test
+  public void adaptResponse_cellsSharePackedBuffer() {
+    Row row = Row.newBuilder()
+        .setKey(ByteString.copyFromUtf8("key"))
+        .addFamilies(Family.newBuilder()
+            .setName("family")
+            .addColumns(Column.newBuilder()
+                .setQualifier(ByteString.copyFromUtf8("qualifier1"))
+                .addCells(Cell.newBuilder()
+                    .setTimestampMicros(54321L)
+                    .setValue(ByteString.copyFromUtf8("value1"))))
+            .addColumns(Column.newBuilder()
+                .setQualifier(ByteString.copyFromUtf8("qualifier2"))
+                .addCells(Cell.newBuilder()
+                    .setTimestampMicros(54321L)
+                    .setValue(ByteString.copyFromUtf8("value2")))))
+        .build();
+
+    org.apache.hadoop.hbase.Cell[] cells = instance.adaptResponse(row).rawCells();
+    assertEquals(2, cells.length);
+    assertSame(cells[0].getRowArray(), cells[1].getValueArray());
+    assertEquals("key", Bytes.toString(CellUtil.cloneRow(cells[1])));
+    assertEquals("qualifier2", Bytes.toString(CellUtil.cloneQualifier(cells[1])));
+    assertEquals("value2", Bytes.toString(CellUtil.cloneValue(cells[1])));
+
+    // Family names are shared across rows.
+    org.apache.hadoop.hbase.Cell[] otherCells = instance.adaptResponse(row).rawCells();
+    assertSame(cells[0].getFamilyArray(), otherCells[0].getFamilyArray());
+  }
+}